@@ -131,6 +131,18 @@ public class TezJobConfig {
 	      "tez.runtime.sort.threads";
   public static final int DEFAULT_TEZ_RUNTIME_SORT_THREADS = 1;
 
+  /**
+   * Whether the output buffer is allocated outside the JVM heap. When
+   * enabled, the buffer is sized by tez.runtime.io.sort.mb and is not counted
+   * against the heap memory available to the task. Sorted outputs then use
+   * the PipelinedSorter irrespective of tez.runtime.sort.threads, and their
+   * buffer may exceed 2 GB. The UnorderedPartitionedKVWriter of unordered
+   * partitioned outputs supports it as well, with a buffer of at most 2 GB.
+   */
+  public static final String TEZ_RUNTIME_SORT_BUFFER_OFFHEAP =
+      "tez.runtime.sort.buffer.off-heap";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SORT_BUFFER_OFFHEAP = false;
+
   /**
    * Specifies a partitioner class, which is used in Tez Runtime components
    * like OnFileSortedOutput
@@ -141,6 +153,48 @@ public class TezJobConfig {
    * Specifies a combiner class (primarily for Shuffle)
    */
   public static final String TEZ_RUNTIME_COMBINER_CLASS = "tez.runtime.combiner.class";
+
+  /**
+   * Specifies a PreAggregator class, which combines the values of the same
+   * key in a hash table in OnFileSortedOutput before they reach the sorter.
+   * Meant for aggregations which reduce the output a lot, such as counts
+   * over few distinct keys. The aggregation must be associative and
+   * commutative, like a combiner.
+   */
+  public static final String TEZ_RUNTIME_PRE_AGGREGATOR_CLASS =
+      "tez.runtime.pre-aggregator.class";
+
+  /**
+   * The number of keys held by the pre-aggregation hash table. The least
+   * recently written key is written to the sorter when a new key does not
+   * fit. The table is kept on the heap of the task, outside of the sort
+   * buffer, and is also bounded by
+   * {@link #TEZ_RUNTIME_PRE_AGGREGATION_MB}.
+   */
+  public static final String TEZ_RUNTIME_PRE_AGGREGATION_MAX_KEYS =
+      "tez.runtime.pre-aggregation.max-keys";
+  public static final int DEFAULT_TEZ_RUNTIME_PRE_AGGREGATION_MAX_KEYS = 10000;
+
+  /**
+   * The memory, in MB, requested by OnFileSortedOutput for the
+   * pre-aggregation hash table, in addition to the sort buffer. The size of
+   * an entry is estimated from its serialized key and value. The memory
+   * assigned may be scaled down like that of the sort buffer.
+   */
+  public static final String TEZ_RUNTIME_PRE_AGGREGATION_MB =
+      "tez.runtime.pre-aggregation.mb";
+  public static final int DEFAULT_TEZ_RUNTIME_PRE_AGGREGATION_MB = 16;
+
+  /**
+   * The fraction of records the pre-aggregation must save, measured once it
+   * has written as many keys to the sorter as the table holds. Below it,
+   * pre-aggregation is turned off for the rest of the task, and records are
+   * written to the sorter directly.
+   */
+  public static final String TEZ_RUNTIME_PRE_AGGREGATION_MIN_REDUCTION =
+      "tez.runtime.pre-aggregation.min-reduction";
+  public static final float DEFAULT_TEZ_RUNTIME_PRE_AGGREGATION_MIN_REDUCTION =
+      0.5f;
   
   public static final String TEZ_RUNTIME_NUM_EXPECTED_PARTITIONS = "tez.runtime.num.expected.partitions";
   
@@ -244,6 +298,102 @@ public class TezJobConfig {
       "tez.runtime.shuffle.ssl.enable";
   public static final boolean DEFAULT_TEZ_RUNTIME_SHUFFLE_ENABLE_SSL = false;
 
+  /**
+   * Whether shuffle inputs are fetched through a shared pool of non-blocking
+   * event-loop threads instead of a thread per fetch. Connections to a host
+   * are reused across fetches when the ShuffleHandler supports keep-alive.
+   * tez.runtime.shuffle.parallel.copies still bounds the number of
+   * concurrent fetches per input, but no longer the number of threads, so it
+   * can be raised considerably. Not supported with SSL shuffle, in which case
+   * the blocking fetchers are used.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_ENABLED =
+      "tez.runtime.shuffle.async-fetch.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_ENABLED =
+      false;
+
+  /**
+   * Number of event-loop threads used for fetching when
+   * tez.runtime.shuffle.async-fetch.enabled is set. Shared by all the inputs
+   * of the tasks running in a container.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_THREADS =
+      "tez.runtime.shuffle.async-fetch.threads";
+  public static final int DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_THREADS = 2;
+
+  /**
+   * Maximum number of idle connections kept open per host for reuse by the
+   * asynchronous fetcher. 0 disables keep-alive.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_MAX_CONNECTIONS =
+      "tez.runtime.shuffle.keep-alive.max-connections";
+  public static final int DEFAULT_TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_MAX_CONNECTIONS
+      = 2;
+
+  /**
+   * Time after which an idle connection kept for reuse by the asynchronous
+   * fetcher is closed.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_TIMEOUT_MS =
+      "tez.runtime.shuffle.keep-alive.timeout-ms";
+  public static final int DEFAULT_TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_TIMEOUT_MS =
+      5000;
+
+  /**
+   * Whether inputs produced by a task on the same NodeManager are read
+   * directly from the local disks instead of being fetched from the
+   * ShuffleHandler.
+   */
+  public static final String TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH =
+      "tez.runtime.optimize.local.fetch";
+  public static final boolean DEFAULT_TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH = false;
+
+  /**
+   * Whether sorted outputs publish each spill of the DefaultSorter as soon
+   * as it is written, with its own DataMovementEvent, instead of merging all
+   * spills into a single file when the task completes. Consumers then fetch
+   * and merge the spills while the producer is still running. Ignored by
+   * the PipelinedSorter.
+   */
+  public static final String TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED =
+      "tez.runtime.pipelined-shuffle.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED = false;
+
+  /**
+   * Whether the DefaultSorter merges its spills into a single file when the
+   * task completes. If disabled, the spills are served as they are, and
+   * consumers fetch a partition from each spill and merge them as separate
+   * segments, which saves reading and writing the whole output again on the
+   * producer. Ignored by the PipelinedSorter.
+   */
+  public static final String TEZ_RUNTIME_SORTER_FINAL_MERGE_ENABLED =
+      "tez.runtime.sorter.final-merge.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SORTER_FINAL_MERGE_ENABLED = true;
+
+  /**
+   * Whether the buffers which hold shuffled data in memory, and the output of
+   * in-memory merges, are kept for reuse once released instead of being
+   * allocated for every input. Buffers are rounded up to size classes, which
+   * is accounted against the shuffle memory.
+   */
+  public static final String TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED =
+      "tez.runtime.shuffle.buffer-pool.enabled";
+  public static final boolean DEFAULT_TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED =
+      false;
+
+  /**
+   * Whether sorted outputs report the size of each of their partitions to
+   * the vertex manager of the consumer, along with the total output size.
+   * The ShuffleVertexManager then assigns partitions to tasks by size when
+   * it reduces the parallelism of the consumer, so a task may be given
+   * partitions which are not next to each other. This must not be enabled
+   * when the order of the partitions matters, as for a total order sort.
+   */
+  public static final String TEZ_RUNTIME_REPORT_PARTITION_STATS =
+      "tez.runtime.report.partition.stats";
+  public static final boolean DEFAULT_TEZ_RUNTIME_REPORT_PARTITION_STATS =
+      false;
+
   /**
    * 
    */
@@ -252,6 +402,27 @@ public class TezJobConfig {
   public static final float DEFAULT_TEZ_RUNTIME_SHUFFLE_INPUT_BUFFER_PERCENT =
       0.90f;
 
+  /**
+   * The fraction of the memory of the task which ShuffledUnorderedGroupedInput
+   * asks for its hash table, in addition to the memory for fetched inputs.
+   * Records which do not fit are spilled to hash partitioned files, which
+   * are then grouped one at a time.
+   */
+  public static final String TEZ_RUNTIME_HASH_GROUPING_BUFFER_PERCENT =
+      "tez.runtime.hash-grouping.buffer.percent";
+  public static final float DEFAULT_TEZ_RUNTIME_HASH_GROUPING_BUFFER_PERCENT =
+      0.3f;
+
+  /**
+   * The number of files ShuffledUnorderedGroupedInput spills records to
+   * once its hash table is full. Partitions which still do not fit are
+   * spilled again, to as many files.
+   */
+  public static final String TEZ_RUNTIME_HASH_GROUPING_SPILL_PARTITIONS =
+      "tez.runtime.hash-grouping.spill.partitions";
+  public static final int DEFAULT_TEZ_RUNTIME_HASH_GROUPING_SPILL_PARTITIONS =
+      16;
+
   /**
    * 
    */
@@ -133,7 +133,8 @@ public enum TaskCounter {
 
   /**
    * Amount of physical data moved over the wire. Used by Shuffled*Input. Should
-   * be a combination of SHUFFLE_BYTES_TO_MEM and SHUFFLE_BYTES_TO_DISK
+   * be a combination of SHUFFLE_BYTES_TO_MEM, SHUFFLE_BYTES_TO_DISK and
+   * SHUFFLE_BYTES_DISK_DIRECT
    */
   SHUFFLE_BYTES,
 
@@ -163,4 +164,42 @@ public enum TaskCounter {
    * Number of disk to disk merges performed during the sort-merge
    */
   NUM_DISK_TO_DISK_MERGES,
+
+  /**
+   * Number of bytes read in place from the local disks, for inputs produced
+   * on the same node
+   */
+  SHUFFLE_BYTES_DISK_DIRECT,
+
+  /**
+   * Total number of buffers for in-memory shuffle data which were newly
+   * allocated, whether or not the shuffle buffer pool is enabled. With the
+   * pool enabled, these are the requests it could not serve with a released
+   * buffer.
+   */
+  SHUFFLE_BUFFERS_ALLOCATED,
+
+  /**
+   * Number of buffers for in-memory shuffle data which were reused from the
+   * shuffle buffer pool
+   */
+  SHUFFLE_BUFFERS_REUSED,
+
+  /**
+   * Bytes by which buffers for in-memory shuffle data were larger than
+   * requested, due to the size classes of the shuffle buffer pool
+   */
+  SHUFFLE_BUFFER_BYTES_WASTED,
+
+  /**
+   * Number of records written to the pre-aggregation hash table of
+   * OnFileSortedOutput
+   */
+  PRE_AGGREGATION_INPUT_RECORDS,
+
+  /**
+   * Number of aggregated records written by the pre-aggregation hash table
+   * to the sorter
+   */
+  PRE_AGGREGATION_OUTPUT_RECORDS,
 }
\ No newline at end of file
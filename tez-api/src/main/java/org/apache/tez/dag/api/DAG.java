@@ -61,6 +61,7 @@ import org.apache.tez.dag.api.records.DAGProtos.VertexPlan;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.protobuf.ByteString;
 
 public class DAG { // FIXME rename to Topology
   
@@ -72,6 +73,7 @@ public class DAG { // FIXME rename to Topology
   final String name;
   final Collection<URI> urisForCredentials = new HashSet<URI>();
   Credentials credentials;
+  byte[] baseConfPayload;
   Set<VertexGroup> vertexGroups = Sets.newHashSet();
   Set<GroupInputEdge> groupInputEdges = Sets.newHashSet();
 
@@ -111,6 +113,26 @@ public class DAG { // FIXME rename to Topology
     return this;
   }
   
+  /**
+   * Set the base configuration which the delta user payloads of this DAG's
+   * inputs, outputs and processors refer to. It is sent to every container
+   * running the DAG once, instead of with each payload.
+   *
+   * @param baseConfPayload base configuration, as created by
+   *          TezUtils.createUserPayloadFromConf; delta payloads are created
+   *          against it with TezUtils.createDeltaUserPayloadFromConf
+   * @return this
+   */
+  public synchronized DAG setBaseConfPayload(byte[] baseConfPayload) {
+    this.baseConfPayload = baseConfPayload;
+    return this;
+  }
+
+  @Private
+  public synchronized byte[] getBaseConfPayload() {
+    return this.baseConfPayload;
+  }
+
   public synchronized VertexGroup createVertexGroup(String name, Vertex... members) {
     VertexGroup uv = new VertexGroup(name, members);
     vertexGroups.add(uv);
@@ -611,6 +633,9 @@ public class DAG { // FIXME rename to Topology
       dagBuilder.setCredentialsBinary(DagTypeConverters.convertCredentialsToProto(credentials));
       LogUtils.logCredentials(LOG, credentials, "dag");
     }
+    if (baseConfPayload != null) {
+      dagBuilder.setBaseConfPayload(ByteString.copyFrom(baseConfPayload));
+    }
     return dagBuilder.build();
   }
 }
@@ -121,6 +121,73 @@ public class TezConfiguration extends Configuration {
       + "node-blacklisting.ignore-threshold-node-percent";
   public static final int TEZ_AM_NODE_BLACKLISTING_IGNORE_THRESHOLD_DEFAULT = 33;
 
+  /**
+   * Whether the AM launches speculative attempts for tasks which run much
+   * slower than the other tasks of their vertex. Read from the AM
+   * configuration.
+   */
+  public static final String TEZ_AM_SPECULATION_ENABLED = TEZ_AM_PREFIX
+      + "speculation.enabled";
+  public static final boolean TEZ_AM_SPECULATION_ENABLED_DEFAULT = false;
+
+  /**
+   * The speculator used when speculation is enabled. Must implement
+   * org.apache.tez.dag.app.speculate.Speculator and have a constructor which
+   * takes the AppContext.
+   */
+  public static final String TEZ_AM_SPECULATOR_CLASS = TEZ_AM_PREFIX
+      + "speculator.class";
+  public static final String TEZ_AM_SPECULATOR_CLASS_DEFAULT =
+      "org.apache.tez.dag.app.speculate.DefaultSpeculator";
+
+  /** How often, in milliseconds, running attempts are checked for stragglers. */
+  public static final String TEZ_AM_SPECULATION_SCAN_INTERVAL_MS =
+      TEZ_AM_PREFIX + "speculation.scan-interval-ms";
+  public static final long TEZ_AM_SPECULATION_SCAN_INTERVAL_MS_DEFAULT = 1000l;
+
+  /**
+   * The number of standard deviations above the mean runtime of the
+   * completed tasks of a vertex beyond which the estimated runtime of an
+   * attempt makes it a straggler.
+   */
+  public static final String TEZ_AM_SPECULATION_SLOWTASK_THRESHOLD =
+      TEZ_AM_PREFIX + "speculation.slowtask.threshold";
+  public static final float TEZ_AM_SPECULATION_SLOWTASK_THRESHOLD_DEFAULT = 1.0f;
+
+  /**
+   * The fraction of the tasks of a vertex which must have completed before
+   * any of its tasks is speculated. At least one task must have completed.
+   */
+  public static final String TEZ_AM_SPECULATION_MIN_COMPLETED_FRACTION =
+      TEZ_AM_PREFIX + "speculation.min-completed-fraction";
+  public static final float TEZ_AM_SPECULATION_MIN_COMPLETED_FRACTION_DEFAULT = 0.05f;
+
+  /**
+   * The maximum number of speculative attempts running at the same time in a
+   * vertex, as a fraction of its running tasks. At least one is allowed.
+   */
+  public static final String TEZ_AM_SPECULATION_MAX_RUNNING_FRACTION =
+      TEZ_AM_PREFIX + "speculation.max-running-fraction";
+  public static final float TEZ_AM_SPECULATION_MAX_RUNNING_FRACTION_DEFAULT = 0.1f;
+
+  /**
+   * Number of threads which handle task and task attempt events in the AM.
+   * Events of one task always go to the same thread. With 0, all events are
+   * handled by the single central dispatcher thread.
+   */
+  public static final String TEZ_AM_DISPATCHER_TASK_THREADS =
+      TEZ_AM_PREFIX + "dispatcher.task-threads";
+  public static final int TEZ_AM_DISPATCHER_TASK_THREADS_DEFAULT = 0;
+
+  /**
+   * Interval, in milliseconds, at which the AM checks for tasks and
+   * containers which have not sent a heartbeat within their timeout. Only
+   * the ones whose timeout has passed are checked.
+   */
+  public static final String TEZ_AM_DEADLINE_TRACKER_TICK_MS =
+      TEZ_AM_PREFIX + "deadline-tracker.tick-ms";
+  public static final long TEZ_AM_DEADLINE_TRACKER_TICK_MS_DEFAULT = 1000;
+
   /** Number of threads to handle job client RPC requests.*/
   public static final String TEZ_AM_CLIENT_THREAD_COUNT =
       TEZ_AM_PREFIX + "client.am.thread-count";
@@ -167,6 +234,30 @@ public class TezConfiguration extends Configuration {
       + "get-task.sleep.interval-ms.max";
   public static final int TEZ_TASK_GET_TASK_SLEEP_INTERVAL_MS_MAX_DEFAULT = 200;
 
+  /**
+   * The maximum amount of time, in milliseconds, for which the AM holds a
+   * getTask call from an idle container until a task is assigned to it. The
+   * container asks again immediately when the call returns without a task.
+   * 0 disables waiting in the AM, in which case the container sleeps between
+   * calls. Every waiting call occupies one of the
+   * {@link #TEZ_AM_TASK_LISTENER_THREAD_COUNT} handler threads, see
+   * {@link #TEZ_TASK_GET_TASK_LONG_POLL_MAX_HANDLER_FRACTION}.
+   */
+  public static final String TEZ_TASK_GET_TASK_LONG_POLL_TIMEOUT_MS =
+      TEZ_TASK_PREFIX + "get-task.long-poll.timeout-ms";
+  public static final int TEZ_TASK_GET_TASK_LONG_POLL_TIMEOUT_MS_DEFAULT = 0;
+
+  /**
+   * The fraction of the {@link #TEZ_AM_TASK_LISTENER_THREAD_COUNT} handler
+   * threads which may be held by long-polled getTask calls. Calls beyond it
+   * return without a task straight away, and the container sleeps before
+   * asking again, so that heartbeats of running tasks always find a handler.
+   */
+  public static final String TEZ_TASK_GET_TASK_LONG_POLL_MAX_HANDLER_FRACTION =
+      TEZ_TASK_PREFIX + "get-task.long-poll.max-handler-fraction";
+  public static final float
+      TEZ_TASK_GET_TASK_LONG_POLL_MAX_HANDLER_FRACTION_DEFAULT = 0.5f;
+
   public static final String TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS = TEZ_TASK_PREFIX
       + "am.heartbeat.interval-ms.max";
   public static final int TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS_DEFAULT = 100;
@@ -175,6 +266,31 @@ public class TezConfiguration extends Configuration {
       + "max-events-per-heartbeat.max";
   public static final int TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT_DEFAULT = 100;
 
+  /**
+   * Whether a running task sends only the counters which changed since its
+   * last heartbeat instead of all counters on every heartbeat.
+   */
+  public static final String TEZ_TASK_COUNTERS_DELTA_ENABLED = TEZ_TASK_PREFIX
+      + "counters.delta.enabled";
+  public static final boolean TEZ_TASK_COUNTERS_DELTA_ENABLED_DEFAULT = false;
+
+  /**
+   * Number of heartbeats after which a task sends all of its counters again
+   * when sending counter deltas.
+   */
+  public static final String TEZ_TASK_COUNTERS_FULL_SNAPSHOT_INTERVAL =
+      TEZ_TASK_PREFIX + "counters.full-snapshot.interval";
+  public static final int TEZ_TASK_COUNTERS_FULL_SNAPSHOT_INTERVAL_DEFAULT = 50;
+
+  /**
+   * Number of parsed configuration payloads a container keeps, so that tasks
+   * of the same vertex running in a reused container do not parse the same
+   * payloads again. 0 disables the cache.
+   */
+  public static final String TEZ_TASK_CONF_PAYLOAD_CACHE_SIZE =
+      TEZ_TASK_PREFIX + "conf-payload-cache.size";
+  public static final int TEZ_TASK_CONF_PAYLOAD_CACHE_SIZE_DEFAULT = 32;
+
   /**
    * Whether to generate counters per IO or not. Enabling this will rename
    * CounterGroups / CounterNames to making thme unique per Vertex +
@@ -234,6 +350,16 @@ public class TezConfiguration extends Configuration {
   public static final long
     TEZ_AM_CONTAINER_SESSION_DELAY_ALLOCATION_MILLIS_DEFAULT = 10000l;
 
+  /**
+   * Whether data movement events on scatter-gather edges are stored once per
+   * edge and routed to a destination task only when it asks for events,
+   * instead of being copied into every destination task when they arrive.
+   */
+  public static final String TEZ_AM_SCATTER_GATHER_ON_DEMAND_ROUTING_ENABLED =
+      TEZ_AM_PREFIX + "scatter-gather.on-demand-routing.enabled";
+  public static final boolean
+      TEZ_AM_SCATTER_GATHER_ON_DEMAND_ROUTING_ENABLED_DEFAULT = false;
+
   public static final String TEZ_PB_BINARY_CONF_NAME = "tez-conf.pb";
   public static final String TEZ_PB_PLAN_BINARY_NAME = "tez-dag.pb";
   public static final String TEZ_PB_PLAN_TEXT_NAME = "tez-dag.pb.txt";
@@ -362,6 +488,22 @@ public class TezConfiguration extends Configuration {
   public static final long YARN_ATS_EVENT_FLUSH_TIMEOUT_MILLIS_DEFAULT =
       3000l;
 
+  /**
+   * Maximum number of history events posted to the timeline server in a
+   * single put.
+   */
+  public static final String YARN_ATS_EVENT_BATCH_SIZE =
+      TEZ_PREFIX + "yarn.ats.event.batch.size";
+  public static final int YARN_ATS_EVENT_BATCH_SIZE_DEFAULT = 1;
+
+  /**
+   * Maximum time to wait for more history events to fill up a batch once the
+   * first event of the batch is available.
+   */
+  public static final String YARN_ATS_EVENT_BATCH_LATENCY_MILLIS =
+      TEZ_PREFIX + "yarn.ats.event.batch.latency.millis";
+  public static final long YARN_ATS_EVENT_BATCH_LATENCY_MILLIS_DEFAULT = 10l;
+
   public static final String DAG_RECOVERY_ENABLED =
       TEZ_PREFIX + "dag.recovery.enabled";
   public static final boolean DAG_RECOVERY_ENABLED_DEFAULT = true;
@@ -383,35 +525,42 @@ public class TezConfiguration extends Configuration {
   public static final String DAG_RECOVERY_RECOVER_FILE_SUFFIX = ".recovery";
   
   /**
-   *  Tez Local Mode flag. Not valid till Tez-684 get checked-in
+   * Whether the AM runs inside the JVM of its client, outside of YARN, as it
+   * does when DAGs are run by the LocalDAGRunner. Implies inline task
+   * execution.
    */
   public static final String TEZ_LOCAL_MODE =
     TEZ_PREFIX + "local.mode";
 
-  /**
-   *  Tez Local Mode flag. Not valid till Tez-684 get checked-in
-   */
   public static final boolean TEZ_LOCAL_MODE_DEFAULT = false;
 
   /**
-   *  Tez AM Inline Mode flag. Not valid till Tez-684 get checked-in
+   * Whether the AM runs tasks itself, on a pool of threads, instead of
+   * launching containers for them. Outputs are read from the local disks
+   * instead of being fetched from the ShuffleHandler. Local resources of
+   * tasks are not localized, so processors, inputs and outputs have to be on
+   * the classpath of the AM.
    */
   public static final String TEZ_AM_INLINE_TASK_EXECUTION_ENABLED =
     TEZ_AM_PREFIX + "inline.task.execution.enabled";
 
-  /**
-   *  Tez AM Inline Mode flag. Not valid till Tez-684 get checked-in
-   */
   public static final boolean TEZ_AM_INLINE_TASK_EXECUTION_ENABLED_DEFAULT = false;
 
   /**
-   * The maximium number of tasks running in parallel in inline mode. Not valid till Tez-684 get checked-in
+   * The maximium number of tasks running in parallel in inline mode.
    */
   public static final String TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS =
     TEZ_AM_PREFIX + "inline.task.execution.max-tasks";
 
+  public static final int TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS_DEFAULT = 1;
+
   /**
-   * The maximium number of tasks running in parallel in inline mode. Not valid till Tez-684 get checked-in
+   * The fraction of the heap of the AM kept for the AM itself in inline mode.
+   * The rest is split evenly between the tasks which can run at the same
+   * time, and each task sizes its buffers from its share of the heap.
    */
-  public static final int TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS_DEFAULT = 1;
+  public static final String TEZ_AM_INLINE_TASK_EXECUTION_AM_RESERVE_FRACTION =
+    TEZ_AM_PREFIX + "inline.task.execution.am-reserve-fraction";
+
+  public static final float TEZ_AM_INLINE_TASK_EXECUTION_AM_RESERVE_FRACTION_DEFAULT = 0.25f;
 }
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+
+/**
+ * Generates the records used by the benchmarks. All data is created from a
+ * fixed seed so that runs can be compared with each other.
+ */
+final class BenchmarkData {
+
+  private static final long SEED = 0x7e2L;
+
+  private BenchmarkData() {
+  }
+
+  /**
+   * Creates keys with <code>valuesPerKey</code> records for each distinct key.
+   */
+  static Text[] createKeys(int numRecords, int valuesPerKey, boolean sorted) {
+    Random random = new Random(SEED);
+    Text[] keys = new Text[numRecords];
+    int distinctKeys = Math.max(1, numRecords / Math.max(1, valuesPerKey));
+    for (int i = 0; i < numRecords; i++) {
+      keys[i] = new Text(String.format("%010d", random.nextInt(distinctKeys)));
+    }
+    if (sorted) {
+      Arrays.sort(keys);
+    }
+    return keys;
+  }
+
+  static IntWritable[] createValues(int numRecords) {
+    Random random = new Random(SEED + 1);
+    IntWritable[] values = new IntWritable[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      values[i] = new IntWritable(random.nextInt());
+    }
+    return values;
+  }
+
+  /**
+   * @param name one of none, deflate or gzip
+   * @return the codec, or null for none
+   */
+  static CompressionCodec createCodec(String name, Configuration conf) {
+    if ("none".equals(name)) {
+      return null;
+    } else if ("deflate".equals(name)) {
+      return ReflectionUtils.newInstance(DefaultCodec.class, conf);
+    } else if ("gzip".equals(name)) {
+      return ReflectionUtils.newInstance(GzipCodec.class, conf);
+    }
+    throw new IllegalArgumentException("Unknown codec: " + name);
+  }
+
+  /**
+   * Writes the records in [from, to) as an IFile and returns its bytes.
+   */
+  static byte[] writeIFile(Configuration conf, Text[] keys,
+      IntWritable[] values, int from, int to, CompressionCodec codec,
+      boolean rle) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FSDataOutputStream out = new FSDataOutputStream(bytes, null);
+    IFile.Writer writer = new IFile.Writer(conf, out, Text.class,
+        IntWritable.class, codec, null, null);
+    writer.setRLE(rle);
+    for (int i = from; i < to; i++) {
+      writer.append(keys[i], values[i]);
+    }
+    writer.close();
+    out.close();
+    return bytes.toByteArray();
+  }
+}
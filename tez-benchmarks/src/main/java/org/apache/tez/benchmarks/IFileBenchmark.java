@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writes and reads sorted records with {@link IFile}, with and without
+ * run-length encoding of repeated keys and compression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IFileBenchmark {
+
+  @Param({"100000"})
+  public int numRecords;
+
+  @Param({"1", "10"})
+  public int valuesPerKey;
+
+  @Param({"false", "true"})
+  public boolean rle;
+
+  @Param({"none", "deflate"})
+  public String codec;
+
+  private Configuration conf;
+  private CompressionCodec compressionCodec;
+  private Text[] keys;
+  private IntWritable[] values;
+  private byte[] data;
+
+  @Setup
+  public void setup() throws IOException {
+    conf = new Configuration();
+    compressionCodec = BenchmarkData.createCodec(codec, conf);
+    keys = BenchmarkData.createKeys(numRecords, valuesPerKey, true);
+    values = BenchmarkData.createValues(numRecords);
+    data = BenchmarkData.writeIFile(conf, keys, values, 0, numRecords,
+        compressionCodec, rle);
+  }
+
+  @Benchmark
+  public byte[] write() throws IOException {
+    return BenchmarkData.writeIFile(conf, keys, values, 0, numRecords,
+        compressionCodec, rle);
+  }
+
+  @Benchmark
+  public void read(Blackhole blackhole) throws IOException {
+    IFile.Reader reader = new IFile.Reader(new ByteArrayInputStream(data),
+        data.length, compressionCodec, null, null, false, 0, -1);
+    DataInputBuffer key = new DataInputBuffer();
+    DataInputBuffer value = new DataInputBuffer();
+    while (reader.nextRawKey(key)) {
+      reader.nextRawValue(value);
+      blackhole.consume(key.getLength());
+      blackhole.consume(value.getLength());
+    }
+    reader.close();
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.counters.FileSystemCounter;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.events.CompositeDataMovementEvent;
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+import org.apache.tez.runtime.api.impl.TezEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips the {@link TezEvent}s and {@link TezCounters} sent over the
+ * umbilical through their Writable serialization.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SerializationBenchmark {
+
+  /** Size of the user payload of the data movement events. */
+  @Param({"64", "1024"})
+  public int payloadSize;
+
+  private final DataOutputBuffer out = new DataOutputBuffer();
+  private final DataInputBuffer in = new DataInputBuffer();
+
+  private TezCounters counters;
+  private TezEvent dataMovementEvent;
+  private TezEvent compositeDataMovementEvent;
+  private TezEvent statusUpdateEvent;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(0);
+    counters = new TezCounters();
+    for (TaskCounter counter : TaskCounter.values()) {
+      counters.findCounter(counter).setValue(random.nextInt());
+    }
+    for (String scheme : new String[] { "file", "hdfs" }) {
+      for (FileSystemCounter counter : FileSystemCounter.values()) {
+        counters.findCounter(scheme, counter).setValue(random.nextInt());
+      }
+    }
+
+    TezTaskAttemptID attemptId = TezTaskAttemptID.getInstance(
+        TezTaskID.getInstance(TezVertexID.getInstance(
+            TezDAGID.getInstance(ApplicationId.newInstance(1, 1), 1), 1), 1),
+        1);
+    EventMetaData sourceInfo = new EventMetaData(
+        EventProducerConsumerType.OUTPUT, "map", "reduce", attemptId);
+    byte[] payload = new byte[payloadSize];
+    random.nextBytes(payload);
+
+    dataMovementEvent = new TezEvent(new DataMovementEvent(0, payload),
+        sourceInfo);
+    compositeDataMovementEvent = new TezEvent(
+        new CompositeDataMovementEvent(0, 1000, payload), sourceInfo);
+    statusUpdateEvent = new TezEvent(
+        new TaskStatusUpdateEvent(counters, 0.5f), new EventMetaData(
+            EventProducerConsumerType.SYSTEM, "map", "", attemptId));
+  }
+
+  private <T extends Writable> T roundTrip(Writable source, T target)
+      throws IOException {
+    out.reset();
+    source.write(out);
+    in.reset(out.getData(), out.getLength());
+    target.readFields(in);
+    return target;
+  }
+
+  @Benchmark
+  public TezCounters counters() throws IOException {
+    return roundTrip(counters, new TezCounters());
+  }
+
+  @Benchmark
+  public TezEvent dataMovementEvent() throws IOException {
+    return roundTrip(dataMovementEvent, new TezEvent());
+  }
+
+  @Benchmark
+  public TezEvent compositeDataMovementEvent() throws IOException {
+    return roundTrip(compositeDataMovementEvent, new TezEvent());
+  }
+
+  @Benchmark
+  public TezEvent statusUpdateEvent() throws IOException {
+    return roundTrip(statusUpdateEvent, new TezEvent());
+  }
+}
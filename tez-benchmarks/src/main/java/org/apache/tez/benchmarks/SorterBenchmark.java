@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.api.Partitioner;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.apache.tez.runtime.library.common.sort.impl.PipelinedSorter;
+import org.apache.tez.runtime.library.common.sort.impl.dflt.DefaultSorter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collects unsorted records into a {@link DefaultSorter} or
+ * {@link PipelinedSorter} and flushes the final output to local disk. A
+ * small sort buffer forces spills and the final merge.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SorterBenchmark {
+
+  public static class HashPartitioner implements Partitioner {
+    @Override
+    public int getPartition(Object key, Object value, int numPartitions) {
+      return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    }
+  }
+
+  @Param({"default", "pipelined"})
+  public String sorter;
+
+  @Param({"1000000"})
+  public int numRecords;
+
+  @Param({"10"})
+  public int numPartitions;
+
+  @Param({"16", "256"})
+  public int sortMb;
+
+  private File workDir;
+  private Configuration conf;
+  private TezOutputContext outputContext;
+  private Text[] keys;
+  private IntWritable[] values;
+
+  @Setup
+  public void setup() throws IOException {
+    workDir = new File(System.getProperty("java.io.tmpdir"),
+        "tez-sorter-benchmark-" + System.nanoTime());
+    conf = new Configuration();
+    conf.setStrings(TezJobConfig.LOCAL_DIRS, workDir.getAbsolutePath());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS,
+        Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS,
+        IntWritable.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_PARTITIONER_CLASS,
+        HashPartitioner.class.getName());
+
+    outputContext = mock(TezOutputContext.class);
+    doReturn(new TezCounters()).when(outputContext).getCounters();
+    doReturn("attempt_benchmark_0").when(outputContext).getUniqueIdentifier();
+    doReturn("destination").when(outputContext).getDestinationVertexName();
+
+    keys = BenchmarkData.createKeys(numRecords, 1, false);
+    values = BenchmarkData.createValues(numRecords);
+  }
+
+  @TearDown
+  public void tearDown() {
+    FileUtil.fullyDelete(workDir);
+  }
+
+  @Benchmark
+  public void sort() throws IOException {
+    long memory = ((long) sortMb) << 20;
+    ExternalSorter externalSorter;
+    if ("pipelined".equals(sorter)) {
+      externalSorter = new PipelinedSorter(outputContext, new Configuration(conf),
+          numPartitions, memory);
+    } else {
+      externalSorter = new DefaultSorter(outputContext, new Configuration(conf),
+          numPartitions, memory);
+    }
+    for (int i = 0; i < numRecords; i++) {
+      externalSorter.write(keys[i], values[i]);
+    }
+    externalSorter.flush();
+    externalSorter.close();
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.Progressable;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.impl.InMemoryReader;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger;
+import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Merges a fixed number of records spread over a varying number of sorted
+ * in-memory segments in a single pass.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TezMergerBenchmark {
+
+  static final Progressable NULL_PROGRESSABLE = new Progressable() {
+    @Override
+    public void progress() {
+    }
+  };
+
+  @Param({"1000000"})
+  public int numRecords;
+
+  @Param({"10", "100", "1000"})
+  public int numSegments;
+
+  private Configuration conf;
+  private FileSystem fs;
+  @SuppressWarnings("rawtypes")
+  private RawComparator comparator;
+  private byte[][] segmentData;
+
+  @Setup
+  public void setup() throws IOException {
+    conf = new Configuration();
+    fs = FileSystem.getLocal(conf);
+    comparator = WritableComparator.get(Text.class);
+    Text[] keys = BenchmarkData.createKeys(numRecords, 1, false);
+    IntWritable[] values = BenchmarkData.createValues(numRecords);
+    segmentData = new byte[numSegments][];
+    int perSegment = numRecords / numSegments;
+    for (int i = 0; i < numSegments; i++) {
+      int from = i * perSegment;
+      int to = (i == numSegments - 1) ? numRecords : from + perSegment;
+      Arrays.sort(keys, from, to);
+      segmentData[i] = BenchmarkData.writeIFile(conf, keys, values, from, to,
+          null, false);
+    }
+  }
+
+  static TezRawKeyValueIterator merge(Configuration conf, FileSystem fs,
+      @SuppressWarnings("rawtypes") RawComparator comparator,
+      byte[][] segmentData) throws IOException {
+    List<Segment> segments = new ArrayList<Segment>(segmentData.length);
+    for (int i = 0; i < segmentData.length; i++) {
+      byte[] data = segmentData[i];
+      segments.add(new Segment(new InMemoryReader(null,
+          new InputAttemptIdentifier(i, 0), data, 0, data.length), true));
+    }
+    // A merge factor of the number of segments keeps everything in memory.
+    return TezMerger.merge(conf, fs, Text.class, IntWritable.class, segments,
+        segments.size(), new Path("merge-benchmark"), comparator,
+        NULL_PROGRESSABLE, null, null, null, null);
+  }
+
+  @Benchmark
+  public void merge(Blackhole blackhole) throws IOException {
+    TezRawKeyValueIterator iterator = merge(conf, fs, comparator, segmentData);
+    while (iterator.next()) {
+      blackhole.consume(iterator.getKey());
+      blackhole.consume(iterator.getValue());
+    }
+    iterator.close();
+  }
+}
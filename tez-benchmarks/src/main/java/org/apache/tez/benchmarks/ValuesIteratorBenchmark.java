@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.library.common.ValuesIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Groups the values of sorted records by key with {@link ValuesIterator}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ValuesIteratorBenchmark {
+
+  @Param({"1000000"})
+  public int numRecords;
+
+  @Param({"1", "10", "1000"})
+  public int valuesPerKey;
+
+  private Configuration conf;
+  private FileSystem fs;
+  private RawComparator<Text> comparator;
+  private byte[][] segmentData;
+  private TezCounters counters;
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setup() throws IOException {
+    conf = new Configuration();
+    fs = FileSystem.getLocal(conf);
+    comparator = WritableComparator.get(Text.class);
+    counters = new TezCounters();
+    Text[] keys = BenchmarkData.createKeys(numRecords, valuesPerKey, true);
+    IntWritable[] values = BenchmarkData.createValues(numRecords);
+    segmentData = new byte[][] { BenchmarkData.writeIFile(conf, keys, values,
+        0, numRecords, null, false) };
+  }
+
+  @Benchmark
+  public void group(Blackhole blackhole) throws IOException {
+    ValuesIterator<Text, IntWritable> iterator =
+        new ValuesIterator<Text, IntWritable>(
+            TezMergerBenchmark.merge(conf, fs, comparator, segmentData),
+            comparator, Text.class, IntWritable.class, conf,
+            counters.findCounter(TaskCounter.REDUCE_INPUT_GROUPS),
+            counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS));
+    while (iterator.moveToNext()) {
+      blackhole.consume(iterator.getKey());
+      for (IntWritable value : iterator.getValues()) {
+        blackhole.consume(value);
+      }
+    }
+  }
+}
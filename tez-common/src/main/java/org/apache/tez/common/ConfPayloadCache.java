@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.apache.tez.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+
+/**
+ * A bounded LRU cache of the configurations parsed from configuration
+ * payloads, keyed by the payload itself. Callers may modify the
+ * configurations they get, so only copies are handed in and out.
+ */
+@Private
+class ConfPayloadCache {
+
+  private int maxEntries;
+  private final LinkedHashMap<ByteString, Configuration> entries;
+
+  ConfPayloadCache(int maxEntries) {
+    Preconditions.checkArgument(maxEntries >= 0,
+        "maxEntries must not be negative");
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<ByteString, Configuration>(16, 0.75f,
+        true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<ByteString, Configuration> eldest) {
+        return size() > ConfPayloadCache.this.maxEntries;
+      }
+    };
+  }
+
+  synchronized void setMaxEntries(int maxEntries) {
+    Preconditions.checkArgument(maxEntries >= 0,
+        "maxEntries must not be negative");
+    this.maxEntries = maxEntries;
+    if (entries.size() > maxEntries) {
+      entries.clear();
+    }
+  }
+
+  synchronized boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  /**
+   * @return a copy of the configuration cached for the payload, or null
+   */
+  Configuration get(ByteString payload) {
+    Configuration cached;
+    synchronized (this) {
+      cached = entries.get(payload);
+    }
+    // Cached configurations are never modified, so copy outside the lock.
+    return cached == null ? null : new Configuration(cached);
+  }
+
+  void put(ByteString payload, Configuration conf) {
+    Configuration copy = new Configuration(conf);
+    synchronized (this) {
+      if (maxEntries > 0) {
+        entries.put(payload, copy);
+      }
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized void clear() {
+    entries.clear();
+  }
+}
@@ -24,9 +24,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -44,6 +48,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.log4j.Appender;
 import org.apache.log4j.Logger;
 import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.TezUncheckedException;
 import org.apache.tez.dag.api.records.DAGProtos.ConfigurationProto;
 import org.apache.tez.dag.api.records.DAGProtos.PlanKeyValuePair;
 
@@ -55,6 +60,13 @@ public class TezUtils {
 
   private static final Log LOG = LogFactory.getLog(TezUtils.class);
 
+  // Parsed configuration payloads, disabled unless a container enables it.
+  private static final ConfPayloadCache confPayloadCache =
+      new ConfPayloadCache(0);
+  // Base configurations which delta payloads refer to, keyed by their id.
+  // Only a few DAGs run in a container at a time.
+  private static final ConfPayloadCache baseConfs = new ConfPayloadCache(16);
+
   public static void addUserSpecifiedTezConfiguration(Configuration conf) throws IOException {
     FileInputStream confPBBinaryStream = null;
     ConfigurationProto.Builder confProtoBuilder = ConfigurationProto.newBuilder();
@@ -124,12 +136,29 @@ public class TezUtils {
    */
   public static Configuration createConfFromByteString(ByteString byteString) throws IOException {
     Preconditions.checkNotNull(byteString, "ByteString must be specified");
+    Configuration conf = confPayloadCache.get(byteString);
+    if (conf != null) {
+      return conf;
+    }
     // SnappyInputStream uncompressIs = new
     // SnappyInputStream(byteString.newInput());
     InflaterInputStream uncompressIs = new InflaterInputStream(byteString.newInput());
     ConfigurationProto confProto = ConfigurationProto.parseFrom(uncompressIs);
-    Configuration conf = new Configuration(false);
+    if (confProto.hasBaseConfId()) {
+      conf = baseConfs.get(confProto.getBaseConfId());
+      if (conf == null) {
+        throw new IOException("Base configuration of delta payload not available");
+      }
+      for (String key : confProto.getRemovedKeysList()) {
+        conf.unset(key);
+      }
+    } else {
+      conf = new Configuration(false);
+    }
     readConfFromPB(confProto, conf);
+    if (confPayloadCache.isEnabled()) {
+      confPayloadCache.put(byteString, conf);
+    }
     return conf;
   }
 
@@ -146,6 +175,102 @@ public class TezUtils {
     return createConfFromByteString(ByteString.copyFrom(bb));
   }
 
+  /**
+   * Convert a Configuration to a compressed delta pay load, which only holds
+   * the settings differing from the given base configuration. The base pay
+   * load must be registered via {@link #registerBaseConfPayload(ByteString)}
+   * wherever the delta is converted back, which for DAGs is done by setting
+   * it as the base configuration of the DAG.
+   *
+   * @param conf
+   *          : Configuration to be converted
+   * @param basePayload
+   *          : compressed base configuration, as created by
+   *          {@link #createByteStringFromConf(Configuration)}
+   * @return compressed delta pay load
+   * @throws IOException
+   */
+  public static ByteString createDeltaByteStringFromConf(Configuration conf,
+      ByteString basePayload) throws IOException {
+    Preconditions.checkNotNull(conf, "Configuration must be specified");
+    Preconditions.checkNotNull(basePayload, "Base payload must be specified");
+    Configuration base = createConfFromByteString(basePayload);
+    ConfigurationProto.Builder confProtoBuilder = ConfigurationProto.newBuilder();
+    confProtoBuilder.setBaseConfId(getConfPayloadId(basePayload));
+    Map<String, String> baseValues = new HashMap<String, String>();
+    for (Entry<String, String> entry : base) {
+      baseValues.put(entry.getKey(), entry.getValue());
+    }
+    for (Entry<String, String> entry : conf) {
+      String baseValue = baseValues.remove(entry.getKey());
+      if (!entry.getValue().equals(baseValue)) {
+        confProtoBuilder.addConfKeyValues(PlanKeyValuePair.newBuilder()
+            .setKey(entry.getKey()).setValue(entry.getValue()));
+      }
+    }
+    // Whatever is left of the base is not set in conf.
+    confProtoBuilder.addAllRemovedKeys(baseValues.keySet());
+
+    ByteString.Output os = ByteString.newOutput();
+    DeflaterOutputStream compressOs = new DeflaterOutputStream(os,
+        new Deflater(Deflater.BEST_SPEED));
+    try {
+      confProtoBuilder.build().writeTo(compressOs);
+    } finally {
+      compressOs.close();
+    }
+    return os.toByteString();
+  }
+
+  /**
+   * Same as {@link #createDeltaByteStringFromConf(Configuration, ByteString)}
+   * for user pay loads.
+   */
+  public static byte[] createDeltaUserPayloadFromConf(Configuration conf,
+      byte[] basePayload) throws IOException {
+    Preconditions.checkNotNull(basePayload, "Base payload must be specified");
+    return createDeltaByteStringFromConf(conf,
+        ByteString.copyFrom(basePayload)).toByteArray();
+  }
+
+  /**
+   * Make a base configuration available to the delta pay loads referring to
+   * it.
+   *
+   * @param basePayload
+   *          : compressed base configuration
+   * @throws IOException
+   */
+  @Private
+  public static void registerBaseConfPayload(ByteString basePayload)
+      throws IOException {
+    Preconditions.checkNotNull(basePayload, "Base payload must be specified");
+    ByteString id = getConfPayloadId(basePayload);
+    if (baseConfs.get(id) == null) {
+      baseConfs.put(id, createConfFromByteString(basePayload));
+    }
+  }
+
+  /**
+   * Set the number of parsed configuration pay loads kept by
+   * {@link #createConfFromByteString(ByteString)}. 0 disables the cache.
+   */
+  @Private
+  public static void setConfPayloadCacheSize(int size) {
+    confPayloadCache.setMaxEntries(size);
+  }
+
+  @Private
+  static ByteString getConfPayloadId(ByteString payload) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(payload.asReadOnlyByteBuffer());
+      return ByteString.copyFrom(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new TezUncheckedException(e);
+    }
+  }
+
   private static void writeConfInPB(OutputStream dos, Configuration conf) throws IOException {
     ConfigurationProto.Builder confProtoBuilder = ConfigurationProto.newBuilder();
     Iterator<Entry<String, String>> iter = conf.iterator();
@@ -52,6 +52,59 @@ public class TestTezUtils {
     checkConf(conf);
   }
   
+  @Test
+  public void testConfPayloadCache() throws IOException {
+    TezUtils.setConfPayloadCacheSize(2);
+    try {
+      ByteString bsConf = TezUtils.createByteStringFromConf(getConf());
+      Configuration conf1 = TezUtils.createConfFromByteString(bsConf);
+      conf1.set("test1", "changed");
+      conf1.set("test7", "added");
+      // Changes made by one user of a cached payload are not seen by others.
+      Configuration conf2 = TezUtils.createConfFromByteString(bsConf);
+      Assert.assertNotSame(conf1, conf2);
+      Assert.assertEquals(6, conf2.size());
+      checkConf(conf2);
+    } finally {
+      TezUtils.setConfPayloadCacheSize(0);
+    }
+  }
+
+  @Test
+  public void testDeltaPayloadToAndFromConf() throws IOException {
+    Configuration base = getConf();
+    base.set("removed", "value");
+    byte[] basePayload = TezUtils.createUserPayloadFromConf(base);
+
+    Configuration conf = getConf();
+    conf.set("test1", "changed");
+    conf.set("test7", "added");
+    byte[] deltaPayload = TezUtils.createDeltaUserPayloadFromConf(conf,
+        basePayload);
+
+    TezUtils.registerBaseConfPayload(ByteString.copyFrom(basePayload));
+    Configuration deserialized = TezUtils.createConfFromUserPayload(deltaPayload);
+    Assert.assertEquals(7, deserialized.size());
+    Assert.assertEquals("changed", deserialized.get("test1"));
+    Assert.assertEquals("added", deserialized.get("test7"));
+    Assert.assertNull(deserialized.get("removed"));
+    Assert.assertEquals(34567, deserialized.getInt("test4", 0));
+  }
+
+  @Test
+  public void testDeltaPayloadWithoutBase() throws IOException {
+    Configuration base = new Configuration(false);
+    base.set("unregistered", "base");
+    byte[] deltaPayload = TezUtils.createDeltaUserPayloadFromConf(getConf(),
+        TezUtils.createUserPayloadFromConf(base));
+    try {
+      TezUtils.createConfFromUserPayload(deltaPayload);
+      Assert.fail("Expected the missing base configuration to be reported");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage().contains("Base configuration"));
+    }
+  }
+
   @Test
   public void testCleanVertexName() {
     String testString = "special characters & spaces and longer than "
@@ -64,6 +64,7 @@ import org.apache.tez.common.TezLocalResource;
 import org.apache.tez.common.TezTaskUmbilicalProtocol;
 import org.apache.tez.common.TezUtils;
 import org.apache.tez.common.counters.Limits;
+import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.common.security.JobTokenIdentifier;
 import org.apache.tez.common.security.TokenCache;
 import org.apache.tez.dag.api.TezConfiguration;
@@ -71,6 +72,7 @@ import org.apache.tez.dag.api.TezException;
 import org.apache.tez.dag.records.TezTaskAttemptID;
 import org.apache.tez.dag.records.TezVertexID;
 import org.apache.tez.dag.utils.RelocalizationUtils;
+import org.apache.tez.runtime.CountersDeltaTracker;
 import org.apache.tez.runtime.LogicalIOProcessorRuntimeTask;
 import org.apache.tez.runtime.api.events.TaskAttemptCompletedEvent;
 import org.apache.tez.runtime.api.events.TaskAttemptFailedEvent;
@@ -94,6 +96,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.protobuf.ByteString;
 
 
 /**
@@ -111,6 +114,9 @@ public class YarnTezDagChild {
       new LinkedBlockingQueue<TezEvent>();
   private static AtomicLong requestCounter = new AtomicLong(0);
   private static long amPollInterval;
+  // null unless tasks only send counters which changed since the last heartbeat
+  private static CountersDeltaTracker countersDeltaTracker = null;
+  private static TezTaskAttemptID countersDeltaAttemptID = null;
   private static TezTaskUmbilicalProtocol umbilical;
   private static ReentrantReadWriteLock taskLock = new ReentrantReadWriteLock();
   private static LogicalIOProcessorRuntimeTask currentTask = null;
@@ -213,8 +219,21 @@ public class YarnTezDagChild {
         eventCounter = currentTask.getEventCounter();
         eventsRange = maxEventsToGet;
         if (!currentTask.isTaskDone() && !currentTask.hadFatalError()) {
-          updateEvent = new TezEvent(new TaskStatusUpdateEvent(
-              currentTask.getCounters(), currentTask.getProgress()),
+          TaskStatusUpdateEvent statusUpdateEvent;
+          if (countersDeltaTracker != null) {
+            if (!taskAttemptID.equals(countersDeltaAttemptID)) {
+              countersDeltaTracker.reset();
+              countersDeltaAttemptID = taskAttemptID;
+            }
+            TezCounters counters =
+                countersDeltaTracker.getCountersToSend(currentTask.getCounters());
+            statusUpdateEvent = new TaskStatusUpdateEvent(counters,
+                currentTask.getProgress(), !countersDeltaTracker.isFullSnapshot());
+          } else {
+            statusUpdateEvent = new TaskStatusUpdateEvent(
+                currentTask.getCounters(), currentTask.getProgress());
+          }
+          updateEvent = new TezEvent(statusUpdateEvent,
                 new EventMetaData(EventProducerConsumerType.SYSTEM,
                     currentTask.getVertexName(), "", taskAttemptID));
           events.add(updateEvent);
@@ -270,6 +289,9 @@ public class YarnTezDagChild {
           + ", responseReqId=" + response.getLastRequestId()
           + ", expectedReqId=" + reqId);
     }
+    if (updateEvent != null && countersDeltaTracker != null) {
+      countersDeltaTracker.acknowledge();
+    }
     try {
       taskLock.readLock().lock();
       if (taskAttemptID == null
@@ -347,6 +369,15 @@ public class YarnTezDagChild {
     maxEventsToGet = defaultConf.getInt(
         TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT,
         TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT_DEFAULT);
+    if (defaultConf.getBoolean(TezConfiguration.TEZ_TASK_COUNTERS_DELTA_ENABLED,
+        TezConfiguration.TEZ_TASK_COUNTERS_DELTA_ENABLED_DEFAULT)) {
+      countersDeltaTracker = new CountersDeltaTracker(defaultConf.getInt(
+          TezConfiguration.TEZ_TASK_COUNTERS_FULL_SNAPSHOT_INTERVAL,
+          TezConfiguration.TEZ_TASK_COUNTERS_FULL_SNAPSHOT_INTERVAL_DEFAULT));
+    }
+    TezUtils.setConfPayloadCacheSize(defaultConf.getInt(
+        TezConfiguration.TEZ_TASK_CONF_PAYLOAD_CACHE_SIZE,
+        TezConfiguration.TEZ_TASK_CONF_PAYLOAD_CACHE_SIZE_DEFAULT));
 
     // Create TaskUmbilicalProtocol as actual task owner.
     UserGroupInformation taskOwner =
@@ -430,6 +461,12 @@ public class YarnTezDagChild {
     int getTaskMaxSleepTime = defaultConf.getInt(
         TezConfiguration.TEZ_TASK_GET_TASK_SLEEP_INTERVAL_MS_MAX,
         TezConfiguration.TEZ_TASK_GET_TASK_SLEEP_INTERVAL_MS_MAX_DEFAULT);
+    // the AM holds getTask until a task is assigned, so there is no need to
+    // sleep between calls unless the AM returned straight away because too
+    // many calls are held already
+    boolean getTaskLongPoll = defaultConf.getInt(
+        TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_TIMEOUT_MS,
+        TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_TIMEOUT_MS_DEFAULT) > 0;
     int taskCount = 0;
     TezVertexID lastVertexId = null;
     EventMetaData currentSourceInfo = null;
@@ -443,8 +480,9 @@ public class YarnTezDagChild {
         boolean isNewGetTask = true;
         long getTaskPollStartTime = System.currentTimeMillis();
         long nextGetTaskPrintTime = getTaskPollStartTime + 2000l;
+        boolean getTaskHeld = false;
         for (int idle = 0; null == containerTask; ++idle) {
-          if (!isNewGetTask) { // Don't sleep on the first iteration.
+          if (!isNewGetTask && !getTaskHeld) { // Don't sleep on the first iteration.
             long sleepTimeMilliSecs = Math.min(idle * 10, getTaskMaxSleepTime);
             if (sleepTimeMilliSecs + System.currentTimeMillis() > nextGetTaskPrintTime) {
               LOG.info("Sleeping for "
@@ -458,7 +496,10 @@ public class YarnTezDagChild {
             LOG.info("Attempting to fetch new task");
           }
           isNewGetTask = false;
+          long getTaskStartTime = System.currentTimeMillis();
           containerTask = umbilical.getTask(containerContext);
+          getTaskHeld = getTaskLongPoll && System.currentTimeMillis()
+              - getTaskStartTime >= getTaskMaxSleepTime;
         }
         LOG.info("Got TaskUpdate: "
             + (System.currentTimeMillis() - getTaskPollStartTime)
@@ -487,6 +528,11 @@ public class YarnTezDagChild {
           } else {
             LOG.info("Not loading any credentials, since no credentials provided");
           }
+          // The base configuration of a DAG comes along with its credentials.
+          if (containerTask.getBaseConfPayload() != null) {
+            TezUtils.registerBaseConfPayload(
+                ByteString.copyFrom(containerTask.getBaseConfPayload()));
+          }
         }
 
         Map<String, TezLocalResource> additionalResources = containerTask.getAdditionalResources();
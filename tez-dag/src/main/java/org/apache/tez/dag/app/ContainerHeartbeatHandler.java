@@ -33,6 +33,12 @@ public class ContainerHeartbeatHandler extends
     super(context, expectedConcurrency, "ContainerHeartbeatHandler");
   }
 
+  public ContainerHeartbeatHandler(AppContext context,
+      int expectedConcurrency, DeadlineTracker deadlineTracker) {
+    super(context, expectedConcurrency, "ContainerHeartbeatHandler",
+        deadlineTracker);
+  }
+
   @Override
   protected int getConfiguredTimeout(Configuration conf) {
     // TODO Maybe define separate timeouts for Containers and tasks.
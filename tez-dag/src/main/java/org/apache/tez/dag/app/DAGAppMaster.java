@@ -25,6 +25,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -128,6 +129,7 @@ import org.apache.tez.dag.app.dag.event.VertexEventType;
 import org.apache.tez.dag.app.dag.impl.DAGImpl;
 import org.apache.tez.dag.app.launcher.ContainerLauncher;
 import org.apache.tez.dag.app.launcher.ContainerLauncherImpl;
+import org.apache.tez.dag.app.launcher.LocalContainerLauncher;
 import org.apache.tez.dag.app.rm.AMSchedulerEventType;
 import org.apache.tez.dag.app.rm.NMCommunicatorEventType;
 import org.apache.tez.dag.app.rm.TaskSchedulerEventHandler;
@@ -137,6 +139,7 @@ import org.apache.tez.dag.app.rm.container.ContainerContextMatcher;
 import org.apache.tez.dag.app.rm.container.ContainerSignatureMatcher;
 import org.apache.tez.dag.app.rm.node.AMNodeEventType;
 import org.apache.tez.dag.app.rm.node.AMNodeMap;
+import org.apache.tez.dag.app.speculate.Speculator;
 import org.apache.tez.dag.history.DAGHistoryEvent;
 import org.apache.tez.dag.history.HistoryEventHandler;
 import org.apache.tez.dag.history.events.AMLaunchedEvent;
@@ -185,6 +188,7 @@ public class DAGAppMaster extends AbstractService {
 
   private Clock clock;
   private final boolean isSession;
+  private boolean isLocal;
   private long appsStartTime;
   private final long startTime;
   private final long appSubmitTime;
@@ -201,6 +205,8 @@ public class DAGAppMaster extends AbstractService {
   private Configuration amConf;
   private Dispatcher dispatcher;
   private ContainerLauncher containerLauncher;
+  private Speculator speculator;
+  private DeadlineTracker deadlineTracker;
   private ContainerHeartbeatHandler containerHeartbeatHandler;
   private TaskHeartbeatHandler taskHeartbeatHandler;
   private TaskAttemptListener taskAttemptListener;
@@ -290,7 +296,10 @@ public class DAGAppMaster extends AbstractService {
     isLastAMRetry = appAttemptID.getAttemptId() >= maxAppAttempts;
 
     this.amConf = conf;
-    conf.setBoolean(Dispatcher.DISPATCHER_EXIT_ON_ERROR_KEY, true);
+    isLocal = conf.getBoolean(TezConfiguration.TEZ_LOCAL_MODE,
+        TezConfiguration.TEZ_LOCAL_MODE_DEFAULT);
+    // Errors must not bring down the JVM of the client in local mode.
+    conf.setBoolean(Dispatcher.DISPATCHER_EXIT_ON_ERROR_KEY, !isLocal);
 
     dispatcher = createDispatcher();
     context = new RunningAppContext(conf);
@@ -302,6 +311,11 @@ public class DAGAppMaster extends AbstractService {
     clientRpcServer = new DAGClientServer(clientHandler, appAttemptID);
     addIfService(clientRpcServer, true);
 
+    // Shared by the heartbeat handlers
+    deadlineTracker = new DeadlineTracker("HeartbeatDeadlineTracker",
+        context.getClock());
+    addIfService(deadlineTracker, false);
+
     taskHeartbeatHandler = createTaskHeartbeatHandler(context, conf);
     addIfService(taskHeartbeatHandler, true);
 
@@ -345,6 +359,14 @@ public class DAGAppMaster extends AbstractService {
     dispatcher.register(TaskEventType.class, new TaskEventDispatcher());
     dispatcher.register(TaskAttemptEventType.class,
         new TaskAttemptEventDispatcher());
+    if (conf.getBoolean(TezConfiguration.TEZ_AM_SPECULATION_ENABLED,
+        TezConfiguration.TEZ_AM_SPECULATION_ENABLED_DEFAULT)) {
+      speculator = createSpeculator(conf, context);
+      addIfService(speculator, true);
+      // Registered after the TaskAttemptEventDispatcher, so the speculator
+      // sees each event once the attempt has handled it.
+      dispatcher.register(TaskAttemptEventType.class, speculator);
+    }
 
     this.taskSchedulerEventHandler = new TaskSchedulerEventHandler(context,
         clientRpcServer, dispatcher.getEventHandler(), containerSignatureMatcher);
@@ -380,7 +402,8 @@ public class DAGAppMaster extends AbstractService {
         Integer.toString(this.appAttemptID.getAttemptId()));
     recoveryFS = FileSystem.get(recoveryDataDir.toUri(), conf);
 
-    if (isSession) {
+    // In local mode, resources are on the classpath of the client already.
+    if (isSession && !isLocal) {
       FileInputStream sessionResourcesStream = null;
       try {
         sessionResourcesStream = new FileInputStream(
@@ -422,6 +445,12 @@ public class DAGAppMaster extends AbstractService {
   
   @VisibleForTesting
   protected Dispatcher createDispatcher() {
+    int taskThreads = amConf.getInt(
+        TezConfiguration.TEZ_AM_DISPATCHER_TASK_THREADS,
+        TezConfiguration.TEZ_AM_DISPATCHER_TASK_THREADS_DEFAULT);
+    if (taskThreads > 0) {
+      return new PartitionedAsyncDispatcher(taskThreads);
+    }
     return new AsyncDispatcher();
   }
 
@@ -429,6 +458,10 @@ public class DAGAppMaster extends AbstractService {
    * Exit call. Just in a function call to enable testing.
    */
   protected void sysexit() {
+    if (isLocal) {
+      // The JVM belongs to the client.
+      return;
+    }
     System.exit(0);
   }
 
@@ -774,7 +807,8 @@ public class DAGAppMaster extends AbstractService {
       Configuration conf) {
     TaskHeartbeatHandler thh = new TaskHeartbeatHandler(context, conf.getInt(
         TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT,
-        TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT_DEFAULT));
+        TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT_DEFAULT),
+        deadlineTracker);
     return thh;
   }
 
@@ -783,15 +817,50 @@ public class DAGAppMaster extends AbstractService {
     ContainerHeartbeatHandler chh = new ContainerHeartbeatHandler(context,
         conf.getInt(
             TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT,
-            TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT_DEFAULT));
+            TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT_DEFAULT),
+        deadlineTracker);
     return chh;
   }
 
   protected ContainerLauncher
       createContainerLauncher(final AppContext context) {
+    if (isInlineTaskExecution(amConf)) {
+      LOG.info("Running tasks in the AM");
+      return new LocalContainerLauncher(context, taskAttemptListener);
+    }
     return new ContainerLauncherImpl(context);
   }
 
+  /**
+   * @return true if tasks are run in the JVM of the AM instead of in
+   *         containers asked from the RM
+   */
+  public static boolean isInlineTaskExecution(Configuration conf) {
+    return conf.getBoolean(TezConfiguration.TEZ_LOCAL_MODE,
+        TezConfiguration.TEZ_LOCAL_MODE_DEFAULT)
+        || conf.getBoolean(
+            TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_ENABLED,
+            TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_ENABLED_DEFAULT);
+  }
+
+  protected Speculator createSpeculator(Configuration conf,
+      AppContext context) {
+    String speculatorClassName = conf.get(
+        TezConfiguration.TEZ_AM_SPECULATOR_CLASS,
+        TezConfiguration.TEZ_AM_SPECULATOR_CLASS_DEFAULT);
+    LOG.info("Using speculator: " + speculatorClassName);
+    try {
+      Class<? extends Speculator> speculatorClass = conf.getClassByName(
+          speculatorClassName).asSubclass(Speculator.class);
+      Constructor<? extends Speculator> constructor =
+          speculatorClass.getConstructor(AppContext.class);
+      return constructor.newInstance(context);
+    } catch (Exception e) {
+      throw new TezUncheckedException("Unable to create speculator "
+          + speculatorClassName, e);
+    }
+  }
+
   public ApplicationId getAppID() {
     return appAttemptID.getApplicationId();
   }
@@ -1931,7 +2000,13 @@ public class DAGAppMaster extends AbstractService {
       final Configuration conf, String jobUserName) throws IOException,
       InterruptedException {
     UserGroupInformation.setConfiguration(conf);
-    Credentials credentials = UserGroupInformation.getCurrentUser().getCredentials();
+    initAndStartAppMaster(appMaster, conf, jobUserName,
+        UserGroupInformation.getCurrentUser().getCredentials());
+  }
+
+  static void initAndStartAppMaster(final DAGAppMaster appMaster,
+      final Configuration conf, String jobUserName, Credentials credentials)
+      throws IOException, InterruptedException {
 
     appMaster.appMasterUgi = UserGroupInformation
         .createRemoteUser(jobUserName);
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.service.AbstractService;
+import org.apache.hadoop.yarn.util.Clock;
+import org.apache.tez.dag.api.TezConfiguration;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * Calls back {@link Deadline}s once their time has passed. Deadlines are
+ * kept in a {@link TimingWheel} which a single thread advances every tick,
+ * so that setting or cancelling a deadline is cheap and the work done each
+ * tick depends on the number of deadlines which pass rather than on the
+ * number of deadlines. One tracker is shared by the heartbeat handlers of
+ * the AM.
+ */
+public class DeadlineTracker extends AbstractService {
+
+  private static final Log LOG = LogFactory.getLog(DeadlineTracker.class);
+
+  /**
+   * A deadline, which can be scheduled again from {@link #expired(long)}.
+   */
+  public static abstract class Deadline {
+    protected abstract void expired(long currentTime);
+  }
+
+  private final Clock clock;
+  private long tickMs;
+  // Guarded by this
+  private TimingWheel<Deadline> wheel;
+  private Thread trackerThread;
+  private volatile boolean stopped;
+
+  public DeadlineTracker(String name, Clock clock) {
+    this(name, clock, -1);
+  }
+
+  /**
+   * @param tickMs the tick of the tracker. If not positive, it is taken from
+   *          {@link TezConfiguration#TEZ_AM_DEADLINE_TRACKER_TICK_MS}.
+   */
+  public DeadlineTracker(String name, Clock clock, long tickMs) {
+    super(name);
+    this.clock = clock;
+    this.tickMs = tickMs;
+  }
+
+  @Override
+  protected void serviceInit(Configuration conf) throws Exception {
+    if (tickMs <= 0) {
+      tickMs = conf.getLong(TezConfiguration.TEZ_AM_DEADLINE_TRACKER_TICK_MS,
+          TezConfiguration.TEZ_AM_DEADLINE_TRACKER_TICK_MS_DEFAULT);
+    }
+    synchronized (this) {
+      wheel = new TimingWheel<Deadline>(tickMs, clock.getTime());
+    }
+    super.serviceInit(conf);
+  }
+
+  @Override
+  protected void serviceStart() throws Exception {
+    trackerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!stopped && !Thread.currentThread().isInterrupted()) {
+          checkDeadlines();
+          try {
+            Thread.sleep(tickMs);
+          } catch (InterruptedException e) {
+            break;
+          }
+        }
+      }
+    });
+    trackerThread.setName(getName());
+    trackerThread.start();
+    super.serviceStart();
+  }
+
+  @Override
+  protected void serviceStop() throws Exception {
+    stopped = true;
+    if (trackerThread != null) {
+      trackerThread.interrupt();
+    }
+    super.serviceStop();
+  }
+
+  /**
+   * Sets the time of a deadline, replacing any time set before.
+   */
+  public synchronized void schedule(Deadline deadline, long time) {
+    Preconditions.checkState(wheel != null, "DeadlineTracker not initialized");
+    wheel.schedule(deadline, time);
+  }
+
+  public synchronized void cancel(Deadline deadline) {
+    if (wheel != null) {
+      wheel.cancel(deadline);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return wheel == null ? 0 : wheel.size();
+  }
+
+  @VisibleForTesting
+  void checkDeadlines() {
+    long currentTime = clock.getTime();
+    List<Deadline> expired;
+    synchronized (this) {
+      expired = wheel.advance(currentTime);
+    }
+    // Called outside the lock, so deadlines can be scheduled again
+    for (Deadline deadline : expired) {
+      try {
+        deadline.expired(currentTime);
+      } catch (RuntimeException e) {
+        LOG.error("Error while handling deadline in " + getName(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableGaugeInt;
+import org.apache.hadoop.metrics2.lib.MutableRate;
+
+/**
+ * Queue depths and event processing times of the
+ * {@link PartitionedAsyncDispatcher}.
+ */
+public class DispatcherMetrics implements MetricsSource {
+
+  static final String NAME = "AMDispatcher";
+
+  private final MetricsRegistry registry = new MetricsRegistry(NAME);
+
+  final MutableGaugeInt eventQueueSize = registry.newGauge(
+      "EventQueueSize", "Events waiting for the main dispatcher thread", 0);
+  final MutableGaugeInt taskEventQueueSize = registry.newGauge(
+      "TaskEventQueueSize",
+      "Task and attempt events waiting for a task dispatcher thread", 0);
+
+  private final ConcurrentMap<Enum<?>, MutableRate> processingTimes =
+      new ConcurrentHashMap<Enum<?>, MutableRate>();
+
+  void addProcessingTime(Enum<?> eventType, long nanos) {
+    MutableRate rate = processingTimes.get(eventType);
+    if (rate == null) {
+      synchronized (this) {
+        rate = processingTimes.get(eventType);
+        if (rate == null) {
+          rate = registry.newRate(eventType.getDeclaringClass().getSimpleName()
+              + "." + eventType.name(), "Time taken to handle "
+              + eventType.name() + " events, in nanoseconds", false);
+          processingTimes.put(eventType, rate);
+        }
+      }
+    }
+    rate.add(nanos);
+  }
+
+  @Override
+  public void getMetrics(MetricsCollector collector, boolean all) {
+    registry.snapshot(collector.addRecord(registry.info()), all);
+  }
+}
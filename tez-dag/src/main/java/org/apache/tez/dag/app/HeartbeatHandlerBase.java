@@ -18,8 +18,6 @@
 
 package org.apache.tez.dag.app;
 
-import java.util.Iterator;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -28,12 +26,17 @@ import org.apache.hadoop.service.AbstractService;
 import org.apache.hadoop.yarn.event.EventHandler;
 import org.apache.hadoop.yarn.util.Clock;
 
+/**
+ * Times out the items which are not heard from for a while. Each registered
+ * item has a deadline in a {@link DeadlineTracker}, which is only checked -
+ * and moved forward if the item has pinged since - when it passes, so pings
+ * do not touch the tracker and no check scans all items.
+ */
 public abstract class HeartbeatHandlerBase<T> extends AbstractService {
 
 
   protected int timeOut = 5 * 60 * 1000;// 5 mins
   protected int timeOutCheckInterval = 30 * 1000; // 30 seconds.
-  protected Thread timeOutCheckerThread;
   private final String name;
   
   @SuppressWarnings("rawtypes")
@@ -41,67 +44,93 @@ public abstract class HeartbeatHandlerBase<T> extends AbstractService {
   protected final Clock clock;
   protected final AppContext appContext;
   
-  private ConcurrentMap<T, ReportTime> runningMap;
-  private volatile boolean stopped;
+  private ConcurrentMap<T, Liveness> runningMap;
+  private DeadlineTracker deadlineTracker;
+  // Whether the tracker was created by this handler, rather than shared
+  private final boolean ownDeadlineTracker;
 
   public HeartbeatHandlerBase(AppContext appContext, int expectedConcurrency, String name) {
+    this(appContext, expectedConcurrency, name, null);
+  }
+
+  /**
+   * @param deadlineTracker a tracker shared with other services, which is
+   *          started and stopped by its owner. If null, the handler uses its
+   *          own tracker, with a tick of the timeout check interval.
+   */
+  public HeartbeatHandlerBase(AppContext appContext, int expectedConcurrency,
+      String name, DeadlineTracker deadlineTracker) {
     super(name);
     this.name = name;
     this.eventHandler = appContext.getEventHandler();
     this.clock = appContext.getClock();
     this.appContext = appContext;
     expectedConcurrency = expectedConcurrency == 0 ? 1 : expectedConcurrency;
-    this.runningMap = new ConcurrentHashMap<T, HeartbeatHandlerBase.ReportTime>(
+    this.runningMap = new ConcurrentHashMap<T, Liveness>(
         16, 0.75f, expectedConcurrency);
+    this.deadlineTracker = deadlineTracker;
+    this.ownDeadlineTracker = (deadlineTracker == null);
   }
 
   @Override
   public void serviceInit(Configuration conf) {
     timeOut = getConfiguredTimeout(conf);
     timeOutCheckInterval = getConfiguredTimeoutCheckInterval(conf);
+    if (ownDeadlineTracker) {
+      deadlineTracker = new DeadlineTracker(name + " PingChecker", clock,
+          timeOutCheckInterval);
+      deadlineTracker.init(conf);
+    }
   }
 
   @Override
   public void serviceStart() {
-    timeOutCheckerThread = new Thread(createPingChecker());
-    timeOutCheckerThread.setName(name + " PingChecker");
-    timeOutCheckerThread.start();
+    if (ownDeadlineTracker) {
+      deadlineTracker.start();
+    }
   }
 
   @Override
   public void serviceStop() {
-    stopped = true;
-    if (timeOutCheckerThread != null) {
-      timeOutCheckerThread.interrupt();
+    if (ownDeadlineTracker && deadlineTracker != null) {
+      deadlineTracker.stop();
     }
   }
   
-  protected Runnable createPingChecker() {
-    return new PingChecker();
-  }
   protected abstract int getConfiguredTimeout(Configuration conf);
   protected abstract int getConfiguredTimeoutCheckInterval(Configuration conf);
   
   public void progressing(T id) {
-    ReportTime time = runningMap.get(id);
-    if (time != null) {
-      time.setLastProgress(clock.getTime());
+    Liveness liveness = runningMap.get(id);
+    if (liveness != null) {
+      liveness.reportTime.setLastProgress(clock.getTime());
     }
   }
   
   public void pinged(T id) {
-    ReportTime time = runningMap.get(id);
-    if (time != null) {
-      time.setLastPing(clock.getTime());
+    Liveness liveness = runningMap.get(id);
+    if (liveness != null) {
+      liveness.reportTime.setLastPing(clock.getTime());
     }
   }
   
   public void register(T id) {
-    runningMap.put(id, new ReportTime(clock.getTime()));
+    long currentTime = clock.getTime();
+    Liveness liveness = new Liveness(id, new ReportTime(currentTime));
+    Liveness previous = runningMap.put(id, liveness);
+    if (previous != null) {
+      deadlineTracker.cancel(previous);
+    }
+    if (timeOut > 0) {
+      deadlineTracker.schedule(liveness, currentTime + timeOut + 1);
+    }
   }
   
   public void unregister(T id) {
-    runningMap.remove(id);
+    Liveness liveness = runningMap.remove(id);
+    if (liveness != null) {
+      deadlineTracker.cancel(liveness);
+    }
   }
   
   
@@ -136,29 +165,34 @@ public abstract class HeartbeatHandlerBase<T> extends AbstractService {
   
   protected abstract void handleTimeOut(T t);
   
-  private class PingChecker implements Runnable {
+  private class Liveness extends DeadlineTracker.Deadline {
 
-    @Override
-    public void run() {
-      while (!stopped && !Thread.currentThread().isInterrupted()) {
-        Iterator<Map.Entry<T, ReportTime>> iterator =
-            runningMap.entrySet().iterator();
+    private final T id;
+    private final ReportTime reportTime;
 
-        // avoid calculating current time everytime in loop
-        long currentTime = clock.getTime();
+    Liveness(T id, ReportTime reportTime) {
+      this.id = id;
+      this.reportTime = reportTime;
+    }
 
-        while (iterator.hasNext()) {
-          Map.Entry<T, ReportTime> entry = iterator.next();    
-          if(hasTimedOut(entry.getValue(), currentTime)) {
-            // Timed out. Removed from list and send out an event.
-            iterator.remove();
-            handleTimeOut(entry.getKey());
-          }
+    @Override
+    protected void expired(long currentTime) {
+      if (runningMap.get(id) != this) {
+        // Unregistered, or registered again
+        return;
+      }
+      if (hasTimedOut(reportTime, currentTime)) {
+        // Timed out. Removed from list and send out an event.
+        if (runningMap.remove(id, this)) {
+          handleTimeOut(id);
         }
-        try {
-          Thread.sleep(timeOutCheckInterval);
-        } catch (InterruptedException e) {
-          break;
+      } else {
+        // Heard from since the deadline was set
+        deadlineTracker.schedule(this, Math.max(
+            reportTime.getLastPing() + timeOut + 1, currentTime + 1));
+        if (runningMap.get(id) != this) {
+          // Unregistered in the meantime
+          deadlineTracker.cancel(this);
         }
       }
     }
@@ -0,0 +1,147 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Public;
+import org.apache.hadoop.classification.InterfaceStability.Evolving;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.Credentials;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.tez.client.TezClientUtils;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.dag.api.DAG;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.TezException;
+import org.apache.tez.dag.api.TezUncheckedException;
+import org.apache.tez.dag.api.client.DAGStatus;
+import org.apache.tez.dag.api.client.StatusGetOpts;
+
+/**
+ * Runs DAGs in the JVM of its caller, with a DAGAppMaster in session mode
+ * which runs the tasks of the DAGs itself. Nothing is asked from YARN, and
+ * shuffles read the outputs they need from the local disk, so small DAGs run
+ * in well under a second. Meant for tests and small jobs:
+ *
+ * <pre>
+ * LocalDAGRunner runner = new LocalDAGRunner(conf);
+ * try {
+ *   DAGStatus status = runner.run(dag);
+ * } finally {
+ *   runner.stop();
+ * }
+ * </pre>
+ *
+ * The local resources of the DAG are not localized, its classes must be on
+ * the classpath of the caller. DAGs are run one at a time.
+ */
+@Public
+@Evolving
+public class LocalDAGRunner {
+
+  private static final Log LOG = LogFactory.getLog(LocalDAGRunner.class);
+
+  private static final long POLL_INTERVAL_MS = 50;
+
+  private final Configuration conf;
+  private final DAGAppMaster appMaster;
+
+  /**
+   * Starts the AM, which runs at most
+   * {@link TezConfiguration#TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS} tasks at
+   * a time.
+   */
+  public LocalDAGRunner(Configuration conf) throws IOException {
+    this.conf = new Configuration(conf);
+    this.conf.setBoolean(TezConfiguration.TEZ_LOCAL_MODE, true);
+
+    long now = System.currentTimeMillis();
+    ApplicationId appId = ApplicationId.newInstance(now, 1);
+    ApplicationAttemptId appAttemptId = ApplicationAttemptId.newInstance(
+        appId, 1);
+    ContainerId containerId = ContainerId.newInstance(appAttemptId, 1);
+
+    Credentials credentials = new Credentials();
+    credentials.addAll(UserGroupInformation.getCurrentUser().getCredentials());
+    TezClientUtils.createSessionToken(appId.toString(),
+        new JobTokenSecretManager(), credentials);
+
+    appMaster = new DAGAppMaster(appAttemptId, containerId, "localhost", 0, 0,
+        now, true);
+    try {
+      DAGAppMaster.initAndStartAppMaster(appMaster, this.conf,
+          UserGroupInformation.getCurrentUser().getShortUserName(),
+          credentials);
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while starting the AM", e);
+    }
+    if (appMaster.getState() != DAGAppMasterState.IDLE) {
+      throw new TezUncheckedException("Failed to start the AM, state: "
+          + appMaster.getState());
+    }
+    LOG.info("Started local AM for application: " + appId);
+  }
+
+  /**
+   * Runs the DAG and waits for it to complete.
+   *
+   * @return the final status of the DAG, with its counters
+   */
+  public DAGStatus run(DAG dag) throws TezException, InterruptedException {
+    String dagId = appMaster.submitDAGToAppMaster(dag.createDag(conf), null);
+    LOG.info("Submitted DAG: " + dagId);
+    while (true) {
+      org.apache.tez.dag.app.dag.DAG currentDAG =
+          appMaster.getContext().getCurrentDAG();
+      if (currentDAG.isComplete()
+          && appMaster.getState() != DAGAppMasterState.RUNNING) {
+        break;
+      }
+      if (appMaster.getState() == DAGAppMasterState.ERROR) {
+        throw new TezException("AM failed while running DAG: " + dagId
+            + ", diagnostics: " + appMaster.getDiagnostics());
+      }
+      Thread.sleep(POLL_INTERVAL_MS);
+    }
+    DAGStatus status = appMaster.getContext().getCurrentDAG().getDAGStatus(
+        EnumSet.of(StatusGetOpts.GET_COUNTERS));
+    LOG.info("DAG: " + dagId + " completed with state: " + status.getState());
+    return status;
+  }
+
+  /**
+   * Stops the AM, killing the running DAG if any.
+   */
+  public void stop() {
+    org.apache.tez.dag.app.dag.DAG currentDAG =
+        appMaster.getContext().getCurrentDAG();
+    if (currentDAG != null && !currentDAG.isComplete()) {
+      LOG.info("Stopping AM with DAG: " + currentDAG.getID() + " in state: "
+          + currentDAG.getState());
+    }
+    appMaster.stop();
+  }
+}
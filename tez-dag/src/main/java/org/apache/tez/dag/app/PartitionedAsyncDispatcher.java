@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.metrics2.MetricsException;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.yarn.event.AsyncDispatcher;
+import org.apache.hadoop.yarn.event.Event;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEvent;
+import org.apache.tez.dag.app.dag.event.TaskEvent;
+import org.apache.tez.dag.records.TezTaskID;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * An {@link AsyncDispatcher} which hands {@link TaskEvent}s and
+ * {@link TaskAttemptEvent}s over to a fixed number of task dispatcher
+ * threads, while all other events are still handled on the main dispatcher
+ * thread. The thread is picked by task, so a task and its attempts always
+ * see their events in the order in which they were sent.
+ * <p>
+ * Every handler registered for these event types, such as a speculator next
+ * to the attempt dispatcher, runs on the task dispatcher threads, so it must
+ * be safe to call from several threads at once. The same holds for anything
+ * the tasks and attempts call directly, like
+ * {@link org.apache.tez.dag.app.dag.Vertex#refreshTaskCounters}. Changes to
+ * a vertex or the DAG should be sent as events, which are still handled by
+ * the main dispatcher thread.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class PartitionedAsyncDispatcher extends AsyncDispatcher {
+
+  private static final Log LOG =
+      LogFactory.getLog(PartitionedAsyncDispatcher.class);
+
+  private final BlockingQueue<Event>[] taskEventQueues;
+  private final Thread[] taskEventThreads;
+  private final EventHandler handlerInstance;
+  private volatile boolean stopped = false;
+  @VisibleForTesting
+  int numDiscardedTaskEvents = 0;
+
+  @VisibleForTesting
+  final DispatcherMetrics metrics = new DispatcherMetrics();
+  private boolean metricsRegistered = false;
+
+  public PartitionedAsyncDispatcher(int numTaskThreads) {
+    super();
+    Preconditions.checkArgument(numTaskThreads > 0,
+        "numTaskThreads must be positive");
+    taskEventQueues = new BlockingQueue[numTaskThreads];
+    taskEventThreads = new Thread[numTaskThreads];
+    for (int i = 0; i < numTaskThreads; i++) {
+      taskEventQueues[i] = new LinkedBlockingQueue<Event>();
+    }
+    handlerInstance = new QueueSizeTrackingEventHandler(
+        super.getEventHandler());
+  }
+
+  @Override
+  public EventHandler getEventHandler() {
+    return handlerInstance;
+  }
+
+  @Override
+  protected void serviceStart() throws Exception {
+    super.serviceStart();
+    for (int i = 0; i < taskEventThreads.length; i++) {
+      taskEventThreads[i] = new Thread(
+          new TaskEventProcessor(taskEventQueues[i]));
+      taskEventThreads[i].setName("TaskEventDispatcher #" + i);
+      taskEventThreads[i].start();
+    }
+    try {
+      DefaultMetricsSystem.instance().register(DispatcherMetrics.NAME,
+          "Events handled by the AM dispatcher", metrics);
+      metricsRegistered = true;
+    } catch (MetricsException e) {
+      LOG.warn("Could not register dispatcher metrics", e);
+    }
+    LOG.info("Started " + taskEventThreads.length
+        + " task event dispatcher threads");
+  }
+
+  @Override
+  protected void serviceStop() throws Exception {
+    // The main dispatcher thread hands out task events, so stop it first.
+    super.serviceStop();
+    stopped = true;
+    for (Thread thread : taskEventThreads) {
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+    for (Thread thread : taskEventThreads) {
+      if (thread != null) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          LOG.warn("Interrupted while stopping " + thread.getName(), e);
+        }
+      }
+    }
+    // Like the main dispatcher thread, the task threads do not handle the
+    // events still queued when stopped, but at least say what is dropped.
+    for (int i = 0; i < taskEventQueues.length; i++) {
+      List<Event> discarded = new ArrayList<Event>();
+      taskEventQueues[i].drainTo(discarded);
+      if (discarded.isEmpty()) {
+        continue;
+      }
+      metrics.taskEventQueueSize.decr(discarded.size());
+      numDiscardedTaskEvents += discarded.size();
+      LOG.warn("Discarding " + discarded.size()
+          + " events queued for TaskEventDispatcher #" + i);
+      if (LOG.isDebugEnabled()) {
+        for (Event event : discarded) {
+          LOG.debug("Discarded event: " + event);
+        }
+      }
+    }
+    if (metricsRegistered) {
+      DefaultMetricsSystem.instance().unregisterSource(DispatcherMetrics.NAME);
+      metricsRegistered = false;
+    }
+  }
+
+  @Override
+  protected void dispatch(Event event) {
+    metrics.eventQueueSize.decr();
+    TezTaskID taskId = null;
+    if (event instanceof TaskEvent) {
+      taskId = ((TaskEvent) event).getTaskID();
+    } else if (event instanceof TaskAttemptEvent) {
+      taskId = ((TaskAttemptEvent) event).getTaskAttemptID().getTaskID();
+    }
+    if (taskId == null) {
+      timedDispatch(event);
+      return;
+    }
+    metrics.taskEventQueueSize.incr();
+    taskEventQueues[(taskId.hashCode() & Integer.MAX_VALUE)
+        % taskEventQueues.length].add(event);
+  }
+
+  private void timedDispatch(Event event) {
+    long startTime = System.nanoTime();
+    super.dispatch(event);
+    metrics.addProcessingTime(event.getType(), System.nanoTime() - startTime);
+  }
+
+  private class TaskEventProcessor implements Runnable {
+
+    private final BlockingQueue<Event> queue;
+
+    TaskEventProcessor(BlockingQueue<Event> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      while (!stopped && !Thread.currentThread().isInterrupted()) {
+        Event event;
+        try {
+          event = queue.take();
+        } catch (InterruptedException e) {
+          if (!stopped) {
+            LOG.warn(Thread.currentThread().getName() + " interrupted", e);
+          }
+          return;
+        }
+        metrics.taskEventQueueSize.decr();
+        timedDispatch(event);
+      }
+    }
+  }
+
+  /** Counts the events waiting for the main dispatcher thread. */
+  private class QueueSizeTrackingEventHandler implements EventHandler<Event> {
+
+    private final EventHandler<Event> handler;
+
+    QueueSizeTrackingEventHandler(EventHandler<Event> handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public void handle(Event event) {
+      metrics.eventQueueSize.incr();
+      try {
+        handler.handle(event);
+      } catch (RuntimeException e) {
+        metrics.eventQueueSize.decr();
+        throw e;
+      }
+    }
+  }
+}
@@ -41,6 +41,13 @@ public interface TaskAttemptListener {
 //  void unregisterRunningJvm(WrappedJvmID jvmID);
   
   void unregisterTaskAttempt(TezTaskAttemptID attemptID);
+
+  /**
+   * Signal that the task to hand out to a container may have changed, e.g. a
+   * task attempt was assigned to it or it was asked to stop.
+   */
+  void containerTaskUpdated(ContainerId containerId);
+
   /**
    * Register a JVM with the listener.  This should be called as soon as a 
    * JVM ID is assigned to a task attempt, before it has been launched.
@@ -25,6 +25,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -61,6 +62,7 @@ import org.apache.tez.runtime.api.impl.TezHeartbeatRequest;
 import org.apache.tez.runtime.api.impl.TezHeartbeatResponse;
 import org.apache.tez.common.security.JobTokenSecretManager;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
 
 @SuppressWarnings("unchecked")
@@ -80,6 +82,12 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
   private final JobTokenSecretManager jobTokenSecretManager;
   private InetSocketAddress address;
   private Server server;
+  private long getTaskLongPollTimeout;
+  private int maxLongPollWaiters;
+  // getTask calls currently held by the long poll
+  private final AtomicInteger longPollWaiters = new AtomicInteger();
+  // 0 if containers do not time out
+  private int longPollPingInterval;
 
   class ContainerInfo {
     ContainerInfo(ContainerId containerId) {
@@ -92,6 +100,8 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
     long lastRequestId;
     TezHeartbeatResponse lastReponse;
     TezTaskAttemptID currentAttemptId;
+    // bumped whenever the task to hand out to the container may have changed
+    long taskUpdateCount;
   }
 
   private ConcurrentMap<TezTaskAttemptID, ContainerId> attemptToInfoMap =
@@ -112,6 +122,27 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
 
   @Override
   public void serviceStart() {
+    getTaskLongPollTimeout = getConfig().getInt(
+        TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_TIMEOUT_MS,
+        TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_TIMEOUT_MS_DEFAULT);
+    float maxWaiterFraction = getConfig().getFloat(
+        TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_MAX_HANDLER_FRACTION,
+        TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_MAX_HANDLER_FRACTION_DEFAULT);
+    if (maxWaiterFraction < 0 || maxWaiterFraction > 1) {
+      throw new TezUncheckedException("Invalid value for "
+          + TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_MAX_HANDLER_FRACTION
+          + ": " + maxWaiterFraction);
+    }
+    maxLongPollWaiters = (int) (getConfig().getInt(
+        TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT,
+        TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT_DEFAULT)
+        * maxWaiterFraction);
+    // A container held by a long poll does not heartbeat, so it is pinged
+    // well within the container timeout while it waits.
+    int containerTimeout =
+        containerHeartbeatHandler.getConfiguredTimeout(getConfig());
+    longPollPingInterval = containerTimeout > 0
+        ? Math.max(1, containerTimeout / 2) : 0;
     startRpcServer();
   }
 
@@ -201,7 +232,7 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
         task = TASK_FOR_INVALID_JVM;
       } else {
         pingContainerHeartbeatHandler(containerId);
-        AMContainerTask taskContext = pullTaskAttemptContext(containerId);
+        AMContainerTask taskContext = waitForTaskAttemptContext(containerId);
         if (taskContext.shouldDie()) {
           LOG.info("No more tasks for container with id : " + containerId
               + ". Asking it to die");
@@ -217,7 +248,8 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
                 containerId);
             task = new ContainerTask(taskContext.getTask(), false,
                 convertLocalResourceMap(taskContext.getAdditionalResources()),
-                taskContext.getCredentials(), taskContext.haveCredentialsChanged());
+                taskContext.getCredentials(), taskContext.haveCredentialsChanged(),
+                taskContext.getBaseConfPayload());
             context.getEventHandler().handle(
                 new TaskAttemptEventStartedRemotely(taskContext.getTask()
                     .getTaskAttemptID(), containerId, context
@@ -375,6 +407,78 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
     return container.pullTaskContext();
   }
 
+  /**
+   * Pull the task for a container, waiting up to the long-poll timeout for a
+   * task to be assigned if there is none yet. Does not wait if the maximum
+   * number of calls are waiting already.
+   */
+  private AMContainerTask waitForTaskAttemptContext(ContainerId containerId) {
+    ContainerInfo containerInfo = registeredContainers.get(containerId);
+    long deadline = System.currentTimeMillis() + getTaskLongPollTimeout;
+    boolean waiting = false;
+    try {
+      while (true) {
+        long taskUpdateCount = 0;
+        if (containerInfo != null) {
+          synchronized (containerInfo) {
+            taskUpdateCount = containerInfo.taskUpdateCount;
+          }
+        }
+        AMContainerTask taskContext = pullTaskAttemptContext(containerId);
+        long remaining = deadline - System.currentTimeMillis();
+        if (taskContext.shouldDie() || taskContext.getTask() != null
+            || containerInfo == null || remaining <= 0) {
+          return taskContext;
+        }
+        if (!waiting) {
+          if (longPollWaiters.incrementAndGet() > maxLongPollWaiters) {
+            longPollWaiters.decrementAndGet();
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Not holding getTask for container with id: "
+                  + containerId + ", " + maxLongPollWaiters
+                  + " calls are waiting already");
+            }
+            return taskContext;
+          }
+          waiting = true;
+        }
+        long waitTime = longPollPingInterval > 0
+            ? Math.min(remaining, longPollPingInterval) : remaining;
+        synchronized (containerInfo) {
+          if (containerInfo.taskUpdateCount == taskUpdateCount) {
+            try {
+              containerInfo.wait(waitTime);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return taskContext;
+            }
+          }
+        }
+        pingContainerHeartbeatHandler(containerId);
+      }
+    } finally {
+      if (waiting) {
+        longPollWaiters.decrementAndGet();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int getNumLongPollWaiters() {
+    return longPollWaiters.get();
+  }
+
+  @Override
+  public void containerTaskUpdated(ContainerId containerId) {
+    ContainerInfo containerInfo = registeredContainers.get(containerId);
+    if (containerInfo != null) {
+      synchronized (containerInfo) {
+        containerInfo.taskUpdateCount++;
+        containerInfo.notifyAll();
+      }
+    }
+  }
+
   @Override
   public void registerRunningContainer(ContainerId containerId) {
     if (LOG.isDebugEnabled()) {
@@ -419,7 +523,13 @@ public class TaskAttemptListenerImpTezDag extends AbstractService implements
       LOG.debug("Unregistering Container from TaskAttemptListener: "
           + containerId);
     }
-    registeredContainers.remove(containerId);
+    ContainerInfo containerInfo = registeredContainers.remove(containerId);
+    if (containerInfo != null) {
+      synchronized (containerInfo) {
+        containerInfo.taskUpdateCount++;
+        containerInfo.notifyAll();
+      }
+    }
   }
 
   private void pingContainerHeartbeatHandler(ContainerId containerId) {
@@ -39,6 +39,12 @@ public class TaskHeartbeatHandler extends HeartbeatHandlerBase<TezTaskAttemptID>
     super(context, expectedConcurrency, "TaskHeartbeatHandler");
   }
 
+  public TaskHeartbeatHandler(AppContext context, int expectedConcurrency,
+      DeadlineTracker deadlineTracker) {
+    super(context, expectedConcurrency, "TaskHeartbeatHandler",
+        deadlineTracker);
+  }
+
   @Override
   protected int getConfiguredTimeout(Configuration conf) {
     return conf.getInt(TezConfiguration.TASK_TIMEOUT, 5 * 60 * 1000);
@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A hierarchical timing wheel, which keeps items until a deadline passes.
+ * Scheduling and cancelling an item take constant time, and advancing the
+ * wheel only touches the items which expire, plus a share of the items which
+ * are moved to a finer level on the way - each item moves at most once per
+ * level.
+ * 
+ * Time is divided into ticks of <code>tickMs</code>. Level <i>k</i> has 64
+ * slots of 64<sup><i>k</i></sup> ticks each, and an item is kept in the
+ * level of the highest base-64 digit in which its deadline tick differs from
+ * the current tick. Items are handed out by {@link #advance(long)} once the
+ * tick of their deadline is reached, so none is handed out early and none
+ * late by more than a tick. Not thread safe.
+ */
+public class TimingWheel<T> {
+
+  private static final int WHEEL_BITS = 6;
+  private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+  private static final int NUM_LEVELS = (63 + WHEEL_BITS - 1) / WHEEL_BITS;
+
+  private static class Timer<T> {
+    final T item;
+    final long tick;
+    Set<Timer<T>> bucket;
+    // -1 once expired
+    int level;
+
+    Timer(T item, long tick) {
+      this.item = item;
+      this.tick = tick;
+    }
+  }
+
+  private final long tickMs;
+  private long currentTick;
+  private final Map<T, Timer<T>> timers = new HashMap<T, Timer<T>>();
+  // Slots are created when first used
+  private final Set<Timer<T>>[][] levels;
+  private final int[] levelSizes = new int[NUM_LEVELS];
+  private final Set<Timer<T>> expired = new HashSet<Timer<T>>();
+
+  @SuppressWarnings("unchecked")
+  public TimingWheel(long tickMs, long currentTime) {
+    Preconditions.checkArgument(tickMs > 0, "tickMs must be positive");
+    this.tickMs = tickMs;
+    this.currentTick = currentTime / tickMs;
+    this.levels = new Set[NUM_LEVELS][];
+  }
+
+  /**
+   * Schedules an item to expire at the given time, replacing any earlier
+   * deadline of the item.
+   */
+  public void schedule(T item, long time) {
+    cancel(item);
+    long tick = time / tickMs + (time % tickMs > 0 ? 1 : 0);
+    Timer<T> timer = new Timer<T>(item, tick);
+    timers.put(item, timer);
+    add(timer);
+  }
+
+  /**
+   * @return true if the item was scheduled
+   */
+  public boolean cancel(T item) {
+    Timer<T> timer = timers.remove(item);
+    if (timer == null) {
+      return false;
+    }
+    timer.bucket.remove(timer);
+    if (timer.level >= 0) {
+      --levelSizes[timer.level];
+    }
+    return true;
+  }
+
+  public boolean contains(T item) {
+    return timers.containsKey(item);
+  }
+
+  public int size() {
+    return timers.size();
+  }
+
+  /**
+   * Moves the wheel to the given time.
+   * 
+   * @return the items whose deadline is at or before the given time. They
+   *         are no longer scheduled.
+   */
+  public List<T> advance(long time) {
+    long tick = time / tickMs;
+    while (currentTick < tick) {
+      int lowestLevel = getLowestLevel();
+      if (lowestLevel < 0) {
+        // Nothing left in the wheel
+        currentTick = tick;
+        break;
+      }
+      if (lowestLevel > 0) {
+        // Nothing happens until the next slot of the lowest level in use
+        long slotTicks = 1L << (lowestLevel * WHEEL_BITS);
+        long nextSlotTick = (currentTick / slotTicks + 1) * slotTicks;
+        if (nextSlotTick > tick) {
+          currentTick = tick;
+          break;
+        }
+        if (nextSlotTick > currentTick) {
+          currentTick = nextSlotTick - 1;
+        }
+      }
+      ++currentTick;
+      // Move the items of the coarser levels whose slot has been reached
+      // down, starting with the coarsest one so that they can be moved on.
+      int level = 0;
+      while (level + 1 < NUM_LEVELS && digit(currentTick, level) == 0) {
+        ++level;
+      }
+      for (; level > 0; --level) {
+        cascade(level, digit(currentTick, level));
+      }
+      Set<Timer<T>> bucket = getSlot(0, digit(currentTick, 0), false);
+      if (bucket != null && !bucket.isEmpty()) {
+        for (Timer<T> timer : bucket) {
+          timer.bucket = expired;
+          timer.level = -1;
+          expired.add(timer);
+        }
+        levelSizes[0] -= bucket.size();
+        bucket.clear();
+      }
+    }
+    if (expired.isEmpty()) {
+      return new ArrayList<T>(0);
+    }
+    List<T> items = new ArrayList<T>(expired.size());
+    for (Timer<T> timer : expired) {
+      timers.remove(timer.item);
+      items.add(timer.item);
+    }
+    expired.clear();
+    return items;
+  }
+
+  private void cascade(int level, int slot) {
+    Set<Timer<T>> bucket = getSlot(level, slot, false);
+    if (bucket == null || bucket.isEmpty()) {
+      return;
+    }
+    List<Timer<T>> moved = new ArrayList<Timer<T>>(bucket);
+    levelSizes[level] -= moved.size();
+    bucket.clear();
+    for (Timer<T> timer : moved) {
+      add(timer);
+    }
+  }
+
+  private void add(Timer<T> timer) {
+    Set<Timer<T>> bucket;
+    if (timer.tick <= currentTick) {
+      bucket = expired;
+      timer.level = -1;
+    } else {
+      long diff = timer.tick ^ currentTick;
+      int level = (63 - Long.numberOfLeadingZeros(diff)) / WHEEL_BITS;
+      bucket = getSlot(level, digit(timer.tick, level), true);
+      timer.level = level;
+      ++levelSizes[level];
+    }
+    timer.bucket = bucket;
+    bucket.add(timer);
+  }
+
+  /**
+   * @return the lowest level which holds items, or -1 if none does
+   */
+  private int getLowestLevel() {
+    for (int level = 0; level < NUM_LEVELS; ++level) {
+      if (levelSizes[level] > 0) {
+        return level;
+      }
+    }
+    return -1;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Set<Timer<T>> getSlot(int level, int slot, boolean create) {
+    Set<Timer<T>>[] slots = levels[level];
+    if (slots == null) {
+      if (!create) {
+        return null;
+      }
+      slots = new Set[WHEEL_SIZE];
+      levels[level] = slots;
+    }
+    Set<Timer<T>> bucket = slots[slot];
+    if (bucket == null && create) {
+      bucket = new HashSet<Timer<T>>();
+      slots[slot] = bucket;
+    }
+    return bucket;
+  }
+
+  private static int digit(long tick, int level) {
+    return (int) (tick >>> (level * WHEEL_BITS)) & WHEEL_MASK;
+  }
+}
@@ -64,6 +64,14 @@ public interface Vertex extends Comparable<Vertex> {
    */
   TezCounters getAllCounters();
 
+  /**
+   * Called after the counters of a task of this vertex may have changed. May
+   * be called from any thread, but not with the lock of the task or of one of
+   * its attempts held.
+   * @param taskId the task
+   */
+  void refreshTaskCounters(TezTaskID taskId);
+
   Map<TezTaskID, Task> getTasks();
   Task getTask(TezTaskID taskID);
   Task getTask(int taskIndex);
@@ -52,6 +52,7 @@ import org.apache.hadoop.yarn.state.SingleArcTransition;
 import org.apache.hadoop.yarn.state.StateMachine;
 import org.apache.hadoop.yarn.state.StateMachineFactory;
 import org.apache.hadoop.yarn.util.Clock;
+import org.apache.tez.common.TezUtils;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.DagTypeConverters;
 import org.apache.tez.dag.api.EdgeManagerDescriptor;
@@ -426,6 +427,15 @@ public class DAGImpl implements org.apache.tez.dag.app.dag.DAG,
       dagUGI.addCredentials(this.credentials);
     }
 
+    // Delta payloads parsed in the AM, e.g. by vertex managers, need the base.
+    if (jobPlan.hasBaseConfPayload()) {
+      try {
+        TezUtils.registerBaseConfPayload(jobPlan.getBaseConfPayload());
+      } catch (IOException e) {
+        throw new TezUncheckedException("Failed to read base configuration of dag", e);
+      }
+    }
+
     this.aclsManager = new ApplicationACLsManager(conf);
 
     // This "this leak" is okay because the retained pointer is in an
@@ -1242,8 +1252,11 @@ public class DAGImpl implements org.apache.tez.dag.app.dag.DAG,
       }
 
       // edge manager may be also set via API when using custom edge type
-      dag.edges.put(edgePlan.getId(),
-          new Edge(edgeProperty, dag.getEventHandler()));
+      Edge edge = new Edge(edgeProperty, dag.getEventHandler());
+      edge.setOnDemandRouting(dag.conf.getBoolean(
+          TezConfiguration.TEZ_AM_SCATTER_GATHER_ON_DEMAND_ROUTING_ENABLED,
+          TezConfiguration.TEZ_AM_SCATTER_GATHER_ON_DEMAND_ROUTING_ENABLED_DEFAULT));
+      dag.edges.put(edgePlan.getId(), edge);
     }
   }
 
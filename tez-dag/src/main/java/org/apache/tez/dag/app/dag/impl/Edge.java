@@ -51,6 +51,7 @@ import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
 
 import com.google.common.collect.Maps;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 public class Edge {
 
@@ -96,6 +97,10 @@ public class Edge {
   private Vertex sourceVertex;
   private Vertex destinationVertex; // this may end up being a list for shared edge
   private EventMetaData destinationMetaInfo;
+  // when routing on demand, source events are stored once per edge and
+  // expanded for a destination task only when that task asks for events
+  private boolean onDemandRoutingEnabled = false;
+  private List<TezEvent> onDemandEvents = new ArrayList<TezEvent>();
 
   @SuppressWarnings("rawtypes")
   public Edge(EdgeProperty edgeProperty, EventHandler eventHandler) {
@@ -150,6 +155,32 @@ public class Edge {
     this.edgeProperty = modifiedEdgeProperty;
     createEdgeManager();
     initialize();
+    if (!onDemandEvents.isEmpty()) {
+      // the new edge manager may not be scatter-gather. Route whatever has
+      // been stored so far to the destination tasks the usual way.
+      List<TezEvent> storedEvents = onDemandEvents;
+      onDemandEvents = new ArrayList<TezEvent>();
+      for (TezEvent event : storedEvents) {
+        sendTezEventToDestinationTasks(event);
+      }
+    }
+  }
+
+  /**
+   * Enable on-demand routing of data movement events. Only takes effect while
+   * the edge is a scatter-gather edge using the default
+   * {@link ScatterGatherEdgeManager}, since the events are routed without
+   * consulting the edge manager.
+   */
+  public synchronized void setOnDemandRouting(boolean enabled) {
+    this.onDemandRoutingEnabled = enabled;
+  }
+
+  public synchronized boolean isRoutingOnDemand() {
+    // a subclass of the edge manager may route differently
+    return onDemandRoutingEnabled
+        && edgeProperty.getDataMovementType() == DataMovementType.SCATTER_GATHER
+        && edgeManager.getClass() == ScatterGatherEdgeManager.class;
   }
 
   public EdgeProperty getEdgeProperty() {
@@ -177,17 +208,30 @@ public class Edge {
     this.destinationVertex = destinationVertex;
   }
 
+  /**
+   * Called from the task dispatcher threads while a change of parallelism may
+   * replace the edge manager. The number of tasks of the other vertex is read
+   * before taking the lock of the edge, since that vertex may be routing
+   * events through this edge while holding its own lock.
+   */
   public InputSpec getDestinationSpec(int destinationTaskIndex) {
-    return new InputSpec(sourceVertex.getName(),
-        edgeProperty.getEdgeDestination(),
-        edgeManager.getNumDestinationTaskPhysicalInputs(sourceVertex.getTotalTasks(),
-            destinationTaskIndex));
+    int numSourceTasks = sourceVertex.getTotalTasks();
+    synchronized (this) {
+      return new InputSpec(sourceVertex.getName(),
+          edgeProperty.getEdgeDestination(),
+          edgeManager.getNumDestinationTaskPhysicalInputs(numSourceTasks,
+              destinationTaskIndex));
+    }
   }
 
   public OutputSpec getSourceSpec(int sourceTaskIndex) {
-    return new OutputSpec(destinationVertex.getName(),
-        edgeProperty.getEdgeSource(), edgeManager.getNumSourceTaskPhysicalOutputs(
-        destinationVertex.getTotalTasks(), sourceTaskIndex));
+    int numDestinationTasks = destinationVertex.getTotalTasks();
+    synchronized (this) {
+      return new OutputSpec(destinationVertex.getName(),
+          edgeProperty.getEdgeSource(),
+          edgeManager.getNumSourceTaskPhysicalOutputs(numDestinationTasks,
+              sourceTaskIndex));
+    }
   }
   
   public void startEventBuffering() {
@@ -302,6 +346,9 @@ public class Edge {
   
   public void sendTezEventToDestinationTasks(TezEvent tezEvent) {
     if (!bufferEvents.get()) {
+      if (storeOnDemandEvent(tezEvent)) {
+        return;
+      }
       boolean isDataMovementEvent = true;
       switch (tezEvent.getEventType()) {
       case COMPOSITE_DATA_MOVEMENT_EVENT:
@@ -345,6 +392,87 @@ public class Edge {
     }
   }
   
+  private synchronized boolean storeOnDemandEvent(TezEvent tezEvent) {
+    if (!isRoutingOnDemand()) {
+      return false;
+    }
+    switch (tezEvent.getEventType()) {
+    case COMPOSITE_DATA_MOVEMENT_EVENT:
+    case DATA_MOVEMENT_EVENT:
+    case INPUT_FAILED_EVENT:
+      onDemandEvents.add(tezEvent);
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Route events stored for on-demand delivery to a destination task. Follows
+   * the routing of the {@link ScatterGatherEdgeManager}: physical output i of
+   * source task s goes to destination task i as input s, and a source failure
+   * goes to all destination tasks. Nothing is routed unless
+   * {@link #isRoutingOnDemand()}.
+   *
+   * @param destTaskIndex index of the destination task
+   * @param fromIndex index of the first stored event to look at
+   * @param maxEvents maximum number of events to add
+   * @param events list the routed events are added to
+   * @return index of the first stored event not yet looked at
+   */
+  public synchronized int routeOnDemandEventsToTask(int destTaskIndex,
+      int fromIndex, int maxEvents, List<TezEvent> events) {
+    if (!isRoutingOnDemand()) {
+      // the edge manager has been replaced, which routes the stored events to
+      // the destination tasks the usual way
+      checkState(onDemandEvents.isEmpty(), "Edge from %s to %s with edge"
+          + " manager %s has events stored for on-demand routing",
+          getSourceVertexName(), getDestinationVertexName(),
+          edgeManager.getClass().getName());
+      return fromIndex;
+    }
+    int index = fromIndex;
+    int numAdded = 0;
+    while (index < onDemandEvents.size() && numAdded < maxEvents) {
+      TezEvent tezEvent = onDemandEvents.get(index++);
+      int srcTaskIndex = tezEvent.getSourceInfo().getTaskAttemptID()
+          .getTaskID().getId();
+      Event event = null;
+      switch (tezEvent.getEventType()) {
+      case COMPOSITE_DATA_MOVEMENT_EVENT:
+        CompositeDataMovementEvent compEvent =
+            (CompositeDataMovementEvent) tezEvent.getEvent();
+        if (destTaskIndex >= compEvent.getSourceIndexStart()
+            && destTaskIndex < compEvent.getSourceIndexEnd()) {
+          event = new DataMovementEvent(destTaskIndex, srcTaskIndex,
+              compEvent.getVersion(), compEvent.getUserPayload());
+        }
+        break;
+      case DATA_MOVEMENT_EVENT:
+        DataMovementEvent dmEvent = (DataMovementEvent) tezEvent.getEvent();
+        if (dmEvent.getSourceIndex() == destTaskIndex) {
+          event = new DataMovementEvent(destTaskIndex, srcTaskIndex,
+              dmEvent.getVersion(), dmEvent.getUserPayload());
+        }
+        break;
+      case INPUT_FAILED_EVENT:
+        InputFailedEvent ifEvent = (InputFailedEvent) tezEvent.getEvent();
+        event = new InputFailedEvent(srcTaskIndex, ifEvent.getVersion());
+        break;
+      default:
+        throw new TezUncheckedException("Unhandled tez event type: "
+            + tezEvent.getEventType());
+      }
+      if (event != null) {
+        TezEvent routedEvent = new TezEvent(event, tezEvent.getSourceInfo());
+        routedEvent.setDestinationInfo(destinationMetaInfo);
+        events.add(routedEvent);
+        numAdded++;
+      }
+    }
+    return index;
+  }
+
   @SuppressWarnings("unchecked")
   private void sendEventToTask(TezTaskID taskId, TezEvent tezEvent) {
     eventHandler.handle(new TaskEventAddTezEvent(taskId, tezEvent));
@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tez.common.counters.CounterGroup;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.dag.records.TezTaskID;
+
+/**
+ * Sum of the counters of the tasks of a running vertex. The sum is updated
+ * with the difference to the previous value whenever the counters of a task
+ * change, so reading it does not depend on the number of tasks.
+ */
+class RunningCounters {
+
+  private final TezCounters total = new TezCounters();
+  // A copy of the last counters added for each task. Copies are needed since
+  // the counters of a task attempt may be changed in place.
+  private final Map<TezTaskID, TezCounters> taskCounters =
+      new HashMap<TezTaskID, TezCounters>();
+
+  synchronized void update(TezTaskID taskId, TezCounters counters) {
+    TezCounters current = new TezCounters();
+    if (counters != null) {
+      current.incrAllCounters(counters);
+    }
+    TezCounters previous = taskCounters.put(taskId, current);
+    if (previous != null) {
+      negate(previous);
+      total.incrAllCounters(previous);
+    }
+    total.incrAllCounters(current);
+  }
+
+  synchronized void remove(TezTaskID taskId) {
+    TezCounters previous = taskCounters.remove(taskId);
+    if (previous != null) {
+      negate(previous);
+      total.incrAllCounters(previous);
+    }
+  }
+
+  /**
+   * @return a copy of the current sum
+   */
+  synchronized TezCounters get() {
+    TezCounters counters = new TezCounters();
+    counters.incrAllCounters(total);
+    return counters;
+  }
+
+  private static void negate(TezCounters counters) {
+    for (CounterGroup group : counters) {
+      for (TezCounter counter : group) {
+        counter.setValue(-counter.getValue());
+      }
+    }
+  }
+}
@@ -50,7 +50,9 @@ import org.apache.hadoop.yarn.state.StateMachineFactory;
 import org.apache.hadoop.yarn.util.Clock;
 import org.apache.hadoop.yarn.util.RackResolver;
 import org.apache.hadoop.yarn.util.Records;
+import org.apache.tez.common.counters.CounterGroup;
 import org.apache.tez.common.counters.DAGCounter;
+import org.apache.tez.common.counters.TezCounter;
 import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.ProcessorDescriptor;
 import org.apache.tez.dag.api.TezUncheckedException;
@@ -137,6 +139,9 @@ public class TaskAttemptImpl implements TaskAttempt,
   private String nodeRackName;
 
   private TaskAttemptStatus reportedStatus;
+  // Set when a status update changes the counters, so that the vertex adds
+  // them to its running totals after the event is handled.
+  private boolean countersChanged = false;
   private DAGCounter localityCounter;
 
   // Used to store locality information when
@@ -725,6 +730,7 @@ public class TaskAttemptImpl implements TaskAttempt,
           + " of type " + event.getType() + " while in state "
           + getInternalState() + ". Event: " + event);
     }
+    boolean refreshCounters;
     writeLock.lock();
     try {
       final TaskAttemptStateInternal oldState = getInternalState();
@@ -749,9 +755,14 @@ public class TaskAttemptImpl implements TaskAttempt,
            + getInternalState() + " due to event "
            + event.getType());
       }
+      refreshCounters = countersChanged;
+      countersChanged = false;
     } finally {
       writeLock.unlock();
     }
+    if (refreshCounters) {
+      getVertex().refreshTaskCounters(attemptId.getTaskID());
+    }
   }
 
   @VisibleForTesting
@@ -1299,11 +1310,43 @@ public class TaskAttemptImpl implements TaskAttempt,
           .getStatusEvent();
       ta.reportedStatus.state = ta.getState();
       ta.reportedStatus.progress = statusEvent.getProgress();
-      ta.reportedStatus.counters = statusEvent.getCounters();
+      if (statusEvent.isCountersDelta()) {
+        ta.reportedStatus.counters = mergeCounters(ta.reportedStatus.counters,
+            statusEvent.getCounters());
+      } else {
+        ta.reportedStatus.counters = statusEvent.getCounters();
+      }
+      // a delta without counters leaves them as they were
+      if (!statusEvent.isCountersDelta() || statusEvent.getCounters() != null) {
+        ta.countersChanged = true;
+      }
 
       ta.updateProgressSplits();
 
     }
+
+    /**
+     * Applies the changed counter values in a delta update on top of a copy
+     * of the last reported counters. The reported counters are not modified,
+     * since they may already have been handed out by getCounters().
+     */
+    private static TezCounters mergeCounters(TezCounters reported,
+        TezCounters delta) {
+      if (delta == null) {
+        return reported;
+      }
+      TezCounters merged = new TezCounters();
+      if (reported != null) {
+        merged.incrAllCounters(reported);
+      }
+      for (CounterGroup group : delta) {
+        for (TezCounter counter : group) {
+          merged.findCounter(group.getName(), counter.getName()).setValue(
+              counter.getValue());
+        }
+      }
+      return merged;
+    }
   }
 
   protected static class OutputConsumableTransition implements
@@ -21,10 +21,15 @@ package org.apache.tez.dag.app.dag.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -90,6 +95,7 @@ import org.apache.tez.runtime.api.OutputCommitter;
 import org.apache.tez.runtime.api.impl.TezEvent;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 
 /**
  * Implementation of Task interface.
@@ -124,11 +130,20 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
   private List<TezEvent> tezEventsForTaskAttempts = new ArrayList<TezEvent>();
   private static final List<TezEvent> EMPTY_TASK_ATTEMPT_TEZ_EVENTS =
       new ArrayList(0);
+  private final boolean onDemandRouting;
+  // position of each attempt in the task's own events and in the events of
+  // source edges routing on demand, keyed by the number of events served
+  private final ConcurrentMap<TezTaskAttemptID, NavigableMap<Integer, EventCursor>>
+      attemptEventCursors =
+      new ConcurrentHashMap<TezTaskAttemptID, NavigableMap<Integer, EventCursor>>();
 
   // counts the number of attempts that are either running or in a state where
   //  they will come to be running when they get a Container
   private int numberUncompletedAttempts = 0;
 
+  // the attempt whose counters the vertex last added up for this task
+  private TezTaskAttemptID countedAttemptId = null;
+
   private boolean historyTaskStartGenerated = false;
 
   private static final SingleArcTransition<TaskImpl, TaskEvent>
@@ -342,6 +357,9 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
     // TODO Avoid reading this from configuration for each task.
     maxAttempts = this.conf.getInt(TezConfiguration.TEZ_AM_MAX_TASK_ATTEMPTS,
                               TezConfiguration.TEZ_AM_MAX_TASK_ATTEMPTS_DEFAULT);
+    onDemandRouting = this.conf.getBoolean(
+        TezConfiguration.TEZ_AM_SCATTER_GATHER_ON_DEMAND_ROUTING_ENABLED,
+        TezConfiguration.TEZ_AM_SCATTER_GATHER_ON_DEMAND_ROUTING_ENABLED_DEFAULT);
     taskId = TezTaskID.getInstance(vertexId, taskIndex);
     this.taskAttemptListener = taskAttemptListener;
     this.taskHeartbeatHandler = thh;
@@ -460,13 +478,22 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
       int fromEventId, int maxEvents) {
     List<TezEvent> events = EMPTY_TASK_ATTEMPT_TEZ_EVENTS;
     readLock.lock();
-
-    if (!attempts.containsKey(attemptID)) {
-      throw new TezUncheckedException("Unknown TA: " + attemptID
-          + " asking for events from task:" + getTaskId());
-    }
-
     try {
+      if (!attempts.containsKey(attemptID)) {
+        // e.g. a heartbeat racing with the recovery or removal of the
+        // attempt. It is not given any events rather than failing the
+        // heartbeat.
+        LOG.warn("Unknown TA: " + attemptID
+            + " asking for events from task:" + getTaskId());
+        return events;
+      }
+      if (onDemandRouting) {
+        List<Edge> onDemandEdges = getOnDemandSourceEdges();
+        if (!onDemandEdges.isEmpty()) {
+          return getTaskAttemptTezEventsOnDemand(attemptID, fromEventId,
+              maxEvents, onDemandEdges);
+        }
+      }
       if (tezEventsForTaskAttempts.size() > fromEventId) {
         int actualMax = Math.min(maxEvents,
             (tezEventsForTaskAttempts.size() - fromEventId));
@@ -492,6 +519,97 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
     }
   }
 
+  @VisibleForTesting
+  int getNumAttemptEventCursors() {
+    return attemptEventCursors.size();
+  }
+
+  // the input edges of a vertex are fixed once the DAG is created, and each
+  // edge guards its own routing state, so no vertex lock is needed here
+  private List<Edge> getOnDemandSourceEdges() {
+    List<Edge> onDemandEdges = new ArrayList<Edge>();
+    for (Edge edge : getVertex().getInputVertices().values()) {
+      if (edge.isRoutingOnDemand()) {
+        onDemandEdges.add(edge);
+      }
+    }
+    return onDemandEdges;
+  }
+
+  private static class EventCursor {
+    final int taskEventIndex;
+    final Map<Edge, Integer> edgeEventIndices;
+
+    EventCursor(int taskEventIndex, Map<Edge, Integer> edgeEventIndices) {
+      this.taskEventIndex = taskEventIndex;
+      this.edgeEventIndices = edgeEventIndices;
+    }
+  }
+
+  /**
+   * Serves the events routed to this task followed by the events of the
+   * on-demand source edges. The attempt only tells us how many events it has
+   * received, so a cursor is kept for every position handed out which has not
+   * been acknowledged yet by a later request.
+   */
+  private List<TezEvent> getTaskAttemptTezEventsOnDemand(
+      TezTaskAttemptID attemptID, int fromEventId, int maxEvents,
+      List<Edge> onDemandEdges) {
+    NavigableMap<Integer, EventCursor> cursors =
+        attemptEventCursors.get(attemptID);
+    if (cursors == null) {
+      TaskAttempt attempt = attempts.get(attemptID);
+      if (attempt == null || attempt.isFinished()) {
+        // the cursors of a completed attempt are gone, and it does not need
+        // any more events
+        return EMPTY_TASK_ATTEMPT_TEZ_EVENTS;
+      }
+      NavigableMap<Integer, EventCursor> newCursors =
+          new TreeMap<Integer, EventCursor>();
+      newCursors.put(0, new EventCursor(0, new HashMap<Edge, Integer>()));
+      cursors = attemptEventCursors.putIfAbsent(attemptID, newCursors);
+      if (cursors == null) {
+        cursors = newCursors;
+      }
+    }
+    synchronized (cursors) {
+      // positions before fromEventId will not be asked for again
+      cursors.headMap(fromEventId, false).clear();
+      EventCursor cursor = cursors.get(fromEventId);
+      if (cursor == null) {
+        throw new TezUncheckedException("TaskAttempt: " + attemptID
+            + " asked for events from unknown position: " + fromEventId);
+      }
+      List<TezEvent> events = new ArrayList<TezEvent>();
+      int taskEventIndex = cursor.taskEventIndex;
+      if (tezEventsForTaskAttempts.size() > taskEventIndex) {
+        int toIndex = taskEventIndex + Math.min(maxEvents,
+            tezEventsForTaskAttempts.size() - taskEventIndex);
+        events.addAll(tezEventsForTaskAttempts.subList(taskEventIndex, toIndex));
+        taskEventIndex = toIndex;
+      }
+      Map<Edge, Integer> edgeEventIndices =
+          new HashMap<Edge, Integer>(cursor.edgeEventIndices);
+      for (Edge edge : onDemandEdges) {
+        if (events.size() >= maxEvents) {
+          break;
+        }
+        Integer edgeEventIndex = edgeEventIndices.get(edge);
+        int nextIndex = edge.routeOnDemandEventsToTask(taskId.getId(),
+            edgeEventIndex == null ? 0 : edgeEventIndex.intValue(),
+            maxEvents - events.size(), events);
+        edgeEventIndices.put(edge, nextIndex);
+      }
+      cursors.put(fromEventId + events.size(),
+          new EventCursor(taskEventIndex, edgeEventIndices));
+      if (!events.isEmpty()) {
+        LOG.info("TaskAttempt:" + attemptID + " sent events: (" + fromEventId
+            + "-" + (fromEventId + events.size()) + ")");
+      }
+      return Collections.unmodifiableList(events);
+    }
+  }
+
   @Override
   public List<String> getDiagnostics() {
     List<String> diagnostics = new ArrayList<String>(attempts.size());
@@ -842,6 +960,7 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
           + event.getType() + " while in state " + getInternalState()
           + ". Event: " + event);
     }
+    boolean refreshCounters;
     try {
       writeLock.lock();
       TaskStateInternal oldState = getInternalState();
@@ -852,13 +971,27 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
             + this.taskId, e);
         internalError(event.getType());
       }
-      if (oldState != getInternalState()) {
+      refreshCounters = oldState != getInternalState();
+      if (refreshCounters) {
         LOG.info(taskId + " Task Transitioned from " + oldState + " to "
             + getInternalState());
       }
+      // Changes to the counters of an attempt are passed on by the attempt.
+      // The task only has to tell when another attempt becomes the best one.
+      TaskAttempt bestAttempt = selectBestAttempt();
+      TezTaskAttemptID bestAttemptId =
+          bestAttempt == null ? null : bestAttempt.getID();
+      if (!Objects.equal(bestAttemptId, countedAttemptId)) {
+        countedAttemptId = bestAttemptId;
+        refreshCounters = true;
+      }
     } finally {
       writeLock.unlock();
     }
+    // Done without holding the lock, since the vertex locks itself.
+    if (refreshCounters) {
+      getVertex().refreshTaskCounters(taskId);
+    }
   }
 
   protected void internalError(TaskEventType type) {
@@ -890,6 +1023,7 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
   // always called inside a transition, in turn inside the Write Lock
   private void handleTaskAttemptCompletion(TezTaskAttemptID attemptId,
       TaskAttemptStateInternal attemptState) {
+    attemptEventCursors.remove(attemptId);
     this.sendTaskAttemptCompletionEvent(attemptId, attemptState);
   }
 
@@ -1140,10 +1274,11 @@ public class TaskImpl implements Task, EventHandler<TaskEvent> {
             //Found successful attempt
             //Recover data
             boolean recoveredData = true;
-            if (task.getVertex().getOutputCommitters() != null
-                && !task.getVertex().getOutputCommitters().isEmpty()) {
+            Map<String, OutputCommitter> outputCommitters =
+                task.getVertex().getOutputCommitters();
+            if (outputCommitters != null && !outputCommitters.isEmpty()) {
               for (Entry<String, OutputCommitter> entry
-                  : task.getVertex().getOutputCommitters().entrySet()) {
+                  : outputCommitters.entrySet()) {
                 LOG.info("Recovering data for task from previous DAG attempt"
                     + ", taskId=" + task.getTaskId()
                     + ", output=" + entry.getKey());
@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -146,6 +147,7 @@ import org.apache.tez.runtime.api.impl.TezEvent;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
@@ -183,6 +185,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
   volatile LinkedHashMap<TezTaskID, Task> tasks = new LinkedHashMap<TezTaskID, Task>();
   private Object fullCountersLock = new Object();
   private TezCounters fullCounters = null;
+  private final RunningCounters runningCounters = new RunningCounters();
   private Resource taskResource;
 
   private Configuration conf;
@@ -201,9 +204,8 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
   @VisibleForTesting
   int numSuccessSourceAttemptCompletions = 0;
 
-  List<InputSpec> inputSpecList;
-  List<OutputSpec> outputSpecList;
-  List<GroupInputSpec> groupInputSpecList;
+  // set when the vertex initializes, read when its attempts are scheduled
+  volatile List<GroupInputSpec> groupInputSpecList;
   Set<String> sharedOutputs = Sets.newHashSet();
 
   private static final InternalErrorTransition
@@ -746,14 +748,39 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
         return fullCounters;
       }
 
-      TezCounters counters = new TezCounters();
-      return incrTaskCounters(counters, tasks.values());
+      return runningCounters.get();
 
     } finally {
       readLock.unlock();
     }
   }
 
+  /**
+   * Called by tasks and attempts after handling an event, which happens on
+   * the task dispatcher threads rather than the central one when
+   * {@code tez.am.dispatcher.task-threads} is set. The only vertex
+   * state touched is the task map, read under the read lock, and the running
+   * counters, which do their own locking. Callers must not hold the lock of
+   * the task or the attempt, since the counters of the task are read here.
+   */
+  @Override
+  public void refreshTaskCounters(TezTaskID taskId) {
+    Task task = getTask(taskId);
+    if (task == null) {
+      return;
+    }
+    TezCounters counters = task.getCounters();
+    readLock.lock();
+    try {
+      // the task may have been removed by a change of parallelism meanwhile
+      if (tasks.get(taskId) == task) {
+        runningCounters.update(taskId, counters);
+      }
+    } finally {
+      readLock.unlock();
+    }
+  }
+
   public VertexStats getVertexStats() {
 
     readLock.lock();
@@ -1142,6 +1169,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
           }
           LOG.info("Removing task: " + entry.getKey());
           iter.remove();
+          runningCounters.remove(entry.getKey());
         }
         this.numTasks = parallelism;
         assert tasks.size() == numTasks;
@@ -1651,7 +1679,7 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
         }
       }
       if (!groupSpecList.isEmpty()) {
-        groupInputSpecList = groupSpecList;
+        groupInputSpecList = Collections.unmodifiableList(groupSpecList);
       }
     }
 
@@ -3153,12 +3181,14 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
 
   @Override
   public void setInputVertices(Map<Vertex, Edge> inVertices) {
-    this.sourceVertices = inVertices;
+    // the edges of a vertex do not change once the DAG is created, so an
+    // immutable copy can be read from any thread
+    this.sourceVertices = ImmutableMap.copyOf(inVertices);
   }
 
   @Override
   public void setOutputVertices(Map<Vertex, Edge> outVertices) {
-    this.targetVertices = outVertices;
+    this.targetVertices = ImmutableMap.copyOf(outVertices);
   }
 
   @Override
@@ -3183,7 +3213,10 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
   
   @Override
   public Map<String, OutputCommitter> getOutputCommitters() {
-    return outputCommitters;
+    if (outputCommitters == null) {
+      return null;
+    }
+    return Collections.unmodifiableMap(outputCommitters);
   }
 
   @Private
@@ -3199,7 +3232,10 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
   public void setAdditionalOutputs(List<RootInputLeafOutputProto> outputs) {
     LOG.info("setting additional outputs for vertex " + this.vertexName);
     this.additionalOutputs = Maps.newHashMapWithExpectedSize(outputs.size());
-    this.outputCommitters = Maps.newHashMapWithExpectedSize(outputs.size());
+    // the committers are added while the vertex initializes, and are read by
+    // recovering tasks on the task dispatcher threads
+    this.outputCommitters = new ConcurrentHashMap<String, OutputCommitter>(
+        outputs.size());
     for (RootInputLeafOutputProto output : outputs) {
       OutputDescriptor od = DagTypeConverters
           .convertOutputDescriptorFromDAGPlan(output.getEntityDescriptor());
@@ -3252,12 +3288,12 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
 
   @Override
   public Map<Vertex, Edge> getInputVertices() {
-    return Collections.unmodifiableMap(this.sourceVertices);
+    return this.sourceVertices;
   }
 
   @Override
   public Map<Vertex, Edge> getOutputVertices() {
-    return Collections.unmodifiableMap(this.targetVertices);
+    return this.targetVertices;
   }
 
   @Override
@@ -3308,10 +3344,18 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
     return this.vertexLocationHint;
   }
 
-  // TODO Eventually remove synchronization.
+  /**
+   * Called while an attempt is being scheduled, on the task dispatcher
+   * threads and with the lock of the attempt held, so the vertex lock is not
+   * taken here. The edges and the root input and output specs are fixed by
+   * the time tasks are scheduled, and each edge guards its own edge manager,
+   * which a change of parallelism may replace. The lists are built anew for
+   * every call since the number of physical inputs and outputs follows the
+   * edge managers.
+   */
   @Override
-  public synchronized List<InputSpec> getInputSpecList(int taskIndex) {
-    inputSpecList = new ArrayList<InputSpec>(
+  public List<InputSpec> getInputSpecList(int taskIndex) {
+    List<InputSpec> inputSpecList = new ArrayList<InputSpec>(
         this.getInputVerticesCount() + additionalInputSpecs.size());
     inputSpecList.addAll(additionalInputSpecs);
     for (Entry<Vertex, Edge> entry : this.getInputVertices().entrySet()) {
@@ -3326,24 +3370,20 @@ public class VertexImpl implements org.apache.tez.dag.app.dag.Vertex,
     return inputSpecList;
   }
 
-  // TODO Eventually remove synchronization.
   @Override
-  public synchronized List<OutputSpec> getOutputSpecList(int taskIndex) {
-    if (this.outputSpecList == null) {
-      outputSpecList = new ArrayList<OutputSpec>(this.getOutputVerticesCount()
-          + this.additionalOutputSpecs.size());
-      outputSpecList.addAll(additionalOutputSpecs);
-      for (Entry<Vertex, Edge> entry : this.getOutputVertices().entrySet()) {
-        OutputSpec outputSpec = entry.getValue().getSourceSpec(taskIndex);
-        outputSpecList.add(outputSpec);
-      }
+  public List<OutputSpec> getOutputSpecList(int taskIndex) {
+    List<OutputSpec> outputSpecList = new ArrayList<OutputSpec>(
+        this.getOutputVerticesCount() + this.additionalOutputSpecs.size());
+    outputSpecList.addAll(additionalOutputSpecs);
+    for (Entry<Vertex, Edge> entry : this.getOutputVertices().entrySet()) {
+      OutputSpec outputSpec = entry.getValue().getSourceSpec(taskIndex);
+      outputSpecList.add(outputSpec);
     }
     return outputSpecList;
   }
-  
-  //TODO Eventually remove synchronization.
+
   @Override
-  public synchronized List<GroupInputSpec> getGroupInputSpecList(int taskIndex) {
+  public List<GroupInputSpec> getGroupInputSpecList(int taskIndex) {
     return groupInputSpecList;
   }
   
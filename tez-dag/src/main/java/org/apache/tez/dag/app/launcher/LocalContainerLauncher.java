@@ -0,0 +1,508 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.service.AbstractService;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.yarn.api.ApplicationConstants.Environment;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerState;
+import org.apache.hadoop.yarn.api.records.ContainerStatus;
+import org.apache.hadoop.yarn.util.AuxiliaryServiceHelper;
+import org.apache.tez.common.ContainerContext;
+import org.apache.tez.common.ContainerTask;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezTaskUmbilicalProtocol;
+import org.apache.tez.common.security.JobTokenIdentifier;
+import org.apache.tez.common.security.TokenCache;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.TezException;
+import org.apache.tez.dag.api.TezUncheckedException;
+import org.apache.tez.dag.app.AppContext;
+import org.apache.tez.dag.app.TaskAttemptListener;
+import org.apache.tez.dag.app.rm.NMCommunicatorEvent;
+import org.apache.tez.dag.app.rm.container.AMContainerEvent;
+import org.apache.tez.dag.app.rm.container.AMContainerEventCompleted;
+import org.apache.tez.dag.app.rm.container.AMContainerEventLaunched;
+import org.apache.tez.dag.app.rm.container.AMContainerEventType;
+import org.apache.tez.dag.history.DAGHistoryEvent;
+import org.apache.tez.dag.history.events.ContainerLaunchedEvent;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.runtime.LogicalIOProcessorRuntimeTask;
+import org.apache.tez.runtime.api.events.TaskAttemptCompletedEvent;
+import org.apache.tez.runtime.api.events.TaskAttemptFailedEvent;
+import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
+import org.apache.tez.runtime.api.impl.EventMetaData;
+import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
+import org.apache.tez.runtime.api.impl.TaskSpec;
+import org.apache.tez.runtime.api.impl.TezEvent;
+import org.apache.tez.runtime.api.impl.TezHeartbeatRequest;
+import org.apache.tez.runtime.api.impl.TezHeartbeatResponse;
+import org.apache.tez.runtime.api.impl.TezUmbilical;
+import org.apache.tez.runtime.common.objectregistry.ObjectLifeCycle;
+import org.apache.tez.runtime.common.objectregistry.ObjectRegistryImpl;
+import org.apache.tez.runtime.common.objectregistry.ObjectRegistryModule;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Guice;
+
+/**
+ * Runs the containers handed out by the LocalTaskScheduler in threads of the
+ * AM, instead of asking a NodeManager to launch them. Each container asks the
+ * TaskAttemptListener for its task and heartbeats to it like a
+ * YarnTezDagChild does over RPC. Requests and responses are copied as the
+ * RPC would, so tasks never share the events and specs of the AM.
+ *
+ * All containers share the same local directories, and shuffle inputs read
+ * the outputs they need from there.
+ */
+public class LocalContainerLauncher extends AbstractService implements
+    ContainerLauncher {
+
+  private static final Log LOG = LogFactory.getLog(LocalContainerLauncher.class);
+
+  private final AppContext context;
+  private final TezTaskUmbilicalProtocol umbilical;
+  private final ConcurrentHashMap<ContainerId, LocalContainer> containers =
+      new ConcurrentHashMap<ContainerId, LocalContainer>();
+  private final ObjectRegistryImpl objectRegistry = new ObjectRegistryImpl();
+  private ExecutorService containerPool;
+  private Configuration conf;
+  private String[] localDirs;
+  private File createdLocalDir;
+  private Map<String, String> auxServiceEnv;
+  private long amPollInterval;
+  private int maxEventsToGet;
+  private long getTaskSleepInterval;
+  private long taskMemory;
+  private TezDAGID lastDAGId;
+
+  public LocalContainerLauncher(AppContext context,
+      TaskAttemptListener taskAttemptListener) {
+    super(LocalContainerLauncher.class.getName());
+    if (!(taskAttemptListener instanceof TezTaskUmbilicalProtocol)) {
+      throw new TezUncheckedException("Tasks can only run in the AM with a"
+          + " TaskAttemptListener implementing TezTaskUmbilicalProtocol");
+    }
+    this.context = context;
+    this.umbilical = (TezTaskUmbilicalProtocol) taskAttemptListener;
+  }
+
+  @Override
+  public synchronized void serviceInit(Configuration config) throws IOException {
+    this.conf = new Configuration(config);
+    // Tasks of the same AM read each other's outputs from the local disks.
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH, true);
+
+    String envLocalDirs = System.getenv(Environment.LOCAL_DIRS.name());
+    if (envLocalDirs != null) {
+      localDirs = StringUtils.getTrimmedStrings(envLocalDirs);
+    } else {
+      // Not running in a container, e.g. in local mode.
+      createdLocalDir = new File(System.getProperty("java.io.tmpdir"),
+          "tez-local-" + context.getApplicationID());
+      if (!createdLocalDir.isDirectory() && !createdLocalDir.mkdirs()) {
+        throw new IOException("Unable to create local dir: "
+            + createdLocalDir);
+      }
+      localDirs = new String[] { createdLocalDir.getAbsolutePath() };
+    }
+    conf.setStrings(TezJobConfig.LOCAL_DIRS, localDirs);
+
+    auxServiceEnv = new HashMap<String, String>(System.getenv());
+    if (AuxiliaryServiceHelper.getServiceDataFromEnv(
+        ShuffleUtils.SHUFFLE_HANDLER_SERVICE_ID, auxServiceEnv) == null) {
+      // No ShuffleHandler, all outputs are read from the local disks.
+      AuxiliaryServiceHelper.setServiceDataIntoEnv(
+          ShuffleUtils.SHUFFLE_HANDLER_SERVICE_ID,
+          ShuffleUtils.serializeShuffleProviderMetaData(0), auxServiceEnv);
+    }
+
+    amPollInterval = conf.getLong(
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS,
+        TezConfiguration.TEZ_TASK_AM_HEARTBEAT_INTERVAL_MS_DEFAULT);
+    maxEventsToGet = conf.getInt(
+        TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT,
+        TezConfiguration.TEZ_TASK_MAX_EVENTS_PER_HEARTBEAT_DEFAULT);
+    // the AM holds getTask until a task is assigned, so there is no need to
+    // sleep between calls
+    getTaskSleepInterval = conf.getInt(
+        TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_TIMEOUT_MS,
+        TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_TIMEOUT_MS_DEFAULT) > 0 ? 0
+        : conf.getInt(TezConfiguration.TEZ_TASK_GET_TASK_SLEEP_INTERVAL_MS_MAX,
+            TezConfiguration.TEZ_TASK_GET_TASK_SLEEP_INTERVAL_MS_MAX_DEFAULT);
+
+    // Tasks running at the same time share the heap of the AM.
+    float amReserveFraction = conf.getFloat(
+        TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_AM_RESERVE_FRACTION,
+        TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_AM_RESERVE_FRACTION_DEFAULT);
+    if (amReserveFraction < 0 || amReserveFraction >= 1) {
+      throw new TezUncheckedException("Invalid value for "
+          + TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_AM_RESERVE_FRACTION
+          + ": " + amReserveFraction + ", should be in the range [0, 1)");
+    }
+    int maxTasks = Math.max(1, conf.getInt(
+        TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS,
+        TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS_DEFAULT));
+    taskMemory = (long) (Runtime.getRuntime().maxMemory()
+        * (1 - (double) amReserveFraction) / maxTasks);
+    LOG.info("Running tasks in the AM, localDirs: "
+        + Arrays.toString(localDirs) + ", memory per task: " + taskMemory);
+  }
+
+  @Override
+  public void serviceStart() {
+    Guice.createInjector(new ObjectRegistryModule(objectRegistry));
+    containerPool = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+        .setNameFormat("LocalContainerLauncher #%d").setDaemon(true).build());
+  }
+
+  @Override
+  public void serviceStop() {
+    for (LocalContainer container : containers.values()) {
+      container.stop();
+    }
+    if (containerPool != null) {
+      containerPool.shutdownNow();
+    }
+    if (createdLocalDir != null) {
+      FileUtil.fullyDelete(createdLocalDir);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void handle(NMCommunicatorEvent event) {
+    ContainerId containerId = event.getContainerId();
+    switch (event.getType()) {
+    case CONTAINER_LAUNCH_REQUEST:
+      LOG.info("Launching container: " + containerId);
+      LocalContainer container = new LocalContainer(containerId);
+      containers.put(containerId, container);
+      context.getEventHandler().handle(
+          new AMContainerEventLaunched(containerId));
+      ContainerLaunchedEvent lEvt = new ContainerLaunchedEvent(containerId,
+          context.getClock().getTime(), context.getApplicationAttemptId());
+      context.getHistoryHandler().handle(new DAGHistoryEvent(null, lEvt));
+      containerPool.execute(container);
+      break;
+    case CONTAINER_STOP_REQUEST:
+      LocalContainer running = containers.get(containerId);
+      if (running != null) {
+        running.stop();
+      }
+      break;
+    }
+  }
+
+  private static <T extends Writable> T copy(Writable src, T dst)
+      throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    src.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    dst.readFields(in);
+    return dst;
+  }
+
+  private synchronized void maybeClearDAGCache(TezDAGID dagId) {
+    if (lastDAGId != null && !lastDAGId.equals(dagId)) {
+      objectRegistry.clearCache(ObjectLifeCycle.DAG);
+    }
+    lastDAGId = dagId;
+  }
+
+  /**
+   * A container running the tasks assigned to it, one after the other, until
+   * the AM asks it to die or stops it.
+   */
+  private class LocalContainer implements Runnable {
+
+    private final ContainerId containerId;
+    private final String containerIdStr;
+    private final LinkedBlockingQueue<TezEvent> eventsToSend =
+        new LinkedBlockingQueue<TezEvent>();
+    private Map<String, ByteBuffer> serviceConsumerMetadata =
+        new HashMap<String, ByteBuffer>();
+    private long requestId;
+    private volatile LogicalIOProcessorRuntimeTask currentTask;
+    private Thread thread;
+    private boolean stopped;
+    private boolean completed;
+
+    LocalContainer(ContainerId containerId) {
+      this.containerId = containerId;
+      this.containerIdStr = containerId.toString();
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (stopped) {
+          complete(0, "Container was stopped before it was launched");
+          return;
+        }
+        thread = Thread.currentThread();
+      }
+      int exitStatus = 0;
+      String diagnostics = "";
+      try {
+        runTasks();
+      } catch (Throwable t) {
+        if (!isStopped()) {
+          LOG.error("Error running container: " + containerId, t);
+          exitStatus = -1;
+          diagnostics = StringUtils.stringifyException(t);
+        }
+      } finally {
+        synchronized (this) {
+          thread = null;
+          // Clear the interrupt of a stop request.
+          Thread.interrupted();
+          complete(exitStatus, diagnostics);
+        }
+      }
+    }
+
+    private void runTasks() throws Exception {
+      ContainerContext containerContext = new ContainerContext(containerIdStr,
+          "");
+      while (!isStopped()) {
+        ContainerTask response = umbilical.getTask(containerContext);
+        if (response == null) {
+          if (getTaskSleepInterval > 0) {
+            Thread.sleep(getTaskSleepInterval);
+          }
+          continue;
+        }
+        ContainerTask containerTask = copy(response, new ContainerTask());
+        if (containerTask.shouldDie()) {
+          LOG.info("Container: " + containerId + " asked to die");
+          return;
+        }
+        if (containerTask.haveCredentialsChanged()
+            && containerTask.getCredentials() != null) {
+          Token<JobTokenIdentifier> jobToken = TokenCache.getSessionToken(
+              containerTask.getCredentials());
+          serviceConsumerMetadata = new HashMap<String, ByteBuffer>();
+          serviceConsumerMetadata.put(ShuffleUtils.SHUFFLE_HANDLER_SERVICE_ID,
+              ShuffleUtils.convertJobTokenToBytes(jobToken));
+        }
+        // Additional resources are already on the classpath of the AM, and
+        // the base configuration payload of the DAG is registered by it.
+        runTask(containerTask.getTaskSpec());
+      }
+    }
+
+    private void runTask(TaskSpec taskSpec) throws Exception {
+      final TezTaskAttemptID attemptId = taskSpec.getTaskAttemptID();
+      maybeClearDAGCache(attemptId.getTaskID().getVertexID().getDAGId());
+      LOG.info("Running task: " + attemptId + " in container: " + containerId);
+
+      final EventMetaData sourceInfo = new EventMetaData(
+          EventProducerConsumerType.SYSTEM, taskSpec.getVertexName(), "",
+          attemptId);
+      TezUmbilical tezUmbilical = new TezUmbilical() {
+        @Override
+        public void addEvents(Collection<TezEvent> events) {
+          eventsToSend.addAll(events);
+        }
+
+        @Override
+        public void signalFatalError(TezTaskAttemptID taskAttemptID,
+            String diagnostics, EventMetaData sourceInfo) {
+          currentTask.setFrameworkCounters();
+          try {
+            heartbeat(Lists.newArrayList(createStatusUpdateEvent(),
+                new TezEvent(new TaskAttemptFailedEvent(diagnostics),
+                    sourceInfo)));
+          } catch (Exception e) {
+            LOG.error("Failed to report failure of task: " + taskAttemptID, e);
+          }
+        }
+
+        @Override
+        public boolean canCommit(TezTaskAttemptID taskAttemptID)
+            throws IOException {
+          return umbilical.canCommit(taskAttemptID);
+        }
+      };
+
+      currentTask = new LogicalIOProcessorRuntimeTask(copy(taskSpec,
+          new TaskSpec()), context.getApplicationAttemptId().getAttemptId(),
+          new Configuration(conf), tezUmbilical, serviceConsumerMetadata,
+          auxServiceEnv, HashMultimap.<String, String>create(), taskMemory);
+      Thread heartbeatThread = startHeartbeatThread(attemptId);
+      try {
+        currentTask.initialize();
+        if (!currentTask.hadFatalError()) {
+          currentTask.run();
+          currentTask.close();
+        }
+        LOG.info("Task completed, taskAttemptId=" + attemptId
+            + ", fatalErrorOccurred=" + currentTask.hadFatalError());
+        if (!currentTask.hadFatalError()) {
+          currentTask.setFrameworkCounters();
+          heartbeat(Arrays.asList(createStatusUpdateEvent(),
+              new TezEvent(new TaskAttemptCompletedEvent(), sourceInfo)));
+        }
+      } catch (Throwable t) {
+        if (!isStopped() && !currentTask.hadFatalError()) {
+          currentTask.setFatalError(t, "Error running task in the AM");
+          currentTask.setFrameworkCounters();
+          heartbeat(Lists.newArrayList(createStatusUpdateEvent(),
+              new TezEvent(new TaskAttemptFailedEvent(
+                  StringUtils.stringifyException(t)), sourceInfo)));
+        }
+        throw t instanceof Exception ? (Exception) t : new TezException(t);
+      } finally {
+        heartbeatThread.interrupt();
+        heartbeatThread.join();
+        currentTask.cleanup();
+        currentTask = null;
+      }
+    }
+
+    private TezEvent createStatusUpdateEvent() {
+      return new TezEvent(new TaskStatusUpdateEvent(currentTask.getCounters(),
+          currentTask.getProgress()), new EventMetaData(
+          EventProducerConsumerType.SYSTEM, currentTask.getVertexName(), "",
+          currentTask.getTaskAttemptID()));
+    }
+
+    private Thread startHeartbeatThread(final TezTaskAttemptID attemptId) {
+      Thread heartbeatThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (!Thread.currentThread().isInterrupted()) {
+              Thread.sleep(amPollInterval);
+              if (!heartbeat(null)) {
+                LOG.info("AM asked container: " + containerId + " to die");
+                stop();
+                return;
+              }
+            }
+          } catch (InterruptedException e) {
+            // The task is done.
+          } catch (Exception e) {
+            LOG.error("Heartbeat error of task: " + attemptId, e);
+            stop();
+          }
+        }
+      }, "Heartbeat [" + attemptId + "]");
+      heartbeatThread.setDaemon(true);
+      heartbeatThread.start();
+      return heartbeatThread;
+    }
+
+    /**
+     * @return false if the AM asked the container to die
+     */
+    private synchronized boolean heartbeat(List<TezEvent> outOfBandEvents)
+        throws IOException, TezException {
+      LogicalIOProcessorRuntimeTask task = currentTask;
+      if (task == null) {
+        return true;
+      }
+      List<TezEvent> events = new ArrayList<TezEvent>();
+      eventsToSend.drainTo(events);
+      if (outOfBandEvents != null) {
+        events.addAll(outOfBandEvents);
+      } else if (!task.isTaskDone() && !task.hadFatalError()) {
+        events.add(createStatusUpdateEvent());
+      } else if (events.isEmpty()) {
+        // The task reports its completion itself.
+        return true;
+      }
+      long reqId = ++requestId;
+      TezHeartbeatRequest request = new TezHeartbeatRequest(reqId, events,
+          containerIdStr, task.getTaskAttemptID(), task.getEventCounter(),
+          maxEventsToGet);
+      TezHeartbeatResponse response = copy(
+          umbilical.heartbeat(copy(request, new TezHeartbeatRequest())),
+          new TezHeartbeatResponse());
+      if (response.shouldDie()) {
+        return false;
+      }
+      if (response.getLastRequestId() != reqId) {
+        throw new TezException("AM and Task out of sync"
+            + ", responseReqId=" + response.getLastRequestId()
+            + ", expectedReqId=" + reqId);
+      }
+      if (response.getEvents() != null && !response.getEvents().isEmpty()) {
+        task.handleEvents(response.getEvents());
+      }
+      return true;
+    }
+
+    synchronized boolean isStopped() {
+      return stopped;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized void stop() {
+      if (stopped || completed) {
+        return;
+      }
+      LOG.info("Stopping container: " + containerId);
+      stopped = true;
+      if (thread != null) {
+        thread.interrupt();
+      }
+      context.getEventHandler().handle(new AMContainerEvent(containerId,
+          AMContainerEventType.C_NM_STOP_SENT));
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void complete(int exitStatus, String diagnostics) {
+      completed = true;
+      containers.remove(containerId);
+      context.getEventHandler().handle(new AMContainerEventCompleted(
+          ContainerStatus.newInstance(containerId, ContainerState.COMPLETE,
+              diagnostics, exitStatus)));
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.dag.app.rm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.protocolrecords.RegisterApplicationMasterResponse;
+import org.apache.hadoop.yarn.api.records.ApplicationAccessType;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.exceptions.YarnException;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.TezUncheckedException;
+import org.apache.tez.dag.app.AppContext;
+import org.apache.tez.dag.app.rm.TaskScheduler.TaskSchedulerAppCallback.AppFinalStatus;
+import org.apache.tez.dag.app.rm.container.ContainerSignatureMatcher;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The TaskScheduler of an AM which runs its tasks itself. Nothing is asked
+ * from the RM: each task gets a new container on the node of the AM as soon
+ * as fewer than the configured number of tasks are running, in the order of
+ * their priorities. The containers are run in threads of the AM by the
+ * LocalContainerLauncher.
+ *
+ * Unless the AM runs in local mode, it still registers with the RM, which
+ * launched it, so that the application is tracked and ends as usual.
+ */
+public class LocalTaskScheduler extends TaskScheduler {
+
+  private static final Log LOG = LogFactory.getLog(LocalTaskScheduler.class);
+
+  private static class TaskRequest {
+    final Object task;
+    final Resource capability;
+    final Priority priority;
+    final Object clientCookie;
+    final long sequence;
+
+    TaskRequest(Object task, Resource capability, Priority priority,
+        Object clientCookie, long sequence) {
+      this.task = task;
+      this.capability = capability;
+      this.priority = priority;
+      this.clientCookie = clientCookie;
+      this.sequence = sequence;
+    }
+  }
+
+  private static final Comparator<TaskRequest> REQUEST_COMPARATOR =
+      new Comparator<TaskRequest>() {
+        @Override
+        public int compare(TaskRequest r1, TaskRequest r2) {
+          // A lower priority value is scheduled first.
+          int p1 = r1.priority.getPriority();
+          int p2 = r2.priority.getPriority();
+          if (p1 != p2) {
+            return p1 < p2 ? -1 : 1;
+          }
+          return r1.sequence < r2.sequence ? -1
+              : (r1.sequence == r2.sequence ? 0 : 1);
+        }
+      };
+
+  private final PriorityQueue<TaskRequest> pendingRequests =
+      new PriorityQueue<TaskRequest>(16, REQUEST_COMPARATOR);
+  private final Map<Object, TaskRequest> pendingTasks =
+      new HashMap<Object, TaskRequest>();
+  private final Map<Object, Container> runningTasks =
+      new HashMap<Object, Container>();
+  private final Map<ContainerId, Object> containerTasks =
+      new HashMap<ContainerId, Object>();
+
+  private boolean isLocal;
+  private int maxTasks;
+  private NodeId nodeId;
+  private String nodeHttpAddress;
+  private Resource resource;
+  private long nextSequence;
+  private int nextContainerId;
+
+  public LocalTaskScheduler(TaskSchedulerAppCallback appClient,
+      ContainerSignatureMatcher containerSignatureMatcher,
+      String appHostName, int appHostPort, String appTrackingUrl,
+      AppContext appContext) {
+    super(appClient, containerSignatureMatcher, appHostName, appHostPort,
+        appTrackingUrl, appContext);
+  }
+
+  @Override
+  public synchronized void serviceInit(Configuration conf) {
+    isLocal = conf.getBoolean(TezConfiguration.TEZ_LOCAL_MODE,
+        TezConfiguration.TEZ_LOCAL_MODE_DEFAULT);
+    if (!isLocal) {
+      amRmClient.init(conf);
+      amRmClient.setHeartbeatInterval(conf.getInt(
+          TezConfiguration.TEZ_AM_RM_HEARTBEAT_INTERVAL_MS_MAX,
+          TezConfiguration.TEZ_AM_RM_HEARTBEAT_INTERVAL_MS_MAX_DEFAULT));
+    }
+    maxTasks = conf.getInt(
+        TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS,
+        TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS_DEFAULT);
+    Preconditions.checkArgument(maxTasks > 0,
+        TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS
+        + " should be > 0");
+    // The memory of the AM is shared by all the tasks it runs.
+    resource = Resource.newInstance(
+        (int) (Runtime.getRuntime().maxMemory() >> 20), maxTasks);
+    String nmHost = appContext.getAppMaster().getAppNMHost();
+    nodeId = NodeId.newInstance(nmHost,
+        appContext.getAppMaster().getAppNMPort());
+    nodeHttpAddress = nmHost + ":"
+        + appContext.getAppMaster().getAppNMHttpPort();
+    // Containers of the AM attempt are numbered after the one of the AM.
+    nextContainerId = appContext.getAppMaster().getAppContainerId().getId() + 1;
+    LOG.info("LocalTaskScheduler initialized with configuration: "
+        + "maxTasks: " + maxTasks + ", node: " + nodeId
+        + ", isLocal: " + isLocal);
+  }
+
+  @Override
+  public void serviceStart() {
+    Map<ApplicationAccessType, String> acls =
+        Collections.<ApplicationAccessType, String>emptyMap();
+    ByteBuffer clientToAMTokenMasterKey = null;
+    if (!isLocal) {
+      try {
+        RegisterApplicationMasterResponse response;
+        synchronized (this) {
+          amRmClient.start();
+          response = amRmClient.registerApplicationMaster(appHostName,
+              appHostPort, appTrackingUrl);
+        }
+        acls = response.getApplicationACLs();
+        clientToAMTokenMasterKey = response.getClientToAMTokenMasterKey();
+      } catch (YarnException e) {
+        LOG.error("Yarn Exception while registering", e);
+        throw new TezUncheckedException(e);
+      } catch (IOException e) {
+        LOG.error("IO Exception while registering", e);
+        throw new TezUncheckedException(e);
+      }
+    }
+    // upcall to app outside locks
+    appClientDelegate.setApplicationRegistrationData(resource, acls,
+        clientToAMTokenMasterKey);
+  }
+
+  @Override
+  public void serviceStop() throws InterruptedException {
+    synchronized (this) {
+      isStopped.set(true);
+    }
+    if (!isLocal) {
+      try {
+        if (shouldUnregister.get()) {
+          AppFinalStatus status = appClientDelegate.getFinalAppStatus();
+          LOG.info("Unregistering application from RM"
+              + ", exitStatus=" + status.exitStatus
+              + ", exitMessage=" + status.exitMessage);
+          amRmClient.unregisterApplicationMaster(status.exitStatus,
+              status.exitMessage, status.postCompletionTrackingUrl);
+        }
+      } catch (YarnException e) {
+        LOG.error("Yarn Exception while unregistering ", e);
+        throw new TezUncheckedException(e);
+      } catch (IOException e) {
+        LOG.error("IOException while unregistering ", e);
+        throw new TezUncheckedException(e);
+      }
+      amRmClient.stop();
+    }
+    appCallbackExecutor.shutdown();
+    appCallbackExecutor.awaitTermination(1000l, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized Resource getAvailableResources() {
+    int freeTasks = maxTasks - runningTasks.size();
+    return Resource.newInstance(
+        (int) ((long) resource.getMemory() * freeTasks / maxTasks), freeTasks);
+  }
+
+  @Override
+  public int getClusterNodeCount() {
+    return 1;
+  }
+
+  @Override
+  public float getProgress() {
+    return appClientDelegate.getProgress();
+  }
+
+  @Override
+  public Resource getTotalResources() {
+    return resource;
+  }
+
+  @Override
+  public synchronized void blacklistNode(NodeId nodeId) {
+    LOG.info("Ignoring blacklisting of node: " + nodeId
+        + " since tasks run in the AM");
+  }
+
+  @Override
+  public synchronized void unblacklistNode(NodeId nodeId) {
+  }
+
+  @Override
+  public synchronized void resetMatchLocalityForAllHeldContainers() {
+  }
+
+  @Override
+  public void allocateTask(Object task, Resource capability, String[] hosts,
+      String[] racks, Priority priority, Object containerSignature,
+      Object clientCookie) {
+    List<TaskRequest> assigned;
+    synchronized (this) {
+      TaskRequest request = new TaskRequest(task, capability, priority,
+          clientCookie, nextSequence++);
+      pendingRequests.add(request);
+      pendingTasks.put(task, request);
+      LOG.info("Allocation request for task: " + task
+          + " with priority: " + priority);
+      assigned = assignContainers();
+    }
+    // up call outside of the lock.
+    informAppAboutAllocations(assigned);
+  }
+
+  @Override
+  public boolean deallocateTask(Object task, boolean taskSucceeded) {
+    List<TaskRequest> assigned;
+    ContainerId containerId;
+    synchronized (this) {
+      TaskRequest request = pendingTasks.remove(task);
+      if (request != null) {
+        pendingRequests.remove(request);
+        LOG.info("Deallocating task: " + task + " before allocation");
+        return false;
+      }
+      Container container = runningTasks.remove(task);
+      if (container == null) {
+        LOG.info("Ignoring removal of unknown task: " + task);
+        return false;
+      }
+      containerId = container.getId();
+      containerTasks.remove(containerId);
+      LOG.info("Deallocated task: " + task + " from container: "
+          + containerId);
+      assigned = assignContainers();
+    }
+    // Containers are never re-used, the thread running the task exits.
+    appClientDelegate.containerBeingReleased(containerId);
+    informAppAboutAllocations(assigned);
+    return true;
+  }
+
+  @Override
+  public Object deallocateContainer(ContainerId containerId) {
+    Object task;
+    List<TaskRequest> assigned;
+    synchronized (this) {
+      task = containerTasks.remove(containerId);
+      if (task == null) {
+        LOG.info("Ignoring dealloction of unknown container: " + containerId);
+        return null;
+      }
+      runningTasks.remove(task);
+      LOG.info("Deallocated container: " + containerId + " from task: "
+          + task);
+      assigned = assignContainers();
+    }
+    informAppAboutAllocations(assigned);
+    return task;
+  }
+
+  private List<TaskRequest> assignContainers() {
+    List<TaskRequest> assigned = new ArrayList<TaskRequest>();
+    while (runningTasks.size() < maxTasks && !pendingRequests.isEmpty()) {
+      TaskRequest request = pendingRequests.poll();
+      pendingTasks.remove(request.task);
+      ContainerId containerId = ContainerId.newInstance(
+          appContext.getApplicationAttemptId(), nextContainerId++);
+      Container container = Container.newInstance(containerId, nodeId,
+          nodeHttpAddress, request.capability, request.priority, null);
+      runningTasks.put(request.task, container);
+      containerTasks.put(containerId, request.task);
+      assigned.add(request);
+    }
+    return assigned;
+  }
+
+  private void informAppAboutAllocations(List<TaskRequest> assigned) {
+    for (TaskRequest request : assigned) {
+      Container container;
+      synchronized (this) {
+        container = runningTasks.get(request.task);
+      }
+      if (container == null) {
+        // Deallocated since it was assigned.
+        continue;
+      }
+      LOG.info("Assigning container: " + container.getId() + " to task: "
+          + request.task);
+      appClientDelegate.taskAllocated(request.task, request.clientCookie,
+          container);
+    }
+  }
+
+  synchronized int getNumRunningTasks() {
+    return runningTasks.size();
+  }
+
+  synchronized int getNumPendingTasks() {
+    return pendingTasks.size();
+  }
+}
@@ -340,6 +340,10 @@ public class TaskSchedulerEventHandler extends AbstractService
 
   protected TaskScheduler createTaskScheduler(String host, int port,
       String trackingUrl, AppContext appContext) {
+    if (DAGAppMaster.isInlineTaskExecution(getConfig())) {
+      return new LocalTaskScheduler(this, this.containerSignatureMatcher,
+          host, port, trackingUrl, appContext);
+    }
     return new TaskScheduler(this, this.containerSignatureMatcher,
       host, port, trackingUrl, appContext);
   }
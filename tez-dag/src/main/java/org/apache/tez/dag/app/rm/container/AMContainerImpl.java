@@ -46,6 +46,7 @@ import org.apache.tez.dag.app.AppContext;
 import org.apache.tez.dag.app.ContainerHeartbeatHandler;
 import org.apache.tez.dag.app.ContainerContext;
 import org.apache.tez.dag.app.TaskAttemptListener;
+import org.apache.tez.dag.app.dag.DAG;
 import org.apache.tez.dag.app.dag.event.DiagnosableEvent;
 import org.apache.tez.dag.app.dag.event.TaskAttemptEventContainerPreempted;
 import org.apache.tez.dag.app.dag.event.TaskAttemptEventContainerTerminated;
@@ -122,6 +123,9 @@ public class AMContainerImpl implements AMContainer {
 
   private Credentials credentials;
   private boolean credentialsChanged = false;
+  // Base configuration of the current DAG's delta payloads, sent along with
+  // the credentials.
+  private byte[] baseConfPayload;
   
   // TODO Consider registering with the TAL, instead of the TAL pulling.
   // Possibly after splitting TAL and ContainerListener.
@@ -444,6 +448,11 @@ public class AMContainerImpl implements AMContainer {
             + oldState + " to " + getState()
             + " via event " + event.getType());
       }
+      if (event.getType() != AMContainerEventType.C_PULL_TA
+          && (oldState != getState() || pendingAttempt != null)) {
+        // wake up a getTask call waiting for this container
+        taskAttemptListener.containerTaskUpdated(containerId);
+      }
     } finally {
       writeLock.unlock();
     }
@@ -469,7 +478,8 @@ public class AMContainerImpl implements AMContainer {
         // Avoid sending credentials if credentials have not changed.
         AMContainerTask amContainerTask = new AMContainerTask(false,
             remoteTaskMap.remove(pullAttempt), this.additionalLocalResources,
-            this.credentialsChanged ? this.credentials : null, this.credentialsChanged);
+            this.credentialsChanged ? this.credentials : null, this.credentialsChanged,
+            this.credentialsChanged ? this.baseConfPayload : null);
         this.additionalLocalResources = null;
         this.credentialsChanged = false;
         return amContainerTask;
@@ -614,6 +624,7 @@ public class AMContainerImpl implements AMContainer {
         // Will be null for the first task.
         container.credentialsChanged = true;
         container.credentials = event.getCredentials();
+        container.baseConfPayload = getBaseConfPayload(container.appContext.getCurrentDAG());
         container.lastTaskDAGID = currentDAGID;
       } else {
         container.credentialsChanged = false;
@@ -623,6 +634,14 @@ public class AMContainerImpl implements AMContainer {
           .put(event.getTaskAttemptId(), event.getRemoteTaskSpec());
       return container.getState();
     }
+
+    private static byte[] getBaseConfPayload(DAG dag) {
+      if (dag == null || dag.getJobPlan() == null
+          || !dag.getJobPlan().hasBaseConfPayload()) {
+        return null;
+      }
+      return dag.getJobPlan().getBaseConfPayload().toByteArray();
+    }
   }
 
   protected static class LaunchedTransition implements
@@ -30,14 +30,22 @@ public class AMContainerTask {
   private final TaskSpec tezTask;
   private final Credentials credentials;
   private final boolean credentialsChanged;
+  private final byte[] baseConfPayload;
 
   public AMContainerTask(boolean shouldDie, TaskSpec tezTask,
       Map<String, LocalResource> additionalResources, Credentials credentials, boolean credentialsChanged) {
+    this(shouldDie, tezTask, additionalResources, credentials, credentialsChanged, null);
+  }
+
+  public AMContainerTask(boolean shouldDie, TaskSpec tezTask,
+      Map<String, LocalResource> additionalResources, Credentials credentials,
+      boolean credentialsChanged, byte[] baseConfPayload) {
     this.shouldDie = shouldDie;
     this.tezTask = tezTask;
     this.additionalResources = additionalResources;
     this.credentials = credentials;
     this.credentialsChanged = credentialsChanged;
+    this.baseConfPayload = baseConfPayload;
   }
 
   public boolean shouldDie() {
@@ -59,4 +67,8 @@ public class AMContainerTask {
   public boolean haveCredentialsChanged() {
     return this.credentialsChanged;
   }
+
+  public byte[] getBaseConfPayload() {
+    return this.baseConfPayload;
+  }
 }
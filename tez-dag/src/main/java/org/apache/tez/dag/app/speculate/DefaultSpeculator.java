@@ -0,0 +1,421 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.speculate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.service.AbstractService;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.hadoop.yarn.util.Clock;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
+import org.apache.tez.dag.api.oldrecords.TaskState;
+import org.apache.tez.dag.app.AppContext;
+import org.apache.tez.dag.app.dag.DAG;
+import org.apache.tez.dag.app.dag.Task;
+import org.apache.tez.dag.app.dag.TaskAttempt;
+import org.apache.tez.dag.app.dag.Vertex;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEvent;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEventStatusUpdate;
+import org.apache.tez.dag.app.dag.event.TaskEvent;
+import org.apache.tez.dag.app.dag.event.TaskEventType;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Speculates attempts whose estimated runtime is a statistical outlier among
+ * the runtimes of the completed tasks of their vertex.
+ *
+ * The runtime of an attempt is estimated from its progress rate so far,
+ * i.e. elapsed time / progress. An attempt is a straggler if that estimate
+ * is more than {@link TezConfiguration#TEZ_AM_SPECULATION_SLOWTASK_THRESHOLD}
+ * standard deviations above the mean runtime of the completed tasks, and if
+ * a new attempt started now would be expected to finish first. The
+ * stragglers which would gain the most are speculated first, within the
+ * limit on concurrent speculative attempts of the vertex. A task is only
+ * speculated once.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class DefaultSpeculator extends AbstractService implements Speculator {
+
+  private static final Log LOG = LogFactory.getLog(DefaultSpeculator.class);
+
+  // Estimates from the first progress reports of an attempt are unreliable,
+  // so attempts are only judged once they ran for a part of the mean runtime.
+  private static final double MIN_ELAPSED_FRACTION_OF_MEAN = 0.25;
+
+  private final AppContext context;
+  private final EventHandler eventHandler;
+  private final Clock clock;
+
+  private long scanInterval;
+  private double slowTaskThreshold;
+  private float minCompletedFraction;
+  private float maxRunningFraction;
+
+  // Updated from the dispatcher threads. With task dispatcher threads the
+  // events of an attempt are still handled in order by a single thread, so
+  // concurrent maps are enough.
+  private final ConcurrentMap<TezTaskAttemptID, AttemptProgress> runningAttempts =
+      new ConcurrentHashMap<TezTaskAttemptID, AttemptProgress>();
+  private final ConcurrentLinkedQueue<TezTaskAttemptID> doneAttempts =
+      new ConcurrentLinkedQueue<TezTaskAttemptID>();
+
+  // Only used by the scanner.
+  private final Map<TezVertexID, RuntimeStatistics> completedRuntimes =
+      new HashMap<TezVertexID, RuntimeStatistics>();
+  private final Set<TezTaskID> speculatedTasks = new HashSet<TezTaskID>();
+
+  private Thread scannerThread;
+  private volatile boolean stopped;
+
+  public DefaultSpeculator(AppContext context) {
+    super(DefaultSpeculator.class.getName());
+    this.context = context;
+    this.eventHandler = context.getEventHandler();
+    this.clock = context.getClock();
+  }
+
+  @Override
+  public void serviceInit(Configuration conf) {
+    scanInterval = conf.getLong(
+        TezConfiguration.TEZ_AM_SPECULATION_SCAN_INTERVAL_MS,
+        TezConfiguration.TEZ_AM_SPECULATION_SCAN_INTERVAL_MS_DEFAULT);
+    slowTaskThreshold = conf.getFloat(
+        TezConfiguration.TEZ_AM_SPECULATION_SLOWTASK_THRESHOLD,
+        TezConfiguration.TEZ_AM_SPECULATION_SLOWTASK_THRESHOLD_DEFAULT);
+    minCompletedFraction = conf.getFloat(
+        TezConfiguration.TEZ_AM_SPECULATION_MIN_COMPLETED_FRACTION,
+        TezConfiguration.TEZ_AM_SPECULATION_MIN_COMPLETED_FRACTION_DEFAULT);
+    maxRunningFraction = conf.getFloat(
+        TezConfiguration.TEZ_AM_SPECULATION_MAX_RUNNING_FRACTION,
+        TezConfiguration.TEZ_AM_SPECULATION_MAX_RUNNING_FRACTION_DEFAULT);
+    LOG.info("DefaultSpeculator initialized with scanInterval=" + scanInterval
+        + ", slowTaskThreshold=" + slowTaskThreshold
+        + ", minCompletedFraction=" + minCompletedFraction
+        + ", maxRunningFraction=" + maxRunningFraction);
+  }
+
+  @Override
+  public void serviceStart() {
+    scannerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!stopped && !Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(scanInterval);
+          } catch (InterruptedException e) {
+            break;
+          }
+          try {
+            scan();
+          } catch (Exception e) {
+            // The DAG may change under the scan. Try again next time.
+            LOG.warn("Speculation scan failed", e);
+          }
+        }
+      }
+    });
+    scannerThread.setName("DefaultSpeculator Scanner");
+    scannerThread.setDaemon(true);
+    scannerThread.start();
+  }
+
+  @Override
+  public void serviceStop() {
+    stopped = true;
+    if (scannerThread != null) {
+      scannerThread.interrupt();
+    }
+  }
+
+  @Override
+  public void handle(TaskAttemptEvent event) {
+    switch (event.getType()) {
+    case TA_STATUS_UPDATE:
+      float progress = ((TaskAttemptEventStatusUpdate) event).getStatusEvent()
+          .getProgress();
+      long now = clock.getTime();
+      AttemptProgress attemptProgress = runningAttempts.get(
+          event.getTaskAttemptID());
+      if (attemptProgress == null) {
+        runningAttempts.putIfAbsent(event.getTaskAttemptID(),
+            new AttemptProgress(progress, now));
+      } else {
+        attemptProgress.setProgress(progress);
+      }
+      break;
+    case TA_DONE:
+      doneAttempts.add(event.getTaskAttemptID());
+      break;
+    default:
+      break;
+    }
+  }
+
+  /**
+   * Looks for stragglers among the running attempts of the current DAG, and
+   * asks for a speculative attempt of their tasks.
+   */
+  @VisibleForTesting
+  synchronized void scan() {
+    DAG dag = context.getCurrentDAG();
+    if (dag == null) {
+      return;
+    }
+    long now = clock.getTime();
+
+    TezTaskAttemptID doneAttemptId;
+    while ((doneAttemptId = doneAttempts.poll()) != null) {
+      TaskAttempt attempt = getAttempt(dag, doneAttemptId);
+      if (attempt != null && attempt.getState() == TaskAttemptState.SUCCEEDED
+          && attempt.getLaunchTime() > 0) {
+        RuntimeStatistics stats = completedRuntimes.get(
+            attempt.getVertexID());
+        if (stats == null) {
+          stats = new RuntimeStatistics();
+          completedRuntimes.put(attempt.getVertexID(), stats);
+        }
+        stats.add(attempt.getFinishTime() - attempt.getLaunchTime());
+      }
+    }
+
+    // Collect the candidates of each vertex, dropping what has finished.
+    Map<TezVertexID, List<Candidate>> candidates =
+        new HashMap<TezVertexID, List<Candidate>>();
+    Map<TezVertexID, Integer> runningTasks = new HashMap<TezVertexID, Integer>();
+    Map<TezVertexID, Integer> runningSpeculations =
+        new HashMap<TezVertexID, Integer>();
+    Set<TezTaskID> seenTasks = new HashSet<TezTaskID>();
+    for (Iterator<Map.Entry<TezTaskAttemptID, AttemptProgress>> iter =
+        runningAttempts.entrySet().iterator(); iter.hasNext();) {
+      Map.Entry<TezTaskAttemptID, AttemptProgress> entry = iter.next();
+      TaskAttempt attempt = getAttempt(dag, entry.getKey());
+      if (attempt == null || attempt.isFinished()
+          || attempt.getTask().isFinished()) {
+        iter.remove();
+        continue;
+      }
+      TezVertexID vertexId = attempt.getVertexID();
+      TezTaskID taskId = attempt.getTaskID();
+      if (!seenTasks.add(taskId)) {
+        // Another attempt of the task is running already.
+        continue;
+      }
+      increment(runningTasks, vertexId);
+      if (speculatedTasks.contains(taskId)) {
+        increment(runningSpeculations, vertexId);
+        continue;
+      }
+      Candidate candidate = evaluate(attempt, entry.getValue(), now);
+      if (candidate != null) {
+        List<Candidate> vertexCandidates = candidates.get(vertexId);
+        if (vertexCandidates == null) {
+          vertexCandidates = new ArrayList<Candidate>();
+          candidates.put(vertexId, vertexCandidates);
+        }
+        vertexCandidates.add(candidate);
+      }
+    }
+    for (Iterator<TezTaskID> iter = speculatedTasks.iterator(); iter.hasNext();) {
+      Task task = getTask(dag, iter.next());
+      if (task == null || task.isFinished()) {
+        iter.remove();
+      }
+    }
+    for (Iterator<TezVertexID> iter = completedRuntimes.keySet().iterator();
+        iter.hasNext();) {
+      if (!dag.getID().equals(iter.next().getDAGId())) {
+        iter.remove();
+      }
+    }
+
+    for (Map.Entry<TezVertexID, List<Candidate>> entry : candidates.entrySet()) {
+      TezVertexID vertexId = entry.getKey();
+      List<Candidate> vertexCandidates = entry.getValue();
+      Integer speculating = runningSpeculations.get(vertexId);
+      int allowed = Math.max(1,
+          (int) (runningTasks.get(vertexId) * maxRunningFraction))
+          - (speculating == null ? 0 : speculating);
+      if (allowed <= 0) {
+        continue;
+      }
+      Collections.sort(vertexCandidates);
+      for (int i = 0; i < allowed && i < vertexCandidates.size(); i++) {
+        Candidate candidate = vertexCandidates.get(i);
+        LOG.info("Speculating " + candidate.taskId + " since "
+            + candidate.attemptId + " is estimated to run for "
+            + candidate.estimatedRuntime + " ms");
+        speculatedTasks.add(candidate.taskId);
+        eventHandler.handle(new TaskEvent(candidate.taskId,
+            TaskEventType.T_ADD_SPEC_ATTEMPT));
+      }
+    }
+  }
+
+  /**
+   * @return the straggler, or null if the attempt should not be speculated
+   */
+  private Candidate evaluate(TaskAttempt attempt, AttemptProgress progress,
+      long now) {
+    Task task = attempt.getTask();
+    if (task.getState() != TaskState.RUNNING) {
+      return null;
+    }
+    RuntimeStatistics stats = completedRuntimes.get(attempt.getVertexID());
+    Vertex vertex = task.getVertex();
+    if (stats == null || stats.count() < Math.max(1,
+        (int) (vertex.getTotalTasks() * minCompletedFraction))) {
+      return null;
+    }
+    long startTime = attempt.getLaunchTime() > 0 ? attempt.getLaunchTime()
+        : progress.getFirstUpdateTime();
+    long elapsed = now - startTime;
+    double mean = stats.mean();
+    if (elapsed < mean * MIN_ELAPSED_FRACTION_OF_MEAN) {
+      return null;
+    }
+    double threshold = mean + slowTaskThreshold * stats.stddev();
+    float currentProgress = progress.getProgress();
+    long estimatedRuntime;
+    long estimatedEndTime;
+    if (currentProgress > 0) {
+      estimatedRuntime = (long) (elapsed / currentProgress);
+      estimatedEndTime = startTime + estimatedRuntime;
+    } else {
+      // No progress yet, the attempt takes at least as long as it ran.
+      estimatedRuntime = elapsed;
+      estimatedEndTime = Long.MAX_VALUE;
+    }
+    long speculativeEndTime = now + (long) mean;
+    if (estimatedRuntime <= threshold
+        || estimatedEndTime <= speculativeEndTime) {
+      return null;
+    }
+    return new Candidate(attempt.getID(), estimatedRuntime,
+        estimatedEndTime - speculativeEndTime);
+  }
+
+  private static Task getTask(DAG dag, TezTaskID taskId) {
+    if (!dag.getID().equals(taskId.getVertexID().getDAGId())) {
+      return null;
+    }
+    Vertex vertex = dag.getVertex(taskId.getVertexID());
+    return vertex == null ? null : vertex.getTask(taskId);
+  }
+
+  private static TaskAttempt getAttempt(DAG dag, TezTaskAttemptID attemptId) {
+    Task task = getTask(dag, attemptId.getTaskID());
+    return task == null ? null : task.getAttempt(attemptId);
+  }
+
+  private static void increment(Map<TezVertexID, Integer> counts,
+      TezVertexID vertexId) {
+    Integer count = counts.get(vertexId);
+    counts.put(vertexId, count == null ? 1 : count + 1);
+  }
+
+  private static class AttemptProgress {
+    private final long firstUpdateTime;
+    private volatile float progress;
+
+    AttemptProgress(float progress, long time) {
+      this.firstUpdateTime = time;
+      this.progress = progress;
+    }
+
+    void setProgress(float progress) {
+      this.progress = progress;
+    }
+
+    float getProgress() {
+      return progress;
+    }
+
+    long getFirstUpdateTime() {
+      return firstUpdateTime;
+    }
+  }
+
+  /** Running mean and standard deviation of task runtimes. */
+  @VisibleForTesting
+  static class RuntimeStatistics {
+    private int count;
+    private double sum;
+    private double sumSquares;
+
+    void add(long runtime) {
+      count++;
+      sum += runtime;
+      sumSquares += (double) runtime * runtime;
+    }
+
+    int count() {
+      return count;
+    }
+
+    double mean() {
+      return count == 0 ? 0 : sum / count;
+    }
+
+    double stddev() {
+      if (count < 2) {
+        return 0;
+      }
+      double mean = mean();
+      return Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+    }
+  }
+
+  private static class Candidate implements Comparable<Candidate> {
+    final TezTaskAttemptID attemptId;
+    final TezTaskID taskId;
+    final long estimatedRuntime;
+    final long gain;
+
+    Candidate(TezTaskAttemptID attemptId, long estimatedRuntime, long gain) {
+      this.attemptId = attemptId;
+      this.taskId = attemptId.getTaskID();
+      this.estimatedRuntime = estimatedRuntime;
+      this.gain = gain;
+    }
+
+    // Largest gain first
+    @Override
+    public int compareTo(Candidate other) {
+      return gain > other.gain ? -1 : (gain == other.gain ? 0 : 1);
+    }
+  }
+}
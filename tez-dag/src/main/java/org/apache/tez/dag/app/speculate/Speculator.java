@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.speculate;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEvent;
+
+/**
+ * Decides when a task gets a speculative attempt. The speculator sees every
+ * {@link TaskAttemptEvent} after the attempt has handled it, which tells it
+ * about progress and completions, and asks for a new attempt with a
+ * <code>T_ADD_SPEC_ATTEMPT</code> task event. The task kills the other
+ * attempts once one of them succeeds.
+ *
+ * Implementations need a constructor which takes the
+ * {@link org.apache.tez.dag.app.AppContext}, and are started and stopped
+ * with the AM if they are services.
+ */
+@InterfaceAudience.Private
+public interface Speculator extends EventHandler<TaskAttemptEvent> {
+}
@@ -22,7 +22,10 @@ import com.google.common.annotations.VisibleForTesting;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.metrics2.MetricsException;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
 import org.apache.hadoop.service.AbstractService;
+import org.apache.hadoop.yarn.api.records.timeline.TimelineEntity;
 import org.apache.hadoop.yarn.api.records.timeline.TimelinePutResponse;
 import org.apache.hadoop.yarn.api.records.timeline.TimelinePutResponse.TimelinePutError;
 import org.apache.hadoop.yarn.client.api.TimelineClient;
@@ -33,8 +36,11 @@ import org.apache.tez.dag.history.HistoryEventType;
 import org.apache.tez.dag.history.events.DAGSubmittedEvent;
 import org.apache.tez.dag.records.TezDAGID;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ATSService extends AbstractService {
@@ -56,6 +62,11 @@ public class ATSService extends AbstractService {
   private HashSet<TezDAGID> skippedDAGs = new HashSet<TezDAGID>();
   private final AppContext appContext;
   private long maxTimeToWaitOnShutdown;
+  private int maxEventsPerBatch;
+  private long maxBatchLatency;
+  @VisibleForTesting
+  final ATSServiceMetrics metrics = new ATSServiceMetrics();
+  private boolean metricsRegistered = false;
 
   public ATSService(AppContext appContext) {
     super(ATSService.class.getName());
@@ -70,16 +81,32 @@ public class ATSService extends AbstractService {
     maxTimeToWaitOnShutdown = conf.getLong(
         TezConfiguration.YARN_ATS_EVENT_FLUSH_TIMEOUT_MILLIS,
         TezConfiguration.YARN_ATS_EVENT_FLUSH_TIMEOUT_MILLIS_DEFAULT);
+    maxEventsPerBatch = Math.max(1, conf.getInt(
+        TezConfiguration.YARN_ATS_EVENT_BATCH_SIZE,
+        TezConfiguration.YARN_ATS_EVENT_BATCH_SIZE_DEFAULT));
+    maxBatchLatency = conf.getLong(
+        TezConfiguration.YARN_ATS_EVENT_BATCH_LATENCY_MILLIS,
+        TezConfiguration.YARN_ATS_EVENT_BATCH_LATENCY_MILLIS_DEFAULT);
+    LOG.info("ATSService batching"
+        + ", maxEventsPerBatch=" + maxEventsPerBatch
+        + ", maxBatchLatency=" + maxBatchLatency);
   }
 
   @Override
   public void serviceStart() {
     LOG.info("Starting ATSService");
+    try {
+      DefaultMetricsSystem.instance().register(ATSServiceMetrics.NAME,
+          "History events posted to the timeline server", metrics);
+      metricsRegistered = true;
+    } catch (MetricsException e) {
+      LOG.warn("Could not register ATSService metrics", e);
+    }
     timelineClient.start();
     eventHandlingThread = new Thread(new Runnable() {
       @Override
       public void run() {
-        DAGHistoryEvent event;
+        List<DAGHistoryEvent> events = new ArrayList<DAGHistoryEvent>();
         while (!stopped.get() && !Thread.currentThread().isInterrupted()) {
 
           // Log the size of the event-queue every so often.
@@ -93,20 +120,21 @@ public class ATSService extends AbstractService {
             ++eventCounter;
           }
 
+          events.clear();
           try {
-            event = eventQueue.take();
+            takeBatch(events);
           } catch (InterruptedException e) {
             LOG.info("EventQueue take interrupted. Returning");
             return;
           }
 
           synchronized (lock) {
-            ++eventsProcessed;
+            eventsProcessed += events.size();
             try {
-              handleEvent(event);
+              handleEvents(events);
             } catch (Exception e) {
               // TODO handle failures - treat as fatal or ignore?
-              LOG.warn("Error handling event", e);
+              LOG.warn("Error handling events", e);
             }
           }
         }
@@ -131,15 +159,17 @@ public class ATSService extends AbstractService {
         long startTime = appContext.getClock().getTime();
         if (maxTimeToWaitOnShutdown > 0) {
           long endTime = startTime + maxTimeToWaitOnShutdown;
+          List<DAGHistoryEvent> events = new ArrayList<DAGHistoryEvent>();
           while (endTime >= appContext.getClock().getTime()) {
-            DAGHistoryEvent event = eventQueue.poll();
-            if (event == null) {
+            events.clear();
+            eventQueue.drainTo(events, maxEventsPerBatch);
+            if (events.isEmpty()) {
               break;
             }
             try {
-              handleEvent(event);
+              handleEvents(events);
             } catch (Exception e) {
-              LOG.warn("Error handling event", e);
+              LOG.warn("Error handling events", e);
               break;
             }
           }
@@ -151,13 +181,104 @@ public class ATSService extends AbstractService {
           + ", eventQueueBacklog=" + eventQueue.size());
     }
     timelineClient.stop();
+    if (metricsRegistered) {
+      DefaultMetricsSystem.instance().unregisterSource(ATSServiceMetrics.NAME);
+      metricsRegistered = false;
+    }
   }
 
   public void handle(DAGHistoryEvent event) {
     eventQueue.add(event);
+    metrics.eventQueueBacklog.set(eventQueue.size());
+  }
+
+  /**
+   * Waits for an event and then collects further events until the batch is
+   * full or the batch latency has passed. Only throws if interrupted before
+   * the first event is available.
+   */
+  private void takeBatch(List<DAGHistoryEvent> events)
+      throws InterruptedException {
+    events.add(eventQueue.take());
+    long endTime = System.currentTimeMillis() + maxBatchLatency;
+    while (events.size() < maxEventsPerBatch) {
+      if (eventQueue.drainTo(events, maxEventsPerBatch - events.size()) > 0) {
+        continue;
+      }
+      long waitTime = endTime - System.currentTimeMillis();
+      if (waitTime <= 0) {
+        break;
+      }
+      DAGHistoryEvent event;
+      try {
+        event = eventQueue.poll(waitTime, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        // post what has been collected so far before returning
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (event == null) {
+        break;
+      }
+      events.add(event);
+    }
   }
 
-  private void handleEvent(DAGHistoryEvent event) {
+  private void handleEvents(List<DAGHistoryEvent> events) {
+    List<TimelineEntity> entities = new ArrayList<TimelineEntity>(events.size());
+    for (DAGHistoryEvent event : events) {
+      if (isSkipped(event)) {
+        metrics.eventsSkipped.incr();
+        continue;
+      }
+      try {
+        entities.add(event.getHistoryEvent().convertToTimelineEntity());
+      } catch (Exception e) {
+        metrics.postErrors.incr();
+        LOG.warn("Could not handle history event, eventType="
+            + event.getHistoryEvent().getEventType(), e);
+      }
+    }
+    metrics.eventQueueBacklog.set(eventQueue.size());
+    if (entities.isEmpty()) {
+      return;
+    }
+
+    try {
+      long startTime = System.currentTimeMillis();
+      TimelinePutResponse response = timelineClient.putEntities(
+          entities.toArray(new TimelineEntity[entities.size()]));
+      metrics.batchPosts.add(System.currentTimeMillis() - startTime);
+      int numErrors = 0;
+      if (response != null) {
+        for (TimelinePutError err : response.getErrors()) {
+          if (err.getErrorCode() != 0) {
+            if (numErrors == 0) {
+              LOG.warn("Could not post history event to ATS"
+                  + ", entityType=" + err.getEntityType()
+                  + ", entityId=" + err.getEntityId()
+                  + ", atsPutError=" + err.getErrorCode());
+            }
+            ++numErrors;
+          }
+        }
+      }
+      if (numErrors > 1) {
+        LOG.warn("Could not post " + numErrors + " history events to ATS"
+            + " out of a batch of " + entities.size());
+      }
+      metrics.postErrors.incr(numErrors);
+      metrics.eventsPosted.incr(entities.size() - numErrors);
+      // Do nothing additional, ATS client library should handle throttling
+      // or auto-disable as needed
+    } catch (Exception e) {
+      metrics.postErrors.incr(entities.size());
+      LOG.warn("Could not handle history events"
+          + ", numEvents=" + entities.size(), e);
+    }
+  }
+
+  private boolean isSkipped(DAGHistoryEvent event) {
     HistoryEventType eventType = event.getHistoryEvent().getEventType();
 
     TezDAGID dagId = event.getDagID();
@@ -171,40 +292,19 @@ public class ATSService extends AbstractService {
           TezConfiguration.TEZ_PREWARM_DAG_NAME_PREFIX)) {
         // Skip recording pre-warm DAG events
         skippedDAGs.add(dagId);
-        return;
+        return true;
       }
     }
     if (eventType.equals(HistoryEventType.DAG_FINISHED)) {
       // Remove from set to keep size small
       // No more events should be seen after this point.
       if (skippedDAGs.remove(dagId)) {
-        return;
+        return true;
       }
     }
 
-    if (dagId != null && skippedDAGs.contains(dagId)) {
-      // Skip pre-warm DAGs
-      return;
-    }
-
-    try {
-      TimelinePutResponse response =
-          timelineClient.putEntities(event.getHistoryEvent().convertToTimelineEntity());
-      if (response != null
-        && !response.getErrors().isEmpty()) {
-        TimelinePutError err = response.getErrors().get(0);
-        if (err.getErrorCode() != 0) {
-          LOG.warn("Could not post history event to ATS, eventType="
-              + eventType
-              + ", atsPutError=" + err.getErrorCode());
-        }
-      }
-      // Do nothing additional, ATS client library should handle throttling
-      // or auto-disable as needed
-    } catch (Exception e) {
-      LOG.warn("Could not handle history event, eventType="
-          + eventType, e);
-    }
+    // Skip pre-warm DAGs
+    return dagId != null && skippedDAGs.contains(dagId);
   }
 
 }
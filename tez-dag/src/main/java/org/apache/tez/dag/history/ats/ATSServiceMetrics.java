@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.history.ats;
+
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MutableGaugeInt;
+import org.apache.hadoop.metrics2.lib.MutableRate;
+
+/**
+ * Backlog and throughput of the history events posted by {@link ATSService}.
+ */
+public class ATSServiceMetrics implements MetricsSource {
+
+  static final String NAME = "ATSService";
+
+  private final MetricsRegistry registry = new MetricsRegistry(NAME);
+
+  final MutableGaugeInt eventQueueBacklog = registry.newGauge(
+      "EventQueueBacklog", "History events waiting to be posted", 0);
+  final MutableCounterLong eventsPosted = registry.newCounter(
+      "EventsPosted", "History events posted to the timeline server", 0l);
+  final MutableCounterLong eventsSkipped = registry.newCounter(
+      "EventsSkipped", "History events of pre-warm DAGs not posted", 0l);
+  final MutableCounterLong postErrors = registry.newCounter(
+      "PostErrors", "History events the timeline server failed to store", 0l);
+  final MutableRate batchPosts = registry.newRate(
+      "BatchPosts", "Time taken to post a batch of history events", false);
+
+  @Override
+  public void getMetrics(MetricsCollector collector, boolean all) {
+    registry.snapshot(collector.addRecord(registry.info()), all);
+  }
+}
@@ -19,13 +19,17 @@
 package org.apache.tez.dag.history.recovery;
 
 import java.io.IOException;
-import java.util.EnumSet;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
@@ -43,6 +47,8 @@ import org.apache.tez.dag.history.SummaryEvent;
 import org.apache.tez.dag.history.events.DAGSubmittedEvent;
 import org.apache.tez.dag.records.TezDAGID;
 
+import com.google.common.util.concurrent.SettableFuture;
+
 public class RecoveryService extends AbstractService {
 
   private static final Log LOG = LogFactory.getLog(RecoveryService.class);
@@ -51,18 +57,24 @@ public class RecoveryService extends AbstractService {
   public static final String RECOVERY_FATAL_OCCURRED_DIR =
       "RecoveryFatalErrorOccurred";
 
+  private static final long SUMMARY_COMMIT_POLL_INTERVAL_MS = 100;
+
   private LinkedBlockingQueue<DAGHistoryEvent> eventQueue =
       new LinkedBlockingQueue<DAGHistoryEvent>();
+  // summary events waiting to be written and synced by the commit thread
+  private LinkedBlockingQueue<SummaryEventCommit> summaryCommitQueue =
+      new LinkedBlockingQueue<SummaryEventCommit>();
   private Set<TezDAGID> completedDAGs = new HashSet<TezDAGID>();
   private Set<TezDAGID> skippedDAGs = new HashSet<TezDAGID>();
 
   private Thread eventHandlingThread;
+  private Thread summaryCommitThread;
   private AtomicBoolean stopped = new AtomicBoolean(false);
   private AtomicBoolean started = new AtomicBoolean(false);
   private int eventCounter = 0;
   private int eventsProcessed = 0;
   private final Object lock = new Object();
-  private FileSystem recoveryDirFS; // FS where staging dir exists
+  FileSystem recoveryDirFS; // FS where staging dir exists
   Path recoveryPath;
   Map<TezDAGID, FSDataOutputStream> outputStreamMap = new
       HashMap<TezDAGID, FSDataOutputStream>();
@@ -74,6 +86,15 @@ public class RecoveryService extends AbstractService {
   private int flushInterval;
   private AtomicBoolean recoveryFatalErrorOccurred = new AtomicBoolean(false);
 
+  private static class SummaryEventCommit {
+    final DAGHistoryEvent event;
+    final SettableFuture<Void> future = SettableFuture.create();
+
+    SummaryEventCommit(DAGHistoryEvent event) {
+      this.event = event;
+    }
+  }
+
   public RecoveryService(AppContext appContext) {
     super(RecoveryService.class.getName());
     this.appContext = appContext;
@@ -100,7 +121,7 @@ public class RecoveryService extends AbstractService {
     eventHandlingThread = new Thread(new Runnable() {
       @Override
       public void run() {
-        DAGHistoryEvent event;
+        List<DAGHistoryEvent> events = new ArrayList<DAGHistoryEvent>();
         while (!stopped.get() && !Thread.currentThread().isInterrupted()) {
 
           if (recoveryFatalErrorOccurred.get()) {
@@ -121,27 +142,66 @@ public class RecoveryService extends AbstractService {
             ++eventCounter;
           }
 
+          events.clear();
           try {
-            event = eventQueue.take();
+            events.add(eventQueue.take());
           } catch (InterruptedException e) {
             LOG.info("EventQueue take interrupted. Returning");
             return;
           }
+          // write everything queued up so far and flush once for all of it
+          eventQueue.drainTo(events, Math.max(maxUnflushedEvents, 1) - 1);
 
           synchronized (lock) {
+            Set<FSDataOutputStream> writtenStreams =
+                new LinkedHashSet<FSDataOutputStream>();
+            for (DAGHistoryEvent event : events) {
+              try {
+                ++eventsProcessed;
+                FSDataOutputStream outputStream = handleRecoveryEvent(event);
+                if (outputStream != null) {
+                  writtenStreams.add(outputStream);
+                }
+              } catch (Exception e) {
+                // For now, ignore any such errors as these are non-critical
+                // All summary event related errors are handled as critical
+                LOG.warn("Error handling recovery event", e);
+              }
+            }
             try {
-              ++eventsProcessed;
-              handleRecoveryEvent(event);
+              maybeFlush(writtenStreams);
             } catch (Exception e) {
-              // For now, ignore any such errors as these are non-critical
-              // All summary event related errors are handled as critical
-              LOG.warn("Error handling recovery event", e);
+              LOG.warn("Error flushing recovery events", e);
             }
           }
         }
       }
     }, "RecoveryEventHandlingThread");
     eventHandlingThread.start();
+    summaryCommitThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // Not interrupted on stop, since that could fail an in-progress sync
+        // and wrongly flag a fatal recovery error. Polls to notice the stop.
+        while (!stopped.get()) {
+          SummaryEventCommit commit;
+          try {
+            commit = summaryCommitQueue.poll(SUMMARY_COMMIT_POLL_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            LOG.info("SummaryCommitQueue poll interrupted. Returning");
+            return;
+          }
+          if (commit == null) {
+            continue;
+          }
+          List<SummaryEventCommit> commits = new ArrayList<SummaryEventCommit>();
+          commits.add(commit);
+          commitSummaryEvents(commits);
+        }
+      }
+    }, "RecoverySummaryCommitThread");
+    summaryCommitThread.start();
     started.set(true);
   }
 
@@ -152,6 +212,16 @@ public class RecoveryService extends AbstractService {
     if (eventHandlingThread != null) {
       eventHandlingThread.interrupt();
     }
+    if (summaryCommitThread != null) {
+      try {
+        summaryCommitThread.join();
+      } catch (InterruptedException e) {
+        LOG.warn("Interrupted while waiting for summary commit thread to exit");
+        Thread.currentThread().interrupt();
+      }
+    }
+    // callers may still be waiting for their summary events to be synced
+    commitSummaryEvents(new ArrayList<SummaryEventCommit>());
 
     if (summaryStream != null) {
       try {
@@ -217,15 +287,86 @@ public class RecoveryService extends AbstractService {
     }
 
     if (event.getHistoryEvent() instanceof SummaryEvent) {
-      synchronized (lock) {
+      SummaryEventCommit commit = new SummaryEventCommit(event);
+      summaryCommitQueue.add(commit);
+      if (stopped.get()) {
+        // the commit thread may be gone already
+        commitSummaryEvents(new ArrayList<SummaryEventCommit>());
+      }
+      try {
+        commit.future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for summary event"
+            + " to be committed, eventType=" + eventType, e);
+      } catch (ExecutionException e) {
+        IOException ioe = e.getCause() instanceof IOException
+            ? (IOException) e.getCause() : new IOException(e.getCause());
+        LOG.error("Error handling summary event"
+            + ", eventType=" + event.getHistoryEvent().getEventType(), ioe);
+        Path fatalErrorDir = new Path(recoveryPath, RECOVERY_FATAL_OCCURRED_DIR);
         try {
+          LOG.error("Adding a flag to ensure next AM attempt does not start up"
+              + ", flagFile=" + fatalErrorDir.toString());
+          recoveryFatalErrorOccurred.set(true);
+          recoveryDirFS.mkdirs(fatalErrorDir);
+          if (recoveryDirFS.exists(fatalErrorDir)) {
+            LOG.error("Recovery failure occurred. Skipping all events");
+          } else {
+            // throw error if fatal error flag could not be set
+            throw ioe;
+          }
+        } catch (IOException ioe2) {
+          LOG.fatal("Failed to create fatal error flag dir "
+              + fatalErrorDir.toString(), ioe2);
+          throw ioe;
+        }
+        if (eventType.equals(HistoryEventType.DAG_SUBMITTED)) {
+          // Throw error to tell client that dag submission failed
+          throw ioe;
+        }
+      }
+    } else {
+      // All other events just get queued
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Queueing Non-Summary Recovery event of type " + eventType.name());
+      }
+      eventQueue.add(event);
+    }
+  }
+
+  /**
+   * Writes the given summary events, and any others waiting in the commit
+   * queue, then syncs the summary stream and the recovery streams written to
+   * once for all of them before completing their futures.
+   */
+  private void commitSummaryEvents(List<SummaryEventCommit> commits) {
+    synchronized (lock) {
+      summaryCommitQueue.drainTo(commits);
+      if (commits.isEmpty()) {
+        return;
+      }
+      if (recoveryFatalErrorOccurred.get()) {
+        for (SummaryEventCommit commit : commits) {
+          commit.future.set(null);
+        }
+        return;
+      }
+      List<TezDAGID> finishedDAGs = new ArrayList<TezDAGID>();
+      try {
+        Set<FSDataOutputStream> syncStreams =
+            new LinkedHashSet<FSDataOutputStream>();
+        for (SummaryEventCommit commit : commits) {
+          DAGHistoryEvent event = commit.event;
+          TezDAGID dagId = event.getDagID();
+          HistoryEventType eventType = event.getHistoryEvent().getEventType();
           SummaryEvent summaryEvent = (SummaryEvent) event.getHistoryEvent();
           handleSummaryEvent(dagId, eventType, summaryEvent);
-          summaryStream.hsync();
           if (summaryEvent.writeToRecoveryImmediately()) {
-            handleRecoveryEvent(event);
-            doFlush(outputStreamMap.get(event.getDagID()),
-                appContext.getClock().getTime(), true);
+            FSDataOutputStream outputStream = handleRecoveryEvent(event);
+            if (outputStream != null) {
+              syncStreams.add(outputStream);
+            }
           } else {
             if (LOG.isDebugEnabled()) {
               LOG.debug("Queueing Non-immediate Summary/Recovery event of type"
@@ -238,48 +379,37 @@ public class RecoveryService extends AbstractService {
                 + ", dagId=" + event.getDagID()
                 + ", queueSize=" + eventQueue.size());
             completedDAGs.add(dagId);
-            if (outputStreamMap.containsKey(dagId)) {
-              try {
-                outputStreamMap.get(dagId).close();
-                outputStreamMap.remove(dagId);
-              } catch (IOException ioe) {
-                LOG.warn("Error when trying to flush/close recovery file for"
-                    + " dag, dagId=" + event.getDagID());
-              }
-            }
+            finishedDAGs.add(dagId);
           }
-        } catch (IOException ioe) {
-          LOG.error("Error handling summary event"
-              + ", eventType=" + event.getHistoryEvent().getEventType(), ioe);
-          Path fatalErrorDir = new Path(recoveryPath, RECOVERY_FATAL_OCCURRED_DIR);
+        }
+        summaryStream.hsync();
+        long currentTime = appContext.getClock().getTime();
+        for (FSDataOutputStream outputStream : syncStreams) {
+          doFlush(outputStream, currentTime, true);
+        }
+      } catch (IOException ioe) {
+        for (SummaryEventCommit commit : commits) {
+          commit.future.setException(ioe);
+        }
+        return;
+      }
+      for (TezDAGID dagId : finishedDAGs) {
+        if (outputStreamMap.containsKey(dagId)) {
           try {
-            LOG.error("Adding a flag to ensure next AM attempt does not start up"
-                + ", flagFile=" + fatalErrorDir.toString());
-            recoveryFatalErrorOccurred.set(true);
-            recoveryDirFS.mkdirs(fatalErrorDir);
-            if (recoveryDirFS.exists(fatalErrorDir)) {
-              LOG.error("Recovery failure occurred. Skipping all events");
-            } else {
-              // throw error if fatal error flag could not be set
-              throw ioe;
-            }
-          } catch (IOException e) {
-            LOG.fatal("Failed to create fatal error flag dir "
-                + fatalErrorDir.toString(), e);
-            throw ioe;
-          }
-          if (eventType.equals(HistoryEventType.DAG_SUBMITTED)) {
-            // Throw error to tell client that dag submission failed
-            throw ioe;
+            outputStreamMap.get(dagId).close();
+            outputStreamMap.remove(dagId);
+          } catch (IOException ioe) {
+            LOG.warn("Error when trying to flush/close recovery file for"
+                + " dag, dagId=" + dagId);
           }
         }
       }
-    } else {
-      // All other events just get queued
       if (LOG.isDebugEnabled()) {
-        LOG.debug("Queueing Non-Summary Recovery event of type " + eventType.name());
+        LOG.debug("Committed summary events, count=" + commits.size());
+      }
+      for (SummaryEventCommit commit : commits) {
+        commit.future.set(null);
       }
-      eventQueue.add(event);
     }
   }
 
@@ -310,7 +440,12 @@ public class RecoveryService extends AbstractService {
     summaryEvent.toSummaryProtoStream(summaryStream);
   }
 
-  private void handleRecoveryEvent(DAGHistoryEvent event) throws IOException {
+  /**
+   * Writes a recovery event to the recovery file of its DAG without flushing.
+   * @return the stream written to, or null if the event was skipped
+   */
+  private FSDataOutputStream handleRecoveryEvent(DAGHistoryEvent event)
+      throws IOException {
     HistoryEventType eventType = event.getHistoryEvent().getEventType();
     if (LOG.isDebugEnabled()) {
       LOG.debug("Handling recovery event of type "
@@ -327,7 +462,7 @@ public class RecoveryService extends AbstractService {
             + ", skipped=" + skippedDAGs.contains(dagID)
             + ", eventType=" + eventType);
       }
-      return;
+      return null;
     }
 
     if (!outputStreamMap.containsKey(dagID)) {
@@ -360,13 +495,14 @@ public class RecoveryService extends AbstractService {
     ++unflushedEventsCount;
     outputStream.writeInt(event.getHistoryEvent().getEventType().ordinal());
     event.getHistoryEvent().toProtoStream(outputStream);
-    if (!EnumSet.of(HistoryEventType.DAG_SUBMITTED,
-        HistoryEventType.DAG_FINISHED).contains(eventType)) {
-      maybeFlush(outputStream);
-    }
+    return outputStream;
   }
 
-  private void maybeFlush(FSDataOutputStream outputStream) throws IOException {
+  private void maybeFlush(Set<FSDataOutputStream> outputStreams)
+      throws IOException {
+    if (outputStreams.isEmpty()) {
+      return;
+    }
     long currentTime = appContext.getClock().getTime();
     boolean doFlush = false;
     if (maxUnflushedEvents >=0
@@ -387,7 +523,9 @@ public class RecoveryService extends AbstractService {
     if (!doFlush) {
       return;
     }
-    doFlush(outputStream, currentTime, false);
+    for (FSDataOutputStream outputStream : outputStreams) {
+      doFlush(outputStream, currentTime, false);
+    }
   }
 
   private void doFlush(FSDataOutputStream outputStream,
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.event.Event;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.hadoop.yarn.util.SystemClock;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEvent;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEventType;
+import org.apache.tez.dag.app.rm.container.AMContainerEvent;
+import org.apache.tez.dag.app.rm.container.AMContainerEventType;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class TestHeartbeatHandler {
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test
+  public void testTimeOuts() {
+    ControlledClock clock = new ControlledClock(new SystemClock());
+    clock.setTime(10000);
+    EventHandler eventHandler = mock(EventHandler.class);
+    AppContext appContext = mock(AppContext.class);
+    when(appContext.getClock()).thenReturn(clock);
+    when(appContext.getEventHandler()).thenReturn(eventHandler);
+
+    Configuration conf = new Configuration();
+    conf.setInt(TezConfiguration.TASK_TIMEOUT, 1000);
+    conf.setLong(TezConfiguration.TEZ_AM_DEADLINE_TRACKER_TICK_MS, 10);
+    DeadlineTracker tracker = new DeadlineTracker("tracker", clock);
+    tracker.init(conf);
+    TaskHeartbeatHandler taskHandler =
+        new TaskHeartbeatHandler(appContext, 1, tracker);
+    taskHandler.init(conf);
+    ContainerHeartbeatHandler containerHandler =
+        new ContainerHeartbeatHandler(appContext, 1, tracker);
+    containerHandler.init(conf);
+
+    TezTaskID taskId = TezTaskID.getInstance(TezVertexID.getInstance(
+        TezDAGID.getInstance(ApplicationId.newInstance(1, 1), 1), 1), 1);
+    TezTaskAttemptID pingingAttempt = TezTaskAttemptID.getInstance(taskId, 0);
+    TezTaskAttemptID silentAttempt = TezTaskAttemptID.getInstance(taskId, 1);
+    TezTaskAttemptID finishedAttempt = TezTaskAttemptID.getInstance(taskId, 2);
+    ContainerId containerId = ContainerId.newInstance(
+        ApplicationAttemptId.newInstance(ApplicationId.newInstance(1, 1), 1), 1);
+    taskHandler.register(pingingAttempt);
+    taskHandler.register(silentAttempt);
+    taskHandler.register(finishedAttempt);
+    containerHandler.register(containerId);
+    assertEquals(4, tracker.size());
+
+    clock.setTime(10500);
+    taskHandler.pinged(pingingAttempt);
+    containerHandler.pinged(containerId);
+    taskHandler.unregister(finishedAttempt);
+    tracker.checkDeadlines();
+    verify(eventHandler, never()).handle(any(Event.class));
+
+    // Only the silent attempt times out
+    clock.setTime(11010);
+    tracker.checkDeadlines();
+    ArgumentCaptor<Event> captor = ArgumentCaptor.forClass(Event.class);
+    verify(eventHandler, times(1)).handle(captor.capture());
+    TaskAttemptEvent taskAttemptEvent = (TaskAttemptEvent) captor.getValue();
+    assertEquals(silentAttempt, taskAttemptEvent.getTaskAttemptID());
+    assertEquals(TaskAttemptEventType.TA_TIMED_OUT,
+        taskAttemptEvent.getType());
+    // The others have their deadline moved forward
+    assertEquals(2, tracker.size());
+
+    clock.setTime(11510);
+    tracker.checkDeadlines();
+    captor = ArgumentCaptor.forClass(Event.class);
+    verify(eventHandler, times(3)).handle(captor.capture());
+    for (Event event : captor.getAllValues().subList(1, 3)) {
+      if (event instanceof AMContainerEvent) {
+        assertEquals(containerId, ((AMContainerEvent) event).getContainerId());
+        assertEquals(AMContainerEventType.C_TIMED_OUT, event.getType());
+      } else {
+        assertEquals(pingingAttempt,
+            ((TaskAttemptEvent) event).getTaskAttemptID());
+      }
+    }
+    assertEquals(0, tracker.size());
+  }
+}
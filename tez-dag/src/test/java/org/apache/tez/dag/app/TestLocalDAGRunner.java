@@ -0,0 +1,322 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezUtils;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.dag.api.DAG;
+import org.apache.tez.dag.api.Edge;
+import org.apache.tez.dag.api.EdgeProperty;
+import org.apache.tez.dag.api.EdgeProperty.DataMovementType;
+import org.apache.tez.dag.api.EdgeProperty.DataSourceType;
+import org.apache.tez.dag.api.EdgeProperty.SchedulingType;
+import org.apache.tez.dag.api.InputDescriptor;
+import org.apache.tez.dag.api.OutputDescriptor;
+import org.apache.tez.dag.api.ProcessorDescriptor;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.Vertex;
+import org.apache.tez.dag.api.client.DAGStatus;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.LogicalIOProcessor;
+import org.apache.tez.runtime.api.LogicalInput;
+import org.apache.tez.runtime.api.LogicalOutput;
+import org.apache.tez.runtime.api.TezProcessorContext;
+import org.apache.tez.runtime.library.api.KeyValueWriter;
+import org.apache.tez.runtime.library.api.KeyValuesReader;
+import org.apache.tez.runtime.library.api.Partitioner;
+import org.apache.tez.runtime.library.input.ShuffledMergedInput;
+import org.apache.tez.runtime.library.output.OnFileSortedOutput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLocalDAGRunner {
+
+  private static final File TEST_DIR = new File(System.getProperty(
+      "test.build.data", "target"), TestLocalDAGRunner.class.getName())
+      .getAbsoluteFile();
+
+  private static final int NUM_KEYS = 10;
+  private static final int RECORDS_PER_TASK = 100;
+
+  // The least memory given to a task, as seen by the tasks
+  private static final AtomicLong minTaskMemory = new AtomicLong(Long.MAX_VALUE);
+
+  public static class HashPartitioner implements Partitioner {
+    @Override
+    public int getPartition(Object key, Object value, int numPartitions) {
+      return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    }
+  }
+
+  private static void recordTaskMemory(TezProcessorContext context) {
+    long memory = context.getTotalMemoryAvailableToTask();
+    long min;
+    while (memory < (min = minTaskMemory.get())
+        && !minTaskMemory.compareAndSet(min, memory)) {
+    }
+  }
+
+  /**
+   * Writes each key the same number of times, with a value of 1.
+   */
+  public static class GenerateProcessor implements LogicalIOProcessor {
+    private TezProcessorContext context;
+
+    @Override
+    public void initialize(TezProcessorContext processorContext) {
+      this.context = processorContext;
+      recordTaskMemory(context);
+    }
+
+    @Override
+    public void handleEvents(List<Event> processorEvents) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void run(Map<String, LogicalInput> inputs,
+        Map<String, LogicalOutput> outputs) throws Exception {
+      LogicalOutput output = outputs.values().iterator().next();
+      output.start();
+      KeyValueWriter writer = (KeyValueWriter) output.getWriter();
+      Text key = new Text();
+      IntWritable one = new IntWritable(1);
+      for (int i = 0; i < RECORDS_PER_TASK; i++) {
+        key.set("key" + (i % NUM_KEYS));
+        writer.write(key, one);
+      }
+    }
+  }
+
+  /**
+   * Sums the values of each key, and writes the sums to a file named after
+   * the task in the directory given by the payload.
+   */
+  public static class SumProcessor implements LogicalIOProcessor {
+    private TezProcessorContext context;
+
+    @Override
+    public void initialize(TezProcessorContext processorContext) {
+      this.context = processorContext;
+      recordTaskMemory(context);
+    }
+
+    @Override
+    public void handleEvents(List<Event> processorEvents) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void run(Map<String, LogicalInput> inputs,
+        Map<String, LogicalOutput> outputs) throws Exception {
+      LogicalInput input = inputs.values().iterator().next();
+      input.start();
+      KeyValuesReader reader = (KeyValuesReader) input.getReader();
+      File outputDir = new File(new String(context.getUserPayload(), "UTF-8"));
+      PrintWriter out = new PrintWriter(new FileWriter(new File(outputDir,
+          "part-" + context.getTaskIndex())));
+      try {
+        String previousKey = null;
+        while (reader.next()) {
+          String key = reader.getCurrentKey().toString();
+          // keys arrive sorted
+          assertTrue(previousKey == null || previousKey.compareTo(key) < 0);
+          previousKey = key;
+          int sum = 0;
+          for (Object value : reader.getCurrentValues()) {
+            sum += ((IntWritable) value).get();
+          }
+          out.println(key + "\t" + sum);
+        }
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private Configuration conf;
+  private File outputDir;
+
+  @Before
+  public void setup() {
+    FileUtil.fullyDelete(TEST_DIR);
+    outputDir = new File(TEST_DIR, "output");
+    outputDir.mkdirs();
+    conf = new Configuration();
+    conf.set(TezConfiguration.TEZ_AM_STAGING_DIR,
+        new File(TEST_DIR, "staging").getAbsolutePath());
+    conf.setBoolean(TezConfiguration.DAG_RECOVERY_ENABLED, false);
+    conf.setInt(TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS, 2);
+    minTaskMemory.set(Long.MAX_VALUE);
+  }
+
+  @After
+  public void cleanup() {
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  private DAG createDAG(int numGenerators, int numSummers) throws IOException {
+    Configuration runtimeConf = new Configuration(false);
+    runtimeConf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS,
+        Text.class.getName());
+    runtimeConf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS,
+        IntWritable.class.getName());
+    runtimeConf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_KEY_CLASS,
+        Text.class.getName());
+    runtimeConf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_VALUE_CLASS,
+        IntWritable.class.getName());
+    runtimeConf.set(TezJobConfig.TEZ_RUNTIME_PARTITIONER_CLASS,
+        HashPartitioner.class.getName());
+    runtimeConf.setInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB, 10);
+    byte[] runtimePayload = TezUtils.createUserPayloadFromConf(runtimeConf);
+
+    Vertex generator = new Vertex("generator", new ProcessorDescriptor(
+        GenerateProcessor.class.getName()), numGenerators,
+        Resource.newInstance(256, 1));
+    Vertex summer = new Vertex("summer", new ProcessorDescriptor(
+        SumProcessor.class.getName()).setUserPayload(
+        outputDir.getAbsolutePath().getBytes("UTF-8")), numSummers,
+        Resource.newInstance(256, 1));
+    DAG dag = new DAG("TestLocalDAGRunner");
+    dag.addVertex(generator).addVertex(summer).addEdge(
+        new Edge(generator, summer, new EdgeProperty(
+            DataMovementType.SCATTER_GATHER, DataSourceType.PERSISTED,
+            SchedulingType.SEQUENTIAL,
+            new OutputDescriptor(OnFileSortedOutput.class.getName())
+                .setUserPayload(runtimePayload),
+            new InputDescriptor(ShuffledMergedInput.class.getName())
+                .setUserPayload(runtimePayload))));
+    return dag;
+  }
+
+  private Map<String, Integer> readOutput() throws IOException {
+    Map<String, Integer> sums = new HashMap<String, Integer>();
+    for (File file : outputDir.listFiles()) {
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          String[] fields = line.split("\t");
+          // each key goes to one task
+          assertEquals(null, sums.put(fields[0], Integer.valueOf(fields[1])));
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return sums;
+  }
+
+  @Test(timeout = 60000)
+  public void testSortedShuffle() throws Exception {
+    LocalDAGRunner runner = new LocalDAGRunner(conf);
+    try {
+      DAGStatus status = runner.run(createDAG(3, 2));
+      assertEquals(DAGStatus.State.SUCCEEDED, status.getState());
+    } finally {
+      runner.stop();
+    }
+
+    assertEquals(2, outputDir.listFiles().length);
+    Map<String, Integer> sums = readOutput();
+    assertEquals(NUM_KEYS, sums.size());
+    for (int k = 0; k < NUM_KEYS; k++) {
+      assertEquals(3 * RECORDS_PER_TASK / NUM_KEYS,
+          sums.get("key" + k).intValue());
+    }
+
+    // two tasks at a time share what the AM does not keep for itself
+    long expectedTaskMemory = (long) (Runtime.getRuntime().maxMemory()
+        * (1 - (double) TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_AM_RESERVE_FRACTION_DEFAULT)
+        / 2);
+    assertEquals(expectedTaskMemory, minTaskMemory.get());
+  }
+
+  @Test(timeout = 60000)
+  public void testDAGsRunOneAfterTheOther() throws Exception {
+    LocalDAGRunner runner = new LocalDAGRunner(conf);
+    try {
+      assertEquals(DAGStatus.State.SUCCEEDED,
+          runner.run(createDAG(1, 1)).getState());
+      FileUtil.fullyDelete(outputDir);
+      outputDir.mkdirs();
+      assertEquals(DAGStatus.State.SUCCEEDED,
+          runner.run(createDAG(2, 1)).getState());
+    } finally {
+      runner.stop();
+    }
+    Map<String, Integer> sums = readOutput();
+    assertEquals(NUM_KEYS, sums.size());
+    assertEquals(2 * RECORDS_PER_TASK / NUM_KEYS, sums.get("key0").intValue());
+  }
+
+  @Test(timeout = 60000)
+  public void testTaskDispatcherThreads() throws Exception {
+    // task events are handled by several threads, next to the speculator
+    conf.setInt(TezConfiguration.TEZ_AM_DISPATCHER_TASK_THREADS, 3);
+    conf.setBoolean(TezConfiguration.TEZ_AM_SPECULATION_ENABLED, true);
+    conf.setInt(TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS, 4);
+    LocalDAGRunner runner = new LocalDAGRunner(conf);
+    DAGStatus status;
+    try {
+      status = runner.run(createDAG(6, 3));
+      assertEquals(DAGStatus.State.SUCCEEDED, status.getState());
+    } finally {
+      runner.stop();
+    }
+
+    assertEquals(3, outputDir.listFiles().length);
+    Map<String, Integer> sums = readOutput();
+    assertEquals(NUM_KEYS, sums.size());
+    for (int k = 0; k < NUM_KEYS; k++) {
+      assertEquals(6 * RECORDS_PER_TASK / NUM_KEYS,
+          sums.get("key" + k).intValue());
+    }
+    // the counters of all tasks were added up
+    assertEquals(6 * RECORDS_PER_TASK, status.getDAGCounters().findCounter(
+        TaskCounter.OUTPUT_RECORDS).getValue());
+  }
+}
@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.dag.app.dag.event.DAGEvent;
+import org.apache.tez.dag.app.dag.event.DAGEventType;
+import org.apache.tez.dag.app.dag.event.TaskEvent;
+import org.apache.tez.dag.app.dag.event.TaskEventType;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPartitionedAsyncDispatcher {
+
+  private static final int NUM_TASKS = 16;
+  private static final int EVENTS_PER_TASK = 100;
+
+  private TezDAGID dagId;
+  private TezVertexID vertexId;
+  private PartitionedAsyncDispatcher dispatcher;
+
+  private static class SequencedTaskEvent extends TaskEvent {
+    final int sequence;
+
+    SequencedTaskEvent(TezTaskID taskId, int sequence) {
+      super(taskId, TaskEventType.T_SCHEDULE);
+      this.sequence = sequence;
+    }
+  }
+
+  private static class TaskEventRecorder implements EventHandler<TaskEvent> {
+    final Map<TezTaskID, List<Integer>> sequences =
+        new HashMap<TezTaskID, List<Integer>>();
+    final Map<TezTaskID, String> threads = new HashMap<TezTaskID, String>();
+    final CountDownLatch latch = new CountDownLatch(NUM_TASKS * EVENTS_PER_TASK);
+    volatile boolean sameThreadPerTask = true;
+
+    @Override
+    public synchronized void handle(TaskEvent event) {
+      TezTaskID taskId = event.getTaskID();
+      List<Integer> seen = sequences.get(taskId);
+      if (seen == null) {
+        seen = new ArrayList<Integer>();
+        sequences.put(taskId, seen);
+        threads.put(taskId, Thread.currentThread().getName());
+      } else if (!threads.get(taskId).equals(
+          Thread.currentThread().getName())) {
+        sameThreadPerTask = false;
+      }
+      seen.add(((SequencedTaskEvent) event).sequence);
+      latch.countDown();
+    }
+  }
+
+  @Before
+  public void setup() {
+    dagId = TezDAGID.getInstance(ApplicationId.newInstance(1, 1), 1);
+    vertexId = TezVertexID.getInstance(dagId, 1);
+    dispatcher = new PartitionedAsyncDispatcher(4);
+  }
+
+  @After
+  public void teardown() {
+    dispatcher.stop();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test(timeout = 10000)
+  public void testTaskEventOrdering() throws Exception {
+    TaskEventRecorder recorder = new TaskEventRecorder();
+    dispatcher.register(TaskEventType.class, recorder);
+    dispatcher.init(new Configuration());
+    dispatcher.start();
+
+    for (int seq = 0; seq < EVENTS_PER_TASK; seq++) {
+      for (int task = 0; task < NUM_TASKS; task++) {
+        dispatcher.getEventHandler().handle(new SequencedTaskEvent(
+            TezTaskID.getInstance(vertexId, task), seq));
+      }
+    }
+    assertTrue(recorder.latch.await(5, TimeUnit.SECONDS));
+
+    assertTrue(recorder.sameThreadPerTask);
+    assertEquals(NUM_TASKS, recorder.sequences.size());
+    for (List<Integer> seen : recorder.sequences.values()) {
+      assertEquals(EVENTS_PER_TASK, seen.size());
+      for (int i = 0; i < EVENTS_PER_TASK; i++) {
+        assertEquals(i, seen.get(i).intValue());
+      }
+    }
+    for (String thread : recorder.threads.values()) {
+      assertTrue(thread.startsWith("TaskEventDispatcher #"));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test(timeout = 10000)
+  public void testOtherEventsOnCentralThread() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final String[] handlerThread = new String[1];
+    dispatcher.register(DAGEventType.class, new EventHandler<DAGEvent>() {
+      @Override
+      public void handle(DAGEvent event) {
+        handlerThread[0] = Thread.currentThread().getName();
+        latch.countDown();
+      }
+    });
+    dispatcher.init(new Configuration());
+    dispatcher.start();
+
+    dispatcher.getEventHandler().handle(
+        new DAGEvent(dagId, DAGEventType.DAG_INIT));
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertFalse(handlerThread[0].startsWith("TaskEventDispatcher"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test(timeout = 10000)
+  public void testQueuedTaskEventsDiscardedOnStop() throws Exception {
+    final CountDownLatch handling = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    dispatcher.register(TaskEventType.class, new EventHandler<TaskEvent>() {
+      @Override
+      public void handle(TaskEvent event) {
+        handling.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          // stopping the dispatcher interrupts the task threads
+        }
+      }
+    });
+    dispatcher.init(new Configuration());
+    dispatcher.start();
+
+    TezTaskID taskId = TezTaskID.getInstance(vertexId, 0);
+    for (int seq = 0; seq < 3; seq++) {
+      dispatcher.getEventHandler().handle(new SequencedTaskEvent(taskId, seq));
+    }
+    assertTrue(handling.await(5, TimeUnit.SECONDS));
+    while (dispatcher.metrics.taskEventQueueSize.value() < 2) {
+      Thread.sleep(10);
+    }
+
+    // the first event is being handled, the other two are still queued
+    dispatcher.stop();
+    assertEquals(2, dispatcher.numDiscardedTaskEvents);
+    assertEquals(0, dispatcher.metrics.taskEventQueueSize.value());
+  }
+}
@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.common.ContainerContext;
+import org.apache.tez.common.ContainerTask;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.app.rm.container.AMContainerImpl;
+import org.apache.tez.dag.app.rm.container.AMContainerMap;
+import org.apache.tez.dag.app.rm.container.AMContainerTask;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.impl.TaskSpec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestTaskAttemptListenerImpTezDag {
+
+  private static final AMContainerTask NO_TASK =
+      new AMContainerTask(false, null, null, null, false);
+  private static final AMContainerTask DIE =
+      new AMContainerTask(true, null, null, null, false);
+
+  private final ApplicationId appId = ApplicationId.newInstance(1000, 1);
+  private final ApplicationAttemptId appAttemptId =
+      ApplicationAttemptId.newInstance(appId, 1);
+  // the task handed out to every container
+  private final AtomicReference<AMContainerTask> containerTask =
+      new AtomicReference<AMContainerTask>(NO_TASK);
+  private ContainerHeartbeatHandler containerHeartbeatHandler;
+  private TaskAttemptListenerImpTezDag listener;
+
+  @SuppressWarnings("rawtypes")
+  @Before
+  public void setup() {
+    AMContainerImpl container = mock(AMContainerImpl.class);
+    when(container.pullTaskContext()).thenAnswer(new Answer<AMContainerTask>() {
+      @Override
+      public AMContainerTask answer(InvocationOnMock invocation) {
+        return containerTask.get();
+      }
+    });
+    AMContainerMap containers = mock(AMContainerMap.class);
+    when(containers.get(any(ContainerId.class))).thenReturn(container);
+    AppContext appContext = mock(AppContext.class);
+    when(appContext.getAllContainers()).thenReturn(containers);
+    when(appContext.getEventHandler()).thenReturn(mock(EventHandler.class));
+
+    containerHeartbeatHandler = mock(ContainerHeartbeatHandler.class);
+    listener = new TaskAttemptListenerImpTezDag(appContext,
+        mock(TaskHeartbeatHandler.class), containerHeartbeatHandler,
+        null) {
+      @Override
+      protected void startRpcServer() {
+      }
+
+      @Override
+      protected void stopRpcServer() {
+      }
+    };
+  }
+
+  @After
+  public void cleanup() {
+    listener.stop();
+  }
+
+  private void startListener(int longPollTimeout) {
+    Configuration conf = new Configuration();
+    conf.setInt(TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_TIMEOUT_MS,
+        longPollTimeout);
+    conf.setInt(TezConfiguration.TEZ_AM_TASK_LISTENER_THREAD_COUNT, 4);
+    conf.setFloat(
+        TezConfiguration.TEZ_TASK_GET_TASK_LONG_POLL_MAX_HANDLER_FRACTION, 0.5f);
+    listener.init(conf);
+    listener.start();
+  }
+
+  private ContainerId registerContainer(int id) {
+    ContainerId containerId = ContainerId.newInstance(appAttemptId, id);
+    listener.registerRunningContainer(containerId);
+    return containerId;
+  }
+
+  /**
+   * Calls getTask on its own thread.
+   */
+  private class GetTaskThread extends Thread {
+    private final ContainerId containerId;
+    volatile ContainerTask task;
+    volatile Throwable error;
+
+    GetTaskThread(ContainerId containerId) {
+      this.containerId = containerId;
+    }
+
+    @Override
+    public void run() {
+      try {
+        task = listener.getTask(new ContainerContext(containerId.toString(),
+            "0"));
+      } catch (Throwable t) {
+        error = t;
+      }
+    }
+
+    ContainerTask getResult() throws Exception {
+      join();
+      if (error != null) {
+        throw new RuntimeException(error);
+      }
+      return task;
+    }
+  }
+
+  private void waitForWaiters(int numWaiters) throws InterruptedException {
+    while (listener.getNumLongPollWaiters() != numWaiters) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testLongPollWakesUpOnAssignment() throws Exception {
+    startListener(60000);
+    ContainerId containerId = registerContainer(1);
+    GetTaskThread getTask = new GetTaskThread(containerId);
+    getTask.start();
+    waitForWaiters(1);
+
+    TezTaskAttemptID attemptId = TezTaskAttemptID.getInstance(
+        TezTaskID.getInstance(TezVertexID.getInstance(
+            TezDAGID.getInstance(appId, 1), 1), 1), 0);
+    TaskSpec taskSpec = mock(TaskSpec.class);
+    when(taskSpec.getTaskAttemptID()).thenReturn(attemptId);
+    containerTask.set(new AMContainerTask(false, taskSpec, null, null, false));
+    listener.containerTaskUpdated(containerId);
+
+    ContainerTask task = getTask.getResult();
+    assertNotNull(task);
+    assertEquals(attemptId, task.getTaskSpec().getTaskAttemptID());
+    assertEquals(0, listener.getNumLongPollWaiters());
+  }
+
+  @Test(timeout = 10000)
+  public void testLongPollTimesOut() throws Exception {
+    startListener(200);
+    ContainerId containerId = registerContainer(1);
+    long start = System.currentTimeMillis();
+    assertNull(listener.getTask(new ContainerContext(containerId.toString(),
+        "0")));
+    assertTrue(System.currentTimeMillis() - start >= 200);
+    assertEquals(0, listener.getNumLongPollWaiters());
+  }
+
+  @Test(timeout = 10000)
+  public void testLongPollPingsContainer() throws Exception {
+    // containers time out after 200ms without a ping
+    when(containerHeartbeatHandler.getConfiguredTimeout(any(Configuration.class)))
+        .thenReturn(200);
+    startListener(60000);
+    ContainerId containerId = registerContainer(1);
+    GetTaskThread getTask = new GetTaskThread(containerId);
+    getTask.start();
+    waitForWaiters(1);
+
+    // pinged when the call arrives and every 100ms while it waits
+    verify(containerHeartbeatHandler, timeout(5000).atLeast(4))
+        .pinged(containerId);
+
+    containerTask.set(DIE);
+    listener.containerTaskUpdated(containerId);
+    assertTrue(getTask.getResult().shouldDie());
+    assertEquals(0, listener.getNumLongPollWaiters());
+  }
+
+  @Test(timeout = 10000)
+  public void testLongPollWaitersCapped() throws Exception {
+    // half of the 4 handlers may wait
+    startListener(60000);
+    GetTaskThread[] waiters = new GetTaskThread[2];
+    for (int i = 0; i < waiters.length; i++) {
+      waiters[i] = new GetTaskThread(registerContainer(i + 1));
+      waiters[i].start();
+    }
+    waitForWaiters(2);
+
+    // a call beyond the cap returns straight away
+    ContainerId containerId = registerContainer(3);
+    long start = System.currentTimeMillis();
+    assertNull(listener.getTask(new ContainerContext(containerId.toString(),
+        "0")));
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(2, listener.getNumLongPollWaiters());
+
+    containerTask.set(DIE);
+    for (int i = 0; i < waiters.length; i++) {
+      listener.containerTaskUpdated(ContainerId.newInstance(appAttemptId,
+          i + 1));
+    }
+    for (GetTaskThread waiter : waiters) {
+      assertTrue(waiter.getResult().shouldDie());
+    }
+    assertEquals(0, listener.getNumLongPollWaiters());
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestTimingWheel {
+
+  @Test
+  public void testExpiry() {
+    TimingWheel<String> wheel = new TimingWheel<String>(10, 1000);
+    wheel.schedule("a", 1015);
+    wheel.schedule("b", 1020);
+    wheel.schedule("c", 500);
+    assertEquals(3, wheel.size());
+
+    // A passed deadline expires with the next advance
+    assertEquals(Collections.singletonList("c"), wheel.advance(1000));
+    // Deadlines are never early
+    assertTrue(wheel.advance(1019).isEmpty());
+    List<String> expired = wheel.advance(1020);
+    assertEquals(2, expired.size());
+    assertTrue(expired.contains("a"));
+    assertTrue(expired.contains("b"));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testCancelAndReschedule() {
+    TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+    wheel.schedule("a", 100);
+    wheel.schedule("b", 100);
+    assertTrue(wheel.cancel("a"));
+    assertFalse(wheel.cancel("a"));
+    assertFalse(wheel.contains("a"));
+    // A new deadline replaces the old one
+    wheel.schedule("b", 200000);
+    assertTrue(wheel.advance(100).isEmpty());
+    assertTrue(wheel.advance(199999).isEmpty());
+    assertEquals(Collections.singletonList("b"), wheel.advance(200000));
+  }
+
+  @Test
+  public void testDistantDeadlines() {
+    TimingWheel<Long> wheel = new TimingWheel<Long>(1, 0);
+    long[] deadlines = new long[] { 63, 64, 4095, 4096, 262144, 1L << 40,
+        Long.MAX_VALUE };
+    for (long deadline : deadlines) {
+      wheel.schedule(deadline, deadline);
+    }
+    for (long deadline : deadlines) {
+      assertTrue(wheel.advance(deadline - 1).isEmpty());
+      assertEquals(Collections.singletonList(deadline), wheel.advance(deadline));
+    }
+  }
+
+  @Test
+  public void testRandomDeadlines() {
+    Random random = new Random(1234);
+    long tickMs = 7;
+    long time = 100000;
+    TimingWheel<Integer> wheel = new TimingWheel<Integer>(tickMs, time);
+    Map<Integer, Long> deadlines = new HashMap<Integer, Long>();
+    for (int i = 0; i < 10000; i++) {
+      int item = random.nextInt(500);
+      switch (random.nextInt(4)) {
+      case 0:
+        long deadline = time - 10 + random.nextInt(
+            random.nextBoolean() ? 1000 : 10000000);
+        wheel.schedule(item, deadline);
+        deadlines.put(item, deadline);
+        break;
+      case 1:
+        assertEquals(deadlines.remove(item) != null, wheel.cancel(item));
+        break;
+      default:
+        time += random.nextInt(random.nextBoolean() ? 50 : 100000);
+        Set<Integer> expected = new HashSet<Integer>();
+        for (Map.Entry<Integer, Long> entry : deadlines.entrySet()) {
+          // Expires within the tick of its deadline
+          long tick = (entry.getValue() + tickMs - 1) / tickMs;
+          if (tick <= time / tickMs) {
+            expected.add(entry.getKey());
+          }
+        }
+        List<Integer> expired = wheel.advance(time);
+        assertEquals(expected.size(), expired.size());
+        assertEquals(expected, new HashSet<Integer>(expired));
+        for (Integer expiredItem : expired) {
+          assertTrue(deadlines.remove(expiredItem) <= time);
+        }
+      }
+      assertEquals(deadlines.size(), wheel.size());
+    }
+  }
+}
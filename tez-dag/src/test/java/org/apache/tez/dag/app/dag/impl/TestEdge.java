@@ -19,14 +19,18 @@
 package org.apache.tez.dag.app.dag.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -35,6 +39,7 @@ import java.util.Map.Entry;
 
 import org.apache.hadoop.yarn.event.Event;
 import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.tez.dag.api.EdgeManagerDescriptor;
 import org.apache.tez.dag.api.EdgeProperty;
 import org.apache.tez.dag.api.EdgeProperty.DataMovementType;
 import org.apache.tez.dag.api.EdgeProperty.DataSourceType;
@@ -50,6 +55,7 @@ import org.apache.tez.dag.records.TezTaskID;
 import org.apache.tez.dag.records.TezVertexID;
 import org.apache.tez.runtime.api.events.CompositeDataMovementEvent;
 import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.events.InputFailedEvent;
 import org.apache.tez.runtime.api.impl.EventMetaData;
 import org.apache.tez.runtime.api.impl.EventMetaData.EventProducerConsumerType;
 import org.apache.tez.runtime.api.impl.TezEvent;
@@ -115,6 +121,116 @@ public class TestEdge {
 
   }
   
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test (timeout = 5000)
+  public void testOnDemandRouting() {
+    EventHandler eventHandler = mock(EventHandler.class);
+    EdgeProperty edgeProp = new EdgeProperty(DataMovementType.SCATTER_GATHER,
+        DataSourceType.PERSISTED, SchedulingType.SEQUENTIAL, mock(OutputDescriptor.class),
+        mock(InputDescriptor.class));
+    Edge edge = new Edge(edgeProp, eventHandler);
+    edge.setOnDemandRouting(true);
+
+    TezVertexID srcVertexID = createVertexID(1);
+    TezVertexID destVertexID = createVertexID(2);
+    LinkedHashMap<TezTaskID, Task> srcTasks = mockTasks(srcVertexID, 2);
+    LinkedHashMap<TezTaskID, Task> destTasks = mockTasks(destVertexID, 5);
+
+    edge.setSourceVertex(mockVertex("src", srcVertexID, srcTasks));
+    edge.setDestinationVertex(mockVertex("dest", destVertexID, destTasks));
+    edge.initialize();
+    assertTrue(edge.isRoutingOnDemand());
+
+    Iterator<TezTaskID> srcTaskIter = srcTasks.keySet().iterator();
+    TezTaskAttemptID srcTAID0 = createTAIDForTest(srcTaskIter.next(), 1);
+    TezTaskAttemptID srcTAID1 = createTAIDForTest(srcTaskIter.next(), 0);
+    EventMetaData srcMeta0 = new EventMetaData(EventProducerConsumerType.OUTPUT,
+        "consumerVertex", "producerVertex", srcTAID0);
+    EventMetaData srcMeta1 = new EventMetaData(EventProducerConsumerType.OUTPUT,
+        "consumerVertex", "producerVertex", srcTAID1);
+
+    CompositeDataMovementEvent cdmEvent =
+        new CompositeDataMovementEvent(0, destTasks.size(), "bytes".getBytes());
+    cdmEvent.setVersion(1);
+    edge.sendTezEventToDestinationTasks(new TezEvent(cdmEvent, srcMeta0));
+    DataMovementEvent dmEvent = new DataMovementEvent(3, "bytes".getBytes());
+    dmEvent.setVersion(0);
+    edge.sendTezEventToDestinationTasks(new TezEvent(dmEvent, srcMeta1));
+    InputFailedEvent ifEvent = new InputFailedEvent();
+    ifEvent.setVersion(1);
+    edge.sendTezEventToDestinationTasks(new TezEvent(ifEvent, srcMeta0));
+
+    // nothing is sent to the destination tasks when the events arrive
+    verify(eventHandler, never()).handle(any(Event.class));
+
+    List<TezEvent> events = new ArrayList<TezEvent>();
+    assertEquals(3, edge.routeOnDemandEventsToTask(3, 0, 100, events));
+    assertEquals(3, events.size());
+    DataMovementEvent routedDmEvent = (DataMovementEvent) events.get(0).getEvent();
+    assertEquals(3, routedDmEvent.getSourceIndex());
+    assertEquals(0, routedDmEvent.getTargetIndex());
+    assertEquals(1, routedDmEvent.getVersion());
+    routedDmEvent = (DataMovementEvent) events.get(1).getEvent();
+    assertEquals(3, routedDmEvent.getSourceIndex());
+    assertEquals(1, routedDmEvent.getTargetIndex());
+    assertEquals(0, routedDmEvent.getVersion());
+    InputFailedEvent routedIfEvent = (InputFailedEvent) events.get(2).getEvent();
+    assertEquals(0, routedIfEvent.getTargetIndex());
+    assertEquals(1, routedIfEvent.getVersion());
+
+    // destination task 1 does not get the data movement event for task 3
+    events.clear();
+    assertEquals(1, edge.routeOnDemandEventsToTask(1, 0, 1, events));
+    assertEquals(1, events.size());
+    assertEquals(3, edge.routeOnDemandEventsToTask(1, 1, 1, events));
+    assertEquals(2, events.size());
+    assertTrue(events.get(1).getEvent() instanceof InputFailedEvent);
+  }
+
+  public static class ReplacedScatterGatherEdgeManager
+      extends ScatterGatherEdgeManager {
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  @Test (timeout = 5000)
+  public void testOnDemandRoutingStopsWithCustomEdgeManager() {
+    EventHandler eventHandler = mock(EventHandler.class);
+    EdgeProperty edgeProp = new EdgeProperty(DataMovementType.SCATTER_GATHER,
+        DataSourceType.PERSISTED, SchedulingType.SEQUENTIAL, mock(OutputDescriptor.class),
+        mock(InputDescriptor.class));
+    Edge edge = new Edge(edgeProp, eventHandler);
+    edge.setOnDemandRouting(true);
+
+    TezVertexID srcVertexID = createVertexID(1);
+    TezVertexID destVertexID = createVertexID(2);
+    LinkedHashMap<TezTaskID, Task> srcTasks = mockTasks(srcVertexID, 1);
+    LinkedHashMap<TezTaskID, Task> destTasks = mockTasks(destVertexID, 5);
+
+    edge.setSourceVertex(mockVertex("src", srcVertexID, srcTasks));
+    edge.setDestinationVertex(mockVertex("dest", destVertexID, destTasks));
+    edge.initialize();
+
+    TezTaskAttemptID srcTAID = createTAIDForTest(
+        srcTasks.keySet().iterator().next(), 0);
+    EventMetaData srcMeta = new EventMetaData(EventProducerConsumerType.OUTPUT,
+        "consumerVertex", "producerVertex", srcTAID);
+    DataMovementEvent dmEvent = new DataMovementEvent(3, "bytes".getBytes());
+    dmEvent.setVersion(0);
+    edge.sendTezEventToDestinationTasks(new TezEvent(dmEvent, srcMeta));
+    verify(eventHandler, never()).handle(any(Event.class));
+
+    // a subclass of the scatter-gather edge manager may route differently, so
+    // the stored event is routed through it
+    edge.setCustomEdgeManager(new EdgeManagerDescriptor(
+        ReplacedScatterGatherEdgeManager.class.getName()));
+    assertFalse(edge.isRoutingOnDemand());
+    verify(eventHandler, times(1)).handle(any(Event.class));
+
+    List<TezEvent> events = new ArrayList<TezEvent>();
+    assertEquals(0, edge.routeOnDemandEventsToTask(3, 0, 100, events));
+    assertTrue(events.isEmpty());
+  }
+
   @SuppressWarnings("rawtypes")
   private void verifyEvents(List<Event> events, TezTaskAttemptID srcTAID, LinkedHashMap<TezTaskID, Task> destTasks) {
     int count = 0;
@@ -0,0 +1,79 @@
+/* Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.dag.impl;
+
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.counters.FileSystemCounter;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRunningCounters {
+
+  private static TezCounters createCounters(long records, long bytesRead) {
+    TezCounters counters = new TezCounters();
+    counters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).setValue(records);
+    counters.findCounter("hdfs", FileSystemCounter.BYTES_READ)
+        .setValue(bytesRead);
+    return counters;
+  }
+
+  private static void assertTotals(TezCounters counters, long records,
+      long bytesRead) {
+    Assert.assertEquals(records,
+        counters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue());
+    Assert.assertEquals(bytesRead,
+        counters.findCounter("hdfs", FileSystemCounter.BYTES_READ).getValue());
+  }
+
+  @Test
+  public void testUpdates() {
+    TezVertexID vertexId = TezVertexID.getInstance(
+        TezDAGID.getInstance(ApplicationId.newInstance(1, 1), 1), 1);
+    TezTaskID task0 = TezTaskID.getInstance(vertexId, 0);
+    TezTaskID task1 = TezTaskID.getInstance(vertexId, 1);
+    RunningCounters running = new RunningCounters();
+
+    running.update(task0, createCounters(10, 100));
+    running.update(task1, createCounters(5, 50));
+    assertTotals(running.get(), 15, 150);
+
+    // A later update replaces the earlier counters of the task.
+    running.update(task0, createCounters(20, 200));
+    assertTotals(running.get(), 25, 250);
+
+    // Changing the counters given to an update does not change the sum.
+    TezCounters counters = createCounters(30, 300);
+    running.update(task1, counters);
+    counters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).setValue(1000);
+    assertTotals(running.get(), 50, 500);
+
+    // Nor does changing the returned copy.
+    running.get().findCounter(TaskCounter.MAP_OUTPUT_RECORDS).setValue(0);
+    assertTotals(running.get(), 50, 500);
+
+    running.remove(task0);
+    assertTotals(running.get(), 30, 300);
+    running.update(task1, null);
+    assertTotals(running.get(), 0, 0);
+  }
+}
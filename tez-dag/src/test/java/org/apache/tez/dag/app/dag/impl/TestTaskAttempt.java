@@ -20,9 +20,11 @@ package org.apache.tez.dag.app.dag.impl;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -56,6 +58,7 @@ import org.apache.hadoop.yarn.event.Event;
 import org.apache.hadoop.yarn.event.EventHandler;
 import org.apache.hadoop.yarn.util.Clock;
 import org.apache.hadoop.yarn.util.SystemClock;
+import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.VertexLocationHint.TaskLocationHint;
 import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
 import org.apache.tez.dag.app.AppContext;
@@ -76,6 +79,7 @@ import org.apache.tez.dag.app.dag.event.TaskAttemptEventNodeFailed;
 import org.apache.tez.dag.app.dag.event.TaskAttemptEventOutputFailed;
 import org.apache.tez.dag.app.dag.event.TaskAttemptEventSchedule;
 import org.apache.tez.dag.app.dag.event.TaskAttemptEventStartedRemotely;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEventStatusUpdate;
 import org.apache.tez.dag.app.dag.event.TaskAttemptEventType;
 import org.apache.tez.dag.app.dag.event.TaskEventTAUpdate;
 import org.apache.tez.dag.app.rm.AMSchedulerEventTAEnded;
@@ -87,6 +91,7 @@ import org.apache.tez.dag.records.TezTaskAttemptID;
 import org.apache.tez.dag.records.TezTaskID;
 import org.apache.tez.dag.records.TezVertexID;
 import org.apache.tez.runtime.api.events.InputReadErrorEvent;
+import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
 import org.apache.tez.runtime.api.impl.EventMetaData;
 import org.apache.tez.runtime.api.impl.TaskSpec;
 import org.apache.tez.runtime.api.impl.TezEvent;
@@ -499,6 +504,92 @@ public class TestTaskAttempt {
     // TODO Ensure TA_TERMINATING after this is ingored.
   }
 
+  @Test(timeout = 5000)
+  // Ensure the vertex is only asked to refresh counters when they change
+  public void testStatusUpdateRefreshesCountersOnlyWhenChanged()
+      throws Exception {
+    ApplicationId appId = ApplicationId.newInstance(1, 2);
+    ApplicationAttemptId appAttemptId = ApplicationAttemptId.newInstance(
+        appId, 0);
+    TezDAGID dagID = TezDAGID.getInstance(appId, 1);
+    TezVertexID vertexID = TezVertexID.getInstance(dagID, 1);
+    TezTaskID taskID = TezTaskID.getInstance(vertexID, 1);
+    TezTaskAttemptID taskAttemptID = TezTaskAttemptID.getInstance(taskID, 0);
+
+    MockEventHandler eventHandler = new MockEventHandler();
+    TaskAttemptListener taListener = mock(TaskAttemptListener.class);
+    when(taListener.getAddress()).thenReturn(
+        new InetSocketAddress("localhost", 0));
+
+    Configuration taskConf = new Configuration();
+    taskConf.setClass("fs.file.impl", StubbedFS.class, FileSystem.class);
+    taskConf.setBoolean("fs.file.impl.disable.cache", true);
+
+    TaskLocationHint locationHint = new TaskLocationHint(
+        new HashSet<String>(Arrays.asList(new String[] {"127.0.0.1"})), null);
+    Resource resource = Resource.newInstance(1024, 1);
+
+    NodeId nid = NodeId.newInstance("127.0.0.1", 0);
+    ContainerId contId = ContainerId.newInstance(appAttemptId, 3);
+    Container container = mock(Container.class);
+    when(container.getId()).thenReturn(contId);
+    when(container.getNodeId()).thenReturn(nid);
+    when(container.getNodeHttpAddress()).thenReturn("localhost:0");
+
+    AppContext appCtx = mock(AppContext.class);
+    AMContainerMap containers = new AMContainerMap(
+        mock(ContainerHeartbeatHandler.class), mock(TaskAttemptListener.class),
+        new ContainerContextMatcher(), appCtx);
+    containers.addContainerIfNew(container);
+
+    doReturn(new ClusterInfo()).when(appCtx).getClusterInfo();
+    doReturn(containers).when(appCtx).getAllContainers();
+
+    MockTaskAttemptImpl taImpl = new MockTaskAttemptImpl(taskID, 1,
+        eventHandler, taListener, taskConf, new SystemClock(),
+        mock(TaskHeartbeatHandler.class), appCtx, locationHint, false,
+        resource, createFakeContainerContext(), false);
+
+    taImpl.handle(new TaskAttemptEventSchedule(taskAttemptID, null));
+    taImpl.handle(new TaskAttemptEventStartedRemotely(taskAttemptID, contId,
+        null));
+    assertEquals("Task attempt is not in running state", taImpl.getState(),
+        TaskAttemptState.RUNNING);
+    verify(taImpl.mockVertex, never()).refreshTaskCounters(taskID);
+
+    // progress only
+    taImpl.handle(new TaskAttemptEventStatusUpdate(taskAttemptID,
+        new TaskStatusUpdateEvent(null, 0.1f, true)));
+    verify(taImpl.mockVertex, never()).refreshTaskCounters(taskID);
+
+    TezCounters counters = new TezCounters();
+    counters.findCounter("group", "counter").increment(1);
+    taImpl.handle(new TaskAttemptEventStatusUpdate(taskAttemptID,
+        new TaskStatusUpdateEvent(counters, 0.2f)));
+    verify(taImpl.mockVertex, times(1)).refreshTaskCounters(taskID);
+    assertEquals(1, taImpl.getCounters().findCounter("group", "counter")
+        .getValue());
+
+    taImpl.handle(new TaskAttemptEventStatusUpdate(taskAttemptID,
+        new TaskStatusUpdateEvent(null, 0.3f, true)));
+    verify(taImpl.mockVertex, times(1)).refreshTaskCounters(taskID);
+
+    TezCounters before = taImpl.getCounters();
+    TezCounters delta = new TezCounters();
+    delta.findCounter("group", "counter").increment(3);
+    delta.findCounter("group", "other").increment(2);
+    taImpl.handle(new TaskAttemptEventStatusUpdate(taskAttemptID,
+        new TaskStatusUpdateEvent(delta, 0.4f, true)));
+    verify(taImpl.mockVertex, times(2)).refreshTaskCounters(taskID);
+    assertEquals(3, taImpl.getCounters().findCounter("group", "counter")
+        .getValue());
+    assertEquals(2, taImpl.getCounters().findCounter("group", "other")
+        .getValue());
+    // counters handed out earlier are not changed by the delta
+    assertEquals(1, before.findCounter("group", "counter").getValue());
+    assertNull(before.getGroup("group").findCounter("other", false));
+  }
+
   @Test(timeout = 5000)
   // Ensure ContainerTerminating and ContainerTerminated is handled correctly by
   // the TaskAttempt
@@ -22,6 +22,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyList;
 import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -46,6 +48,8 @@ import org.apache.hadoop.yarn.event.Event;
 import org.apache.hadoop.yarn.event.EventHandler;
 import org.apache.hadoop.yarn.util.Clock;
 import org.apache.hadoop.yarn.util.SystemClock;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.TezUncheckedException;
 import org.apache.tez.dag.api.VertexLocationHint.TaskLocationHint;
 import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
 import org.apache.tez.dag.api.oldrecords.TaskState;
@@ -76,6 +80,8 @@ import org.apache.tez.runtime.api.impl.TezEvent;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class TestTaskImpl {
 
@@ -512,6 +518,79 @@ public class TestTaskImpl {
     Assert.assertEquals(VertexEventType.V_TASK_RESCHEDULED, event.getType());
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testTaskAttemptTezEventsOnDemand() {
+    conf.setBoolean(
+        TezConfiguration.TEZ_AM_SCATTER_GATHER_ON_DEMAND_ROUTING_ENABLED, true);
+    // three events stored on the edge for this task
+    final TezEvent edgeEvent = new TezEvent(new DataMovementEvent(null),
+        new EventMetaData());
+    Edge edge = mock(Edge.class);
+    when(edge.isRoutingOnDemand()).thenReturn(true);
+    when(edge.routeOnDemandEventsToTask(anyInt(), anyInt(), anyInt(),
+        anyList())).thenAnswer(new Answer<Integer>() {
+          @Override
+          public Integer answer(InvocationOnMock invocation) {
+            Object[] args = invocation.getArguments();
+            int index = (Integer) args[1];
+            int maxEvents = (Integer) args[2];
+            List<TezEvent> events = (List<TezEvent>) args[3];
+            while (index < 3 && maxEvents-- > 0) {
+              events.add(edgeEvent);
+              index++;
+            }
+            return index;
+          }
+        });
+    Vertex vertex = mock(Vertex.class);
+    Map<Vertex, Edge> inputVertices = new HashMap<Vertex, Edge>();
+    inputVertices.put(mock(Vertex.class), edge);
+    when(vertex.getInputVertices()).thenReturn(inputVertices);
+    mockTask = new MockTaskImpl(vertexId, partition,
+        eventHandler, conf, taskAttemptListener, clock,
+        taskHeartbeatHandler, appContext, leafVertex, locationHint,
+        taskResource, containerContext, vertex);
+
+    TezTaskID taskId = getNewTaskID();
+    scheduleTaskAttempt(taskId);
+    launchTaskAttempt(mockTask.getLastAttempt().getID());
+    sendTezEventsToTask(taskId, 2);
+    TezTaskAttemptID attemptId = mockTask.getLastAttempt().getID();
+
+    // the task's own events come first
+    assertEquals(4, mockTask.getTaskAttemptTezEvents(attemptId, 0, 4).size());
+    assertEquals(1, mockTask.getNumAttemptEventCursors());
+    // a lost response may be asked for again
+    assertEquals(1, mockTask.getTaskAttemptTezEvents(attemptId, 4, 4).size());
+    assertEquals(1, mockTask.getTaskAttemptTezEvents(attemptId, 4, 4).size());
+    assertEquals(0, mockTask.getTaskAttemptTezEvents(attemptId, 5, 4).size());
+    try {
+      // positions before the last request are forgotten
+      mockTask.getTaskAttemptTezEvents(attemptId, 4, 4);
+      fail("Expected events from an acknowledged position to be refused");
+    } catch (TezUncheckedException e) {
+    }
+
+    // the cursors go away with the attempt
+    failRunningTaskAttempt(attemptId);
+    assertEquals(0, mockTask.getNumAttemptEventCursors());
+    TezTaskAttemptID nextAttemptId = mockTask.getLastAttempt().getID();
+    launchTaskAttempt(nextAttemptId);
+    assertEquals(5,
+        mockTask.getTaskAttemptTezEvents(nextAttemptId, 0, 10).size());
+    assertEquals(1, mockTask.getNumAttemptEventCursors());
+    // an attempt the task does not know of gets no events
+    TezTaskAttemptID unknownAttemptId = TezTaskAttemptID.getInstance(taskId, 10);
+    assertEquals(0,
+        mockTask.getTaskAttemptTezEvents(unknownAttemptId, 0, 10).size());
+    assertEquals(1, mockTask.getNumAttemptEventCursors());
+    mockTask.handle(new TaskEventTAUpdate(nextAttemptId,
+        TaskEventType.T_ATTEMPT_SUCCEEDED));
+    assertTaskSucceededState();
+    assertEquals(0, mockTask.getNumAttemptEventCursors());
+  }
+
   // TODO Add test to validate the correct commit attempt.
 
   @SuppressWarnings("rawtypes")
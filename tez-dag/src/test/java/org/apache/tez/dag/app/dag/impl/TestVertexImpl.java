@@ -54,6 +54,7 @@ import org.apache.hadoop.yarn.event.DrainDispatcher;
 import org.apache.hadoop.yarn.event.EventHandler;
 import org.apache.hadoop.yarn.util.Clock;
 import org.apache.hadoop.yarn.util.SystemClock;
+import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.DagTypeConverters;
 import org.apache.tez.dag.api.EdgeManager;
 import org.apache.tez.dag.api.EdgeManagerContext;
@@ -1524,6 +1525,53 @@ public class TestVertexImpl {
     Assert.assertEquals(2, v.getCompletedTasks());
   }
 
+  @Test(timeout = 5000)
+  public void testRunningCounters() {
+    initAllVertices(VertexState.INITED);
+
+    VertexImpl v = vertices.get("vertex2");
+    startVertex(v);
+
+    TezTaskID t1 = TezTaskID.getInstance(v.getVertexId(), 0);
+    TezTaskID t2 = TezTaskID.getInstance(v.getVertexId(), 1);
+    TezCounters counters1 = new TezCounters();
+    TezCounters counters2 = new TezCounters();
+    Task task1 = mock(Task.class);
+    Task task2 = mock(Task.class);
+    doReturn(counters1).when(task1).getCounters();
+    doReturn(counters2).when(task2).getCounters();
+    v.tasks.put(t1, task1);
+    v.tasks.put(t2, task2);
+
+    counters1.findCounter("group", "counter").increment(1);
+    counters2.findCounter("group", "counter").increment(2);
+    counters2.findCounter("group", "other").increment(5);
+    v.refreshTaskCounters(t1);
+    v.refreshTaskCounters(t2);
+    TezCounters total = v.getAllCounters();
+    Assert.assertEquals(3, total.findCounter("group", "counter").getValue());
+    Assert.assertEquals(5, total.findCounter("group", "other").getValue());
+
+    // the totals only move when the task counters are refreshed
+    counters1.findCounter("group", "counter").increment(10);
+    Assert.assertEquals(3,
+        v.getAllCounters().findCounter("group", "counter").getValue());
+    v.refreshTaskCounters(t1);
+    total = v.getAllCounters();
+    Assert.assertEquals(13, total.findCounter("group", "counter").getValue());
+    Assert.assertEquals(5, total.findCounter("group", "other").getValue());
+
+    // a task whose best attempt changed reports lower counters
+    TezCounters replaced = new TezCounters();
+    replaced.findCounter("group", "counter").increment(4);
+    doReturn(replaced).when(task2).getCounters();
+    v.refreshTaskCounters(t2);
+    total = v.getAllCounters();
+    Assert.assertEquals(15, total.findCounter("group", "counter").getValue());
+    Assert.assertEquals(0, total.findCounter("group", "other").getValue());
+    Assert.assertEquals(VertexState.RUNNING, v.getState());
+  }
+
   @SuppressWarnings("unchecked")
   @Test(timeout = 5000)
   @Ignore // FIXME fix verteximpl for this test to work
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.rm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.app.AppContext;
+import org.apache.tez.dag.app.DAGAppMaster;
+import org.apache.tez.dag.app.rm.TaskScheduler.TaskSchedulerAppCallback;
+import org.apache.tez.dag.app.rm.container.ContainerSignatureMatcher;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class TestLocalTaskScheduler {
+
+  static class LocalTaskSchedulerWithSyncAppCallback extends LocalTaskScheduler {
+    public LocalTaskSchedulerWithSyncAppCallback(
+        TaskSchedulerAppCallback appClient, AppContext appContext) {
+      super(appClient, mock(ContainerSignatureMatcher.class), "host", 0, "",
+          appContext);
+    }
+
+    @Override
+    TaskSchedulerAppCallback createAppCallbackDelegate(
+        TaskSchedulerAppCallback realAppClient) {
+      return realAppClient;
+    }
+  }
+
+  private LocalTaskScheduler createScheduler(TaskSchedulerAppCallback appClient,
+      int maxTasks) {
+    ApplicationAttemptId appAttemptId = ApplicationAttemptId.newInstance(
+        ApplicationId.newInstance(1000, 1), 1);
+    DAGAppMaster appMaster = mock(DAGAppMaster.class);
+    when(appMaster.getAppNMHost()).thenReturn("localhost");
+    when(appMaster.getAppContainerId()).thenReturn(
+        ContainerId.newInstance(appAttemptId, 1));
+    AppContext appContext = mock(AppContext.class);
+    when(appContext.getAppMaster()).thenReturn(appMaster);
+    when(appContext.getApplicationAttemptId()).thenReturn(appAttemptId);
+
+    Configuration conf = new Configuration();
+    conf.setBoolean(TezConfiguration.TEZ_LOCAL_MODE, true);
+    conf.setInt(TezConfiguration.TEZ_AM_INLINE_TASK_EXECUTION_MAX_TASKS,
+        maxTasks);
+    LocalTaskScheduler scheduler = new LocalTaskSchedulerWithSyncAppCallback(
+        appClient, appContext);
+    scheduler.init(conf);
+    scheduler.start();
+    return scheduler;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test(timeout = 5000)
+  public void testAllocationsInPriorityOrder() {
+    TaskSchedulerAppCallback appClient = mock(TaskSchedulerAppCallback.class);
+    LocalTaskScheduler scheduler = createScheduler(appClient, 1);
+    verify(appClient).setApplicationRegistrationData(any(Resource.class),
+        any(Map.class), any(ByteBuffer.class));
+
+    Resource capability = Resource.newInstance(100, 1);
+    Object task1 = new Object();
+    Object task2 = new Object();
+    Object task3 = new Object();
+    scheduler.allocateTask(task1, capability, null, null,
+        Priority.newInstance(5), null, "cookie1");
+    ArgumentCaptor<Container> captor = ArgumentCaptor.forClass(Container.class);
+    verify(appClient).taskAllocated(eq(task1), eq("cookie1"), captor.capture());
+    Container container1 = captor.getValue();
+    assertEquals(2, container1.getId().getId());
+
+    // Only one task runs at a time, a lower value is scheduled first.
+    scheduler.allocateTask(task2, capability, null, null,
+        Priority.newInstance(5), null, "cookie2");
+    scheduler.allocateTask(task3, capability, null, null,
+        Priority.newInstance(2), null, "cookie3");
+    assertEquals(1, scheduler.getNumRunningTasks());
+    assertEquals(2, scheduler.getNumPendingTasks());
+    assertEquals(0, scheduler.getAvailableResources().getVirtualCores());
+
+    assertTrue(scheduler.deallocateTask(task1, true));
+    verify(appClient).containerBeingReleased(container1.getId());
+    verify(appClient).taskAllocated(eq(task3), eq("cookie3"),
+        any(Container.class));
+    verify(appClient, never()).taskAllocated(eq(task2), any(),
+        any(Container.class));
+
+    // A pending task is removed without a container.
+    assertFalse(scheduler.deallocateTask(task2, false));
+    assertEquals(0, scheduler.getNumPendingTasks());
+    scheduler.stop();
+  }
+
+  @Test(timeout = 5000)
+  public void testDeallocateContainer() {
+    TaskSchedulerAppCallback appClient = mock(TaskSchedulerAppCallback.class);
+    LocalTaskScheduler scheduler = createScheduler(appClient, 2);
+    Resource capability = Resource.newInstance(100, 1);
+    Object task1 = new Object();
+    scheduler.allocateTask(task1, capability, null, null,
+        Priority.newInstance(1), null, null);
+    ArgumentCaptor<Container> captor = ArgumentCaptor.forClass(Container.class);
+    verify(appClient).taskAllocated(eq(task1), any(), captor.capture());
+    assertEquals(1, scheduler.getAvailableResources().getVirtualCores());
+
+    assertEquals(task1, scheduler.deallocateContainer(captor.getValue().getId()));
+    assertEquals(0, scheduler.getNumRunningTasks());
+    assertEquals(null, scheduler.deallocateContainer(captor.getValue().getId()));
+    scheduler.stop();
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.app.speculate;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.event.Event;
+import org.apache.hadoop.yarn.event.EventHandler;
+import org.apache.hadoop.yarn.util.SystemClock;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.api.oldrecords.TaskAttemptState;
+import org.apache.tez.dag.api.oldrecords.TaskState;
+import org.apache.tez.dag.app.AppContext;
+import org.apache.tez.dag.app.ControlledClock;
+import org.apache.tez.dag.app.dag.DAG;
+import org.apache.tez.dag.app.dag.Task;
+import org.apache.tez.dag.app.dag.TaskAttempt;
+import org.apache.tez.dag.app.dag.Vertex;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEvent;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEventStatusUpdate;
+import org.apache.tez.dag.app.dag.event.TaskAttemptEventType;
+import org.apache.tez.dag.app.dag.event.TaskEvent;
+import org.apache.tez.dag.app.dag.event.TaskEventType;
+import org.apache.tez.dag.records.TezDAGID;
+import org.apache.tez.dag.records.TezTaskAttemptID;
+import org.apache.tez.dag.records.TezTaskID;
+import org.apache.tez.dag.records.TezVertexID;
+import org.apache.tez.runtime.api.events.TaskStatusUpdateEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("rawtypes")
+public class TestDefaultSpeculator {
+
+  private static final int NUM_TASKS = 10;
+
+  private final List<TaskEvent> taskEvents = new ArrayList<TaskEvent>();
+  private ControlledClock clock;
+  private TezVertexID vertexId;
+  private Vertex vertex;
+  private DefaultSpeculator speculator;
+
+  private class TaskEventCaptor implements EventHandler {
+    @Override
+    public void handle(Event event) {
+      taskEvents.add((TaskEvent) event);
+    }
+  }
+
+  @Before
+  public void setup() {
+    ApplicationId appId = ApplicationId.newInstance(1, 1);
+    TezDAGID dagId = TezDAGID.getInstance(appId, 1);
+    vertexId = TezVertexID.getInstance(dagId, 1);
+    clock = new ControlledClock(new SystemClock());
+    clock.setTime(0);
+
+    DAG dag = mock(DAG.class);
+    when(dag.getID()).thenReturn(dagId);
+    vertex = mock(Vertex.class);
+    when(vertex.getTotalTasks()).thenReturn(NUM_TASKS);
+    when(dag.getVertex(vertexId)).thenReturn(vertex);
+
+    AppContext appContext = mock(AppContext.class);
+    when(appContext.getEventHandler()).thenReturn(new TaskEventCaptor());
+    when(appContext.getClock()).thenReturn(clock);
+    when(appContext.getCurrentDAG()).thenReturn(dag);
+
+    Configuration conf = new Configuration();
+    conf.setFloat(TezConfiguration.TEZ_AM_SPECULATION_MIN_COMPLETED_FRACTION,
+        0.5f);
+    speculator = new DefaultSpeculator(appContext);
+    speculator.init(conf);
+  }
+
+  private TaskAttempt createAttempt(int taskIndex, TaskState taskState,
+      TaskAttemptState attemptState, long launchTime, long finishTime) {
+    TezTaskID taskId = TezTaskID.getInstance(vertexId, taskIndex);
+    TezTaskAttemptID attemptId = TezTaskAttemptID.getInstance(taskId, 0);
+    Task task = mock(Task.class);
+    when(task.getState()).thenReturn(taskState);
+    when(task.isFinished()).thenReturn(taskState == TaskState.SUCCEEDED);
+    when(task.getVertex()).thenReturn(vertex);
+    TaskAttempt attempt = mock(TaskAttempt.class);
+    when(attempt.getID()).thenReturn(attemptId);
+    when(attempt.getTaskID()).thenReturn(taskId);
+    when(attempt.getVertexID()).thenReturn(vertexId);
+    when(attempt.getTask()).thenReturn(task);
+    when(attempt.getState()).thenReturn(attemptState);
+    when(attempt.isFinished()).thenReturn(
+        attemptState == TaskAttemptState.SUCCEEDED);
+    when(attempt.getLaunchTime()).thenReturn(launchTime);
+    when(attempt.getFinishTime()).thenReturn(finishTime);
+    when(task.getAttempt(attemptId)).thenReturn(attempt);
+    when(vertex.getTask(taskId)).thenReturn(task);
+    return attempt;
+  }
+
+  private void completeTasks(int numTasks, long runtime) {
+    for (int i = 0; i < numTasks; i++) {
+      TaskAttempt attempt = createAttempt(i, TaskState.SUCCEEDED,
+          TaskAttemptState.SUCCEEDED, 1, 1 + runtime + i);
+      speculator.handle(new TaskAttemptEvent(attempt.getID(),
+          TaskAttemptEventType.TA_DONE));
+    }
+  }
+
+  private void reportProgress(TaskAttempt attempt, float progress) {
+    speculator.handle(new TaskAttemptEventStatusUpdate(attempt.getID(),
+        new TaskStatusUpdateEvent(null, progress)));
+  }
+
+  @Test(timeout = 5000)
+  public void testSpeculateStraggler() {
+    completeTasks(8, 100000);
+    TaskAttempt straggler = createAttempt(8, TaskState.RUNNING,
+        TaskAttemptState.RUNNING, 1, 0);
+    TaskAttempt onTrack = createAttempt(9, TaskState.RUNNING,
+        TaskAttemptState.RUNNING, 1, 0);
+
+    clock.setTime(50000);
+    reportProgress(straggler, 0.05f);
+    reportProgress(onTrack, 0.5f);
+    speculator.scan();
+
+    assertEquals(1, taskEvents.size());
+    assertEquals(straggler.getTaskID(), taskEvents.get(0).getTaskID());
+    assertEquals(TaskEventType.T_ADD_SPEC_ATTEMPT, taskEvents.get(0).getType());
+
+    // A task is only speculated once.
+    clock.setTime(60000);
+    reportProgress(straggler, 0.06f);
+    speculator.scan();
+    assertEquals(1, taskEvents.size());
+  }
+
+  @Test(timeout = 5000)
+  public void testNoSpeculationWithoutCompletedTasks() {
+    completeTasks(2, 100000);
+    TaskAttempt straggler = createAttempt(8, TaskState.RUNNING,
+        TaskAttemptState.RUNNING, 1, 0);
+
+    clock.setTime(50000);
+    reportProgress(straggler, 0.05f);
+    speculator.scan();
+    assertEquals(0, taskEvents.size());
+  }
+
+  @Test(timeout = 5000)
+  public void testNoSpeculationWhenNearlyDone() {
+    completeTasks(8, 100000);
+    // Slow, but a new attempt would not finish any earlier.
+    TaskAttempt attempt = createAttempt(8, TaskState.RUNNING,
+        TaskAttemptState.RUNNING, 1, 0);
+
+    clock.setTime(190000);
+    reportProgress(attempt, 0.95f);
+    speculator.scan();
+    assertEquals(0, taskEvents.size());
+  }
+
+  @Test(timeout = 5000)
+  public void testRuntimeStatistics() {
+    DefaultSpeculator.RuntimeStatistics stats =
+        new DefaultSpeculator.RuntimeStatistics();
+    assertEquals(0, stats.count());
+    assertEquals(0.0, stats.mean(), 0.0);
+    stats.add(2);
+    stats.add(4);
+    stats.add(4);
+    stats.add(4);
+    stats.add(5);
+    stats.add(5);
+    stats.add(7);
+    stats.add(9);
+    assertEquals(8, stats.count());
+    assertEquals(5.0, stats.mean(), 0.0001);
+    assertEquals(2.0, stats.stddev(), 0.0001);
+  }
+}
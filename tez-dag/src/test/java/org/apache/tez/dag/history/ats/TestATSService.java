@@ -18,6 +18,10 @@
 
 package org.apache.tez.dag.history.ats;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.hadoop.yarn.api.records.timeline.TimelineEntity;
@@ -32,6 +36,7 @@ import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
@@ -103,4 +108,52 @@ public class TestATSService {
 
   }
 
+  @Test(timeout=20000)
+  public void testATSServiceBatching() throws Exception {
+    atsService.stop();
+    final List<Integer> batchSizes =
+        Collections.synchronizedList(new ArrayList<Integer>());
+    Configuration batchConf = new Configuration(conf);
+    batchConf.setInt(TezConfiguration.YARN_ATS_EVENT_BATCH_SIZE, 10);
+    batchConf.setLong(TezConfiguration.YARN_ATS_EVENT_BATCH_LATENCY_MILLIS,
+        1000l);
+    atsService = new ATSService(appContext);
+    atsService.init(batchConf);
+    atsService.timelineClient = mock(TimelineClient.class);
+    when(atsService.timelineClient.putEntities(
+        Matchers.<TimelineEntity>anyVararg())).thenAnswer(
+        new Answer<Object>() {
+          @Override
+          public Object answer(InvocationOnMock invocation) throws Throwable {
+            batchSizes.add(invocation.getArguments().length);
+            return null;
+          }
+        });
+    atsService.start();
+
+    TezDAGID tezDAGID = TezDAGID.getInstance(
+        ApplicationId.newInstance(100l, 1), 1);
+    DAGHistoryEvent historyEvent = new DAGHistoryEvent(tezDAGID,
+        new DAGStartedEvent(tezDAGID, 1001l, "user1", "dagName1"));
+    for (int i = 0; i < 25; ++i) {
+      atsService.handle(historyEvent);
+    }
+    atsService.stop();
+
+    // a batch taken just before the stop may still be in flight
+    while (atsService.metrics.eventsPosted.value() < 25) {
+      Thread.sleep(10);
+    }
+    int eventsPosted = 0;
+    synchronized (batchSizes) {
+      for (int batchSize : batchSizes) {
+        Assert.assertTrue(batchSize <= 10);
+        eventsPosted += batchSize;
+      }
+    }
+    Assert.assertEquals(25, eventsPosted);
+    Assert.assertTrue(batchSizes.size() < 25);
+    Assert.assertEquals(25, atsService.metrics.eventsPosted.value());
+  }
+
 }
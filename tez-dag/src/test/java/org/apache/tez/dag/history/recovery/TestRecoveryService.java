@@ -0,0 +1,313 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.dag.history.recovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.Syncable;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.util.SystemClock;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.dag.app.AppContext;
+import org.apache.tez.dag.app.dag.DAGState;
+import org.apache.tez.dag.history.DAGHistoryEvent;
+import org.apache.tez.dag.history.events.DAGFinishedEvent;
+import org.apache.tez.dag.records.TezDAGID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestRecoveryService {
+
+  private static final File TEST_DIR = new File(System.getProperty(
+      "test.build.data", "target"), TestRecoveryService.class.getName())
+      .getAbsoluteFile();
+
+  /**
+   * Keeps what is written, and how much of it was synced. Syncs wait for
+   * the latch, if one is set.
+   */
+  private static class SyncTrackingStream extends OutputStream
+      implements Syncable {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private int syncedLength = 0;
+    private int syncCount = 0;
+    private volatile CountDownLatch syncLatch;
+
+    @Override
+    public synchronized void write(int b) {
+      written.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      written.write(b, off, len);
+    }
+
+    public void sync() throws IOException {
+      hsync();
+    }
+
+    @Override
+    public void hflush() throws IOException {
+    }
+
+    @Override
+    public void hsync() throws IOException {
+      CountDownLatch latch = syncLatch;
+      if (latch != null) {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      synchronized (this) {
+        syncedLength = written.size();
+        syncCount++;
+      }
+    }
+
+    synchronized int getWrittenLength() {
+      return written.size();
+    }
+
+    synchronized int getSyncedLength() {
+      return syncedLength;
+    }
+
+    synchronized int getSyncCount() {
+      return syncCount;
+    }
+  }
+
+  private final ApplicationId appId = ApplicationId.newInstance(1000, 1);
+  private final ConcurrentMap<String, SyncTrackingStream> streams =
+      new ConcurrentHashMap<String, SyncTrackingStream>();
+  // set before the summary stream is created to block its syncs
+  private volatile CountDownLatch summarySyncLatch;
+  private RecoveryService recoveryService;
+
+  @Before
+  public void setup() throws IOException {
+    AppContext appContext = mock(AppContext.class);
+    when(appContext.getApplicationID()).thenReturn(appId);
+    when(appContext.getClock()).thenReturn(new SystemClock());
+    when(appContext.getCurrentRecoveryDir()).thenReturn(
+        new Path(TEST_DIR.getAbsolutePath()));
+
+    FileSystem fs = mock(FileSystem.class);
+    when(fs.exists(any(Path.class))).thenReturn(false);
+    when(fs.create(any(Path.class), anyBoolean(), anyInt())).thenAnswer(
+        new Answer<FSDataOutputStream>() {
+          @Override
+          public FSDataOutputStream answer(InvocationOnMock invocation) {
+            Path path = (Path) invocation.getArguments()[0];
+            SyncTrackingStream stream = new SyncTrackingStream();
+            if (path.getName().endsWith(
+                TezConfiguration.DAG_RECOVERY_SUMMARY_FILE_SUFFIX)) {
+              stream.syncLatch = summarySyncLatch;
+            }
+            streams.put(path.getName(), stream);
+            return new FSDataOutputStream(stream, null);
+          }
+        });
+
+    recoveryService = new RecoveryService(appContext);
+    recoveryService.init(new Configuration());
+    recoveryService.recoveryDirFS = fs;
+    recoveryService.start();
+  }
+
+  @After
+  public void cleanup() {
+    recoveryService.stop();
+  }
+
+  private SyncTrackingStream getSummaryStream() {
+    return streams.get(appId
+        + TezConfiguration.DAG_RECOVERY_SUMMARY_FILE_SUFFIX);
+  }
+
+  private SyncTrackingStream getDAGStream(TezDAGID dagId) {
+    return streams.get(dagId
+        + TezConfiguration.DAG_RECOVERY_RECOVER_FILE_SUFFIX);
+  }
+
+  private DAGHistoryEvent createDAGFinishedEvent(int dagIndex) {
+    TezDAGID dagId = TezDAGID.getInstance(appId, dagIndex);
+    return new DAGHistoryEvent(dagId, new DAGFinishedEvent(dagId, 1L, 2L,
+        DAGState.SUCCEEDED, null, null, "user", "dag" + dagIndex));
+  }
+
+  /**
+   * Hands a summary event to the recovery service on its own thread.
+   */
+  private class HandleThread extends Thread {
+    private final DAGHistoryEvent event;
+    volatile Throwable error;
+
+    HandleThread(DAGHistoryEvent event) {
+      this.event = event;
+    }
+
+    @Override
+    public void run() {
+      try {
+        recoveryService.handle(event);
+      } catch (Throwable t) {
+        error = t;
+      }
+    }
+
+    void waitForResult() throws Exception {
+      join();
+      if (error != null) {
+        throw new RuntimeException(error);
+      }
+    }
+  }
+
+  private void waitUntilWaiting(Thread thread) throws InterruptedException {
+    while (thread.getState() != Thread.State.WAITING) {
+      Thread.sleep(10);
+    }
+  }
+
+  private void assertDurable(TezDAGID dagId) {
+    SyncTrackingStream dagStream = getDAGStream(dagId);
+    assertNotNull(dagStream);
+    assertTrue(dagStream.getWrittenLength() > 0);
+    assertEquals(dagStream.getWrittenLength(), dagStream.getSyncedLength());
+  }
+
+  @Test(timeout = 10000)
+  public void testSummaryEventDurableBeforeReturn() throws Exception {
+    summarySyncLatch = new CountDownLatch(1);
+    DAGHistoryEvent event = createDAGFinishedEvent(1);
+    HandleThread handle = new HandleThread(event);
+    handle.start();
+    // the caller is held while the summary stream is being synced
+    while (getSummaryStream() == null) {
+      Thread.sleep(10);
+    }
+    waitUntilWaiting(handle);
+    Thread.sleep(100);
+    assertTrue(handle.isAlive());
+    assertEquals(0, getSummaryStream().getSyncCount());
+
+    summarySyncLatch.countDown();
+    handle.waitForResult();
+    SyncTrackingStream summaryStream = getSummaryStream();
+    assertTrue(summaryStream.getWrittenLength() > 0);
+    assertEquals(summaryStream.getWrittenLength(),
+        summaryStream.getSyncedLength());
+    assertDurable(event.getDagID());
+  }
+
+  @Test(timeout = 10000)
+  public void testConcurrentSummaryEventsBatched() throws Exception {
+    summarySyncLatch = new CountDownLatch(1);
+    HandleThread first = new HandleThread(createDAGFinishedEvent(1));
+    first.start();
+    // wait for the commit thread to block in the sync of the first event
+    while (getSummaryStream() == null) {
+      Thread.sleep(10);
+    }
+    waitUntilWaiting(first);
+
+    HandleThread[] others = new HandleThread[3];
+    for (int i = 0; i < others.length; i++) {
+      others[i] = new HandleThread(createDAGFinishedEvent(i + 2));
+      others[i].start();
+    }
+    for (HandleThread other : others) {
+      waitUntilWaiting(other);
+    }
+    summarySyncLatch.countDown();
+    first.waitForResult();
+    for (HandleThread other : others) {
+      other.waitForResult();
+    }
+
+    // one sync for the first event, and one for the others together
+    SyncTrackingStream summaryStream = getSummaryStream();
+    assertEquals(2, summaryStream.getSyncCount());
+    assertEquals(summaryStream.getWrittenLength(),
+        summaryStream.getSyncedLength());
+    for (int i = 1; i <= 4; i++) {
+      assertDurable(TezDAGID.getInstance(appId, i));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testStopFlushesPendingCommits() throws Exception {
+    summarySyncLatch = new CountDownLatch(1);
+    HandleThread first = new HandleThread(createDAGFinishedEvent(1));
+    first.start();
+    while (getSummaryStream() == null) {
+      Thread.sleep(10);
+    }
+    waitUntilWaiting(first);
+    HandleThread pending = new HandleThread(createDAGFinishedEvent(2));
+    pending.start();
+    waitUntilWaiting(pending);
+
+    // stop waits for the commit thread, which is still syncing
+    Thread stop = new Thread() {
+      @Override
+      public void run() {
+        recoveryService.stop();
+      }
+    };
+    stop.start();
+    waitUntilWaiting(stop);
+    summarySyncLatch.countDown();
+    stop.join();
+    first.waitForResult();
+    pending.waitForResult();
+
+    SyncTrackingStream summaryStream = getSummaryStream();
+    assertEquals(summaryStream.getWrittenLength(),
+        summaryStream.getSyncedLength());
+    assertDurable(TezDAGID.getInstance(appId, 1));
+    assertDurable(TezDAGID.getInstance(appId, 2));
+  }
+}
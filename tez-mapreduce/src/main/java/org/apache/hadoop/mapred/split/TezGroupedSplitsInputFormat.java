@@ -32,6 +32,7 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.tez.common.RuntimeUtils;
 import org.apache.tez.dag.api.TezUncheckedException;
+import org.apache.tez.mapreduce.hadoop.InputSplitLister;
 
 import com.google.common.base.Preconditions;
 
@@ -65,7 +66,8 @@ public class TezGroupedSplitsInputFormat<K, V>
   
   @Override
   public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
-    InputSplit[] originalSplits = wrappedInputFormat.getSplits(job, numSplits);
+    InputSplit[] originalSplits = InputSplitLister.getSplits(
+        wrappedInputFormat, job, numSplits);
     TezMapredSplitsGrouper grouper = new TezMapredSplitsGrouper();
     String wrappedInputFormatName = wrappedInputFormat.getClass().getName();
     return grouper.getGroupedSplits(conf, originalSplits, desiredNumSplits, wrappedInputFormatName);
@@ -34,6 +34,7 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.tez.common.RuntimeUtils;
 import org.apache.tez.dag.api.TezUncheckedException;
+import org.apache.tez.mapreduce.hadoop.InputSplitLister;
 
 import com.google.common.base.Preconditions;
 
@@ -100,7 +101,8 @@ public class TezGroupedSplitsInputFormat<K, V> extends InputFormat<K, V>
   @Override
   public List<InputSplit> getSplits(JobContext context) throws IOException,
       InterruptedException {
-    List<InputSplit> originalSplits = wrappedInputFormat.getSplits(context);
+    List<InputSplit> originalSplits = InputSplitLister.getSplits(
+        wrappedInputFormat, context);
     TezMapReduceSplitsGrouper grouper = new TezMapReduceSplitsGrouper();
     String wrappedInputFormatName = wrappedInputFormat.getClass().getName();
     return grouper.getGroupedSplits(conf, originalSplits, desiredNumSplits, wrappedInputFormatName);
@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.mapreduce.hadoop;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsException;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.tez.dag.api.TezUncheckedException;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * The splits computed for FileInputFormats, kept by the AM so that DAGs of
+ * a session reading the same inputs do not list them again. Entries are
+ * keyed by the input format, a digest of the settings the splits are
+ * computed from and the modification times of the input paths, and evicted
+ * least recently used first once they hold more than the configured number
+ * of splits. The settings are those FileInputFormat reads, such as the split
+ * sizes and the compression codecs which decide whether a file can be split,
+ * together with the settings listed in
+ * {@link MRJobConfig#MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_EXTRA_KEYS} for
+ * subclasses which read others. Changes to any other setting reuse the
+ * cached splits.
+ *
+ * Only the input paths themselves are checked for changes, so files which
+ * are rewritten in place, or changes below a sub directory, are not
+ * noticed. The cache is meant for inputs whose directories are only ever
+ * added to or replaced.
+ *
+ * The hits and misses are published as the {@value #NAME} metrics of the
+ * AM.
+ */
+@Private
+class InputSplitCache implements MetricsSource {
+
+  private static final Log LOG = LogFactory.getLog(InputSplitCache.class);
+
+  static final String NAME = "InputSplitCache";
+
+  private static final InputSplitCache INSTANCE = new InputSplitCache();
+  private static boolean metricsRegistered = false;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The settings read by FileInputFormat, of both APIs, while computing
+   * splits.
+   */
+  private static final String[] SPLIT_SETTINGS = {
+      org.apache.hadoop.mapreduce.lib.input.FileInputFormat.SPLIT_MINSIZE,
+      org.apache.hadoop.mapreduce.lib.input.FileInputFormat.SPLIT_MAXSIZE,
+      org.apache.hadoop.mapreduce.lib.input.FileInputFormat.PATHFILTER_CLASS,
+      org.apache.hadoop.mapreduce.lib.input.FileInputFormat.INPUT_DIR_RECURSIVE,
+      CommonConfigurationKeysPublic.IO_COMPRESSION_CODECS_KEY };
+
+  private final LinkedHashMap<String, Object[]> entries =
+      new LinkedHashMap<String, Object[]>(16, 0.75f, true);
+  private long maxSplits;
+  private long numSplits;
+  private long hits;
+  private long misses;
+
+  @VisibleForTesting
+  InputSplitCache() {
+  }
+
+  /**
+   * @return the cache of the AM, or null if the configuration disables it
+   */
+  static InputSplitCache getInstance(Configuration conf) {
+    long maxSplits = conf.getLong(
+        MRJobConfig.MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_MAX_SPLITS,
+        MRJobConfig.MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_MAX_SPLITS_DEFAULT);
+    if (maxSplits <= 0) {
+      return null;
+    }
+    INSTANCE.setMaxSplits(maxSplits);
+    registerMetrics();
+    return INSTANCE;
+  }
+
+  private static synchronized void registerMetrics() {
+    if (metricsRegistered) {
+      return;
+    }
+    metricsRegistered = true;
+    try {
+      DefaultMetricsSystem.instance().register(NAME,
+          "Splits of FileInputFormats cached by the AM", INSTANCE);
+    } catch (MetricsException e) {
+      LOG.warn("Could not register split cache metrics", e);
+    }
+  }
+
+  /**
+   * @return the key of the splits of the given input, or null if the input
+   *         paths do not exist, in which case the input format reports the
+   *         error
+   */
+  static String createKey(Configuration conf, Object inputFormat,
+      Path[] inputPaths, int numSplits) throws IOException {
+    StringBuilder key = new StringBuilder(inputFormat.getClass().getName());
+    key.append('|').append(numSplits);
+    key.append('|').append(digest(conf, getSplitSettings(conf)));
+    for (Path inputPath : inputPaths) {
+      FileSystem fs = inputPath.getFileSystem(conf);
+      FileStatus[] statuses = fs.globStatus(inputPath);
+      if (statuses == null || statuses.length == 0) {
+        return null;
+      }
+      key.append('|').append(fs.makeQualified(inputPath));
+      for (FileStatus status : statuses) {
+        key.append(',').append(status.getPath()).append('@')
+            .append(status.getModificationTime());
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * @return the names of the settings the splits are computed from
+   */
+  @VisibleForTesting
+  static Collection<String> getSplitSettings(Configuration conf) {
+    Set<String> names = new HashSet<String>(Arrays.asList(SPLIT_SETTINGS));
+    names.addAll(conf.getTrimmedStringCollection(
+        MRJobConfig.MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_EXTRA_KEYS));
+    return names;
+  }
+
+  /**
+   * @return a digest of the given settings of the configuration, in the
+   *         order of their names
+   */
+  @VisibleForTesting
+  static String digest(Configuration conf, Collection<String> names) {
+    Map<String, String> settings = new TreeMap<String, String>();
+    for (String name : names) {
+      settings.put(name, conf.get(name));
+    }
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new TezUncheckedException(e);
+    }
+    for (Map.Entry<String, String> setting : settings.entrySet()) {
+      digest.update(setting.getKey().getBytes(UTF8));
+      digest.update((byte) 0);
+      // unset and empty settings differ
+      if (setting.getValue() != null) {
+        digest.update((byte) 1);
+        digest.update(setting.getValue().getBytes(UTF8));
+      }
+      digest.update((byte) 0);
+    }
+    return StringUtils.byteToHexString(digest.digest());
+  }
+
+  synchronized void setMaxSplits(long maxSplits) {
+    this.maxSplits = maxSplits;
+    evict();
+  }
+
+  /**
+   * @return the cached splits, which must not be modified, or null
+   */
+  synchronized Object[] get(String key) {
+    Object[] splits = entries.get(key);
+    if (splits == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Split cache " + (splits == null ? "miss" : "hit")
+          + ", hits=" + hits + ", misses=" + misses);
+    }
+    return splits;
+  }
+
+  synchronized void put(String key, Object[] splits) {
+    if (splits.length > maxSplits) {
+      return;
+    }
+    Object[] previous = entries.put(key, splits);
+    if (previous != null) {
+      numSplits -= previous.length;
+    }
+    numSplits += splits.length;
+    evict();
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Object[]>> it = entries.entrySet().iterator();
+    while (numSplits > maxSplits && it.hasNext()) {
+      numSplits -= it.next().getValue().length;
+      it.remove();
+    }
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  synchronized long getNumSplits() {
+    return numSplits;
+  }
+
+  synchronized String getStats() {
+    return "entries=" + entries.size() + ", splits=" + numSplits + ", hits="
+        + hits + ", misses=" + misses;
+  }
+
+  @Override
+  public synchronized void getMetrics(MetricsCollector collector, boolean all) {
+    collector.addRecord(NAME)
+        .addCounter(Interns.info("Hits", "Inputs whose splits were cached"),
+            hits)
+        .addCounter(Interns.info("Misses", "Inputs whose splits were listed"),
+            misses)
+        .addGauge(Interns.info("Entries", "Inputs in the cache"),
+            entries.size())
+        .addGauge(Interns.info("Splits", "Splits in the cache"), numSplits);
+  }
+}
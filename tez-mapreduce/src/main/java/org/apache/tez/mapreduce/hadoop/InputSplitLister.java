@@ -0,0 +1,269 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.mapreduce.hadoop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.tez.dag.api.TezUncheckedException;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Computes the splits of an input format, taking them from the
+ * {@link InputSplitCache} if it is enabled. The splits of a FileInputFormat
+ * with several input paths are computed by listing each path on its own
+ * thread. Splits of a FileInputFormat only depend on the file they belong
+ * to, so they are the same as when all paths are listed together, and are
+ * returned in the same order. Formats which override getSplits or listStatus
+ * may look at all paths together, so they are always listed sequentially.
+ */
+@Private
+public class InputSplitLister {
+
+  private static final Log LOG = LogFactory.getLog(InputSplitLister.class);
+
+  /**
+   * @return the number of threads to list input paths with. 1 lists them
+   *         sequentially, in the input format.
+   */
+  public static int getListingThreads(Configuration conf) {
+    return conf.getInt(MRJobConfig.MR_TEZ_INPUT_INITIALIZER_LISTING_THREADS,
+        MRJobConfig.MR_TEZ_INPUT_INITIALIZER_LISTING_THREADS_DEFAULT);
+  }
+
+  public static List<org.apache.hadoop.mapreduce.InputSplit> getSplits(
+      org.apache.hadoop.mapreduce.InputFormat<?, ?> inputFormat,
+      JobContext jobContext) throws IOException, InterruptedException {
+    Configuration conf = jobContext.getConfiguration();
+    InputSplitCache cache = InputSplitCache.getInstance(conf);
+    String key = null;
+    if (cache != null
+        && inputFormat instanceof org.apache.hadoop.mapreduce.lib.input.FileInputFormat) {
+      key = InputSplitCache.createKey(conf, inputFormat,
+          org.apache.hadoop.mapreduce.lib.input.FileInputFormat
+              .getInputPaths(jobContext), -1);
+      if (key != null) {
+        Object[] cached = cache.get(key);
+        if (cached != null) {
+          LOG.info("Using cached splits, " + cache.getStats());
+          List<org.apache.hadoop.mapreduce.InputSplit> splits =
+              new ArrayList<org.apache.hadoop.mapreduce.InputSplit>(cached.length);
+          for (Object split : cached) {
+            splits.add((org.apache.hadoop.mapreduce.InputSplit) split);
+          }
+          return splits;
+        }
+      }
+    }
+    List<org.apache.hadoop.mapreduce.InputSplit> splits =
+        listSplits(inputFormat, jobContext);
+    if (key != null) {
+      cache.put(key, splits.toArray());
+      LOG.info("Cached splits, " + cache.getStats());
+    }
+    return splits;
+  }
+
+  private static List<org.apache.hadoop.mapreduce.InputSplit> listSplits(
+      final org.apache.hadoop.mapreduce.InputFormat<?, ?> inputFormat,
+      JobContext jobContext) throws IOException, InterruptedException {
+    final Configuration conf = jobContext.getConfiguration();
+    Path[] inputPaths = org.apache.hadoop.mapreduce.lib.input.FileInputFormat
+        .getInputPaths(jobContext);
+    int numThreads = getListingThreads(conf);
+    if (numThreads <= 1 || inputPaths.length <= 1
+        || !(inputFormat instanceof org.apache.hadoop.mapreduce.lib.input.FileInputFormat)
+        || !isDeclaredBy(inputFormat.getClass(),
+            org.apache.hadoop.mapreduce.lib.input.FileInputFormat.class,
+            "getSplits", JobContext.class)
+        || !isDeclaredBy(inputFormat.getClass(),
+            org.apache.hadoop.mapreduce.lib.input.FileInputFormat.class,
+            "listStatus", JobContext.class)) {
+      return inputFormat.getSplits(jobContext);
+    }
+
+    List<Callable<List<org.apache.hadoop.mapreduce.InputSplit>>> listings =
+        new ArrayList<Callable<List<org.apache.hadoop.mapreduce.InputSplit>>>(
+            inputPaths.length);
+    for (final Path inputPath : inputPaths) {
+      listings.add(new Callable<List<org.apache.hadoop.mapreduce.InputSplit>>() {
+        @Override
+        public List<org.apache.hadoop.mapreduce.InputSplit> call()
+            throws Exception {
+          // The JobConf copy keeps the credentials.
+          Job job = Job.getInstance(new JobConf(conf));
+          org.apache.hadoop.mapreduce.lib.input.FileInputFormat.setInputPaths(
+              job, inputPath);
+          return inputFormat.getSplits(job);
+        }
+      });
+    }
+    List<org.apache.hadoop.mapreduce.InputSplit> splits =
+        new ArrayList<org.apache.hadoop.mapreduce.InputSplit>();
+    for (List<org.apache.hadoop.mapreduce.InputSplit> pathSplits :
+        runAll(listings, numThreads)) {
+      splits.addAll(pathSplits);
+    }
+    return splits;
+  }
+
+  public static org.apache.hadoop.mapred.InputSplit[] getSplits(
+      org.apache.hadoop.mapred.InputFormat<?, ?> inputFormat,
+      JobConf jobConf, int numSplits) throws IOException {
+    InputSplitCache cache = InputSplitCache.getInstance(jobConf);
+    String key = null;
+    if (cache != null
+        && inputFormat instanceof org.apache.hadoop.mapred.FileInputFormat) {
+      key = InputSplitCache.createKey(jobConf, inputFormat,
+          org.apache.hadoop.mapred.FileInputFormat.getInputPaths(jobConf),
+          numSplits);
+      if (key != null) {
+        Object[] cached = cache.get(key);
+        if (cached != null) {
+          LOG.info("Using cached splits, " + cache.getStats());
+          org.apache.hadoop.mapred.InputSplit[] splits =
+              new org.apache.hadoop.mapred.InputSplit[cached.length];
+          System.arraycopy(cached, 0, splits, 0, cached.length);
+          return splits;
+        }
+      }
+    }
+    org.apache.hadoop.mapred.InputSplit[] splits =
+        listSplits(inputFormat, jobConf, numSplits);
+    if (key != null) {
+      cache.put(key, splits.clone());
+      LOG.info("Cached splits, " + cache.getStats());
+    }
+    return splits;
+  }
+
+  private static org.apache.hadoop.mapred.InputSplit[] listSplits(
+      final org.apache.hadoop.mapred.InputFormat<?, ?> inputFormat,
+      final JobConf jobConf, int numSplits) throws IOException {
+    Path[] inputPaths = org.apache.hadoop.mapred.FileInputFormat
+        .getInputPaths(jobConf);
+    int numThreads = getListingThreads(jobConf);
+    // The split size of the old FileInputFormat depends on the total size of
+    // the input if more than one split is asked for.
+    if (numThreads <= 1 || inputPaths.length <= 1 || numSplits > 1
+        || !(inputFormat instanceof org.apache.hadoop.mapred.FileInputFormat)
+        || !isDeclaredBy(inputFormat.getClass(),
+            org.apache.hadoop.mapred.FileInputFormat.class,
+            "getSplits", JobConf.class, int.class)
+        || !isDeclaredBy(inputFormat.getClass(),
+            org.apache.hadoop.mapred.FileInputFormat.class,
+            "listStatus", JobConf.class)) {
+      return inputFormat.getSplits(jobConf, numSplits);
+    }
+
+    final int pathNumSplits = numSplits;
+    List<Callable<org.apache.hadoop.mapred.InputSplit[]>> listings =
+        new ArrayList<Callable<org.apache.hadoop.mapred.InputSplit[]>>(
+            inputPaths.length);
+    for (final Path inputPath : inputPaths) {
+      listings.add(new Callable<org.apache.hadoop.mapred.InputSplit[]>() {
+        @Override
+        public org.apache.hadoop.mapred.InputSplit[] call() throws Exception {
+          JobConf pathConf = new JobConf(jobConf);
+          org.apache.hadoop.mapred.FileInputFormat.setInputPaths(pathConf,
+              inputPath);
+          return inputFormat.getSplits(pathConf, pathNumSplits);
+        }
+      });
+    }
+    List<org.apache.hadoop.mapred.InputSplit> splits =
+        new ArrayList<org.apache.hadoop.mapred.InputSplit>();
+    try {
+      for (org.apache.hadoop.mapred.InputSplit[] pathSplits :
+          runAll(listings, numThreads)) {
+        splits.addAll(Arrays.asList(pathSplits));
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while listing input paths", e);
+    }
+    return splits.toArray(new org.apache.hadoop.mapred.InputSplit[splits.size()]);
+  }
+
+  /**
+   * @return whether the implementation of the given method used by
+   *         formatClass is the one of declaringClass
+   */
+  @VisibleForTesting
+  static boolean isDeclaredBy(Class<?> formatClass, Class<?> declaringClass,
+      String methodName, Class<?>... parameterTypes) {
+    for (Class<?> c = formatClass; c != null; c = c.getSuperclass()) {
+      try {
+        c.getDeclaredMethod(methodName, parameterTypes);
+        return c == declaringClass;
+      } catch (NoSuchMethodException e) {
+        // look in the superclass
+      }
+    }
+    return false;
+  }
+
+  private static <T> List<T> runAll(List<Callable<T>> listings, int numThreads)
+      throws IOException, InterruptedException {
+    numThreads = Math.min(numThreads, listings.size());
+    LOG.info("Listing " + listings.size() + " input paths with " + numThreads
+        + " threads");
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("InputSplitLister #%d").build());
+    try {
+      List<Future<T>> futures = executor.invokeAll(listings);
+      List<T> results = new ArrayList<T>(futures.size());
+      for (Future<T> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          } else if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new TezUncheckedException(cause);
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -627,5 +627,33 @@ public interface MRJobConfig {
   public static final String MR_TEZ_INPUT_INITIALIZER_SERIALIZE_EVENT_PAYLAOD = MR_TEZ_PREFIX
       + "input.initializer.serialize.event.payload";
   public static final boolean MR_TEZ_INPUT_INITIALIZER_SERIALIZE_EVENT_PAYLAOD_DEFAULT = true;
+
+  /**
+   * Number of threads used to list the input paths of a FileInputFormat in
+   * parallel when splits are grouped. 1 lists them one after the other.
+   */
+  public static final String MR_TEZ_INPUT_INITIALIZER_LISTING_THREADS = MR_TEZ_PREFIX
+      + "input.initializer.listing.threads";
+  public static final int MR_TEZ_INPUT_INITIALIZER_LISTING_THREADS_DEFAULT = 1;
+
+  /**
+   * Maximum number of splits of FileInputFormats the AM keeps, so that DAGs
+   * of a session which read the same unchanged input paths reuse them
+   * instead of listing the paths again. Only the modification times of the
+   * input paths themselves are checked, so the cache should only be used
+   * for inputs whose files are not rewritten in place. 0 disables it.
+   */
+  public static final String MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_MAX_SPLITS = MR_TEZ_PREFIX
+      + "input.initializer.split-cache.max-splits";
+  public static final long MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_MAX_SPLITS_DEFAULT = 0;
+
+  /**
+   * Names of further settings the splits of the input format are computed
+   * from, e.g. by a subclass of FileInputFormat. The split cache lists the
+   * input again when any of them, or any of the settings FileInputFormat
+   * itself reads, changes. Other settings are ignored by the cache.
+   */
+  public static final String MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_EXTRA_KEYS = MR_TEZ_PREFIX
+      + "input.initializer.split-cache.extra-keys";
   
 }
@@ -0,0 +1,333 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.mapreduce.hadoop;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestInputSplitLister {
+
+  private static final int NUM_DIRS = 4;
+  private static final int FILES_PER_DIR = 3;
+
+  private FileSystem localFs;
+  private Path workDir;
+  private Path[] inputDirs;
+
+  @SuppressWarnings("deprecation")
+  @Before
+  public void setup() throws IOException {
+    JobConf conf = new JobConf();
+    conf.set("fs.defaultFS", "file:///");
+    localFs = FileSystem.getLocal(conf);
+    workDir = new Path(new Path(System.getProperty("test.build.data", "/tmp")),
+        "TestInputSplitLister").makeQualified(localFs);
+    localFs.delete(workDir, true);
+    inputDirs = new Path[NUM_DIRS];
+    for (int i = 0; i < NUM_DIRS; i++) {
+      inputDirs[i] = new Path(workDir, "dir" + i);
+      for (int j = 0; j < FILES_PER_DIR; j++) {
+        Writer writer = new OutputStreamWriter(localFs.create(
+            new Path(inputDirs[i], "file" + j)));
+        try {
+          for (int k = 0; k < (i + 1) * (j + 1) * 10; k++) {
+            writer.write(k + "\n");
+          }
+        } finally {
+          writer.close();
+        }
+      }
+    }
+  }
+
+  @After
+  public void teardown() throws IOException {
+    localFs.delete(workDir, true);
+  }
+
+  private JobConf createJobConf(int listingThreads) {
+    JobConf jobConf = new JobConf();
+    jobConf.set("fs.defaultFS", "file:///");
+    jobConf.setInt(MRJobConfig.MR_TEZ_INPUT_INITIALIZER_LISTING_THREADS,
+        listingThreads);
+    org.apache.hadoop.mapred.FileInputFormat.setInputPaths(jobConf, inputDirs);
+    return jobConf;
+  }
+
+  private static List<String> describe(
+      List<org.apache.hadoop.mapreduce.InputSplit> splits) {
+    List<String> descriptions = new ArrayList<String>(splits.size());
+    for (org.apache.hadoop.mapreduce.InputSplit split : splits) {
+      org.apache.hadoop.mapreduce.lib.input.FileSplit fileSplit =
+          (org.apache.hadoop.mapreduce.lib.input.FileSplit) split;
+      descriptions.add(fileSplit.getPath() + ":" + fileSplit.getStart() + "+"
+          + fileSplit.getLength());
+    }
+    return descriptions;
+  }
+
+  private static List<String> describe(
+      org.apache.hadoop.mapred.InputSplit[] splits) {
+    List<String> descriptions = new ArrayList<String>(splits.length);
+    for (org.apache.hadoop.mapred.InputSplit split : splits) {
+      org.apache.hadoop.mapred.FileSplit fileSplit =
+          (org.apache.hadoop.mapred.FileSplit) split;
+      descriptions.add(fileSplit.getPath() + ":" + fileSplit.getStart() + "+"
+          + fileSplit.getLength());
+    }
+    return descriptions;
+  }
+
+  @Test(timeout = 10000)
+  public void testNewApiSplits() throws Exception {
+    org.apache.hadoop.mapreduce.lib.input.TextInputFormat format =
+        new org.apache.hadoop.mapreduce.lib.input.TextInputFormat();
+    List<String> sequential = describe(InputSplitLister.getSplits(format,
+        Job.getInstance(createJobConf(1))));
+    List<String> parallel = describe(InputSplitLister.getSplits(format,
+        Job.getInstance(createJobConf(3))));
+    Assert.assertEquals(NUM_DIRS * FILES_PER_DIR, sequential.size());
+    Assert.assertEquals(sequential, parallel);
+  }
+
+  @Test(timeout = 10000)
+  public void testOldApiSplits() throws Exception {
+    org.apache.hadoop.mapred.TextInputFormat format =
+        new org.apache.hadoop.mapred.TextInputFormat();
+    JobConf sequentialConf = createJobConf(1);
+    format.configure(sequentialConf);
+    List<String> sequential = describe(InputSplitLister.getSplits(format,
+        sequentialConf, 1));
+    List<String> parallel = describe(InputSplitLister.getSplits(format,
+        createJobConf(3), 1));
+    Assert.assertEquals(NUM_DIRS * FILES_PER_DIR, sequential.size());
+    Assert.assertEquals(sequential, parallel);
+  }
+
+  /**
+   * Computes one split for all its input paths together.
+   */
+  public static class SingleSplitInputFormat
+      extends org.apache.hadoop.mapreduce.lib.input.TextInputFormat {
+    @Override
+    public List<org.apache.hadoop.mapreduce.InputSplit> getSplits(
+        JobContext job) throws IOException {
+      List<org.apache.hadoop.mapreduce.InputSplit> splits = super.getSplits(job);
+      return splits.subList(0, 1);
+    }
+  }
+
+  /**
+   * Lists only the first of its input paths.
+   */
+  public static class FirstPathInputFormat
+      extends org.apache.hadoop.mapred.TextInputFormat {
+    @Override
+    protected FileStatus[] listStatus(JobConf job) throws IOException {
+      FileStatus[] files = super.listStatus(job);
+      return new FileStatus[] { files[0] };
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testOverriddenSplitsListedTogether() throws Exception {
+    // the paths are not listed separately, which would give a split each
+    Assert.assertEquals(1, InputSplitLister.getSplits(
+        new SingleSplitInputFormat(), Job.getInstance(createJobConf(3)))
+        .size());
+
+    FirstPathInputFormat format = new FirstPathInputFormat();
+    JobConf jobConf = createJobConf(3);
+    format.configure(jobConf);
+    Assert.assertEquals(1, InputSplitLister.getSplits(format, jobConf, 1)
+        .length);
+  }
+
+  @Test
+  public void testIsDeclaredBy() {
+    Assert.assertTrue(InputSplitLister.isDeclaredBy(
+        org.apache.hadoop.mapreduce.lib.input.TextInputFormat.class,
+        org.apache.hadoop.mapreduce.lib.input.FileInputFormat.class,
+        "getSplits", JobContext.class));
+    Assert.assertFalse(InputSplitLister.isDeclaredBy(
+        SingleSplitInputFormat.class,
+        org.apache.hadoop.mapreduce.lib.input.FileInputFormat.class,
+        "getSplits", JobContext.class));
+    Assert.assertFalse(InputSplitLister.isDeclaredBy(
+        org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat.class,
+        org.apache.hadoop.mapreduce.lib.input.FileInputFormat.class,
+        "getSplits", JobContext.class));
+    Assert.assertFalse(InputSplitLister.isDeclaredBy(
+        FirstPathInputFormat.class,
+        org.apache.hadoop.mapred.FileInputFormat.class,
+        "listStatus", JobConf.class));
+  }
+
+  @Test(timeout = 10000)
+  public void testCachedSplits() throws Exception {
+    org.apache.hadoop.mapreduce.lib.input.TextInputFormat format =
+        new org.apache.hadoop.mapreduce.lib.input.TextInputFormat();
+    JobConf jobConf = createJobConf(1);
+    jobConf.setLong(MRJobConfig.MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_MAX_SPLITS,
+        100);
+    InputSplitCache cache = InputSplitCache.getInstance(jobConf);
+    long hits = cache.getHits();
+    long misses = cache.getMisses();
+
+    List<String> listed = describe(InputSplitLister.getSplits(format,
+        Job.getInstance(jobConf)));
+    Assert.assertEquals(misses + 1, cache.getMisses());
+    List<String> cached = describe(InputSplitLister.getSplits(format,
+        Job.getInstance(jobConf)));
+    Assert.assertEquals(hits + 1, cache.getHits());
+    Assert.assertEquals(listed, cached);
+
+    // A changed input path is listed again.
+    localFs.setTimes(inputDirs[0],
+        localFs.getFileStatus(inputDirs[0]).getModificationTime() + 10000, -1);
+    InputSplitLister.getSplits(format, Job.getInstance(jobConf));
+    Assert.assertEquals(hits + 1, cache.getHits());
+    Assert.assertEquals(misses + 2, cache.getMisses());
+
+    // So is the same input with other compression codecs, which decide
+    // whether a file can be split.
+    jobConf.set("io.compression.codecs", GzipCodec.class.getName());
+    InputSplitLister.getSplits(format, Job.getInstance(jobConf));
+    Assert.assertEquals(hits + 1, cache.getHits());
+    Assert.assertEquals(misses + 3, cache.getMisses());
+    InputSplitLister.getSplits(format, Job.getInstance(jobConf));
+    Assert.assertEquals(hits + 2, cache.getHits());
+  }
+
+  @Test(timeout = 10000)
+  public void testCachedSplitsIgnoreUnrelatedSettings() throws Exception {
+    org.apache.hadoop.mapreduce.lib.input.TextInputFormat format =
+        new org.apache.hadoop.mapreduce.lib.input.TextInputFormat();
+    JobConf jobConf = createJobConf(1);
+    jobConf.setLong(MRJobConfig.MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_MAX_SPLITS,
+        100);
+    jobConf.set("test.unrelated.setting", "1");
+    InputSplitCache cache = InputSplitCache.getInstance(jobConf);
+    InputSplitLister.getSplits(format, Job.getInstance(jobConf));
+    long hits = cache.getHits();
+    long misses = cache.getMisses();
+
+    // e.g. a setting of the processor, which differs between the DAGs
+    JobConf otherConf = createJobConf(1);
+    otherConf.setLong(
+        MRJobConfig.MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_MAX_SPLITS, 100);
+    otherConf.set("test.unrelated.setting", "2");
+    InputSplitLister.getSplits(format, Job.getInstance(otherConf));
+    Assert.assertEquals(hits + 1, cache.getHits());
+    Assert.assertEquals(misses, cache.getMisses());
+
+    // unless the input format declares that its splits depend on it
+    otherConf.set(MRJobConfig.MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_EXTRA_KEYS,
+        "test.unrelated.setting");
+    InputSplitLister.getSplits(format, Job.getInstance(otherConf));
+    Assert.assertEquals(hits + 1, cache.getHits());
+    Assert.assertEquals(misses + 1, cache.getMisses());
+
+    // as do the split sizes
+    jobConf.setLong(
+        org.apache.hadoop.mapreduce.lib.input.FileInputFormat.SPLIT_MAXSIZE, 100);
+    InputSplitLister.getSplits(format, Job.getInstance(jobConf));
+    Assert.assertEquals(hits + 1, cache.getHits());
+    Assert.assertEquals(misses + 2, cache.getMisses());
+  }
+
+  @Test
+  public void testConfDigest() {
+    List<String> names = Arrays.asList("a", "b", "c");
+    Configuration conf1 = new Configuration(false);
+    conf1.set("a", "1");
+    conf1.set("b", "2");
+    Configuration conf2 = new Configuration(false);
+    conf2.set("b", "2");
+    conf2.set("a", "1");
+    Assert.assertEquals(InputSplitCache.digest(conf1, names),
+        InputSplitCache.digest(conf2, names));
+    Assert.assertEquals(InputSplitCache.digest(conf1, names),
+        InputSplitCache.digest(conf2, Arrays.asList("c", "b", "a")));
+    conf2.set("c", "");
+    Assert.assertFalse(InputSplitCache.digest(conf1, names).equals(
+        InputSplitCache.digest(conf2, names)));
+    conf1.set("a", "12");
+    conf1.unset("b");
+    conf2.unset("c");
+    Assert.assertFalse(InputSplitCache.digest(conf1, names).equals(
+        InputSplitCache.digest(conf2, names)));
+    // settings which are not named are ignored
+    conf1.set("a", "1");
+    conf1.set("b", "2");
+    conf1.set("d", "3");
+    Assert.assertEquals(InputSplitCache.digest(conf1, names),
+        InputSplitCache.digest(conf2, names));
+  }
+
+  @Test
+  public void testSplitSettings() {
+    Configuration conf = new Configuration(false);
+    Assert.assertTrue(InputSplitCache.getSplitSettings(conf).contains(
+        org.apache.hadoop.mapreduce.lib.input.FileInputFormat.SPLIT_MINSIZE));
+    Assert.assertFalse(InputSplitCache.getSplitSettings(conf).contains("a"));
+    conf.set(MRJobConfig.MR_TEZ_INPUT_INITIALIZER_SPLIT_CACHE_EXTRA_KEYS,
+        "a, b");
+    Assert.assertTrue(InputSplitCache.getSplitSettings(conf).containsAll(
+        Arrays.asList("a", "b")));
+  }
+
+  @Test
+  public void testCacheEviction() {
+    InputSplitCache cache = new InputSplitCache();
+    cache.setMaxSplits(5);
+    cache.put("a", new Object[2]);
+    cache.put("b", new Object[2]);
+    Assert.assertNotNull(cache.get("a"));
+    // b is the least recently used entry.
+    cache.put("c", new Object[2]);
+    Assert.assertNull(cache.get("b"));
+    Assert.assertNotNull(cache.get("a"));
+    Assert.assertNotNull(cache.get("c"));
+    Assert.assertEquals(4, cache.getNumSplits());
+    // Entries larger than the cache are not kept.
+    cache.put("d", new Object[6]);
+    Assert.assertNull(cache.get("d"));
+    cache.setMaxSplits(2);
+    Assert.assertEquals(2, cache.getNumSplits());
+    Assert.assertNotNull(cache.get("c"));
+  }
+}
@@ -36,17 +36,25 @@ public class ContainerTask implements Writable {
   private Map<String, TezLocalResource> additionalResources;
   private Credentials credentials;
   private boolean credentialsChanged;
+  private byte[] baseConfPayload;
 
   public ContainerTask() {
   }
 
   public ContainerTask(TaskSpec taskSpec, boolean shouldDie,
       Map<String, TezLocalResource> additionalResources, Credentials credentials, boolean credentialsChanged) {
+    this(taskSpec, shouldDie, additionalResources, credentials, credentialsChanged, null);
+  }
+
+  public ContainerTask(TaskSpec taskSpec, boolean shouldDie,
+      Map<String, TezLocalResource> additionalResources, Credentials credentials,
+      boolean credentialsChanged, byte[] baseConfPayload) {
     this.taskSpec = taskSpec;
     this.shouldDie = shouldDie;
     this.additionalResources = additionalResources;
     this.credentials = credentials;
     this.credentialsChanged = credentialsChanged;
+    this.baseConfPayload = baseConfPayload;
   }
 
   public TaskSpec getTaskSpec() {
@@ -69,6 +77,14 @@ public class ContainerTask implements Writable {
     return this.credentialsChanged;
   }
 
+  /**
+   * @return the base configuration of the DAG's delta payloads. Only sent
+   *         along with the credentials, i.e. when the DAG changes.
+   */
+  public byte[] getBaseConfPayload() {
+    return this.baseConfPayload;
+  }
+
   @Override
   public void write(DataOutput out) throws IOException {
     out.writeBoolean(shouldDie);
@@ -93,6 +109,12 @@ public class ContainerTask implements Writable {
       if (credentials != null) {
         credentials.write(out);
       }
+      if (baseConfPayload != null) {
+        out.writeInt(baseConfPayload.length);
+        out.write(baseConfPayload);
+      } else {
+        out.writeInt(-1);
+      }
     }
   }
 
@@ -121,6 +143,11 @@ public class ContainerTask implements Writable {
         credentials = new Credentials();
         credentials.readFields(in);
       }
+      int baseConfPayloadLength = in.readInt();
+      if (baseConfPayloadLength != -1) {
+        baseConfPayload = new byte[baseConfPayloadLength];
+        in.readFully(baseConfPayload);
+      }
     }
   }
 
@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tez.common.counters.CounterGroup;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Works out which counters of a task changed since the last heartbeat that
+ * the AM acknowledged. The delta carries the current value of every changed
+ * counter, so applying it more than once is harmless. Every
+ * <code>fullSnapshotInterval</code> updates, and after {@link #reset()}, the
+ * complete set of counters is sent instead.
+ */
+public class CountersDeltaTracker {
+
+  private final int fullSnapshotInterval;
+
+  // group name -> counter name -> value last acknowledged by the AM
+  private Map<String, Map<String, Long>> acknowledgedValues =
+      new HashMap<String, Map<String, Long>>();
+  private Map<String, Map<String, Long>> pendingValues = null;
+  private boolean acknowledgedFullSnapshot = false;
+  private boolean pendingFullSnapshot = false;
+  private int updatesSinceFullSnapshot = 0;
+
+  /**
+   * @param fullSnapshotInterval number of updates after which the full set of
+   *          counters is sent again. 1 always sends the full set.
+   */
+  public CountersDeltaTracker(int fullSnapshotInterval) {
+    Preconditions.checkArgument(fullSnapshotInterval > 0,
+        "fullSnapshotInterval must be positive");
+    this.fullSnapshotInterval = fullSnapshotInterval;
+  }
+
+  /**
+   * Returns the counters to send in the next update. Call
+   * {@link #isFullSnapshot()} afterwards to find out whether the result is a
+   * delta, and {@link #acknowledge()} once the AM has received it.
+   */
+  public synchronized TezCounters getCountersToSend(TezCounters current) {
+    pendingFullSnapshot = !acknowledgedFullSnapshot
+        || updatesSinceFullSnapshot + 1 >= fullSnapshotInterval;
+    pendingValues = new HashMap<String, Map<String, Long>>();
+    TezCounters delta = pendingFullSnapshot ? current : new TezCounters();
+    for (CounterGroup group : current) {
+      Map<String, Long> groupValues = new HashMap<String, Long>();
+      pendingValues.put(group.getName(), groupValues);
+      Map<String, Long> ackedGroupValues = acknowledgedValues.get(group.getName());
+      for (TezCounter counter : group) {
+        long value = counter.getValue();
+        groupValues.put(counter.getName(), value);
+        if (pendingFullSnapshot) {
+          continue;
+        }
+        Long ackedValue = ackedGroupValues == null ? null
+            : ackedGroupValues.get(counter.getName());
+        if (ackedValue == null || ackedValue.longValue() != value) {
+          delta.findCounter(group.getName(), counter.getName()).setValue(value);
+        }
+      }
+    }
+    return delta;
+  }
+
+  /**
+   * @return whether the counters returned by the last call to
+   *         {@link #getCountersToSend(TezCounters)} are the full set
+   */
+  public synchronized boolean isFullSnapshot() {
+    return pendingFullSnapshot;
+  }
+
+  /**
+   * Marks the counters returned by the last call to
+   * {@link #getCountersToSend(TezCounters)} as received by the AM.
+   */
+  public synchronized void acknowledge() {
+    if (pendingValues == null) {
+      return;
+    }
+    acknowledgedValues = pendingValues;
+    pendingValues = null;
+    if (pendingFullSnapshot) {
+      acknowledgedFullSnapshot = true;
+      updatesSinceFullSnapshot = 0;
+    } else {
+      updatesSinceFullSnapshot++;
+    }
+  }
+
+  /**
+   * Forget everything sent so far, e.g. when a new task attempt starts.
+   */
+  public synchronized void reset() {
+    acknowledgedValues = new HashMap<String, Map<String, Long>>();
+    pendingValues = null;
+    acknowledgedFullSnapshot = false;
+    pendingFullSnapshot = false;
+    updatesSinceFullSnapshot = 0;
+  }
+}
@@ -107,6 +107,7 @@ public class LogicalIOProcessorRuntimeTask extends RuntimeTask {
   private final LinkedHashMap<String, LogicalOutput> runOutputMap;
   
   private final Map<String, ByteBuffer> serviceConsumerMetadata;
+  private final Map<String, String> auxServiceEnv;
   
   private final ExecutorService initializerExecutor;
   private final CompletionService<Void> initializerCompletionService;
@@ -124,6 +125,35 @@ public class LogicalIOProcessorRuntimeTask extends RuntimeTask {
       Configuration tezConf, TezUmbilical tezUmbilical,
       Map<String, ByteBuffer> serviceConsumerMetadata,
       Multimap<String, String> startedInputsMap) throws IOException {
+    this(taskSpec, appAttemptNumber, tezConf, tezUmbilical,
+        serviceConsumerMetadata, System.getenv(), startedInputsMap);
+  }
+
+  /**
+   * @param auxServiceEnv the environment to read the metadata of auxiliary
+   *          services from. Tasks which do not run in a container of their
+   *          own have no such environment.
+   */
+  public LogicalIOProcessorRuntimeTask(TaskSpec taskSpec, int appAttemptNumber,
+      Configuration tezConf, TezUmbilical tezUmbilical,
+      Map<String, ByteBuffer> serviceConsumerMetadata,
+      Map<String, String> auxServiceEnv,
+      Multimap<String, String> startedInputsMap) throws IOException {
+    this(taskSpec, appAttemptNumber, tezConf, tezUmbilical,
+        serviceConsumerMetadata, auxServiceEnv, startedInputsMap,
+        Runtime.getRuntime().maxMemory());
+  }
+
+  /**
+   * @param memAvailable the memory the task may use, which is less than the
+   *          heap when the task shares the JVM with other tasks
+   */
+  public LogicalIOProcessorRuntimeTask(TaskSpec taskSpec, int appAttemptNumber,
+      Configuration tezConf, TezUmbilical tezUmbilical,
+      Map<String, ByteBuffer> serviceConsumerMetadata,
+      Map<String, String> auxServiceEnv,
+      Multimap<String, String> startedInputsMap, long memAvailable)
+      throws IOException {
     // TODO Remove jobToken from here post TEZ-421
     super(taskSpec, tezConf, tezUmbilical);
     LOG.info("Initializing LogicalIOProcessorRuntimeTask with TaskSpec: "
@@ -143,6 +173,7 @@ public class LogicalIOProcessorRuntimeTask extends RuntimeTask {
     this.processorDescriptor = taskSpec.getProcessorDescriptor();
     this.processor = createProcessor(processorDescriptor);
     this.serviceConsumerMetadata = serviceConsumerMetadata;
+    this.auxServiceEnv = auxServiceEnv;
     this.eventsToBeProcessed = new LinkedBlockingQueue<TezEvent>();
     this.state = State.NEW;
     this.appAttemptNumber = appAttemptNumber;
@@ -155,7 +186,8 @@ public class LogicalIOProcessorRuntimeTask extends RuntimeTask {
     this.initializerCompletionService = new ExecutorCompletionService<Void>(
         this.initializerExecutor);
     this.groupInputSpecs = taskSpec.getGroupInputs();
-    initialMemoryDistributor = new MemoryDistributor(numInputs, numOutputs, tezConf);
+    initialMemoryDistributor = new MemoryDistributor(numInputs, numOutputs, tezConf,
+        memAvailable);
     this.startedInputsMap = startedInputsMap;
     this.inputReadyTracker = new InputReadyTracker();
   }
@@ -469,7 +501,7 @@ public class LogicalIOProcessorRuntimeTask extends RuntimeTask {
         inputSpec.getInputDescriptor().getUserPayload() == null ? taskSpec
             .getProcessorDescriptor().getUserPayload() : inputSpec
             .getInputDescriptor().getUserPayload(), this,
-        serviceConsumerMetadata, System.getenv(), initialMemoryDistributor,
+        serviceConsumerMetadata, auxServiceEnv, initialMemoryDistributor,
         inputSpec.getInputDescriptor(), input, inputReadyTracker);
     return inputContext;
   }
@@ -483,7 +515,7 @@ public class LogicalIOProcessorRuntimeTask extends RuntimeTask {
         outputSpec.getOutputDescriptor().getUserPayload() == null ? taskSpec
             .getProcessorDescriptor().getUserPayload() : outputSpec
             .getOutputDescriptor().getUserPayload(), this,
-        serviceConsumerMetadata, System.getenv(), initialMemoryDistributor,
+        serviceConsumerMetadata, auxServiceEnv, initialMemoryDistributor,
         outputSpec.getOutputDescriptor());
     return outputContext;
   }
@@ -494,7 +526,7 @@ public class LogicalIOProcessorRuntimeTask extends RuntimeTask {
         taskSpec.getDAGName(), taskSpec.getVertexName(),
         taskSpec.getTaskAttemptID(),
         tezCounters, processorDescriptor.getUserPayload(), this,
-        serviceConsumerMetadata, System.getenv(), initialMemoryDistributor,
+        serviceConsumerMetadata, auxServiceEnv, initialMemoryDistributor,
         processorDescriptor, inputReadyTracker);
     return processorContext;
   }
@@ -30,19 +30,32 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
 
   private TezCounters tezCounters;
   private float progress;
+  // true if tezCounters only has the counters which changed since the last
+  // update received by the AM
+  private boolean countersDelta;
 
   public TaskStatusUpdateEvent() {
   }
 
   public TaskStatusUpdateEvent(TezCounters tezCounters, float progress) {
+    this(tezCounters, progress, false);
+  }
+
+  public TaskStatusUpdateEvent(TezCounters tezCounters, float progress,
+      boolean countersDelta) {
     this.tezCounters = tezCounters;
     this.progress = progress;
+    this.countersDelta = countersDelta;
   }
 
   public TezCounters getCounters() {
     return tezCounters;
   }
 
+  public boolean isCountersDelta() {
+    return countersDelta;
+  }
+
   public float getProgress() {
     return progress;
   }
@@ -52,6 +65,7 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
     out.writeFloat(progress);
     if (tezCounters != null) {
       out.writeBoolean(true);
+      out.writeBoolean(countersDelta);
       tezCounters.write(out);
     } else {
       out.writeBoolean(false);
@@ -62,6 +76,7 @@ public class TaskStatusUpdateEvent extends Event implements Writable {
   public void readFields(DataInput in) throws IOException {
     progress = in.readFloat();
     if (in.readBoolean()) {
+      countersDelta = in.readBoolean();
       tezCounters = new TezCounters();
       tezCounters.readFields(in);
     }
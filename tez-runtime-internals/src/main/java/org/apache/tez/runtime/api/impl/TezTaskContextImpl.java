@@ -176,7 +176,7 @@ public abstract class TezTaskContextImpl implements TezTaskContext {
 
   @Override
   public long getTotalMemoryAvailableToTask() {
-    return Runtime.getRuntime().maxMemory();
+    return initialMemoryDistributor.getTotalAvailableMemory();
   }
   
   protected void signalFatalError(Throwable t, String message,
@@ -73,6 +73,16 @@ public class MemoryDistributor {
    *          Tez specific task configuration
    */
   public MemoryDistributor(int numTotalInputs, int numTotalOutputs, Configuration conf) {
+    this(numTotalInputs, numTotalOutputs, conf, Runtime.getRuntime().maxMemory());
+  }
+
+  /**
+   * @param totalAvailableMemory
+   *          memory available to the task, which is less than the heap when
+   *          several tasks share the JVM
+   */
+  public MemoryDistributor(int numTotalInputs, int numTotalOutputs, Configuration conf,
+      long totalAvailableMemory) {
     this.conf = conf;
     isEnabled = conf.getBoolean(TezJobConfig.TEZ_TASK_SCALE_MEMORY_ENABLED,
         TezJobConfig.TEZ_TASK_SCALE_MEMORY_ENABLED_DEFAULT);
@@ -80,7 +90,7 @@ public class MemoryDistributor {
 
     this.numTotalInputs = numTotalInputs;
     this.numTotalOutputs = numTotalOutputs;
-    this.totalJvmMemory = Runtime.getRuntime().maxMemory();
+    this.totalJvmMemory = totalAvailableMemory;
     this.requestList = Collections.synchronizedList(new LinkedList<RequestorInfo>());
     LOG.info("InitialMemoryDistributor (isEnabled=" + isEnabled + ") invoked with: numInputs="
         + numTotalInputs + ", numOutputs=" + numTotalOutputs
@@ -89,6 +99,13 @@ public class MemoryDistributor {
 
 
   
+  /**
+   * @return the memory available to the task, which allocations are made from
+   */
+  public long getTotalAvailableMemory() {
+    return totalJvmMemory;
+  }
+
   /**
    * Used by the Tez framework to request memory on behalf of user requests.
    */
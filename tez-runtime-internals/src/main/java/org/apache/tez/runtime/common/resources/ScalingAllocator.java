@@ -56,9 +56,9 @@ public class ScalingAllocator implements InitialMemoryAllocator {
     double reserveFraction = conf.getDouble(TezJobConfig.TEZ_TASK_SCALE_MEMORY_RESERVE_FRACTION,
         DEFAULT_RESERVE_FRACTION);
     Preconditions.checkState(reserveFraction >= 0.0d && reserveFraction <= 1.0d);
+    long totalJvmMem = availableForAllocation;
     availableForAllocation = (long) (availableForAllocation - (reserveFraction * availableForAllocation));
 
-    long totalJvmMem = Runtime.getRuntime().maxMemory();
     double ratio = totalRequested / (double) totalJvmMem;
     LOG.info("Scaling Requests. TotalRequested: " + totalRequested + ", TotalJVMHeap: "
         + totalJvmMem + ", TotalAvailable: " + availableForAllocation
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.junit.Test;
+
+public class TestCountersDeltaTracker {
+
+  @Test
+  public void testDeltas() {
+    CountersDeltaTracker tracker = new CountersDeltaTracker(3);
+    TezCounters counters = new TezCounters();
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(10);
+    counters.findCounter("group", "counter").setValue(5);
+
+    // first update is always complete
+    TezCounters sent = tracker.getCountersToSend(counters);
+    assertTrue(tracker.isFullSnapshot());
+    assertEquals(2, sent.countCounters());
+    tracker.acknowledge();
+
+    counters.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).setValue(20);
+    sent = tracker.getCountersToSend(counters);
+    assertFalse(tracker.isFullSnapshot());
+    assertEquals(1, sent.countCounters());
+    assertEquals(20,
+        sent.findCounter(TaskCounter.INPUT_RECORDS_PROCESSED).getValue());
+
+    // not acknowledged, so the same change is sent again
+    sent = tracker.getCountersToSend(counters);
+    assertFalse(tracker.isFullSnapshot());
+    assertEquals(1, sent.countCounters());
+    tracker.acknowledge();
+
+    sent = tracker.getCountersToSend(counters);
+    assertFalse(tracker.isFullSnapshot());
+    assertEquals(0, sent.countCounters());
+    tracker.acknowledge();
+
+    // third update after the full snapshot
+    sent = tracker.getCountersToSend(counters);
+    assertTrue(tracker.isFullSnapshot());
+    assertEquals(2, sent.countCounters());
+    tracker.acknowledge();
+
+    tracker.reset();
+    sent = tracker.getCountersToSend(counters);
+    assertTrue(tracker.isFullSnapshot());
+  }
+}
@@ -20,11 +20,14 @@ package org.apache.tez.dag.library.vertexmanager;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -44,9 +47,12 @@ import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.events.DataMovementEvent;
 import org.apache.tez.runtime.api.events.InputReadErrorEvent;
 import org.apache.tez.runtime.api.events.VertexManagerEvent;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.ShuffleEdgeManagerConfigPayloadProto;
+import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.ShuffleEdgeManagerPartitionsPayloadProto;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.VertexManagerEventPayloadProto;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -121,6 +127,10 @@ public class ShuffleVertexManager implements VertexManagerPlugin {
   
   Map<String, Set<Integer>> bipartiteSources = Maps.newHashMap();
   long completedSourceTasksOutputSize = 0;
+  // Sum of the partition sizes reported by the source tasks. Only used if
+  // every source task reported them.
+  long[] completedSourceTasksPartitionSizes = null;
+  boolean partitionStatsComplete = true;
   
   public ShuffleVertexManager() {
   }
@@ -286,7 +296,110 @@ public class ShuffleVertexManager implements VertexManagerPlugin {
     }
   }
 
-  
+  /**
+   * Routes any set of partitions to each destination task, as given by the
+   * destination task of each partition. The inputs of a destination task are
+   * ordered by source task, then by partition.
+   */
+  public static class PartitionSetShuffleEdgeManager implements EdgeManager {
+    int numSourceTaskOutputs;
+    // destination task of each partition
+    int[] destinationTasks;
+    // index of each partition among the partitions of its destination task
+    int[] partitionOffsets;
+    // number of partitions of each destination task
+    int[] numPartitions;
+
+    public PartitionSetShuffleEdgeManager() {
+    }
+
+    @Override
+    public void initialize(EdgeManagerContext edgeManagerContext) {
+      byte[] userPayload = edgeManagerContext.getUserPayload();
+      if (userPayload == null
+        || userPayload.length == 0) {
+        throw new RuntimeException("Could not initialize PartitionSetShuffleEdgeManager"
+            + " from provided user payload");
+      }
+      ShuffleEdgeManagerPartitionsPayloadProto proto;
+      try {
+        proto = ShuffleEdgeManagerPartitionsPayloadProto.parseFrom(userPayload);
+      } catch (InvalidProtocolBufferException e) {
+        throw new RuntimeException("Could not initialize PartitionSetShuffleEdgeManager"
+            + " from provided user payload", e);
+      }
+      this.numSourceTaskOutputs = proto.getNumSourceTaskOutputs();
+      int numDestinationTasks = proto.getNumDestinationTasks();
+      destinationTasks = new int[proto.getDestinationTasksCount()];
+      for (int i = 0; i < destinationTasks.length; ++i) {
+        destinationTasks[i] = proto.getDestinationTasks(i);
+        Preconditions.checkArgument(destinationTasks[i] >= 0
+            && destinationTasks[i] < numDestinationTasks,
+            "Partition " + i + " assigned to task " + destinationTasks[i]
+            + " out of " + numDestinationTasks + " tasks");
+      }
+      partitionOffsets = new int[destinationTasks.length];
+      numPartitions = new int[numDestinationTasks];
+      for (int i = 0; i < destinationTasks.length; ++i) {
+        partitionOffsets[i] = numPartitions[destinationTasks[i]]++;
+      }
+    }
+
+    @Override
+    public int getNumDestinationTaskPhysicalInputs(int numSourceTasks,
+        int destinationTaskIndex) {
+      return numSourceTasks * numPartitions[destinationTaskIndex];
+    }
+
+    @Override
+    public int getNumSourceTaskPhysicalOutputs(int numDestinationTasks,
+        int sourceTaskIndex) {
+      return numSourceTaskOutputs;
+    }
+
+    @Override
+    public void routeDataMovementEventToDestination(DataMovementEvent event,
+        int sourceTaskIndex, int numDestinationTasks, Map<Integer, List<Integer>> inputIndicesToTaskIndices) {
+      int sourceIndex = event.getSourceIndex();
+      int destinationTaskIndex = destinationTasks[sourceIndex];
+      int targetIndex =
+          sourceTaskIndex * numPartitions[destinationTaskIndex]
+          + partitionOffsets[sourceIndex];
+      inputIndicesToTaskIndices.put(new Integer(targetIndex),
+          Collections.singletonList(new Integer(destinationTaskIndex)));
+    }
+
+    @Override
+    public void routeInputSourceTaskFailedEventToDestination(int sourceTaskIndex,
+        int numDestinationTasks,
+        Map<Integer, List<Integer>> inputIndicesToTaskIndices) {
+      for (int i = 0; i < destinationTasks.length; ++i) {
+        int destinationTaskIndex = destinationTasks[i];
+        Integer targetIndex = new Integer(
+            sourceTaskIndex * numPartitions[destinationTaskIndex]
+            + partitionOffsets[i]);
+        List<Integer> tasks = inputIndicesToTaskIndices.get(targetIndex);
+        if (tasks == null) {
+          tasks = Lists.newArrayList();
+          inputIndicesToTaskIndices.put(targetIndex, tasks);
+        }
+        tasks.add(new Integer(destinationTaskIndex));
+      }
+    }
+
+    @Override
+    public int routeInputErrorEventToSource(InputReadErrorEvent event,
+        int destinationTaskIndex) {
+      return event.getIndex()/numPartitions[destinationTaskIndex];
+    }
+
+    @Override
+    public int getNumDestinationConsumerTasks(int sourceTaskIndex,
+        int numDestTasks) {
+      return numDestTasks;
+    }
+  }
+
   @Override
   public void onVertexStarted(Map<String, List<Integer>> completions) {
     pendingTasks = new ArrayList<Integer>(
@@ -338,6 +451,7 @@ public class ShuffleVertexManager implements VertexManagerPlugin {
       long sourceTaskOutputSize = proto.getOutputSize();
       numVertexManagerEventsReceived++;
       completedSourceTasksOutputSize += sourceTaskOutputSize;
+      updatePartitionStats(proto);
       if (LOG.isDebugEnabled()) {
         LOG.debug("Received info of output size: " + sourceTaskOutputSize 
             + " numInfoReceived: " + numVertexManagerEventsReceived
@@ -347,6 +461,34 @@ public class ShuffleVertexManager implements VertexManagerPlugin {
     
   }
   
+  void updatePartitionStats(VertexManagerEventPayloadProto proto) {
+    if (!partitionStatsComplete) {
+      return;
+    }
+    if (!proto.hasPartitionStats()) {
+      partitionStatsComplete = false;
+      return;
+    }
+    long[] partitionSizes;
+    try {
+      partitionSizes = ShuffleUtils.decodePartitionStats(proto.getPartitionStats());
+    } catch (IOException e) {
+      throw new TezUncheckedException(e);
+    }
+    if (completedSourceTasksPartitionSizes == null) {
+      completedSourceTasksPartitionSizes = partitionSizes;
+    } else if (completedSourceTasksPartitionSizes.length == partitionSizes.length) {
+      for (int i = 0; i < partitionSizes.length; ++i) {
+        completedSourceTasksPartitionSizes[i] += partitionSizes[i];
+      }
+    } else {
+      LOG.warn("Ignoring partition stats of vertex: " + context.getVertexName()
+          + " since source tasks reported " + partitionSizes.length + " and "
+          + completedSourceTasksPartitionSizes.length + " partitions");
+      partitionStatsComplete = false;
+    }
+  }
+
   void updatePendingTasks() {
     pendingTasks.clear();
     for (int i=0; i<context.getVertexNumTasks(context.getVertexName()); ++i) {
@@ -388,6 +530,54 @@ public class ShuffleVertexManager implements VertexManagerPlugin {
       return;
     }
     
+    int numNonEmptyPartitions = 0;
+    if (partitionStatsComplete && completedSourceTasksPartitionSizes != null
+        && completedSourceTasksPartitionSizes.length == currentParallelism) {
+      for (long partitionSize : completedSourceTasksPartitionSizes) {
+        if (partitionSize > 0) {
+          ++numNonEmptyPartitions;
+        }
+      }
+      if (numNonEmptyPartitions == 0) {
+        // sources which do not track partition sizes report zeros, so the
+        // partitions are assigned by range instead
+        LOG.info("Ignoring partition stats of vertex: " + context.getVertexName()
+            + " since all partitions were reported empty");
+      }
+    }
+    if (numNonEmptyPartitions > 0) {
+      // a task without a non-empty partition would have nothing to do
+      desiredTaskParallelism = Math.min(desiredTaskParallelism,
+          numNonEmptyPartitions);
+      LOG.info("Reduce auto parallelism for vertex: " + context.getVertexName()
+          + " to " + desiredTaskParallelism + " from " + currentParallelism
+          + " by partition size. Expected output: " + expectedTotalSourceTasksOutputSize
+          + " based on actual output: " + completedSourceTasksOutputSize
+          + " from " + numVertexManagerEventsReceived + " vertex manager events. "
+          + " desiredTaskInputSize: " + desiredTaskInputDataSize);
+      int[] destinationTasks = assignPartitions(
+          completedSourceTasksPartitionSizes, desiredTaskParallelism);
+      ShuffleEdgeManagerPartitionsPayloadProto.Builder builder =
+          ShuffleEdgeManagerPartitionsPayloadProto.newBuilder()
+          .setNumSourceTaskOutputs(currentParallelism)
+          .setNumDestinationTasks(desiredTaskParallelism);
+      for (int destinationTask : destinationTasks) {
+        builder.addDestinationTasks(destinationTask);
+      }
+      byte[] userPayload = builder.build().toByteArray();
+      Map<String, EdgeManagerDescriptor> edgeManagers =
+          new HashMap<String, EdgeManagerDescriptor>(bipartiteSources.size());
+      for(String vertex : bipartiteSources.keySet()) {
+        EdgeManagerDescriptor edgeManagerDescriptor =
+            new EdgeManagerDescriptor(PartitionSetShuffleEdgeManager.class.getName());
+        edgeManagerDescriptor.setUserPayload(userPayload);
+        edgeManagers.put(vertex, edgeManagerDescriptor);
+      }
+      context.setVertexParallelism(desiredTaskParallelism, null, edgeManagers);
+      updatePendingTasks();
+      return;
+    }
+
     // most shufflers will be assigned this range
     int basePartitionRange = currentParallelism/desiredTaskParallelism;
     
@@ -432,6 +622,64 @@ public class ShuffleVertexManager implements VertexManagerPlugin {
     }
   }
   
+  /**
+   * Assigns partitions to tasks, largest partition first, each to the task
+   * with the least data so far, so that a large partition does not share a
+   * task with other large partitions. Empty partitions are spread over the
+   * tasks round-robin, since they would otherwise all go to the same task.
+   * 
+   * @return the task of each partition
+   */
+  static int[] assignPartitions(final long[] partitionSizes, int numTasks) {
+    Integer[] partitions = new Integer[partitionSizes.length];
+    for (int i = 0; i < partitions.length; ++i) {
+      partitions[i] = new Integer(i);
+    }
+    Arrays.sort(partitions, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer p1, Integer p2) {
+        long s1 = partitionSizes[p1.intValue()];
+        long s2 = partitionSizes[p2.intValue()];
+        if (s1 != s2) {
+          return s1 > s2 ? -1 : 1;
+        }
+        return p1.compareTo(p2);
+      }
+    });
+
+    final long[] taskSizes = new long[numTasks];
+    PriorityQueue<Integer> tasks = new PriorityQueue<Integer>(numTasks,
+        new Comparator<Integer>() {
+          @Override
+          public int compare(Integer t1, Integer t2) {
+            long s1 = taskSizes[t1.intValue()];
+            long s2 = taskSizes[t2.intValue()];
+            if (s1 != s2) {
+              return s1 < s2 ? -1 : 1;
+            }
+            return t1.compareTo(t2);
+          }
+        });
+    for (int i = 0; i < numTasks; ++i) {
+      tasks.add(new Integer(i));
+    }
+
+    int[] destinationTasks = new int[partitionSizes.length];
+    int nextTaskForEmptyPartition = 0;
+    for (Integer partition : partitions) {
+      if (partitionSizes[partition.intValue()] <= 0) {
+        destinationTasks[partition.intValue()] = nextTaskForEmptyPartition;
+        nextTaskForEmptyPartition = (nextTaskForEmptyPartition + 1) % numTasks;
+        continue;
+      }
+      Integer task = tasks.poll();
+      destinationTasks[partition.intValue()] = task.intValue();
+      taskSizes[task.intValue()] += partitionSizes[partition.intValue()];
+      tasks.add(task);
+    }
+    return destinationTasks;
+  }
+
   void schedulePendingTasks(int numTasksToSchedule) {
     // determine parallelism before scheduling the first time
     // this is the latest we can wait before determining parallelism.
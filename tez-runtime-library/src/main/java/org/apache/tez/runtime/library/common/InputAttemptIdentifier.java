@@ -30,6 +30,9 @@ public class InputAttemptIdentifier {
   private final InputIdentifier inputIdentifier;
   private final int attemptNumber;
   private String pathComponent;
+  // Only set for sources which publish their output one spill at a time
+  private final int spillId;
+  private final boolean lastSpill;
   
   public static final String PATH_PREFIX = "attempt";
   
@@ -38,9 +41,23 @@ public class InputAttemptIdentifier {
   }
   
   public InputAttemptIdentifier(InputIdentifier inputIdentifier, int attemptNumber, String pathComponent) {
+    this(inputIdentifier, attemptNumber, pathComponent, -1, false);
+  }
+
+  /**
+   * Identifies one spill of a source which publishes its output one spill at
+   * a time.
+   *
+   * @param spillId the spill number, starting at 0
+   * @param lastSpill whether this is the last spill of the source
+   */
+  public InputAttemptIdentifier(InputIdentifier inputIdentifier, int attemptNumber,
+      String pathComponent, int spillId, boolean lastSpill) {
     this.inputIdentifier = inputIdentifier;
     this.attemptNumber = attemptNumber;
     this.pathComponent = pathComponent;
+    this.spillId = spillId;
+    this.lastSpill = lastSpill;
     if (pathComponent != null && !pathComponent.startsWith(PATH_PREFIX)) {
       throw new TezUncheckedException(
           "Path component must start with: " + PATH_PREFIX + this);
@@ -63,12 +80,29 @@ public class InputAttemptIdentifier {
     return pathComponent;
   }
 
+  /**
+   * @return the spill number, or -1 if the source publishes all of its output
+   *         at once
+   */
+  public int getSpillId() {
+    return spillId;
+  }
+
+  public boolean isPipelined() {
+    return spillId >= 0;
+  }
+
+  public boolean isLastSpill() {
+    return lastSpill;
+  }
+
   // PathComponent does not need to be part of the hashCode and equals computation.
   @Override
   public int hashCode() {
     final int prime = 31;
     int result = 1;
     result = prime * result + attemptNumber;
+    result = prime * result + spillId;
     result = prime * result
         + ((inputIdentifier == null) ? 0 : inputIdentifier.hashCode());
     return result;
@@ -85,6 +119,8 @@ public class InputAttemptIdentifier {
     InputAttemptIdentifier other = (InputAttemptIdentifier) obj;
     if (attemptNumber != other.attemptNumber)
       return false;
+    if (spillId != other.spillId)
+      return false;
     if (inputIdentifier == null) {
       if (other.inputIdentifier != null)
         return false;
@@ -98,6 +134,7 @@ public class InputAttemptIdentifier {
   public String toString() {
     return "InputAttemptIdentifier [inputIdentifier=" + inputIdentifier
         + ", attemptNumber=" + attemptNumber + ", pathComponent="
-        + pathComponent + "]";
+        + pathComponent + (isPipelined() ? ", spillId=" + spillId
+        + ", lastSpill=" + lastSpill : "") + "]";
   }
 }
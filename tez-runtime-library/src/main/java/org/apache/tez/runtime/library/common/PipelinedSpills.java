@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common;
+
+import java.util.BitSet;
+
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+
+/**
+ * The spills received so far of an input which publishes its output one
+ * spill at a time. All of them have to come from the same attempt.
+ */
+@Private
+public class PipelinedSpills {
+
+  private final int attemptNumber;
+  private final BitSet fetched = new BitSet();
+  // Known once the last spill has been received
+  private int numSpills = -1;
+
+  public PipelinedSpills(int attemptNumber) {
+    this.attemptNumber = attemptNumber;
+  }
+
+  public int getAttemptNumber() {
+    return attemptNumber;
+  }
+
+  public boolean isFetched(int spillId) {
+    return fetched.get(spillId);
+  }
+
+  /**
+   * @return true if all the spills of the input have been received
+   */
+  public boolean spillFetched(InputAttemptIdentifier id) {
+    fetched.set(id.getSpillId());
+    if (id.isLastSpill()) {
+      numSpills = id.getSpillId() + 1;
+    }
+    return numSpills == fetched.cardinality();
+  }
+}
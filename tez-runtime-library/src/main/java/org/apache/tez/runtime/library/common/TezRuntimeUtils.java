@@ -135,12 +135,16 @@ public class TezRuntimeUtils {
   }
   
   public static TezTaskOutput instantiateTaskOutputManager(Configuration conf, TezOutputContext outputContext) {
+    return instantiateTaskOutputManager(conf, outputContext.getUniqueIdentifier());
+  }
+
+  public static TezTaskOutput instantiateTaskOutputManager(Configuration conf, String uniqueId) {
     Class<?> clazz = conf.getClass(Constants.TEZ_RUNTIME_TASK_OUTPUT_MANAGER,
         TezTaskOutputFiles.class);
     try {
       Constructor<?> ctor = clazz.getConstructor(Configuration.class, String.class);
       ctor.setAccessible(true);
-      TezTaskOutput instance = (TezTaskOutput) ctor.newInstance(conf, outputContext.getUniqueIdentifier());
+      TezTaskOutput instance = (TezTaskOutput) ctor.newInstance(conf, uniqueId);
       return instance;
     } catch (Exception e) {
       throw new TezUncheckedException(
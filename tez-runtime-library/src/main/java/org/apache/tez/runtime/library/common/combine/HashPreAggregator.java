@@ -0,0 +1,295 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.combine;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Combines the values written for the same key with a {@link PreAggregator}
+ * in a hash table, and writes the aggregates to the sorter when they are
+ * evicted or flushed. The table is bounded by a number of keys and by the
+ * memory assigned to it, estimated from the serialized size of the keys and
+ * of the first value written for them. For outputs with few distinct keys, the
+ * sorter then only sees a record per key, or per eviction, instead of one
+ * per write, which saves sort buffer space, spills and shuffled bytes.
+ *
+ * Keys are compared by their serialized bytes, so keys which are only
+ * equal according to the output key comparator are aggregated separately,
+ * and combined later by the combiner if there is one. The keys and values
+ * written are copied, since writers may reuse them.
+ *
+ * If the table does not save at least the configured fraction of records
+ * by the time it has evicted as many keys as it holds, it is flushed and
+ * records are written to the sorter directly from then on.
+ */
+@Private
+public class HashPreAggregator {
+
+  private static final Log LOG = LogFactory.getLog(HashPreAggregator.class);
+
+  // Estimated heap taken by an entry besides its key and value: the map
+  // entry, the Entry, the BytesWritable holding the raw key and the object
+  // headers of the copies.
+  static final int ENTRY_OVERHEAD = 160;
+
+  private static class Entry {
+    final Object key;
+    Object aggregate;
+    final long size;
+
+    Entry(Object key, Object aggregate, long size) {
+      this.key = key;
+      this.aggregate = aggregate;
+      this.size = size;
+    }
+  }
+
+  private final ExternalSorter sorter;
+  private final PreAggregator aggregator;
+  private final int maxKeys;
+  private final long maxBytes;
+  private final float minReduction;
+  private long tableBytes;
+
+  // In access order, the least recently written key is evicted first.
+  private final LinkedHashMap<BytesWritable, Entry> table;
+  private final BytesWritable lookupKey = new BytesWritable();
+
+  private final Serializer<Object> keySerializer;
+  private final Serializer<Object> valSerializer;
+  private final Deserializer<Object> keyDeserializer;
+  private final Deserializer<Object> valDeserializer;
+  private final DataOutputBuffer keyBuffer = new DataOutputBuffer();
+  private final DataOutputBuffer valBuffer = new DataOutputBuffer();
+  private final DataInputBuffer inputBuffer = new DataInputBuffer();
+
+  private final TezCounter preAggregationInputCounter;
+  private final TezCounter preAggregationOutputCounter;
+  private long numInputRecords;
+  private long numOutputRecords;
+  private boolean reductionChecked;
+  private boolean enabled = true;
+
+  /**
+   * @param memoryAvailable the memory assigned to the table, see
+   *          {@link #getInitialMemoryRequirement(Configuration)}
+   */
+  public HashPreAggregator(TezOutputContext outputContext, Configuration conf,
+      ExternalSorter sorter, PreAggregator aggregator, long memoryAvailable)
+      throws IOException {
+    this.sorter = sorter;
+    this.aggregator = aggregator;
+    this.maxKeys = conf.getInt(
+        TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MAX_KEYS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_PRE_AGGREGATION_MAX_KEYS);
+    Preconditions.checkArgument(maxKeys > 0,
+        TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MAX_KEYS + " should be > 0");
+    this.maxBytes = memoryAvailable;
+    this.minReduction = conf.getFloat(
+        TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MIN_REDUCTION,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_PRE_AGGREGATION_MIN_REDUCTION);
+    Preconditions.checkArgument(minReduction >= 0 && minReduction < 1,
+        TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MIN_REDUCTION
+        + " should be in the range [0, 1)");
+    this.table = new LinkedHashMap<BytesWritable, Entry>(
+        Math.min(maxKeys, 1024), 0.75f, true);
+
+    SerializationFactory serializationFactory = new SerializationFactory(conf);
+    Class<Object> keyClass = ConfigUtils.getIntermediateOutputKeyClass(conf);
+    Class<Object> valClass = ConfigUtils.getIntermediateOutputValueClass(conf);
+    keySerializer = serializationFactory.getSerializer(keyClass);
+    valSerializer = serializationFactory.getSerializer(valClass);
+    keyDeserializer = serializationFactory.getDeserializer(keyClass);
+    valDeserializer = serializationFactory.getDeserializer(valClass);
+    keySerializer.open(keyBuffer);
+    valSerializer.open(valBuffer);
+    keyDeserializer.open(inputBuffer);
+    valDeserializer.open(inputBuffer);
+
+    preAggregationInputCounter = outputContext.getCounters().findCounter(
+        TaskCounter.PRE_AGGREGATION_INPUT_RECORDS);
+    preAggregationOutputCounter = outputContext.getCounters().findCounter(
+        TaskCounter.PRE_AGGREGATION_OUTPUT_RECORDS);
+    LOG.info("Pre-aggregating with " + aggregator.getClass().getName()
+        + ", maxKeys: " + maxKeys + ", maxBytes: " + maxBytes
+        + ", minReduction: " + minReduction);
+  }
+
+  /**
+   * @return the memory to request for the table, 0 if no PreAggregator is
+   *         configured
+   */
+  public static long getInitialMemoryRequirement(Configuration conf) {
+    if (conf.get(TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATOR_CLASS) == null) {
+      return 0;
+    }
+    int memoryMb = conf.getInt(TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MB,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_PRE_AGGREGATION_MB);
+    Preconditions.checkArgument(memoryMb > 0,
+        TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MB + " should be > 0");
+    LOG.info("Requested pre-aggregation memory: " + memoryMb + " MB");
+    return ((long) memoryMb) << 20;
+  }
+
+  /**
+   * @return the PreAggregator configured for the output, or null
+   */
+  @SuppressWarnings("unchecked")
+  public static PreAggregator createPreAggregator(Configuration conf)
+      throws IOException {
+    String className = conf.get(TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATOR_CLASS);
+    if (className == null) {
+      return null;
+    }
+    Class<? extends PreAggregator> clazz;
+    try {
+      clazz = (Class<? extends PreAggregator>) conf.getClassByName(className);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unable to load pre-aggregator class: "
+          + className, e);
+    }
+    return ReflectionUtils.newInstance(clazz, conf);
+  }
+
+  public void write(Object key, Object value) throws IOException {
+    if (!enabled) {
+      sorter.write(key, value);
+      return;
+    }
+    numInputRecords++;
+    preAggregationInputCounter.increment(1);
+
+    keyBuffer.reset();
+    keySerializer.serialize(key);
+    lookupKey.set(keyBuffer.getData(), 0, keyBuffer.getLength());
+    Entry entry = table.get(lookupKey);
+    if (entry != null) {
+      entry.aggregate = aggregator.aggregate(entry.key, entry.aggregate, value);
+      return;
+    }
+
+    valBuffer.reset();
+    valSerializer.serialize(value);
+    // the raw key, the copy of the key and the copy of the value
+    long size = 2L * keyBuffer.getLength() + valBuffer.getLength()
+        + ENTRY_OVERHEAD;
+    if (size > maxBytes) {
+      // would not fit even in an empty table
+      sorter.write(key, value);
+      numOutputRecords++;
+      preAggregationOutputCounter.increment(1);
+      return;
+    }
+    while (table.size() >= maxKeys || tableBytes + size > maxBytes) {
+      evictEldest();
+    }
+    BytesWritable rawKey = new BytesWritable(
+        Arrays.copyOf(keyBuffer.getData(), keyBuffer.getLength()));
+    inputBuffer.reset(keyBuffer.getData(), keyBuffer.getLength());
+    Object keyCopy = keyDeserializer.deserialize(null);
+    inputBuffer.reset(valBuffer.getData(), valBuffer.getLength());
+    Object valueCopy = valDeserializer.deserialize(null);
+    table.put(rawKey, new Entry(keyCopy, valueCopy, size));
+    tableBytes += size;
+
+    // checked once as many keys have been evicted as the table holds
+    if (!reductionChecked && numOutputRecords > 0
+        && numOutputRecords >= table.size()) {
+      checkReduction();
+    }
+  }
+
+  private void evictEldest() throws IOException {
+    Iterator<Map.Entry<BytesWritable, Entry>> it = table.entrySet().iterator();
+    Entry eldest = it.next().getValue();
+    it.remove();
+    tableBytes -= eldest.size;
+    writeToSorter(eldest);
+  }
+
+  private void writeToSorter(Entry entry) throws IOException {
+    sorter.write(entry.key, entry.aggregate);
+    numOutputRecords++;
+    preAggregationOutputCounter.increment(1);
+  }
+
+  private void checkReduction() throws IOException {
+    reductionChecked = true;
+    long records = numOutputRecords + table.size();
+    float reduction = 1.0f - (float) records / numInputRecords;
+    if (reduction < minReduction) {
+      LOG.info("Turning off pre-aggregation, it saved " + reduction
+          + " of " + numInputRecords + " records, less than " + minReduction);
+      flush();
+      enabled = false;
+    }
+  }
+
+  /**
+   * Writes all the aggregates held to the sorter.
+   */
+  public void flush() throws IOException {
+    for (Entry entry : table.values()) {
+      writeToSorter(entry);
+    }
+    table.clear();
+    tableBytes = 0;
+    if (numInputRecords > 0) {
+      LOG.info("Pre-aggregation wrote " + numOutputRecords + " of "
+          + numInputRecords + " records to the sorter");
+    }
+  }
+
+  public void close() throws IOException {
+    table.clear();
+    tableBytes = 0;
+    keySerializer.close();
+    valSerializer.close();
+    keyDeserializer.close();
+    valDeserializer.close();
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.combine;
+
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceAudience.LimitedPrivate;
+import org.apache.hadoop.classification.InterfaceStability.Unstable;
+import org.apache.tez.common.TezJobConfig;
+
+/**
+ * Combines the values of a key before they are serialized into the sort
+ * buffer, see {@link HashPreAggregator}. Unlike a {@link Combiner}, which
+ * works on serialized and sorted records, it works on the key and value
+ * objects written to the output, one value at a time.
+ *
+ * The PreAggregator class is picked up using the
+ * TEZ_RUNTIME_PRE_AGGREGATOR_CLASS attribute in {@link TezJobConfig}. It
+ * needs a no-argument constructor, and is given the configuration of the
+ * output if it is Configurable.
+ */
+@Unstable
+@LimitedPrivate("mapreduce")
+public interface PreAggregator {
+
+  /**
+   * Adds a value of the key to its aggregate.
+   *
+   * @param key the key, which must not be modified
+   * @param aggregate the values of the key aggregated so far, owned by the
+   *          caller, which may be modified and returned
+   * @param value the value to add, which must not be kept since the writer
+   *          of the output may reuse it
+   * @return the new aggregate of the key
+   */
+  public Object aggregate(Object key, Object aggregate, Object value)
+      throws IOException;
+}
@@ -0,0 +1,385 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.readers;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.library.api.KeyValuesReader;
+import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Groups the records of a {@link ShuffledUnorderedKVReader} by key in a
+ * hash table, so that unsorted inputs can be read as keys with all their
+ * values. The input is read completely on the first call to next.
+ *
+ * Keys are compared by their serialized bytes. When the table grows beyond
+ * its memory limit, it is spilled to a number of files partitioned by the
+ * hash of the keys, and emptied. Once the input is read, the partitions
+ * are grouped one at a time, and a partition which does not fit either is
+ * spilled again with a different hash. After {@link #MAX_SPILL_LEVELS} the
+ * partition is grouped in memory regardless of the limit, since it most
+ * likely holds a few keys with many values.
+ *
+ * The key and values returned are reused, the values only remain valid
+ * while they are iterated.
+ */
+@Private
+public class HashGroupedKVReader<K, V> implements KeyValuesReader {
+
+  private static final Log LOG = LogFactory.getLog(HashGroupedKVReader.class);
+
+  static final int MAX_SPILL_LEVELS = 3;
+
+  // Estimate of the memory used by the table for a key besides its bytes
+  private static final int KEY_OVERHEAD = 96;
+
+  private static class SpillFile {
+    final Path path;
+    // Number of times the records of the file have been spilled
+    final int level;
+
+    SpillFile(Path path, int level) {
+      this.path = path;
+      this.level = level;
+    }
+  }
+
+  private final ShuffledUnorderedKVReader<?, ?> reader;
+  private final Configuration conf;
+  private final FileSystem localFs;
+  private final LocalDirAllocator localDirAllocator;
+  private final String spillPrefix;
+  private final long memoryLimit;
+  private final int numPartitions;
+  private final int ifileBufferSize;
+  private final TezCounter spilledRecordsCounter;
+
+  private final Class<K> keyClass;
+  private final Class<V> valClass;
+  private final Deserializer<K> keyDeserializer;
+  private final Deserializer<V> valDeserializer;
+  private final DataInputBuffer keyIn = new DataInputBuffer();
+  private final DataInputBuffer valIn = new DataInputBuffer();
+
+  // Each key maps to its values, each written as a vint length and bytes.
+  private final HashMap<BytesWritable, DataOutputBuffer> table =
+      new HashMap<BytesWritable, DataOutputBuffer>();
+  private final BytesWritable lookupKey = new BytesWritable();
+  private long memoryUsed;
+  private int level;
+  private boolean overLimitLogged;
+
+  // Set once the table overflows, until the records grouped are all spilled
+  private IFile.Writer[] spillWriters;
+  private Path[] spillPaths;
+  private final DataInputBuffer spillKey = new DataInputBuffer();
+  private final DataInputBuffer spillValue = new DataInputBuffer();
+  private final DataInputBuffer readKey = new DataInputBuffer();
+  private final DataInputBuffer readValue = new DataInputBuffer();
+  private final LinkedList<SpillFile> pendingSpills = new LinkedList<SpillFile>();
+  private int numSpills;
+  private long numSpilledRecords;
+
+  private boolean inputRead;
+  private Iterator<Map.Entry<BytesWritable, DataOutputBuffer>> groups;
+  private K key;
+  private V value;
+  private DataOutputBuffer currentValues;
+  private final ValuesIterable valuesIterable = new ValuesIterable();
+
+  public HashGroupedKVReader(ShuffledUnorderedKVReader<?, ?> reader,
+      Configuration conf, String uniqueIdentifier, long memoryLimit,
+      TezCounter spilledRecordsCounter) throws IOException {
+    this.reader = reader;
+    this.conf = conf;
+    this.localFs = FileSystem.getLocal(conf).getRaw();
+    this.localDirAllocator = new LocalDirAllocator(TezJobConfig.LOCAL_DIRS);
+    this.spillPrefix = uniqueIdentifier + "_hash_group";
+    this.memoryLimit = memoryLimit;
+    this.numPartitions = conf.getInt(
+        TezJobConfig.TEZ_RUNTIME_HASH_GROUPING_SPILL_PARTITIONS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_HASH_GROUPING_SPILL_PARTITIONS);
+    Preconditions.checkArgument(numPartitions > 1,
+        TezJobConfig.TEZ_RUNTIME_HASH_GROUPING_SPILL_PARTITIONS
+        + " should be > 1");
+    this.ifileBufferSize = conf.getInt("io.file.buffer.size",
+        TezJobConfig.TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT);
+    this.spilledRecordsCounter = spilledRecordsCounter;
+
+    this.keyClass = ConfigUtils.getIntermediateInputKeyClass(conf);
+    this.valClass = ConfigUtils.getIntermediateInputValueClass(conf);
+    SerializationFactory serializationFactory = new SerializationFactory(conf);
+    this.keyDeserializer = serializationFactory.getDeserializer(keyClass);
+    this.keyDeserializer.open(keyIn);
+    this.valDeserializer = serializationFactory.getDeserializer(valClass);
+    this.valDeserializer.open(valIn);
+    LOG.info("Grouping with memoryLimit: " + memoryLimit + ", spillPartitions: "
+        + numPartitions);
+  }
+
+  @Override
+  public boolean next() throws IOException {
+    if (!inputRead) {
+      readInput();
+      inputRead = true;
+    }
+    while (groups == null || !groups.hasNext()) {
+      table.clear();
+      memoryUsed = 0;
+      groups = null;
+      if (pendingSpills.isEmpty()) {
+        currentValues = null;
+        return false;
+      }
+      readSpill(pendingSpills.removeFirst());
+    }
+    Map.Entry<BytesWritable, DataOutputBuffer> group = groups.next();
+    keyIn.reset(group.getKey().getBytes(), group.getKey().getLength());
+    key = keyDeserializer.deserialize(key);
+    currentValues = group.getValue();
+    return true;
+  }
+
+  @Override
+  public Object getCurrentKey() throws IOException {
+    return key;
+  }
+
+  @Override
+  public Iterable<Object> getCurrentValues() throws IOException {
+    Preconditions.checkState(currentValues != null, "No current key");
+    return valuesIterable;
+  }
+
+  private void readInput() throws IOException {
+    level = 0;
+    while (reader.nextRaw()) {
+      add(reader.getCurrentRawKey(), reader.getCurrentRawValue());
+    }
+    finishGrouping();
+  }
+
+  private void readSpill(SpillFile spillFile) throws IOException {
+    level = spillFile.level;
+    overLimitLogged = false;
+    IFile.Reader spillReader = new IFile.Reader(localFs, spillFile.path, null,
+        null, null, false, 0, ifileBufferSize);
+    try {
+      while (spillReader.nextRawKey(readKey)) {
+        spillReader.nextRawValue(readValue);
+        add(readKey, readValue);
+      }
+    } finally {
+      spillReader.close();
+    }
+    localFs.delete(spillFile.path, false);
+    finishGrouping();
+  }
+
+  private void add(DataInputBuffer rawKey, DataInputBuffer rawValue)
+      throws IOException {
+    if (memoryUsed > memoryLimit) {
+      if (level < MAX_SPILL_LEVELS) {
+        spill();
+      } else if (!overLimitLogged) {
+        overLimitLogged = true;
+        LOG.warn("Grouping a partition spilled " + level
+            + " times in memory, beyond the memoryLimit: " + memoryLimit);
+      }
+    }
+
+    int keyLength = rawKey.getLength() - rawKey.getPosition();
+    lookupKey.set(rawKey.getData(), rawKey.getPosition(), keyLength);
+    DataOutputBuffer values = table.get(lookupKey);
+    if (values == null) {
+      values = new DataOutputBuffer();
+      table.put(new BytesWritable(Arrays.copyOfRange(rawKey.getData(),
+          rawKey.getPosition(), rawKey.getPosition() + keyLength)), values);
+      memoryUsed += keyLength + KEY_OVERHEAD + values.getData().length;
+    }
+    int capacity = values.getData().length;
+    int valueLength = rawValue.getLength() - rawValue.getPosition();
+    WritableUtils.writeVInt(values, valueLength);
+    values.write(rawValue.getData(), rawValue.getPosition(), valueLength);
+    memoryUsed += values.getData().length - capacity;
+  }
+
+  /**
+   * Writes the records in the table to the partition files and empties it.
+   */
+  private void spill() throws IOException {
+    if (spillWriters == null) {
+      spillWriters = new IFile.Writer[numPartitions];
+      spillPaths = new Path[numPartitions];
+      for (int i = 0; i < numPartitions; i++) {
+        spillPaths[i] = localDirAllocator.getLocalPathForWrite(
+            spillPrefix + "_" + numSpills++, conf);
+        spillWriters[i] = new IFile.Writer(conf, localFs, spillPaths[i],
+            keyClass, valClass, null, null, null);
+      }
+      LOG.info("Spilling records at level: " + level + " to " + numPartitions
+          + " partitions, memoryUsed: " + memoryUsed);
+    }
+    long records = 0;
+    for (Map.Entry<BytesWritable, DataOutputBuffer> group : table.entrySet()) {
+      BytesWritable rawKey = group.getKey();
+      IFile.Writer writer = spillWriters[getPartition(rawKey)];
+      spillKey.reset(rawKey.getBytes(), rawKey.getLength());
+      DataOutputBuffer values = group.getValue();
+      int pos = 0;
+      while (pos < values.getLength()) {
+        spillValue.reset(values.getData(), pos, values.getLength() - pos);
+        int valueLength = WritableUtils.readVInt(spillValue);
+        int valueStart = spillValue.getPosition();
+        spillValue.reset(values.getData(), valueStart, valueLength);
+        writer.append(spillKey, spillValue);
+        pos = valueStart + valueLength;
+        records++;
+      }
+    }
+    table.clear();
+    memoryUsed = 0;
+    numSpilledRecords += records;
+    if (spilledRecordsCounter != null) {
+      spilledRecordsCounter.increment(records);
+    }
+  }
+
+  /**
+   * Makes the table available for iteration, or if the table overflowed,
+   * spills the rest of it and queues the partitions to be grouped.
+   */
+  private void finishGrouping() throws IOException {
+    if (spillWriters == null) {
+      groups = table.entrySet().iterator();
+      return;
+    }
+    spill();
+    for (int i = 0; i < numPartitions; i++) {
+      spillWriters[i].close();
+      // Partitions are grouped depth first, to keep few files on disk.
+      pendingSpills.addFirst(new SpillFile(spillPaths[i], level + 1));
+    }
+    spillWriters = null;
+    spillPaths = null;
+  }
+
+  private int getPartition(BytesWritable rawKey) {
+    // The partition must not depend on the bits which picked the partition
+    // at lower levels, or the partition would not be split further. The
+    // hash is mixed, as the plain hash also picks the buckets of the table.
+    int h = WritableComparator.hashBytes(rawKey.getBytes(), rawKey.getLength())
+        ^ (level * 0x9E3779B9);
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return (h & Integer.MAX_VALUE) % numPartitions;
+  }
+
+  public void close() throws IOException {
+    table.clear();
+    if (spillWriters != null) {
+      for (int i = 0; i < numPartitions; i++) {
+        spillWriters[i].close();
+        localFs.delete(spillPaths[i], false);
+      }
+      spillWriters = null;
+    }
+    for (SpillFile spillFile : pendingSpills) {
+      localFs.delete(spillFile.path, false);
+    }
+    pendingSpills.clear();
+    if (numSpilledRecords > 0) {
+      LOG.info("Spilled " + numSpilledRecords + " records while grouping to "
+          + numSpills + " files");
+    }
+  }
+
+  private class ValuesIterable implements Iterable<Object> {
+    @Override
+    public Iterator<Object> iterator() {
+      return new ValuesIterator(currentValues);
+    }
+  }
+
+  private class ValuesIterator implements Iterator<Object> {
+    private final DataOutputBuffer values;
+    private final DataInputBuffer valuesIn = new DataInputBuffer();
+    private int pos;
+
+    ValuesIterator(DataOutputBuffer values) {
+      this.values = values;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return pos < values.getLength();
+    }
+
+    @Override
+    public Object next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      try {
+        valuesIn.reset(values.getData(), pos, values.getLength() - pos);
+        int valueLength = WritableUtils.readVInt(valuesIn);
+        int valueStart = valuesIn.getPosition();
+        pos = valueStart + valueLength;
+        valIn.reset(values.getData(), valueStart, valueLength);
+        value = valDeserializer.deserialize(value);
+        return value;
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to deserialize value", e);
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("remove not supported");
+    }
+  }
+}
@@ -105,14 +105,28 @@ public class ShuffledUnorderedKVReader<K, V> implements KeyValueReader {
    */
   @Override  
   public boolean next() throws IOException {
-    if (readNextFromCurrentReader()) {
+    return next(true);
+  }
+
+  /**
+   * Moves to the next record without deserializing it, for readers which
+   * work on the serialized records, see {@link #getCurrentRawKey()} and
+   * {@link #getCurrentRawValue()}. The current key and value are not
+   * updated.
+   */
+  public boolean nextRaw() throws IOException {
+    return next(false);
+  }
+
+  private boolean next(boolean deserialize) throws IOException {
+    if (readNextFromCurrentReader(deserialize)) {
       inputRecordCounter.increment(1);
       numRecordsRead++;
       return true;
     } else {
       boolean nextInputExists = moveToNextInput();
       while (nextInputExists) {
-        if(readNextFromCurrentReader()) {
+        if(readNextFromCurrentReader(deserialize)) {
           inputRecordCounter.increment(1);
           numRecordsRead++;
           return true;
@@ -134,12 +148,29 @@ public class ShuffledUnorderedKVReader<K, V> implements KeyValueReader {
     return value;
   }
 
+  /**
+   * @return the serialized key of the current record, valid until the next
+   *         call to next or nextRaw
+   */
+  public DataInputBuffer getCurrentRawKey() {
+    return keyIn;
+  }
+
+  /**
+   * @return the serialized value of the current record, valid until the
+   *         next call to next or nextRaw
+   */
+  public DataInputBuffer getCurrentRawValue() {
+    return valIn;
+  }
+
   /**
    * Tries reading the next key and value from the current reader.
    * @return true if the current reader has more records
    * @throws IOException
    */
-  private boolean readNextFromCurrentReader() throws IOException {
+  private boolean readNextFromCurrentReader(boolean deserialize)
+      throws IOException {
     // Initial reader.
     if (this.currentReader == null) {
       return false;
@@ -147,8 +178,10 @@ public class ShuffledUnorderedKVReader<K, V> implements KeyValueReader {
       boolean hasMore = this.currentReader.nextRawKey(keyIn);
       if (hasMore) {
         this.currentReader.nextRawValue(valIn);
-        this.key = keyDeserializer.deserialize(this.key);
-        this.value = valDeserializer.deserialize(this.value);
+        if (deserialize) {
+          this.key = keyDeserializer.deserialize(this.key);
+          this.value = valDeserializer.deserialize(this.value);
+        }
         return true;
       }
       return false;
@@ -0,0 +1,545 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezUtils;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.impl.Fetcher.ShuffleErrors;
+import org.apache.tez.runtime.library.common.shuffle.impl.MapOutput.Type;
+import org.apache.tez.runtime.library.common.sort.impl.IFileInputStream;
+import org.apache.tez.runtime.library.shuffle.common.AsyncShuffleClient;
+import org.apache.tez.runtime.library.shuffle.common.AsyncShuffleClient.FetchPhase;
+
+/**
+ * Fetches map outputs through the {@link AsyncShuffleClient} instead of a set
+ * of {@link Fetcher} threads. This thread only hands hosts out to the client,
+ * keeping up to <code>numFetches</code> fetches in progress. The outputs are
+ * verified and reported to the {@link ShuffleScheduler} in the same way as
+ * the {@link Fetcher} does.
+ */
+class AsyncFetcher extends Thread {
+
+  private static final Log LOG = LogFactory.getLog(AsyncFetcher.class);
+
+  private static final long SHUTDOWN_WAIT_MS = 5000;
+
+  private final TezCounter connectionErrs;
+  private final TezCounter ioErrs;
+  private final TezCounter wrongLengthErrs;
+  private final TezCounter badIdErrs;
+  private final TezCounter wrongMapErrs;
+  private final TezCounter wrongReduceErrs;
+  private final MergeManager merger;
+  private final ShuffleScheduler scheduler;
+  private final ShuffleClientMetrics metrics;
+  private final Shuffle shuffle;
+  private final LocalDiskFetcher localDiskFetcher;
+  private final AsyncShuffleClient client;
+  private final int id;
+  private static int nextId = 0;
+
+  private final int numFetches;
+  private final Semaphore fetchPermits;
+
+  private final int connectionTimeout;
+  private final int readTimeout;
+
+  private final CompressionCodec codec;
+  private final SecretKey jobTokenSecret;
+
+  private volatile boolean stopped = false;
+
+  public AsyncFetcher(Configuration job, ShuffleScheduler scheduler,
+      MergeManager merger, ShuffleClientMetrics metrics, Shuffle shuffle,
+      SecretKey jobTokenSecret, CompressionCodec codec,
+      TezInputContext inputContext, int numFetches,
+      LocalDiskFetcher localDiskFetcher) throws IOException {
+    this.scheduler = scheduler;
+    this.merger = merger;
+    this.metrics = metrics;
+    this.shuffle = shuffle;
+    this.localDiskFetcher = localDiskFetcher;
+    this.id = ++nextId;
+    this.jobTokenSecret = jobTokenSecret;
+    this.codec = codec;
+    this.numFetches = numFetches;
+    this.fetchPermits = new Semaphore(numFetches);
+    ioErrs = inputContext.getCounters().findCounter(Fetcher.SHUFFLE_ERR_GRP_NAME,
+        ShuffleErrors.IO_ERROR.toString());
+    wrongLengthErrs = inputContext.getCounters().findCounter(Fetcher.SHUFFLE_ERR_GRP_NAME,
+        ShuffleErrors.WRONG_LENGTH.toString());
+    badIdErrs = inputContext.getCounters().findCounter(Fetcher.SHUFFLE_ERR_GRP_NAME,
+        ShuffleErrors.BAD_ID.toString());
+    wrongMapErrs = inputContext.getCounters().findCounter(Fetcher.SHUFFLE_ERR_GRP_NAME,
+        ShuffleErrors.WRONG_MAP.toString());
+    connectionErrs = inputContext.getCounters().findCounter(Fetcher.SHUFFLE_ERR_GRP_NAME,
+        ShuffleErrors.CONNECTION.toString());
+    wrongReduceErrs = inputContext.getCounters().findCounter(Fetcher.SHUFFLE_ERR_GRP_NAME,
+        ShuffleErrors.WRONG_REDUCE.toString());
+
+    this.connectionTimeout =
+        job.getInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_CONNECT_TIMEOUT,
+            TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_STALLED_COPY_TIMEOUT);
+    this.readTimeout =
+        job.getInt(TezJobConfig.TEZ_RUNTIME_SHUFFLE_READ_TIMEOUT,
+            TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_READ_TIMEOUT);
+
+    this.client = AsyncShuffleClient.acquire(job);
+
+    setName("asyncFetcher [" + TezUtils.cleanVertexName(inputContext.getSourceVertexName()) + "] #" + id);
+    setDaemon(true);
+  }
+
+  public void run() {
+    try {
+      while (!stopped && !Thread.currentThread().isInterrupted()) {
+        fetchPermits.acquire();
+        MapHost host = null;
+        boolean fetchStarted = false;
+        try {
+          // If merge is on, block
+          merger.waitForInMemoryMerge();
+
+          // Get a host to shuffle from
+          host = scheduler.getHost();
+          metrics.threadBusy();
+
+          // Shuffle. The host is freed once the fetch completes.
+          fetchStarted = copyFromHost(host);
+        } finally {
+          if (!fetchStarted) {
+            if (host != null) {
+              scheduler.freeHost(host);
+              metrics.threadFree();
+            }
+            fetchPermits.release();
+          }
+        }
+      }
+    } catch (InterruptedException ie) {
+      return;
+    } catch (Throwable t) {
+      shuffle.reportException(t);
+    }
+  }
+
+  public void shutDown() throws InterruptedException {
+    this.stopped = true;
+    interrupt();
+    try {
+      join(SHUTDOWN_WAIT_MS);
+    } catch (InterruptedException ie) {
+      LOG.warn("Got interrupt while joining " + getName(), ie);
+    }
+    try {
+      if (!fetchPermits.tryAcquire(numFetches, SHUTDOWN_WAIT_MS,
+          TimeUnit.MILLISECONDS)) {
+        LOG.warn(getName() + " shutting down with fetches in progress");
+      }
+    } finally {
+      client.release();
+    }
+  }
+
+  /**
+   * @return whether a fetch was started, in which case the host is freed
+   *         once it completes
+   */
+  private boolean copyFromHost(MapHost host) throws IOException {
+    // Get completed maps on 'host'
+    List<InputAttemptIdentifier> srcAttempts = scheduler.getMapsForHost(host);
+
+    // Sanity check to catch hosts with only 'OBSOLETE' maps,
+    // especially at the tail of large jobs
+    if (srcAttempts.size() == 0) {
+      return false;
+    }
+
+    // Outputs of tasks on this node are read from local disk
+    if (localDiskFetcher != null && localDiskFetcher.isLocalHost(host)) {
+      srcAttempts = localDiskFetcher.fetch(host, srcAttempts);
+      if (srcAttempts.isEmpty()) {
+        return false;
+      }
+    }
+
+    if(LOG.isDebugEnabled()) {
+      LOG.debug(getName() + " going to fetch from " + host + " for: "
+        + srcAttempts + ", partitionId: " + host.getPartitionId());
+    }
+
+    HostFetch fetch = new HostFetch(host, srcAttempts);
+    URL url;
+    try {
+      url = getMapOutputURL(host, srcAttempts);
+    } catch (MalformedURLException e) {
+      fetch.onFailure(e, FetchPhase.CONNECT);
+      return true;
+    }
+    client.fetch(url.getHost(), url.getPort(), url.toString(), jobTokenSecret,
+        connectionTimeout, readTimeout, fetch);
+    return true;
+  }
+
+  /**
+   * Create the map-output-url. This will contain all the map ids
+   * separated by commas
+   */
+  private URL getMapOutputURL(MapHost host, List<InputAttemptIdentifier> srcAttempts
+                              )  throws MalformedURLException {
+    // Get the base url
+    StringBuilder url = new StringBuilder(host.getBaseUrl());
+
+    boolean first = true;
+    for (InputAttemptIdentifier mapId : srcAttempts) {
+      if (!first) {
+        url.append(",");
+      }
+      url.append(mapId.getPathComponent());
+      first = false;
+    }
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("MapOutput URL for " + host + " -> " + url.toString());
+    }
+    return new URL(url.toString());
+  }
+
+  /**
+   * Fetch of the outputs available on a single host. Invoked from the event
+   * loop of the {@link AsyncShuffleClient}.
+   */
+  private class HostFetch implements AsyncShuffleClient.FetchListener {
+
+    private final MapHost host;
+    private final int currentPartition;
+    // List of maps to be fetched yet
+    private final LinkedHashSet<InputAttemptIdentifier> remaining;
+
+    // The map output currently being read
+    private InputAttemptIdentifier srcAttemptId;
+    private MapOutput mapOutput;
+    private long compressedLength;
+    private long decompressedLength;
+    private long startTime;
+    private byte[] compressedData;
+    private int compressedDataLength;
+    private OutputStream diskOutput;
+
+    HostFetch(MapHost host, List<InputAttemptIdentifier> srcAttempts) {
+      this.host = host;
+      this.currentPartition = host.getPartitionId();
+      this.remaining = new LinkedHashSet<InputAttemptIdentifier>(srcAttempts);
+    }
+
+    @Override
+    public boolean onHeader(ShuffleHeader header) throws IOException {
+      startTime = System.currentTimeMillis();
+      if (!header.getMapId().startsWith(InputAttemptIdentifier.PATH_PREFIX)) {
+        badIdErrs.increment(1);
+        LOG.warn("Invalid map id " + header.getMapId() + " partition: "
+            + header.getPartition());
+        // Don't know which one was bad, so consider this one bad and dont read
+        // the remaining because we dont know where to start reading from.
+        scheduler.copyFailed(getNextRemainingAttempt(), host, true, false);
+        return false;
+      }
+      srcAttemptId = scheduler.getIdentifierForFetchedOutput(
+          header.getMapId(), header.getPartition());
+      compressedLength = header.getCompressedLength();
+      decompressedLength = header.getUncompressedLength();
+
+      // Do some basic sanity verification
+      if (!verifySanity(header.getPartition())) {
+        if (srcAttemptId == null) {
+          LOG.warn("Was expecting " + getNextRemainingAttempt() + " but got null");
+          srcAttemptId = getNextRemainingAttempt();
+        }
+        assert(srcAttemptId != null);
+        LOG.warn("copyMapOutput failed for tasks " + srcAttemptId);
+        scheduler.copyFailed(srcAttemptId, host, true, false);
+        srcAttemptId = null;
+        return false;
+      }
+
+      if(LOG.isDebugEnabled()) {
+        LOG.debug("header: " + srcAttemptId + ", len: " + compressedLength +
+            ", decomp len: " + decompressedLength);
+      }
+
+      // Get the location for the map output - either in-memory or on-disk
+      try {
+        mapOutput = merger.reserve(srcAttemptId, decompressedLength, id);
+      } catch (IOException e) {
+        // Kill the reduce attempt
+        ioErrs.increment(1);
+        scheduler.reportLocalError(e);
+        srcAttemptId = null;
+        return false;
+      }
+
+      // Check if we can shuffle *now* ...
+      if (mapOutput.getType() == Type.WAIT) {
+        LOG.info(getName() + " - MergerManager returned Status.WAIT ...");
+        //Not an error but wait to process data.
+        mapOutput = null;
+        srcAttemptId = null;
+        return false;
+      }
+
+      // Go!
+      LOG.info(getName() + " about to shuffle output of map " +
+               mapOutput.getAttemptIdentifier() + " decomp: " +
+               decompressedLength + " len: " + compressedLength + " to " +
+               mapOutput.getType());
+      if (mapOutput.getType() == Type.MEMORY) {
+        // the fetched bytes are accounted until they are decompressed
+        compressedData = merger.reserveFetchBuffer((int) compressedLength);
+        compressedDataLength = 0;
+      } else {
+        diskOutput = mapOutput.getDisk();
+      }
+      return true;
+    }
+
+    @Override
+    public void onData(ByteBuffer data) throws IOException {
+      int length = data.remaining();
+      if (diskOutput != null) {
+        diskOutput.write(data.array(), data.arrayOffset() + data.position(),
+            length);
+        data.position(data.limit());
+        metrics.inputBytes(length);
+      } else {
+        // the pooled buffer may be longer than the map output
+        if (compressedDataLength + length > compressedLength) {
+          throw new IOException("Received more than " + compressedLength
+              + " bytes for " + srcAttemptId);
+        }
+        data.get(compressedData, compressedDataLength, length);
+        compressedDataLength += length;
+      }
+    }
+
+    @Override
+    public boolean onOutputComplete() throws IOException {
+      if (mapOutput.getType() == Type.MEMORY) {
+        shuffleToMemory();
+      } else {
+        diskOutput.close();
+        diskOutput = null;
+        LOG.info("Read " + compressedLength + " bytes from map-output for " +
+                 mapOutput.getAttemptIdentifier());
+      }
+
+      // Inform the shuffle scheduler
+      long endTime = System.currentTimeMillis();
+      scheduler.copySucceeded(srcAttemptId, host, compressedLength,
+          decompressedLength, endTime - startTime, mapOutput);
+      // Note successful shuffle
+      remaining.remove(srcAttemptId);
+      metrics.successFetch();
+      srcAttemptId = null;
+      mapOutput = null;
+      return !remaining.isEmpty();
+    }
+
+    private void shuffleToMemory() throws IOException {
+      // The data is already in memory, so there is nothing to read ahead.
+      InputStream input = new IFileInputStream(new ByteArrayInputStream(
+          compressedData, 0, compressedDataLength), compressedLength, false, 0);
+
+      // Are map-outputs compressed?
+      Decompressor decompressor = null;
+      try {
+        if (codec != null) {
+          decompressor = CodecPool.getDecompressor(codec);
+          decompressor.reset();
+          input = codec.createInputStream(input, decompressor);
+        }
+
+        // Copy map-output into an in-memory buffer
+        byte[] shuffleData = mapOutput.getMemory();
+        // The buffer may be larger than the map output
+        int length = (int) mapOutput.getSize();
+        try {
+          IOUtils.readFully(input, shuffleData, 0, length);
+        } catch (IOException ioe) {
+          // Close the streams
+          IOUtils.cleanup(LOG, input);
+          // Re-throw
+          throw ioe;
+        }
+        metrics.inputBytes(length);
+        LOG.info("Read " + length + " bytes from map-output for " +
+                 mapOutput.getAttemptIdentifier());
+      } finally {
+        if (decompressor != null) {
+          CodecPool.returnDecompressor(decompressor);
+        }
+        releaseCompressedData();
+      }
+    }
+
+    private void releaseCompressedData() {
+      if (compressedData != null) {
+        merger.releaseFetchBuffer(compressedData);
+        compressedData = null;
+      }
+    }
+
+    @Override
+    public void onFinished() {
+      if (!remaining.isEmpty() && LOG.isDebugEnabled()) {
+        LOG.debug("Putting back " + remaining.size() + " outputs for " + host);
+      }
+      complete();
+    }
+
+    @Override
+    public void onFailure(IOException cause, FetchPhase phase) {
+      if (phase != FetchPhase.BODY) {
+        ioErrs.increment(1);
+        boolean connectSucceeded = phase != FetchPhase.CONNECT;
+        if (!connectSucceeded) {
+          LOG.warn("Failed to connect to " + host + " with " + remaining.size() + " inputs", cause);
+          connectionErrs.increment(1);
+        } else {
+          LOG.warn("Failed to verify reply after connecting to " + host + " with " + remaining.size()
+            + " inputs pending", cause);
+        }
+        // The error does not relate to any specific Input. Report all of
+        // them as failed, which indirectly penalizes the host.
+        for(InputAttemptIdentifier left: remaining) {
+          scheduler.copyFailed(left, host, connectSucceeded, !connectSucceeded);
+        }
+      } else if (srcAttemptId == null
+          && cause.getCause() instanceof IllegalArgumentException) {
+        badIdErrs.increment(1);
+        LOG.warn("Invalid map id ", cause);
+        // Don't know which one was bad, so consider this one bad
+        scheduler.copyFailed(getNextRemainingAttempt(), host, true, false);
+      } else if (srcAttemptId == null || mapOutput == null) {
+        ioErrs.increment(1);
+        LOG.info(getName() + " failed to read map header" +
+                 srcAttemptId + " decomp: " +
+                 decompressedLength + ", " + compressedLength, cause);
+        if (srcAttemptId == null) {
+          for(InputAttemptIdentifier left: remaining) {
+            scheduler.copyFailed(left, host, true, false);
+          }
+        } else {
+          scheduler.copyFailed(srcAttemptId, host, true, false);
+        }
+      } else {
+        ioErrs.increment(1);
+        LOG.warn("Failed to shuffle output of " + srcAttemptId +
+                 " from " + host.getHostIdentifier(), cause);
+        IOUtils.cleanup(LOG, diskOutput);
+        // Inform the shuffle-scheduler
+        mapOutput.abort();
+        metrics.failedFetch();
+        scheduler.copyFailed(srcAttemptId, host, true, false);
+      }
+      diskOutput = null;
+      releaseCompressedData();
+      complete();
+    }
+
+    private void complete() {
+      try {
+        putBackRemainingMapOutputs();
+        scheduler.freeHost(host);
+        metrics.threadFree();
+      } finally {
+        fetchPermits.release();
+      }
+    }
+
+    /**
+     * Do some basic verification on the input received -- Being defensive
+     * @return true/false, based on if the verification succeeded or not
+     */
+    private boolean verifySanity(int forReduce) {
+      if (compressedLength < 0 || decompressedLength < 0) {
+        wrongLengthErrs.increment(1);
+        LOG.warn(getName() + " invalid lengths in map output header: id: " +
+            srcAttemptId + " len: " + compressedLength + ", decomp len: " +
+                 decompressedLength);
+        return false;
+      }
+
+      // partitionId verification. Isn't availalbe here because it is encoded into
+      // URI
+      if (forReduce != currentPartition) {
+        wrongReduceErrs.increment(1);
+        LOG.warn(getName() + " data for the wrong partition map: " + srcAttemptId + " len: "
+            + compressedLength + " decomp len: " + decompressedLength + " for partition " + forReduce
+            + ", expected partition: " + currentPartition);
+        return false;
+      }
+
+      // Sanity check
+      if (!remaining.contains(srcAttemptId)) {
+        wrongMapErrs.increment(1);
+        LOG.warn("Invalid map-output! Received output for " + srcAttemptId);
+        return false;
+      }
+
+      return true;
+    }
+
+    private InputAttemptIdentifier getNextRemainingAttempt() {
+      if (remaining.size() > 0) {
+        return remaining.iterator().next();
+      } else {
+        return null;
+      }
+    }
+
+    private void putBackRemainingMapOutputs() {
+      for (InputAttemptIdentifier left : remaining) {
+        scheduler.putBackKnownMapOutput(host, left);
+      }
+    }
+  }
+}
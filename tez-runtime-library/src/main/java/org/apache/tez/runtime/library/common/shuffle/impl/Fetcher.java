@@ -61,10 +61,10 @@ class Fetcher extends Thread {
   /** Basic/unit connection timeout (in milliseconds) */
   private final static int UNIT_CONNECT_TIMEOUT = 60 * 1000;
 
-  private static enum ShuffleErrors{IO_ERROR, WRONG_LENGTH, BAD_ID, WRONG_MAP,
+  static enum ShuffleErrors{IO_ERROR, WRONG_LENGTH, BAD_ID, WRONG_MAP,
                                     CONNECTION, WRONG_REDUCE}
   
-  private final static String SHUFFLE_ERR_GRP_NAME = "Shuffle Errors";
+  final static String SHUFFLE_ERR_GRP_NAME = "Shuffle Errors";
   private final TezCounter connectionErrs;
   private final TezCounter ioErrs;
   private final TezCounter wrongLengthErrs;
@@ -75,6 +75,7 @@ class Fetcher extends Thread {
   private final ShuffleScheduler scheduler;
   private final ShuffleClientMetrics metrics;
   private final Shuffle shuffle;
+  private final LocalDiskFetcher localDiskFetcher;
   private final int id;
   private static int nextId = 0;
   private int currentPartition = -1;
@@ -101,11 +102,13 @@ class Fetcher extends Thread {
   public Fetcher(Configuration job, 
       ShuffleScheduler scheduler, MergeManager merger,
       ShuffleClientMetrics metrics,
-      Shuffle shuffle, SecretKey jobTokenSecret, boolean ifileReadAhead, int ifileReadAheadLength, CompressionCodec codec, TezInputContext inputContext) throws IOException {
+      Shuffle shuffle, SecretKey jobTokenSecret, boolean ifileReadAhead, int ifileReadAheadLength, CompressionCodec codec, TezInputContext inputContext,
+      LocalDiskFetcher localDiskFetcher) throws IOException {
     this.scheduler = scheduler;
     this.merger = merger;
     this.metrics = metrics;
     this.shuffle = shuffle;
+    this.localDiskFetcher = localDiskFetcher;
     this.id = ++nextId;
     this.jobTokenSecret = jobTokenSecret;
     ioErrs = inputContext.getCounters().findCounter(SHUFFLE_ERR_GRP_NAME,
@@ -234,6 +237,14 @@ class Fetcher extends Thread {
     if (srcAttempts.size() == 0) {
       return;
     }
+
+    // Outputs of tasks on this node are read from local disk
+    if (localDiskFetcher != null && localDiskFetcher.isLocalHost(host)) {
+      srcAttempts = localDiskFetcher.fetch(host, srcAttempts);
+      if (srcAttempts.isEmpty()) {
+        return;
+      }
+    }
     
     if(LOG.isDebugEnabled()) {
       LOG.debug("Fetcher " + id + " going to fetch from " + host + " for: "
@@ -614,11 +625,13 @@ class Fetcher extends Thread {
   
     // Copy map-output into an in-memory buffer
     byte[] shuffleData = mapOutput.getMemory();
+    // The buffer may be larger than the map output
+    int length = (int) mapOutput.getSize();
     
     try {
-      IOUtils.readFully(input, shuffleData, 0, shuffleData.length);
-      metrics.inputBytes(shuffleData.length);
-      LOG.info("Read " + shuffleData.length + " bytes from map-output for " +
+      IOUtils.readFully(input, shuffleData, 0, length);
+      metrics.inputBytes(length);
+      LOG.info("Read " + length + " bytes from map-output for " +
                mapOutput.getAttemptIdentifier());
     } catch (IOException ioe) {      
       // Close the streams
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+
+/**
+ * A range of a file on local disk holding one map output. Chunks of files
+ * fetched or merged by this task span the whole file. Chunks of the output
+ * of a task on the same node which is read in place are local files: they
+ * are only a partition of the producer's output and must never be deleted.
+ */
+class FileChunk implements Comparable<FileChunk> {
+
+  private final Path path;
+  private final long offset;
+  private final long length;
+  private final boolean isLocalFile;
+  private final InputAttemptIdentifier identifier;
+
+  FileChunk(Path path, long offset, long length, boolean isLocalFile,
+      InputAttemptIdentifier identifier) {
+    this.path = path;
+    this.offset = offset;
+    this.length = length;
+    this.isLocalFile = isLocalFile;
+    this.identifier = identifier;
+  }
+
+  /** A chunk spanning the whole of a file written by this task. */
+  FileChunk(Path path, long length) {
+    this(path, 0, length, false, null);
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  long getOffset() {
+    return offset;
+  }
+
+  long getLength() {
+    return length;
+  }
+
+  boolean isLocalFile() {
+    return isLocalFile;
+  }
+
+  InputAttemptIdentifier getInputAttemptIdentifier() {
+    return identifier;
+  }
+
+  @Override
+  public int compareTo(FileChunk other) {
+    int cmp = path.compareTo(other.path);
+    if (cmp != 0) {
+      return cmp;
+    }
+    return offset < other.offset ? -1 : (offset == other.offset ? 0 : 1);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof FileChunk)) {
+      return false;
+    }
+    FileChunk other = (FileChunk) obj;
+    return path.equals(other.path) && offset == other.offset;
+  }
+
+  @Override
+  public int hashCode() {
+    return path.hashCode() * 31 + (int) (offset ^ (offset >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return path + ":" + offset + "+" + length
+        + (isLocalFile ? " (local)" : "");
+  }
+}
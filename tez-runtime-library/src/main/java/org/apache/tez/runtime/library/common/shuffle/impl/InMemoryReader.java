@@ -145,12 +145,12 @@ public class InMemoryReader extends Reader {
   }
     
   public void close() {
+    // Inform the MergeManager
+    if (merger != null && buffer != null) {
+      merger.release(buffer);
+    }
     // Release
     dataIn = null;
     buffer = null;
-      // Inform the MergeManager
-    if (merger != null) {
-      merger.unreserve(bufferSize);
-    }
   }
 }
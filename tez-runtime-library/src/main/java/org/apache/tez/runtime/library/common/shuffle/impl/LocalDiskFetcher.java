@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+
+/**
+ * Hands the outputs of tasks which ran on the same node to the
+ * {@link MergeManager} without going through the ShuffleHandler. The
+ * partition is located through the index of the output file, which is then
+ * read in place by the merge - nothing is copied.
+ */
+class LocalDiskFetcher {
+
+  private static final Log LOG = LogFactory.getLog(LocalDiskFetcher.class);
+
+  private final Configuration conf;
+  private final ShuffleScheduler scheduler;
+  private final MergeManager merger;
+  private final ShuffleClientMetrics metrics;
+  private final String localHostIdentifier;
+
+  LocalDiskFetcher(Configuration conf, ShuffleScheduler scheduler,
+      MergeManager merger, ShuffleClientMetrics metrics,
+      TezInputContext inputContext) throws IOException {
+    this.conf = conf;
+    this.scheduler = scheduler;
+    this.merger = merger;
+    this.metrics = metrics;
+    // Producers advertise the NodeManager host and its shuffle port, which
+    // also tells apart NodeManagers sharing a host.
+    this.localHostIdentifier = ShuffleUtils.getNodeHost() + ":"
+        + ShuffleUtils.deserializeShuffleProviderMetaData(
+            inputContext.getServiceProviderMetaData(
+                ShuffleUtils.SHUFFLE_HANDLER_SERVICE_ID));
+    LOG.info("Reading outputs of " + localHostIdentifier
+        + " from local disk");
+  }
+
+  boolean isLocalHost(MapHost host) {
+    return localHostIdentifier.equals(host.getHostIdentifier());
+  }
+
+  /**
+   * Reads the given outputs of the local host.
+   *
+   * @return the outputs which could not be found on local disk, and have to
+   *         be fetched from the ShuffleHandler instead
+   */
+  List<InputAttemptIdentifier> fetch(MapHost host,
+      List<InputAttemptIdentifier> srcAttempts) throws IOException {
+    List<InputAttemptIdentifier> notFound =
+        new ArrayList<InputAttemptIdentifier>(0);
+    for (InputAttemptIdentifier srcAttempt : srcAttempts) {
+      long startTime = System.currentTimeMillis();
+      TezIndexRecord indexRecord;
+      MapOutput mapOutput;
+      try {
+        TezTaskOutputFiles outputFiles = new TezTaskOutputFiles(conf,
+            srcAttempt.getPathComponent());
+        Path outputFile = outputFiles.getOutputFile();
+        indexRecord = new TezSpillRecord(outputFiles.getOutputIndexFile(),
+            conf).getIndex(host.getPartitionId());
+        mapOutput = new MapOutput(srcAttempt, merger, outputFile,
+            indexRecord.getStartOffset(), indexRecord.getPartLength(), true);
+      } catch (IOException e) {
+        LOG.warn("Failed to read local output of " + srcAttempt
+            + ", will fetch it from the ShuffleHandler instead", e);
+        notFound.add(srcAttempt);
+        continue;
+      }
+      LOG.info("localDiskFetcher about to read map-output of "
+          + srcAttempt + " decomp: " + indexRecord.getRawLength() + " len: "
+          + indexRecord.getPartLength() + " from local disk");
+      long endTime = System.currentTimeMillis();
+      scheduler.copySucceeded(srcAttempt, host, indexRecord.getPartLength(),
+          indexRecord.getRawLength(), (endTime - startTime), mapOutput);
+      metrics.successFetch();
+    }
+    return notFound;
+  }
+}
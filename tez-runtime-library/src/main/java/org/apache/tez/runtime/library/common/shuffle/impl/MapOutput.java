@@ -31,6 +31,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BoundedByteArrayOutputStream;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleBufferPool;
 
 
 class MapOutput {
@@ -40,7 +41,8 @@ class MapOutput {
   public static enum Type {
     WAIT,
     MEMORY,
-    DISK
+    DISK,
+    DISK_DIRECT
   }
   
   private InputAttemptIdentifier attemptIdentifier;
@@ -56,6 +58,7 @@ class MapOutput {
   private final FileSystem localFS;
   private final Path tmpOutputPath;
   private final Path outputPath;
+  private final long outputOffset;
   private final OutputStream disk; 
   
   private final Type type;
@@ -79,30 +82,62 @@ class MapOutput {
     this.size = size;
     
     this.localFS = FileSystem.getLocal(conf);
-    outputPath =
-      mapOutputFile.getInputFileForWrite(this.attemptIdentifier.getInputIdentifier().getInputIndex(), size);
+    outputPath = getInputFileForWrite(mapOutputFile, attemptIdentifier, size);
     tmpOutputPath = outputPath.suffix(String.valueOf(fetcher));
+    outputOffset = 0;
 
     disk = localFS.create(tmpOutputPath);
     
     this.primaryMapOutput = primaryMapOutput;
   }
-  
-  MapOutput(InputAttemptIdentifier attemptIdentifier, MergeManager merger, int size, 
+
+  /**
+   * A map output of a task on the same node, read in place from the
+   * partition of the output file starting at offset.
+   */
+  MapOutput(InputAttemptIdentifier attemptIdentifier, MergeManager merger,
+            Path localOutputPath, long offset, long compressedSize,
             boolean primaryMapOutput) {
     this.id = ID.incrementAndGet();
     this.attemptIdentifier = attemptIdentifier;
     this.merger = merger;
 
+    type = Type.DISK_DIRECT;
+
+    memory = null;
+    byteStream = null;
+
+    this.size = compressedSize;
+
+    localFS = null;
+    disk = null;
+    outputPath = localOutputPath;
+    outputOffset = offset;
+    tmpOutputPath = null;
+
+    this.primaryMapOutput = primaryMapOutput;
+  }
+  
+  /**
+   * A map output held in memory, in the first <code>size</code> bytes of the
+   * given buffer.
+   */
+  MapOutput(InputAttemptIdentifier attemptIdentifier, MergeManager merger,
+            byte[] buffer, int size, boolean primaryMapOutput) {
+    this.id = ID.incrementAndGet();
+    this.attemptIdentifier = attemptIdentifier;
+    this.merger = merger;
+
     type = Type.MEMORY;
-    byteStream = new BoundedByteArrayOutputStream(size);
-    memory = byteStream.getBuffer();
+    byteStream = ShuffleBufferPool.createOutputStream(buffer, size);
+    memory = buffer;
 
     this.size = size;
     
     localFS = null;
     disk = null;
     outputPath = null;
+    outputOffset = 0;
     tmpOutputPath = null;
     
     this.primaryMapOutput = primaryMapOutput;
@@ -122,6 +157,7 @@ class MapOutput {
     localFS = null;
     disk = null;
     outputPath = null;
+    outputOffset = 0;
     tmpOutputPath = null;
 
     this.primaryMapOutput = false;
@@ -160,6 +196,21 @@ class MapOutput {
     return disk;
   }
 
+  /**
+   * Creates the name of a local file for the data fetched from a source. The
+   * spills of a source which publishes one spill at a time get separate
+   * files.
+   */
+  static Path getInputFileForWrite(TezTaskOutputFiles mapOutputFile,
+      InputAttemptIdentifier attemptIdentifier, long size) throws IOException {
+    Path path = mapOutputFile.getInputFileForWrite(
+        attemptIdentifier.getInputIdentifier().getInputIndex(), size);
+    if (attemptIdentifier.isPipelined()) {
+      path = path.suffix("_" + attemptIdentifier.getSpillId());
+    }
+    return path;
+  }
+
   public InputAttemptIdentifier getAttemptIdentifier() {
     return this.attemptIdentifier;
   }
@@ -177,7 +228,11 @@ class MapOutput {
       merger.closeInMemoryFile(this);
     } else if (type == Type.DISK) {
       localFS.rename(tmpOutputPath, outputPath);
-      merger.closeOnDiskFile(outputPath);
+      merger.closeOnDiskFile(new FileChunk(outputPath,
+          localFS.getFileStatus(outputPath).getLen()));
+    } else if (type == Type.DISK_DIRECT) {
+      merger.closeOnDiskFile(new FileChunk(outputPath, outputOffset, size,
+          true, attemptIdentifier));
     } else {
       throw new IOException("Cannot commit MapOutput of type WAIT!");
     }
@@ -185,13 +240,15 @@ class MapOutput {
   
   public void abort() {
     if (type == Type.MEMORY) {
-      merger.unreserve(memory.length);
+      merger.release(memory);
     } else if (type == Type.DISK) {
       try {
         localFS.delete(tmpOutputPath, false);
       } catch (IOException ie) {
         LOG.info("failure to clean up " + tmpOutputPath, ie);
       }
+    } else if (type == Type.DISK_DIRECT) {
+      // Nothing to clean up, the file belongs to the producer.
     } else {
       throw new IllegalArgumentException
                    ("Cannot commit MapOutput with of type WAIT!");
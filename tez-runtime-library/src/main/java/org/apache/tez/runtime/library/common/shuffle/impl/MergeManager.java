@@ -58,6 +58,7 @@ import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
 import org.apache.tez.runtime.library.hadoop.compat.NullProgressable;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleBufferPool;
 
 
 /**
@@ -88,10 +89,11 @@ public class MergeManager {
     new TreeSet<MapOutput>(new MapOutput.MapOutputComparator());
   private final InMemoryMerger inMemoryMerger;
   
-  private final Set<Path> onDiskMapOutputs = new TreeSet<Path>();
+  private final Set<FileChunk> onDiskMapOutputs = new TreeSet<FileChunk>();
   private final OnDiskMerger onDiskMerger;
   
   private final long memoryLimit;
+  private final ShuffleBufferPool bufferPool;
   private final int postMergeMemLimit;
   private long usedMemory;
   private long commitMemory;
@@ -205,6 +207,11 @@ public class MergeManager {
       this.memoryLimit = memLimit;
     }
     
+    this.bufferPool = new ShuffleBufferPool(conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED),
+        this.memoryLimit, inputContext.getCounters());
+
     if (this.initialMemoryAvailable < maxRedBuffer) {
       this.postMergeMemLimit = (int) this.initialMemoryAvailable;
     } else {
@@ -373,8 +380,11 @@ public class MergeManager {
    */
   private synchronized MapOutput unconditionalReserve(
       InputAttemptIdentifier srcAttemptIdentifier, long requestedSize, boolean primaryMapOutput) {
-    usedMemory += requestedSize;
-    return new MapOutput(srcAttemptIdentifier, this, (int)requestedSize, 
+    // The memory used is the length of the buffer, which may be larger than
+    // requested.
+    byte[] buffer = bufferPool.allocate((int) requestedSize);
+    usedMemory += buffer.length;
+    return new MapOutput(srcAttemptIdentifier, this, buffer, (int)requestedSize, 
         primaryMapOutput);
   }
   
@@ -383,13 +393,38 @@ public class MergeManager {
     usedMemory -= size;
   }
 
+  /**
+   * Releases the buffer of an in-memory map output which is no longer used.
+   */
+  void release(byte[] buffer) {
+    unreserve(buffer.length);
+    bufferPool.release(buffer);
+  }
+
+  /**
+   * Allocates a buffer for the fetched bytes of an in-memory map output,
+   * which are kept until they are decompressed into the map output. The
+   * buffer counts towards the used memory until it is released with
+   * {@link #releaseFetchBuffer(byte[])}.
+   */
+  synchronized byte[] reserveFetchBuffer(int size) {
+    byte[] buffer = bufferPool.allocate(size);
+    usedMemory += buffer.length;
+    return buffer;
+  }
+
+  synchronized void releaseFetchBuffer(byte[] buffer) {
+    usedMemory -= buffer.length;
+    bufferPool.release(buffer);
+  }
+
   public synchronized void closeInMemoryFile(MapOutput mapOutput) { 
     inMemoryMapOutputs.add(mapOutput);
     LOG.info("closeInMemoryFile -> map-output of size: " + mapOutput.getSize()
         + ", inMemoryMapOutputs.size() -> " + inMemoryMapOutputs.size()
         + ", commitMemory -> " + commitMemory + ", usedMemory ->" + usedMemory);
 
-    commitMemory+= mapOutput.getSize();
+    commitMemory+= mapOutput.getMemory().length;
 
     synchronized (inMemoryMerger) {
       // Can hang if mergeThreshold is really low.
@@ -424,7 +459,7 @@ public class MergeManager {
              inMemoryMergedMapOutputs.size());
   }
   
-  public synchronized void closeOnDiskFile(Path file) {
+  public synchronized void closeOnDiskFile(FileChunk file) {
     onDiskMapOutputs.add(file);
     
     synchronized (onDiskMerger) {
@@ -454,13 +489,15 @@ public class MergeManager {
     }
     inMemoryMerger.close();
     onDiskMerger.close();
+    // Nothing more is fetched, so do not hold on to released buffers.
+    bufferPool.close();
     
     List<MapOutput> memory = 
       new ArrayList<MapOutput>(inMemoryMergedMapOutputs);
     inMemoryMergedMapOutputs.clear();
     memory.addAll(inMemoryMapOutputs);
     inMemoryMapOutputs.clear();
-    List<Path> disk = new ArrayList<Path>(onDiskMapOutputs);
+    List<FileChunk> disk = new ArrayList<FileChunk>(onDiskMapOutputs);
     onDiskMapOutputs.clear();
     TezRawKeyValueIterator kvIter = finalMerge(conf, rfs, memory, disk);
     this.finalMergeComplete = true;
@@ -568,9 +605,8 @@ public class MergeManager {
       
       // All disk writes done by this merge are overhead - due to the lac of
       // adequate memory to keep all segments in memory.
-      Path outputPath = mapOutputFile.getInputFileForWrite(
-          srcTaskIdentifier.getInputIdentifier().getInputIndex(),
-          mergeOutputSize).suffix(Constants.MERGED_OUTPUT_PREFIX);
+      Path outputPath = MapOutput.getInputFileForWrite(mapOutputFile,
+          srcTaskIdentifier, mergeOutputSize).suffix(Constants.MERGED_OUTPUT_PREFIX);
 
       Writer writer = null;
       try {
@@ -623,7 +659,8 @@ public class MergeManager {
       }
 
       // Note the output of the merge
-      closeOnDiskFile(outputPath);
+      closeOnDiskFile(new FileChunk(outputPath,
+          localFS.getFileStatus(outputPath).getLen()));
     }
 
   }
@@ -631,7 +668,7 @@ public class MergeManager {
   /**
    * Merges multiple on-disk segments
    */
-  private class OnDiskMerger extends MergeThread<Path> {
+  private class OnDiskMerger extends MergeThread<FileChunk> {
     
     public OnDiskMerger(MergeManager manager) {
       super(manager, ioSortFactor, exceptionReporter);
@@ -640,7 +677,7 @@ public class MergeManager {
     }
     
     @Override
-    public void merge(List<Path> inputs) throws IOException {
+    public void merge(List<FileChunk> inputs) throws IOException {
       // sanity check
       if (inputs == null || inputs.isEmpty()) {
         LOG.info("No ondisk files to merge...");
@@ -655,9 +692,17 @@ public class MergeManager {
       LOG.info("OnDiskMerger: We have  " + inputs.size() + 
                " map outputs on disk. Triggering merge...");
       
-      // 1. Prepare the list of files to be merged. 
-      for (Path file : inputs) {
-        approxOutputSize += localFS.getFileStatus(file).getLen();
+      // 1. Prepare the list of files to be merged. Outputs of tasks on the
+      // same node are read in place, and must be left behind by the merge.
+      List<Segment> inputSegments = new ArrayList<Segment>(inputs.size());
+      for (FileChunk fileChunk : inputs) {
+        approxOutputSize += fileChunk.getLength();
+        Path file = fileChunk.getPath();
+        inputSegments.add(new Segment(conf, rfs, file, fileChunk.getOffset(),
+            fileChunk.getLength(), codec, ifileReadAhead, ifileReadAheadLength,
+            ifileBufferSize, fileChunk.isLocalFile(),
+            (file.toString().endsWith(Constants.MERGED_OUTPUT_PREFIX) ?
+                null : mergedMapOutputsCounter)));
       }
 
       // add the checksum length
@@ -665,9 +710,19 @@ public class MergeManager {
         ChecksumFileSystem.getChecksumLength(approxOutputSize, bytesPerSum);
 
       // 2. Start the on-disk merge process
-      Path outputPath = 
-        localDirAllocator.getLocalPathForWrite(inputs.get(0).toString(), 
-            approxOutputSize, conf).suffix(Constants.MERGED_OUTPUT_PREFIX);
+      FileChunk firstChunk = inputs.get(0);
+      Path outputPath;
+      if (firstChunk.isLocalFile()) {
+        // Don't name the output after the producer's file, which lives in
+        // its own output directory.
+        outputPath = MapOutput.getInputFileForWrite(mapOutputFile,
+            firstChunk.getInputAttemptIdentifier(), approxOutputSize).suffix(
+            Constants.MERGED_OUTPUT_PREFIX);
+      } else {
+        outputPath = localDirAllocator.getLocalPathForWrite(
+            firstChunk.getPath().toString(), approxOutputSize, conf).suffix(
+            Constants.MERGED_OUTPUT_PREFIX);
+      }
       Writer writer = 
         new Writer(conf, rfs, outputPath, 
                         (Class)ConfigUtils.getIntermediateInputKeyClass(conf), 
@@ -679,11 +734,10 @@ public class MergeManager {
         iter = TezMerger.merge(conf, rfs,
                             (Class)ConfigUtils.getIntermediateInputKeyClass(conf), 
                             (Class)ConfigUtils.getIntermediateInputValueClass(conf),
-                            codec, ifileReadAhead, ifileReadAheadLength, ifileBufferSize,
-                            inputs.toArray(new Path[inputs.size()]), true, ioSortFactor, tmpDir, 
+                            codec, inputSegments, ioSortFactor, tmpDir, 
                             (RawComparator)ConfigUtils.getIntermediateInputKeyComparator(conf), 
-                            nullProgressable, spilledRecordsCounter, null, 
-                            mergedMapOutputsCounter, null);
+                            nullProgressable, true, false, spilledRecordsCounter, null, 
+                            null, null);
 
         // TODO Maybe differentiate between data written because of Merges and
         // the finalMerge (i.e. final mem available may be different from
@@ -696,7 +750,8 @@ public class MergeManager {
         throw e;
       }
 
-      closeOnDiskFile(outputPath);
+      closeOnDiskFile(new FileChunk(outputPath,
+          localFS.getFileStatus(outputPath).getLen()));
 
       LOG.info(inputContext.getUniqueIdentifier() +
           " Finished merging " + inputs.size() + 
@@ -721,9 +776,10 @@ public class MergeManager {
     while(fullSize > leaveBytes) {
       MapOutput mo = inMemoryMapOutputs.remove(0);
       byte[] data = mo.getMemory();
-      long size = data.length;
+      // The buffer may be larger than the data it holds
+      long size = mo.getSize();
       totalSize += size;
-      fullSize -= size;
+      fullSize -= data.length;
       IFile.Reader reader = new InMemoryReader(MergeManager.this, 
                                                    mo.getAttemptIdentifier(),
                                                    data, 0, (int)size);
@@ -773,7 +829,7 @@ public class MergeManager {
 
   private TezRawKeyValueIterator finalMerge(Configuration job, FileSystem fs,
                                        List<MapOutput> inMemoryMapOutputs,
-                                       List<Path> onDiskMapOutputs
+                                       List<FileChunk> onDiskMapOutputs
                                        ) throws IOException {
     LOG.info("finalMerge called with " + 
              inMemoryMapOutputs.size() + " in-memory map-outputs and " + 
@@ -794,7 +850,8 @@ public class MergeManager {
     long inMemToDiskBytes = 0;
     boolean mergePhaseFinished = false;
     if (inMemoryMapOutputs.size() > 0) {
-      int srcTaskId = inMemoryMapOutputs.get(0).getAttemptIdentifier().getInputIdentifier().getInputIndex();
+      InputAttemptIdentifier srcTaskIdentifier =
+          inMemoryMapOutputs.get(0).getAttemptIdentifier();
       inMemToDiskBytes = createInMemorySegments(inMemoryMapOutputs, 
                                                 memDiskSegments,
                                                 this.postMergeMemLimit);
@@ -812,9 +869,9 @@ public class MergeManager {
         mergePhaseFinished = true;
         // must spill to disk, but can't retain in-mem for intermediate merge
         final Path outputPath = 
-          mapOutputFile.getInputFileForWrite(srcTaskId,
-                                             inMemToDiskBytes).suffix(
-                                                 Constants.MERGED_OUTPUT_PREFIX);
+          MapOutput.getInputFileForWrite(mapOutputFile, srcTaskIdentifier,
+                                         inMemToDiskBytes).suffix(
+                                             Constants.MERGED_OUTPUT_PREFIX);
         final TezRawKeyValueIterator rIter = TezMerger.merge(job, fs, keyClass, valueClass,
             memDiskSegments, numMemDiskSegments, tmpDir, comparator, nullProgressable,
             spilledRecordsCounter, null, additionalBytesRead, null);
@@ -822,8 +879,6 @@ public class MergeManager {
             keyClass, valueClass, codec, null, null);
         try {
           TezMerger.writeFile(rIter, writer, nullProgressable, TezJobConfig.DEFAULT_RECORDS_BEFORE_PROGRESS);
-          // add to list of final disk outputs.
-          onDiskMapOutputs.add(outputPath);
         } catch (IOException e) {
           if (null != outputPath) {
             try {
@@ -839,6 +894,9 @@ public class MergeManager {
             additionalBytesWritten.increment(writer.getCompressedLength());
           }
         }
+        // add to list of final disk outputs.
+        onDiskMapOutputs.add(new FileChunk(outputPath,
+            fs.getFileStatus(outputPath).getLen()));
         LOG.info("Merged " + numMemDiskSegments + " segments, " +
                  inMemToDiskBytes + " bytes to disk to satisfy " +
                  "reduce memory limit");
@@ -854,13 +912,16 @@ public class MergeManager {
     // segments on disk
     List<Segment> diskSegments = new ArrayList<Segment>();
     long onDiskBytes = inMemToDiskBytes;
-    Path[] onDisk = onDiskMapOutputs.toArray(new Path[onDiskMapOutputs.size()]);
-    for (Path file : onDisk) {
-      onDiskBytes += fs.getFileStatus(file).getLen();
-      LOG.debug("Disk file: " + file + " Length is " + 
-          fs.getFileStatus(file).getLen());
-      diskSegments.add(new Segment(job, fs, file, codec, ifileReadAhead,
-                                   ifileReadAheadLength, ifileBufferSize, false,
+    FileChunk[] onDisk = onDiskMapOutputs.toArray(new FileChunk[onDiskMapOutputs.size()]);
+    for (FileChunk fileChunk : onDisk) {
+      final long fileLength = fileChunk.getLength();
+      onDiskBytes += fileLength;
+      LOG.debug("Disk file: " + fileChunk + " Length is " + fileLength);
+      final Path file = fileChunk.getPath();
+      diskSegments.add(new Segment(job, fs, file, fileChunk.getOffset(),
+                                   fileLength, codec, ifileReadAhead,
+                                   ifileReadAheadLength, ifileBufferSize,
+                                   fileChunk.isLocalFile(),
                                          (file.toString().endsWith(
                                              Constants.MERGED_OUTPUT_PREFIX) ?
                                           null : mergedMapOutputsCounter)
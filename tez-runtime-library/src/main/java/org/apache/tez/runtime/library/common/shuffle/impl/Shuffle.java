@@ -236,13 +236,38 @@ public class Shuffle implements ExceptionReporter {
           conf.getInt(
               TezJobConfig.TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES, 
               TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_PARALLEL_COPIES);
-      Fetcher[] fetchers = new Fetcher[numFetchers];
-      for (int i = 0; i < numFetchers; ++i) {
-        fetchers[i] = new Fetcher(conf, scheduler, merger, metrics,
-            Shuffle.this, jobTokenSecret, ifileReadAhead, ifileReadAheadLength,
-            codec, inputContext);
-        
-        fetchers[i].start();
+      boolean asyncFetch = conf.getBoolean(
+          TezJobConfig.TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_ENABLED,
+          TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_ENABLED);
+      if (asyncFetch && conf.getBoolean(
+          TezJobConfig.TEZ_RUNTIME_SHUFFLE_ENABLE_SSL,
+          TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_ENABLE_SSL)) {
+        LOG.warn("Asynchronous fetch is not supported with SSL shuffle,"
+            + " using fetcher threads instead");
+        asyncFetch = false;
+      }
+      LocalDiskFetcher localDiskFetcher = null;
+      if (conf.getBoolean(TezJobConfig.TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH,
+          TezJobConfig.DEFAULT_TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH)) {
+        localDiskFetcher = new LocalDiskFetcher(conf, scheduler, merger,
+            metrics, inputContext);
+      }
+      Fetcher[] fetchers = null;
+      AsyncFetcher asyncFetcher = null;
+      if (asyncFetch) {
+        asyncFetcher = new AsyncFetcher(conf, scheduler, merger, metrics,
+            Shuffle.this, jobTokenSecret, codec, inputContext, numFetchers,
+            localDiskFetcher);
+        asyncFetcher.start();
+      } else {
+        fetchers = new Fetcher[numFetchers];
+        for (int i = 0; i < numFetchers; ++i) {
+          fetchers[i] = new Fetcher(conf, scheduler, merger, metrics,
+              Shuffle.this, jobTokenSecret, ifileReadAhead, ifileReadAheadLength,
+              codec, inputContext, localDiskFetcher);
+          
+          fetchers[i].start();
+        }
       }
       
       while (!scheduler.waitUntilDone(PROGRESS_FREQUENCY)) {
@@ -257,10 +282,15 @@ public class Shuffle implements ExceptionReporter {
       }
       
       // Stop the map-output fetcher threads
-      for (Fetcher fetcher : fetchers) {
-        fetcher.shutDown();
+      if (asyncFetcher != null) {
+        asyncFetcher.shutDown();
+        asyncFetcher = null;
+      } else {
+        for (Fetcher fetcher : fetchers) {
+          fetcher.shutDown();
+        }
+        fetchers = null;
       }
-      fetchers = null;
       
       // stop the scheduler
       scheduler.close();
@@ -20,6 +20,7 @@ package org.apache.tez.runtime.library.common.shuffle.impl;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
 
@@ -32,6 +33,8 @@ import org.apache.tez.runtime.api.TezInputContext;
 import org.apache.tez.runtime.api.events.DataMovementEvent;
 import org.apache.tez.runtime.api.events.InputFailedEvent;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.InputIdentifier;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
 
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -75,9 +78,28 @@ public class ShuffleInputEventHandler {
     } 
     int partitionId = dmEvent.getSourceIndex();
     URI baseUri = getBaseURI(shufflePayload.getHost(), shufflePayload.getPort(), partitionId);
-    InputAttemptIdentifier srcAttemptIdentifier = 
-        new InputAttemptIdentifier(dmEvent.getTargetIndex(), dmEvent.getVersion(), shufflePayload.getPathComponent());
-    LOG.info("DataMovementEvent baseUri:" + baseUri + ", src: " + srcAttemptIdentifier);
+    List<InputAttemptIdentifier> srcAttemptIdentifiers =
+        new ArrayList<InputAttemptIdentifier>(1);
+    if (shufflePayload.hasNumSpills()) {
+      // The output was not merged, so each of its spills is fetched as a
+      // separate input.
+      int numSpills = shufflePayload.getNumSpills();
+      for (int i = 0; i < numSpills; i++) {
+        srcAttemptIdentifiers.add(new InputAttemptIdentifier(
+            new InputIdentifier(dmEvent.getTargetIndex()), dmEvent.getVersion(),
+            ShuffleUtils.getSpillPathComponent(shufflePayload.getPathComponent(), i),
+            i, i == numSpills - 1));
+      }
+    } else if (shufflePayload.hasSpillId()) {
+      srcAttemptIdentifiers.add(new InputAttemptIdentifier(
+          new InputIdentifier(dmEvent.getTargetIndex()), dmEvent.getVersion(),
+          shufflePayload.getPathComponent(), shufflePayload.getSpillId(),
+          shufflePayload.getLastEvent()));
+    } else {
+      srcAttemptIdentifiers.add(new InputAttemptIdentifier(dmEvent.getTargetIndex(),
+          dmEvent.getVersion(), shufflePayload.getPathComponent()));
+    }
+    LOG.info("DataMovementEvent baseUri:" + baseUri + ", src: " + srcAttemptIdentifiers);
     
     // TODO NEWTEZ See if this duration hack can be removed.
     int duration = shufflePayload.getRunDuration();
@@ -91,8 +113,10 @@ public class ShuffleInputEventHandler {
         BitSet emptyPartitionsBitSet = TezUtils.fromByteArray(emptyPartitions);
         if (emptyPartitionsBitSet.get(partitionId)) {
           LOG.info("Source partition: " + partitionId + " did not generate any data. SrcAttempt: ["
-              + srcAttemptIdentifier + "]. Not fetching.");
-          scheduler.copySucceeded(srcAttemptIdentifier, null, 0, 0, 0, null);
+              + srcAttemptIdentifiers + "]. Not fetching.");
+          for (InputAttemptIdentifier srcAttemptIdentifier : srcAttemptIdentifiers) {
+            scheduler.copySucceeded(srcAttemptIdentifier, null, 0, 0, 0, null);
+          }
           return;
         }
       } catch (IOException e) {
@@ -100,8 +124,10 @@ public class ShuffleInputEventHandler {
                 "the empty partition to succeeded", e);
       }
     }
-    scheduler.addKnownMapOutput(shufflePayload.getHost(), shufflePayload.getPort(), 
-        partitionId, baseUri.toString(), srcAttemptIdentifier);
+    for (InputAttemptIdentifier srcAttemptIdentifier : srcAttemptIdentifiers) {
+      scheduler.addKnownMapOutput(shufflePayload.getHost(), shufflePayload.getPort(),
+          partitionId, baseUri.toString(), srcAttemptIdentifier);
+    }
   }
   
   private void processTaskFailedEvent(InputFailedEvent ifEvent) {
@@ -46,6 +46,7 @@ import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.TezInputContext;
 import org.apache.tez.runtime.api.events.InputReadErrorEvent;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.PipelinedSpills;
 import org.apache.tez.runtime.library.common.TezRuntimeUtils;
 import org.apache.tez.runtime.library.common.shuffle.impl.MapOutput.Type;
 
@@ -71,6 +72,9 @@ class ShuffleScheduler {
   private ConcurrentMap<String, InputAttemptIdentifier> pathToIdentifierMap = new ConcurrentHashMap<String, InputAttemptIdentifier>(); 
   private Set<MapHost> pendingHosts = new HashSet<MapHost>();
   private Set<InputAttemptIdentifier> obsoleteInputs = new HashSet<InputAttemptIdentifier>();
+  // Spills fetched so far of the inputs which publish one spill at a time
+  private final Map<Integer, PipelinedSpills> pipelinedInputs =
+      new HashMap<Integer, PipelinedSpills>();
   
   private final Random random = new Random(System.currentTimeMillis());
   private final DelayQueue<Penalty> penalties = new DelayQueue<Penalty>();
@@ -88,6 +92,7 @@ class ShuffleScheduler {
   private final TezCounter failedShuffleCounter;
   private final TezCounter bytesShuffledToDisk;
   private final TezCounter bytesShuffledToMem;
+  private final TezCounter bytesShuffledToDiskDirect;
   
   private final long startTime;
   private long lastProgressTime;
@@ -144,6 +149,7 @@ class ShuffleScheduler {
             TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_FETCH_MAX_TASK_OUTPUT_AT_ONCE));
     
     this.skippedInputCounter = inputContext.getCounters().findCounter(TaskCounter.NUM_SKIPPED_INPUTS);
+    this.bytesShuffledToDiskDirect = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_DISK_DIRECT);
     
     LOG.info("ShuffleScheduler running for sourceVertex: "
         + inputContext.getSourceVertexName() + " with configuration: "
@@ -166,11 +172,34 @@ class ShuffleScheduler {
       hostFailures.remove(host.getHostIdentifier());
     }
     
-    if (!isInputFinished(srcAttemptIdentifier.getInputIdentifier().getInputIndex())) {
+    int inputIndex = srcAttemptIdentifier.getInputIdentifier().getInputIndex();
+    PipelinedSpills spills = null;
+    if (srcAttemptIdentifier.isPipelined() && !isInputFinished(inputIndex)) {
+      spills = pipelinedInputs.get(inputIndex);
+      if (spills == null) {
+        spills = new PipelinedSpills(srcAttemptIdentifier.getAttemptNumber());
+        pipelinedInputs.put(inputIndex, spills);
+      } else if (spills.getAttemptNumber() != srcAttemptIdentifier.getAttemptNumber()) {
+        // Spills which have already been merged cannot be taken back.
+        if (output != null) {
+          output.abort();
+        }
+        shuffle.reportException(new IOException("Cannot combine the spills of "
+            + TezRuntimeUtils.getTaskAttemptIdentifier(
+                inputContext.getSourceVertexName(), inputIndex, spills.getAttemptNumber())
+            + " with those of attempt " + srcAttemptIdentifier.getAttemptNumber()));
+        return;
+      }
+    }
+
+    if (!isInputFinished(inputIndex)
+        && (spills == null || !spills.isFetched(srcAttemptIdentifier.getSpillId()))) {
       if (output != null) {
         output.commit();
         if (output.getType() == Type.DISK) {
           bytesShuffledToDisk.increment(bytesCompressed);
+        } else if (output.getType() == Type.DISK_DIRECT) {
+          bytesShuffledToDiskDirect.increment(bytesCompressed);
         } else {
           bytesShuffledToMem.increment(bytesCompressed);
         }
@@ -180,11 +209,14 @@ class ShuffleScheduler {
         // registered without needing to fetch data
         skippedInputCounter.increment(1);
       }
-      setInputFinished(srcAttemptIdentifier.getInputIdentifier().getInputIndex());
-      
-      if (--remainingMaps == 0) {
-        LOG.info("All inputs fetched for input vertex : " + inputContext.getSourceVertexName());
-        notifyAll();
+      if (spills == null || spills.spillFetched(srcAttemptIdentifier)) {
+        pipelinedInputs.remove(inputIndex);
+        setInputFinished(inputIndex);
+
+        if (--remainingMaps == 0) {
+          LOG.info("All inputs fetched for input vertex : " + inputContext.getSourceVertexName());
+          notifyAll();
+        }
       }
 
       // update the status
@@ -415,14 +447,27 @@ class ShuffleScheduler {
   }
   
   private boolean inputShouldBeConsumed(InputAttemptIdentifier id) {
+    int inputIndex = id.getInputIdentifier().getInputIndex();
+    if (id.isPipelined()) {
+      // Obsolete inputs are known by their attempt only.
+      if (obsoleteInputs.contains(
+          new InputAttemptIdentifier(inputIndex, id.getAttemptNumber()))) {
+        return false;
+      }
+      PipelinedSpills spills = pipelinedInputs.get(inputIndex);
+      if (spills != null && spills.getAttemptNumber() == id.getAttemptNumber()
+          && spills.isFetched(id.getSpillId())) {
+        return false;
+      }
+    }
     return (!obsoleteInputs.contains(id) && 
-             !isInputFinished(id.getInputIdentifier().getInputIndex()));
+             !isInputFinished(inputIndex));
   }
   
   public synchronized List<InputAttemptIdentifier> getMapsForHost(MapHost host) {
     List<InputAttemptIdentifier> origList = host.getAndClearKnownMaps();
 
-    Map<Integer, InputAttemptIdentifier> dedupedList = new LinkedHashMap<Integer, InputAttemptIdentifier>();
+    Map<String, InputAttemptIdentifier> dedupedList = new LinkedHashMap<String, InputAttemptIdentifier>();
     Iterator<InputAttemptIdentifier> listItr = origList.iterator();
     while (listItr.hasNext()) {
       // we may want to try all versions of the input but with current retry
@@ -430,7 +475,9 @@ class ShuffleScheduler {
       // This may be removed after TEZ-914
       InputAttemptIdentifier id = listItr.next();
       if (inputShouldBeConsumed(id)) {
-        Integer inputNumber = new Integer(id.getInputIdentifier().getInputIndex());
+        // Each spill of a pipelined input is a separate output.
+        String inputNumber = id.getInputIdentifier().getInputIndex()
+            + (id.isPipelined() ? "_spill_" + id.getSpillId() : "");
         InputAttemptIdentifier oldId = dedupedList.get(inputNumber);
         if (oldId == null || oldId.getAttemptNumber() < id.getAttemptNumber()) {
           dedupedList.put(inputNumber, id);
@@ -450,7 +497,7 @@ class ShuffleScheduler {
     List<InputAttemptIdentifier> result = new ArrayList<InputAttemptIdentifier>();
     int includedMaps = 0;
     int totalSize = dedupedList.size();
-    Iterator<Map.Entry<Integer, InputAttemptIdentifier>> dedupedItr = dedupedList.entrySet().iterator();
+    Iterator<Map.Entry<String, InputAttemptIdentifier>> dedupedItr = dedupedList.entrySet().iterator();
     // find the maps that we still need, up to the limit
     while (dedupedItr.hasNext()) {
       InputAttemptIdentifier id = dedupedItr.next().getValue();
@@ -85,6 +85,7 @@ public abstract class ExternalSorter {
   protected final int ifileBufferSize;
 
   protected final int availableMemoryMb;
+  protected final boolean offHeapBuffer;
 
   protected final IndexedSorter sorter;
 
@@ -118,16 +119,27 @@ public abstract class ExternalSorter {
   // spills)
   protected final TezCounter numAdditionalSpills;
 
+  // Deserialized size of the output of each partition, counted like
+  // mapOutputByteCounter
+  protected final long[] partitionStats;
+
   public ExternalSorter(TezOutputContext outputContext, Configuration conf, int numOutputs,
       long initialMemoryAvailable) throws IOException {
     this.outputContext = outputContext;
     this.conf = conf;
     this.partitions = numOutputs;
+    this.partitionStats = new long[numOutputs];
 
     rfs = ((LocalFileSystem)FileSystem.getLocal(this.conf)).getRaw();
 
+    this.offHeapBuffer = isOffHeapBufferEnabled(conf);
     int assignedMb = (int) (initialMemoryAvailable >> 20);
-    if (assignedMb <= 0) {
+    if (offHeapBuffer) {
+      // The off-heap buffer is not part of the memory assigned to this output.
+      this.availableMemoryMb = conf.getInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB,
+          TezJobConfig.DEFAULT_TEZ_RUNTIME_IO_SORT_MB);
+      LOG.info("Using off-heap sort buffer of " + availableMemoryMb + " MB");
+    } else if (assignedMb <= 0) {
       if (initialMemoryAvailable > 0) { // Rounded down to 0MB - may be > 0 && < 1MB
         this.availableMemoryMb = 1;
         LOG.warn("initialAvailableMemory: " + initialMemoryAvailable
@@ -206,7 +218,15 @@ public abstract class ExternalSorter {
     }
   }
 
+  /**
+   * @return the number of bytes written to each partition, before the
+   *         combiner is run and before compression
+   */
   @Private
+  public long[] getPartitionStats() {
+    return partitionStats;
+  }
+
   public TezTaskOutput getMapOutput() {
     return mapOutputFile;
   }
@@ -255,8 +275,18 @@ public abstract class ExternalSorter {
             TezJobConfig.TEZ_RUNTIME_IO_SORT_MB, 
             TezJobConfig.DEFAULT_TEZ_RUNTIME_IO_SORT_MB);
     Preconditions.checkArgument(initialMemRequestMb != 0, "io.sort.mb should be larger than 0");
-    long reqBytes = initialMemRequestMb << 20;
+    if (isOffHeapBufferEnabled(conf)) {
+      LOG.info("Requested off-heap SortBufferSize (io.sort.mb): " + initialMemRequestMb
+          + ". Not requesting any heap memory");
+      return 0;
+    }
+    long reqBytes = ((long) initialMemRequestMb) << 20;
     LOG.info("Requested SortBufferSize (io.sort.mb): " + initialMemRequestMb);
     return reqBytes;
   }
+
+  public static boolean isOffHeapBufferEnabled(Configuration conf) {
+    return conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SORT_BUFFER_OFFHEAP,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SORT_BUFFER_OFFHEAP);
+  }
 }
@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import java.util.Arrays;
+
+/**
+ * A tournament tree of losers used to pick the next record of a k-way merge.
+ * Segments are identified by their index in the merge, and the tree only
+ * holds ints, so no objects are touched other than the segments compared.
+ *
+ * Once the winning segment has moved on to its next record, only the
+ * matches on the path from its leaf to the root are replayed, which costs
+ * log(k) comparisons - a binary heap needs up to twice as many to sift a
+ * replaced top down.
+ */
+abstract class LoserTree {
+
+  // tree[1..k-1] hold the losers of the matches played at the internal
+  // nodes, tree[0] holds the overall winner. Leaf i sits at node k + i.
+  private int[] tree = new int[0];
+  private int[] winners = new int[0];
+  private boolean[] exhausted = new boolean[0];
+  private int numSegments;
+  private int size;
+
+  /**
+   * Determines the ordering of the current records of two segments.
+   * @return true if the current record of segment <code>a</code> should be
+   *         merged before the current record of segment <code>b</code>
+   */
+  protected abstract boolean lessThan(int a, int b);
+
+  /**
+   * Plays the tournament between segments 0 to numSegments-1, all of which
+   * must be positioned on their first record.
+   */
+  protected final void initialize(int numSegments) {
+    if (exhausted.length < numSegments) {
+      tree = new int[numSegments];
+      winners = new int[2 * numSegments];
+      exhausted = new boolean[numSegments];
+    }
+    Arrays.fill(exhausted, 0, numSegments, false);
+    this.numSegments = numSegments;
+    this.size = numSegments;
+    if (numSegments == 0) {
+      return;
+    }
+    for (int i = 0; i < numSegments; i++) {
+      winners[numSegments + i] = i;
+    }
+    for (int node = numSegments - 1; node > 0; node--) {
+      int left = winners[2 * node];
+      int right = winners[2 * node + 1];
+      if (beats(right, left)) {
+        winners[node] = right;
+        tree[node] = left;
+      } else {
+        winners[node] = left;
+        tree[node] = right;
+      }
+    }
+    tree[0] = winners[1];
+  }
+
+  /** @return the number of segments which still have records */
+  protected final int size() {
+    return size;
+  }
+
+  /** @return the segment holding the least record, or -1 if none is left */
+  protected final int top() {
+    return size == 0 ? -1 : tree[0];
+  }
+
+  /**
+   * Restores the tree after the segment returned by {@link #top()} moved on
+   * to its next record.
+   */
+  protected final void adjustTop() {
+    replay(tree[0]);
+  }
+
+  /**
+   * Removes the segment returned by {@link #top()} from the tree, typically
+   * once it has run out of records.
+   * @return the removed segment, or -1 if none is left
+   */
+  protected final int pop() {
+    if (size == 0) {
+      return -1;
+    }
+    int segment = tree[0];
+    exhausted[segment] = true;
+    size--;
+    replay(segment);
+    return segment;
+  }
+
+  /**
+   * Finds the segment which would become the top if the current top was
+   * removed. It must have lost its last match to the top, so only the losers
+   * on the path of the top are compared.
+   * @return the segment holding the second least record, or -1 if none
+   */
+  protected final int runnerUp() {
+    if (size < 2) {
+      return -1;
+    }
+    int best = -1;
+    for (int node = (tree[0] + numSegments) >>> 1; node > 0; node >>>= 1) {
+      int loser = tree[node];
+      if (!exhausted[loser] && (best == -1 || lessThan(loser, best))) {
+        best = loser;
+      }
+    }
+    return best;
+  }
+
+  private void replay(int segment) {
+    int winner = segment;
+    for (int node = (segment + numSegments) >>> 1; node > 0; node >>>= 1) {
+      int challenger = tree[node];
+      if (beats(challenger, winner)) {
+        tree[node] = winner;
+        winner = challenger;
+      }
+    }
+    tree[0] = winner;
+  }
+
+  private boolean beats(int a, int b) {
+    if (exhausted[a]) {
+      return false;
+    }
+    if (exhausted[b]) {
+      return true;
+    }
+    return lessThan(a, b);
+  }
+}
@@ -26,7 +26,6 @@ import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -50,6 +49,7 @@ import org.apache.tez.runtime.library.common.ConfigUtils;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 @SuppressWarnings({"unchecked", "rawtypes"})
@@ -73,6 +73,10 @@ public class PipelinedSorter extends ExternalSorter {
   private static final int NMETA = 4;            // num meta ints
   private static final int METASIZE = NMETA * 4; // size in bytes
 
+  // max size of a single chunk of the sort buffer
+  private static final int MAX_BUFFER_CHUNK_SIZE =
+      Integer.MAX_VALUE - (Integer.MAX_VALUE % METASIZE);
+
   // spill accounting
   volatile Throwable sortSpillException = null;
 
@@ -81,7 +85,11 @@ public class PipelinedSorter extends ExternalSorter {
   private final HashComparator hasher;
   // SortSpans  
   private SortSpan span;
-  private ByteBuffer largeBuffer;
+  // The sort buffer. Split into multiple chunks only when it is too large to be
+  // addressed by a single ByteBuffer, which is possible with off-heap buffers.
+  private ByteBuffer[] largeBuffers;
+  private int nextLargeBuffer;
+  private final long sortBufferSize;
   // Merger
   private final SpanMerger merger; 
   private final ExecutorService sortmaster;
@@ -95,6 +103,13 @@ public class PipelinedSorter extends ExternalSorter {
 
   public PipelinedSorter(TezOutputContext outputContext, Configuration conf, int numOutputs,
       long initialMemoryAvailable) throws IOException {
+    this(outputContext, conf, numOutputs, initialMemoryAvailable,
+        MAX_BUFFER_CHUNK_SIZE);
+  }
+
+  @VisibleForTesting
+  PipelinedSorter(TezOutputContext outputContext, Configuration conf, int numOutputs,
+      long initialMemoryAvailable, int maxBufferChunkSize) throws IOException {
     super(outputContext, conf, numOutputs, initialMemoryAvailable);
     
     partitionBits = bitcount(partitions)+1;
@@ -111,18 +126,28 @@ public class PipelinedSorter extends ExternalSorter {
       throw new IOException("Invalid \"" + TezJobConfig.TEZ_RUNTIME_SORT_SPILL_PERCENT +
           "\": " + spillper);
     }
-    if ((sortmb & 0x7FF) != sortmb) {
+    if (!offHeapBuffer && (sortmb & 0x7FF) != sortmb) {
       throw new IOException(
           "Invalid \"" + TezJobConfig.TEZ_RUNTIME_IO_SORT_MB + "\": " + sortmb);
     }
     
     // buffers and accounting
-    int maxMemUsage = sortmb << 20;
-    maxMemUsage -= maxMemUsage % METASIZE;
-    largeBuffer = ByteBuffer.allocate(maxMemUsage);
-    LOG.info(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB + " = " + sortmb);
+    sortBufferSize = ((long) sortmb) << 20;
+    int numChunks = (int) ((sortBufferSize + maxBufferChunkSize - 1) / maxBufferChunkSize);
+    largeBuffers = new ByteBuffer[numChunks];
+    long remaining = sortBufferSize;
+    for (int i = 0; i < numChunks; i++) {
+      int chunkSize = (int) Math.min(remaining, maxBufferChunkSize);
+      remaining -= chunkSize;
+      chunkSize -= chunkSize % METASIZE;
+      largeBuffers[i] = offHeapBuffer ? ByteBuffer.allocateDirect(chunkSize)
+          : ByteBuffer.allocate(chunkSize);
+    }
+    nextLargeBuffer = 1;
+    LOG.info(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB + " = " + sortmb + ", offHeap = "
+        + offHeapBuffer + ", chunks = " + numChunks);
     // TODO: configurable setting?
-    span = new SortSpan(largeBuffer, 1024*1024, 16);
+    span = new SortSpan(largeBuffers[0], 1024*1024, 16);
     merger = new SpanMerger(comparator);
     final int sortThreads = 
             this.conf.getInt(
@@ -158,21 +183,35 @@ public class PipelinedSorter extends ExternalSorter {
     SortSpan newSpan = span.next();
 
     if(newSpan == null) {
-      // sort in the same thread, do not wait for the thread pool
-      merger.add(span.sort(sorter, comparator));
-      spill();
+      ByteBuffer nextBuffer = nextLargeBuffer < largeBuffers.length
+          ? largeBuffers[nextLargeBuffer] : largeBuffers[0];
       int items = 1024*1024;
       int perItem = 16;
       if(span.length() != 0) {
         items = span.length();
         perItem = span.kvbuffer.limit()/items;
-        items = (largeBuffer.capacity())/(METASIZE+perItem);
+        items = (nextBuffer.capacity())/(METASIZE+perItem);
         if(items > 1024*1024) {
             // our goal is to have 1M splits and sort early
             items = 1024*1024;
         }
-      }      
-      span = new SortSpan(largeBuffer, items, perItem);
+      }
+      if (nextLargeBuffer < largeBuffers.length) {
+        // move on to the next chunk of the sort buffer, and queue up the sort
+        nextLargeBuffer++;
+        SortTask task = new SortTask(span, sorter, comparator);
+        Future<SpanIterator> future = sortmaster.submit(task);
+        merger.add(future);
+        newSpan = new SortSpan(nextBuffer, items, perItem);
+        newSpan.index = span.index + 1;
+        span = newSpan;
+      } else {
+        // sort in the same thread, do not wait for the thread pool
+        merger.add(span.sort(sorter, comparator));
+        spill();
+        nextLargeBuffer = 1;
+        span = new SortSpan(nextBuffer, items, perItem);
+      }
     } else {
       // queue up the sort
       SortTask task = new SortTask(span, sorter, comparator);
@@ -253,11 +292,12 @@ public class PipelinedSorter extends ExternalSorter {
     }
     mapOutputRecordCounter.increment(1);
     mapOutputByteCounter.increment(valend - keystart);
+    partitionStats[partition] += valend - keystart;
   }
 
   public void spill() throws IOException { 
     // create spill file
-    final long size = largeBuffer.capacity() + 
+    final long size = sortBufferSize + 
       (partitions * APPROX_HEADER_LENGTH);
     final TezSpillRecord spillRec = new TezSpillRecord(partitions);
     final Path filename =
@@ -321,7 +361,7 @@ public class PipelinedSorter extends ExternalSorter {
     spill();
     sortmaster.shutdown();
 
-    largeBuffer = null;
+    largeBuffers = null;
 
     if(numSpills == 1) {
       // someday be able to pass this directly to shuffle
@@ -801,20 +841,8 @@ public class PipelinedSorter extends ExternalSorter {
     }
   }
 
-  private class SpanHeap extends java.util.PriorityQueue<SpanIterator> {
-    public SpanHeap() {
-      super(256);
-    }
-    /**
-     * {@link PriorityQueue}.poll() by a different name 
-     * @return
-     */
-    public SpanIterator pop() {
-      return this.poll();
-    }
-  }
-
-  private class SpanMerger implements PartitionedRawKeyValueIterator {
+  private class SpanMerger extends LoserTree
+      implements PartitionedRawKeyValueIterator {
     private final RawComparator comparator;
     InputByteBuffer key = new InputByteBuffer();
     InputByteBuffer value = new InputByteBuffer();
@@ -822,11 +850,13 @@ public class PipelinedSorter extends ExternalSorter {
 
     private ArrayList< Future<SpanIterator>> futures = new ArrayList< Future<SpanIterator>>();
 
-    private SpanHeap heap = new SpanHeap();
+    // spans added since the last call to ready()
+    private ArrayList<SpanIterator> pending = new ArrayList<SpanIterator>();
+    private SpanIterator[] spans = new SpanIterator[0];
     private PartitionFilter partIter;
 
     private int gallop = 0;
-    private SpanIterator horse;
+    private int horse = -1;
     private long total = 0;
     private long count = 0;
     private long eq = 0;
@@ -838,7 +868,7 @@ public class PipelinedSorter extends ExternalSorter {
 
     public void add(SpanIterator iter) throws IOException{
       if(iter.next()) {
-        heap.add(iter);
+        pending.add(iter);
       }
     }
 
@@ -854,9 +884,19 @@ public class PipelinedSorter extends ExternalSorter {
           iter = futureIter.get();
           this.add(iter);
         }
+
+        // carry over the spans which still have records, if any
+        while(size() > 0) {
+          pending.add(spans[pop()]);
+        }
+        spans = pending.toArray(new SpanIterator[pending.size()]);
+        pending.clear();
+        gallop = 0;
+        horse = -1;
+        initialize(spans.length);
         
         StringBuilder sb = new StringBuilder();
-        for(SpanIterator sp: heap) {
+        for(SpanIterator sp: spans) {
             sb.append(sp.toString());
             sb.append(",");
             total += sp.span.length();
@@ -870,17 +910,24 @@ public class PipelinedSorter extends ExternalSorter {
       }
     }
 
-    private SpanIterator pop() throws IOException {
+    @Override
+    protected boolean lessThan(int a, int b) {
+      return spans[a].compareTo(spans[b]) < 0;
+    }
+
+    private int nextSpan() throws IOException {
       if(gallop > 0) {
         gallop--;
         return horse;
       }
-      SpanIterator current = heap.pop();
-      SpanIterator next = heap.peek();
-      if(next != null && current != null &&
-        ((Object)horse) == ((Object)current)) {
-        // TODO: a better threshold check
-        gallop = current.bisect(next.getKey(), next.getPartition())-1;
+      int current = top();
+      if(current != -1 && current == horse) {
+        int next = runnerUp();
+        if(next != -1) {
+          // TODO: a better threshold check
+          gallop = spans[current].bisect(spans[next].getKey(),
+              spans[next].getPartition())-1;
+        }
       }
       horse = current;
       return current;
@@ -889,27 +936,25 @@ public class PipelinedSorter extends ExternalSorter {
     public boolean needsRLE() {
       return (eq > 0.1 * total);
     }
-    
-    private SpanIterator peek() throws IOException {
-    	if(gallop > 0) {
-            return horse;
-        }
-    	return heap.peek();
-    }
 
     public boolean next() throws IOException {
-      SpanIterator current = pop();
-
-      if(current != null) {
-        // keep local copies, since add() will move it all out
-        key.reset(current.getKey());
-        value.reset(current.getValue());
-        partition = current.getPartition();
+      int current = nextSpan();
+
+      if(current != -1) {
+        SpanIterator iter = spans[current];
+        // keep local copies, since moving on will change the iterator
+        key.reset(iter.getKey());
+        value.reset(iter.getValue());
+        partition = iter.getPartition();
         if(gallop <= 0) {
-          this.add(current);
+          if(iter.next()) {
+            adjustTop();
+          } else {
+            pop();
+          }
         } else {
-          // galloping
-          current.next();
+          // galloping, the horse stays at the top of the tree
+          iter.next();
         }
         return true;
       }
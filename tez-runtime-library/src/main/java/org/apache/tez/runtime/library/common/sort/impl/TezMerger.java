@@ -36,7 +36,6 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.util.PriorityQueue;
 import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.Progressable;
 import org.apache.tez.common.TezJobConfig;
@@ -362,7 +361,7 @@ public class TezMerger {
   }
 
   private static class MergeQueue<K extends Object, V extends Object> 
-  extends PriorityQueue<Segment> implements TezRawKeyValueIterator {
+  extends LoserTree implements TezRawKeyValueIterator {
     Configuration conf;
     FileSystem fs;
     CompressionCodec codec;
@@ -372,6 +371,8 @@ public class TezMerger {
     long recordsBeforeProgress = TezJobConfig.DEFAULT_RECORDS_BEFORE_PROGRESS;
     
     List<Segment> segments = new ArrayList<Segment>();
+    // The segments of the current merge pass, indexed as in the loser tree
+    Segment[] mergeSegments = new Segment[0];
     
     RawComparator comparator;
 
@@ -456,9 +457,10 @@ public class TezMerger {
     }
 
     public void close() throws IOException {
-      Segment segment;
-      while((segment = pop()) != null) {
-        segment.close();
+      int segment;
+      while((segment = pop()) != -1) {
+        mergeSegments[segment].close();
+        mergeSegments[segment] = null;
       }
     }
 
@@ -479,7 +481,7 @@ public class TezMerger {
       if (hasNext) {
         adjustTop();
       } else {
-        pop();
+        mergeSegments[pop()] = null;
         reader.close();
       }
     }
@@ -498,7 +500,7 @@ public class TezMerger {
           return false;
         }
       }
-      minSegment = top();
+      minSegment = mergeSegments[top()];
       if (!minSegment.inMemory()) {
         //When we load the value from an inmemory segment, we reset
         //the "value" DIB in this class to the inmem segment's byte[].
@@ -520,9 +522,10 @@ public class TezMerger {
       return true;
     }
 
-    protected boolean lessThan(Object a, Object b) {
-      DataInputBuffer key1 = ((Segment)a).getKey();
-      DataInputBuffer key2 = ((Segment)b).getKey();
+    @Override
+    protected boolean lessThan(int a, int b) {
+      DataInputBuffer key1 = mergeSegments[a].getKey();
+      DataInputBuffer key2 = mergeSegments[b].getKey();
       int s1 = key1.getPosition();
       int l1 = key1.getLength() - s1;
       int s2 = key2.getPosition();
@@ -623,12 +626,10 @@ public class TezMerger {
           numSegmentsToConsider = factor - segmentsConsidered;
         }
         
-        //feed the streams to the priority queue
+        //feed the streams to the loser tree
+        mergeSegments =
+          segmentsToMerge.toArray(new Segment[segmentsToMerge.size()]);
         initialize(segmentsToMerge.size());
-        clear();
-        for (Segment segment : segmentsToMerge) {
-          put(segment);
-        }
         
         //if we have lesser number of segments remaining, then just return the
         //iterator, else do another single level merge
@@ -694,8 +695,8 @@ public class TezMerger {
           writeFile(this, writer, reporter, recordsBeforeProgress);
           writer.close();
           
-          //we finished one single level merge; now clean up the priority 
-          //queue
+          //we finished one single level merge; now clean up the loser
+          //tree
           this.close();
 
           // Add the newly create segment to the list of segments to be merged
@@ -25,6 +25,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
@@ -41,8 +42,11 @@ import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezUtils;
+import org.apache.tez.runtime.api.Event;
 import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.api.events.CompositeDataMovementEvent;
 import org.apache.tez.runtime.library.common.ConfigUtils;
+import org.apache.tez.runtime.library.common.TezRuntimeUtils;
 import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
 import org.apache.tez.runtime.library.common.sort.impl.IFile;
 import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
@@ -51,6 +55,9 @@ import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
 import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
 import org.apache.tez.runtime.library.common.sort.impl.TezMerger.Segment;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutput;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
 
 @SuppressWarnings({"unchecked", "rawtypes"})
 public class DefaultSorter extends ExternalSorter implements IndexedSortable {
@@ -111,6 +118,17 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
   private final int indexCacheMemoryLimit;
   private int totalIndexCacheMemory;
 
+  // Whether each spill is served as a separate output, with its own event,
+  // instead of being merged into the final output
+  private final boolean pipelinedShuffle;
+  // Whether the spills are served as they are, each from its own output,
+  // because they are published separately or the final merge is disabled
+  private final boolean serveSpills;
+  // Partitions with data in any of the spills, when they are served
+  private final BitSet partitionsWithData = new BitSet();
+  private final boolean sendEmptyPartitionDetails;
+  private volatile boolean finalSpill = false;
+
   public DefaultSorter(TezOutputContext outputContext, Configuration conf, int numOutputs,
       long initialMemoryAvailable) throws IOException {
     super(outputContext, conf, numOutputs, initialMemoryAvailable);
@@ -127,9 +145,23 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
       throw new IOException("Invalid \"" + TezJobConfig.TEZ_RUNTIME_IO_SORT_MB
           + "\": " + sortmb);
     }
+    if (offHeapBuffer) {
+      throw new IOException("Off-heap sort buffers (\""
+          + TezJobConfig.TEZ_RUNTIME_SORT_BUFFER_OFFHEAP
+          + "\") are not supported by " + getClass().getName());
+    }
 
     indexCacheMemoryLimit = this.conf.getInt(TezJobConfig.TEZ_RUNTIME_INDEX_CACHE_MEMORY_LIMIT_BYTES,
                                        TezJobConfig.DEFAULT_TEZ_RUNTIME_INDEX_CACHE_MEMORY_LIMIT_BYTES);
+    pipelinedShuffle = this.conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED);
+    serveSpills = pipelinedShuffle || !this.conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SORTER_FINAL_MERGE_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SORTER_FINAL_MERGE_ENABLED);
+    sendEmptyPartitionDetails = this.conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED,
+        TezJobConfig.TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED_DEFAULT);
 
     // buffers and accounting
     int maxMemUsage = sortmb << 20;
@@ -294,8 +326,9 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
       int valend = bb.markRecord();
 
       mapOutputRecordCounter.increment(1);
-      mapOutputByteCounter.increment(
-          distanceTo(keystart, valend, bufvoid));
+      final int recordLength = distanceTo(keystart, valend, bufvoid);
+      mapOutputByteCounter.increment(recordLength);
+      partitionStats[partition] += recordLength;
 
       // write accounting info
       kvmeta.put(kvindex + PARTITION, partition);
@@ -607,7 +640,14 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
                    "); length = " + (distanceTo(kvend, kvstart,
                          kvmeta.capacity()) + 1) + "/" + maxRec);
         }
+        finalSpill = true;
         sortAndSpill();
+      } else if (pipelinedShuffle || (serveSpills && numSpills == 0)) {
+        // All data has been published already. An empty spill tells the
+        // consumers that there are no more spills. Without the final merge,
+        // an empty spill is the output of a task which wrote nothing.
+        finalSpill = true;
+        spill(0, 0);
       }
     } catch (InterruptedException e) {
       throw new IOException("Interrupted while waiting for the writer", e);
@@ -627,6 +667,17 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
     } catch (InterruptedException e) {
       throw new IOException("Spill failed", e);
     }
+    if (serveSpills) {
+      // Each spill is served as a separate output.
+      if (!pipelinedShuffle) {
+        for (int i = 0; i < numSpills; i++) {
+          fileOutputByteCounter.increment(rfs.getFileStatus(
+              getSpillOutput(i).getOutputFile()).getLen());
+        }
+        LOG.info("Skipped the final merge, serving " + numSpills + " spills");
+      }
+      return;
+    }
     // release sort buffer before the merge
     //FIXME
     //kvbuffer = null;
@@ -733,11 +784,15 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
         : (bufvoid - bufend) + bufstart) +
                 partitions * APPROX_HEADER_LENGTH;
     FSDataOutputStream out = null;
+    final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+    final TezTaskOutput spillOutput = serveSpills
+        ? getSpillOutput(numSpills) : null;
+    final Path filename;
     try {
       // create spill file
-      final TezSpillRecord spillRec = new TezSpillRecord(partitions);
-      final Path filename =
-          mapOutputFile.getSpillFileForWrite(numSpills, size);
+      filename = serveSpills
+          ? spillOutput.getOutputFileForWrite(size)
+          : mapOutputFile.getSpillFileForWrite(numSpills, size);
       out = rfs.create(filename);
 
       int spindex = mstart;
@@ -782,7 +837,7 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
 
           // close the writer
           writer.close();
-          if (numSpills > 0) {
+          if (numSpills > 0 && !serveSpills) {
             additionalSpillBytesWritten.increment(writer.getCompressedLength());
             numAdditionalSpills.increment(1);
             // Reset the value will be set during the final merge.
@@ -805,22 +860,15 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
         }
       }
 
-      if (totalIndexCacheMemory >= indexCacheMemoryLimit) {
-        // create spill index file
-        Path indexFilename =
-            mapOutputFile.getSpillIndexFileForWrite(numSpills, partitions
-                * MAP_OUTPUT_INDEX_RECORD_LENGTH);
-        spillRec.writeToFile(indexFilename, conf);
-      } else {
-        indexCacheList.add(spillRec);
-        totalIndexCacheMemory +=
-          spillRec.size() * MAP_OUTPUT_INDEX_RECORD_LENGTH;
-      }
+      writeSpillIndex(spillRec, spillOutput);
       LOG.info("Finished spill " + numSpills);
       ++numSpills;
     } finally {
       if (out != null) out.close();
     }
+    if (pipelinedShuffle) {
+      publishSpill(numSpills - 1, filename, spillRec);
+    }
   }
 
   /**
@@ -832,11 +880,15 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
                                  int partition) throws IOException {
     long size = kvbuffer.length + partitions * APPROX_HEADER_LENGTH;
     FSDataOutputStream out = null;
+    final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+    final TezTaskOutput spillOutput = serveSpills
+        ? getSpillOutput(numSpills) : null;
+    final Path filename;
     try {
       // create spill file
-      final TezSpillRecord spillRec = new TezSpillRecord(partitions);
-      final Path filename =
-          mapOutputFile.getSpillFileForWrite(numSpills, size);
+      filename = serveSpills
+          ? spillOutput.getOutputFileForWrite(size)
+          : mapOutputFile.getSpillFileForWrite(numSpills, size);
       out = rfs.create(filename);
 
       // we don't run the combiner for a single record
@@ -853,11 +905,13 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
             writer.append(key, value);
             // Note that our map byte count will not be accurate with
             // compression
-            mapOutputByteCounter.increment(out.getPos() - recordStart);
+            final long recordLength = out.getPos() - recordStart;
+            mapOutputByteCounter.increment(recordLength);
+            partitionStats[partition] += recordLength;
           }
           writer.close();
 
-          if (numSpills > 0) {
+          if (numSpills > 0 && !serveSpills) {
             additionalSpillBytesWritten.increment(writer.getCompressedLength());
             numAdditionalSpills.increment(1);
             outputBytesWithOverheadCounter.setValue(0);
@@ -880,21 +934,95 @@ public class DefaultSorter extends ExternalSorter implements IndexedSortable {
           throw e;
         }
       }
-      if (totalIndexCacheMemory >= indexCacheMemoryLimit) {
-        // create spill index file
-        Path indexFilename =
-            mapOutputFile.getSpillIndexFileForWrite(numSpills, partitions
-                * MAP_OUTPUT_INDEX_RECORD_LENGTH);
-        spillRec.writeToFile(indexFilename, conf);
-      } else {
-        indexCacheList.add(spillRec);
-        totalIndexCacheMemory +=
-          spillRec.size() * MAP_OUTPUT_INDEX_RECORD_LENGTH;
-      }
+      writeSpillIndex(spillRec, spillOutput);
       ++numSpills;
     } finally {
       if (out != null) out.close();
     }
+    if (pipelinedShuffle) {
+      publishSpill(numSpills - 1, filename, spillRec);
+    }
+  }
+
+  private void writeSpillIndex(TezSpillRecord spillRec,
+      TezTaskOutput spillOutput) throws IOException {
+    if (spillOutput != null) {
+      // The ShuffleHandler needs the index of each served spill.
+      spillRec.writeToFile(spillOutput.getOutputIndexFileForWrite(
+          partitions * MAP_OUTPUT_INDEX_RECORD_LENGTH), conf);
+      for (int i = 0; i < partitions; i++) {
+        if (spillRec.getIndex(i).hasData()) {
+          partitionsWithData.set(i);
+        }
+      }
+    } else if (totalIndexCacheMemory >= indexCacheMemoryLimit) {
+      // create spill index file
+      Path indexFilename =
+          mapOutputFile.getSpillIndexFileForWrite(numSpills, partitions
+              * MAP_OUTPUT_INDEX_RECORD_LENGTH);
+      spillRec.writeToFile(indexFilename, conf);
+    } else {
+      indexCacheList.add(spillRec);
+      totalIndexCacheMemory +=
+        spillRec.size() * MAP_OUTPUT_INDEX_RECORD_LENGTH;
+    }
+  }
+
+  /**
+   * The files of a published spill. They are laid out like the final output
+   * of a task, so that the ShuffleHandler can serve them.
+   */
+  private TezTaskOutput getSpillOutput(int spillNumber) {
+    return TezRuntimeUtils.instantiateTaskOutputManager(conf,
+        getSpillPathComponent(spillNumber));
+  }
+
+  private String getSpillPathComponent(int spillNumber) {
+    return ShuffleUtils.getSpillPathComponent(
+        outputContext.getUniqueIdentifier(), spillNumber);
+  }
+
+  /**
+   * @return whether the final merge has been skipped, in which case the
+   *         output of the task is made up of {@link #getNumSpills()} spills,
+   *         each served separately
+   */
+  public boolean isFinalMergeSkipped() {
+    return serveSpills && !pipelinedShuffle;
+  }
+
+  public int getNumSpills() {
+    return numSpills;
+  }
+
+  /**
+   * @return the partitions without data in any of the served spills
+   */
+  public BitSet getEmptyPartitions() {
+    BitSet emptyPartitions = new BitSet(partitions);
+    emptyPartitions.set(0, partitions);
+    emptyPartitions.andNot(partitionsWithData);
+    return emptyPartitions;
+  }
+
+  /**
+   * Sends the event which lets the consumers fetch a spill.
+   */
+  private void publishSpill(int spillNumber, Path filename,
+      TezSpillRecord spillRec) throws IOException {
+    fileOutputByteCounter.increment(rfs.getFileStatus(filename).getLen());
+    DataMovementEventPayloadProto.Builder payloadBuilder = ShuffleUtils
+        .createDataMovementEventPayload(outputContext,
+            getSpillPathComponent(spillNumber),
+            sendEmptyPartitionDetails ? spillRec : null, LOG);
+    payloadBuilder.setSpillId(spillNumber);
+    payloadBuilder.setLastEvent(finalSpill);
+    List<Event> events = new ArrayList<Event>(1);
+    events.add(new CompositeDataMovementEvent(0, partitions,
+        payloadBuilder.build().toByteArray()));
+    outputContext.sendEvents(events);
+    LOG.info("Published spill " + spillNumber
+        + (finalSpill ? ", which is the last one" : ""));
   }
 
   protected int getInMemVBytesLength(int kvoff) {
@@ -0,0 +1,451 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.runtime.library.common.writers;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.IFile.Writer;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+
+/**
+ * <code>UnorderedPartitionedKVWriter</code> partitions key/value pairs without
+ * sorting them. Records are serialized into a single append-only buffer, and
+ * records belonging to the same partition are chained together so that a
+ * spill can walk each partition in turn without any key comparisons.
+ *
+ * The final output is a regular IFile with a {@link TezSpillRecord} index -
+ * i.e. the same layout produced by the sorters - so it can be served and
+ * fetched by the existing shuffle implementations.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class UnorderedPartitionedKVWriter extends ExternalSorter {
+
+  private static final Log LOG = LogFactory.getLog(UnorderedPartitionedKVWriter.class);
+
+  /**
+   * The size of each record in the index file for the map-outputs.
+   */
+  public static final int INDEX_RECORD_LENGTH = 24;
+
+  private final static int APPROX_HEADER_LENGTH = 150;
+
+  // Per record meta-data, written in front of the serialized key and value.
+  private static final int NEXT_RECORD = 0;   // offset of the next record in the partition
+  private static final int KEY_LENGTH = 4;    // length of the serialized key
+  private static final int VALUE_LENGTH = 8;  // length of the serialized value
+  private static final int META_SIZE = 12;    // size of the meta-data in bytes
+
+  private static final int NO_RECORD = -1;
+
+  private final ByteBuffer buffer;  // heap or off-heap, depending on configuration
+  private final int bufferLength;
+  private byte[] keyScratch = new byte[0];
+  private byte[] valScratch = new byte[0];
+  private final DataOutputStream bufferStream;
+  private int bufferPosition = 0;
+  private int numRecordsInBuffer = 0;
+
+  // Head and tail of the chain of records for each partition
+  private final int[] partitionHeads;
+  private final int[] partitionTails;
+
+  private int numSpills = 0;
+  private final List<TezSpillRecord> spillRecords = new ArrayList<TezSpillRecord>();
+
+  public UnorderedPartitionedKVWriter(TezOutputContext outputContext,
+      Configuration conf, int numOutputs, long initialMemoryAvailable)
+      throws IOException {
+    super(outputContext, conf, numOutputs, initialMemoryAvailable);
+    long bufferSize = ((long) availableMemoryMb) << 20;
+    if (bufferSize > Integer.MAX_VALUE) {
+      LOG.warn("Available memory " + availableMemoryMb
+          + " MB exceeds the maximum buffer size. Using " + Integer.MAX_VALUE
+          + " bytes");
+      bufferSize = Integer.MAX_VALUE;
+    }
+    this.bufferLength = (int) bufferSize;
+    this.buffer = offHeapBuffer ? ByteBuffer.allocateDirect(bufferLength)
+        : ByteBuffer.allocate(bufferLength);
+    this.bufferStream = new DataOutputStream(new Buffer());
+
+    this.partitionHeads = new int[partitions];
+    this.partitionTails = new int[partitions];
+    resetBuffer();
+
+    keySerializer.open(bufferStream);
+    valSerializer.open(bufferStream);
+
+    if (combiner != null) {
+      LOG.warn("Combiner is not supported for unordered output, and will be ignored");
+    }
+    LOG.info("Created " + getClass().getSimpleName() + " with bufferSize: "
+        + bufferLength + ", offHeap: " + offHeapBuffer + ", numPartitions: "
+        + partitions + ", codec: "
+        + (codec == null ? "NoCompressionCodec" : codec.getClass().getName()));
+  }
+
+  @Override
+  public void write(Object key, Object value) throws IOException {
+    if (key.getClass() != keyClass) {
+      throw new IOException("Type mismatch in key from map: expected "
+          + keyClass.getName() + ", received " + key.getClass().getName());
+    }
+    if (value.getClass() != valClass) {
+      throw new IOException("Type mismatch in value from map: expected "
+          + valClass.getName() + ", received " + value.getClass().getName());
+    }
+    int partition = partitioner.getPartition(key, value, partitions);
+    if (partition < 0 || partition >= partitions) {
+      throw new IOException("Illegal partition for " + key + " (" + partition
+          + ")" + ", TotalPartitions: " + partitions);
+    }
+
+    if (!collect(key, value, partition)) {
+      if (numRecordsInBuffer > 0) {
+        spillBuffer();
+        if (collect(key, value, partition)) {
+          return;
+        }
+      }
+      LOG.info("Record too large for in-memory buffer. Spilling it directly");
+      spillSingleRecord(key, value, partition);
+    }
+  }
+
+  /**
+   * Serialize the record into the buffer, and link it into the chain for its
+   * partition.
+   *
+   * @return false if there was insufficient space in the buffer, in which case
+   *         the buffer is left as it was before the call
+   */
+  private boolean collect(Object key, Object value, int partition)
+      throws IOException {
+    final int recordStart = bufferPosition;
+    final int keyStart = recordStart + META_SIZE;
+    final int valStart;
+    try {
+      if (keyStart > bufferLength) {
+        throw new MapBufferTooSmallException(META_SIZE + " bytes");
+      }
+      bufferPosition = keyStart;
+      keySerializer.serialize(key);
+      valStart = bufferPosition;
+      valSerializer.serialize(value);
+    } catch (MapBufferTooSmallException e) {
+      // Discard the partially serialized record
+      bufferPosition = recordStart;
+      return false;
+    }
+    final int keyLength = valStart - keyStart;
+    final int valLength = bufferPosition - valStart;
+
+    buffer.putInt(recordStart + NEXT_RECORD, NO_RECORD);
+    buffer.putInt(recordStart + KEY_LENGTH, keyLength);
+    buffer.putInt(recordStart + VALUE_LENGTH, valLength);
+    if (partitionHeads[partition] == NO_RECORD) {
+      partitionHeads[partition] = recordStart;
+    } else {
+      buffer.putInt(partitionTails[partition] + NEXT_RECORD, recordStart);
+    }
+    partitionTails[partition] = recordStart;
+    numRecordsInBuffer++;
+
+    mapOutputRecordCounter.increment(1);
+    mapOutputByteCounter.increment(keyLength + valLength);
+    partitionStats[partition] += keyLength + valLength;
+    return true;
+  }
+
+  private void resetBuffer() {
+    bufferPosition = 0;
+    numRecordsInBuffer = 0;
+    Arrays.fill(partitionHeads, NO_RECORD);
+    Arrays.fill(partitionTails, NO_RECORD);
+  }
+
+  /**
+   * Writes the contents of the buffer to the given stream, one IFile segment
+   * per partition.
+   */
+  private TezSpillRecord writePartitions(FSDataOutputStream out)
+      throws IOException {
+    final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+    final DataInputBuffer key = new DataInputBuffer();
+    final DataInputBuffer value = new DataInputBuffer();
+    for (int i = 0; i < partitions; i++) {
+      Writer writer = null;
+      try {
+        long segmentStart = out.getPos();
+        writer = new Writer(conf, out, keyClass, valClass, codec,
+            spilledRecordsCounter, null);
+        int record = partitionHeads[i];
+        while (record != NO_RECORD) {
+          int keyLength = buffer.getInt(record + KEY_LENGTH);
+          int valLength = buffer.getInt(record + VALUE_LENGTH);
+          resetFromBuffer(key, record + META_SIZE, keyLength, true);
+          resetFromBuffer(value, record + META_SIZE + keyLength, valLength, false);
+          writer.append(key, value);
+          record = buffer.getInt(record + NEXT_RECORD);
+        }
+        writer.close();
+        spillRec.putIndex(new TezIndexRecord(segmentStart,
+            writer.getRawLength(), writer.getCompressedLength()), i);
+        writer = null;
+      } finally {
+        if (writer != null) {
+          writer.close();
+        }
+      }
+    }
+    return spillRec;
+  }
+
+  /**
+   * Points the given DataInputBuffer at a region of the buffer. Heap buffers
+   * are used in place, while data from an off-heap buffer is copied out into a
+   * scratch array.
+   */
+  private void resetFromBuffer(DataInputBuffer target, int start, int length,
+      boolean isKey) {
+    if (buffer.hasArray()) {
+      target.reset(buffer.array(), buffer.arrayOffset() + start, length);
+      return;
+    }
+    byte[] scratch = isKey ? keyScratch : valScratch;
+    if (scratch.length < length) {
+      scratch = new byte[length];
+      if (isKey) {
+        keyScratch = scratch;
+      } else {
+        valScratch = scratch;
+      }
+    }
+    ByteBuffer region = buffer.duplicate();
+    region.position(start);
+    region.get(scratch, 0, length);
+    target.reset(scratch, 0, length);
+  }
+
+  private void spillBuffer() throws IOException {
+    final long size = bufferPosition + partitions * APPROX_HEADER_LENGTH;
+    final Path filename = mapOutputFile.getSpillFileForWrite(numSpills, size);
+    FSDataOutputStream out = rfs.create(filename);
+    try {
+      spillRecords.add(writePartitions(out));
+    } finally {
+      out.close();
+    }
+    long spillSize = rfs.getFileStatus(filename).getLen();
+    additionalSpillBytesWritten.increment(spillSize);
+    numAdditionalSpills.increment(1);
+    LOG.info("Finished spill " + numSpills + ", records: " + numRecordsInBuffer
+        + ", size: " + spillSize);
+    ++numSpills;
+    resetBuffer();
+  }
+
+  /**
+   * Handles the degenerate case where serialization fails to fit in the
+   * in-memory buffer, so the record must be spilled directly.
+   */
+  private void spillSingleRecord(Object key, Object value, int partition)
+      throws IOException {
+    final long size = bufferLength + partitions * APPROX_HEADER_LENGTH;
+    final Path filename = mapOutputFile.getSpillFileForWrite(numSpills, size);
+    FSDataOutputStream out = rfs.create(filename);
+    try {
+      final TezSpillRecord spillRec = new TezSpillRecord(partitions);
+      for (int i = 0; i < partitions; i++) {
+        Writer writer = null;
+        try {
+          long segmentStart = out.getPos();
+          writer = new Writer(conf, out, keyClass, valClass, codec,
+              spilledRecordsCounter, null);
+          if (i == partition) {
+            final long recordStart = out.getPos();
+            writer.append(key, value);
+            // Note that our map byte count will not be accurate with
+            // compression
+            mapOutputByteCounter.increment(out.getPos() - recordStart);
+            partitionStats[partition] += out.getPos() - recordStart;
+          }
+          writer.close();
+          spillRec.putIndex(new TezIndexRecord(segmentStart,
+              writer.getRawLength(), writer.getCompressedLength()), i);
+          writer = null;
+        } finally {
+          if (writer != null) {
+            writer.close();
+          }
+        }
+      }
+      spillRecords.add(spillRec);
+    } finally {
+      out.close();
+    }
+    mapOutputRecordCounter.increment(1);
+    additionalSpillBytesWritten.increment(rfs.getFileStatus(filename).getLen());
+    numAdditionalSpills.increment(1);
+    ++numSpills;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    LOG.info("Starting flush of unordered output. Spills: " + numSpills
+        + ", records in buffer: " + numRecordsInBuffer);
+    if (numSpills == 0) {
+      // Everything fits in memory. Write the final output directly.
+      final long size = bufferPosition + partitions * APPROX_HEADER_LENGTH;
+      final Path outputPath = mapOutputFile.getOutputFileForWrite(size);
+      final Path indexPath = mapOutputFile.getOutputIndexFileForWrite(
+          partitions * INDEX_RECORD_LENGTH);
+      FSDataOutputStream out = rfs.create(outputPath);
+      TezSpillRecord spillRec;
+      try {
+        spillRec = writePartitions(out);
+      } finally {
+        out.close();
+      }
+      spillRec.writeToFile(indexPath, conf);
+      updateFinalOutputCounters(spillRec, outputPath);
+      resetBuffer();
+      return;
+    }
+
+    if (numRecordsInBuffer > 0) {
+      spillBuffer();
+    }
+    concatenateSpills();
+  }
+
+  /**
+   * Builds the final output by appending the segments of each spill, in spill
+   * order, for each partition. No merge is required since the output is not
+   * sorted.
+   */
+  private void concatenateSpills() throws IOException {
+    final Path[] filename = new Path[numSpills];
+    long finalOutFileSize = partitions * APPROX_HEADER_LENGTH;
+    for (int i = 0; i < numSpills; i++) {
+      filename[i] = mapOutputFile.getSpillFile(i);
+      finalOutFileSize += rfs.getFileStatus(filename[i]).getLen();
+    }
+    final Path finalOutputFile = mapOutputFile.getOutputFileForWrite(finalOutFileSize);
+    final Path finalIndexFile = mapOutputFile.getOutputIndexFileForWrite(
+        partitions * INDEX_RECORD_LENGTH);
+
+    final TezSpillRecord finalSpillRec = new TezSpillRecord(partitions);
+    final DataInputBuffer key = new DataInputBuffer();
+    final DataInputBuffer value = new DataInputBuffer();
+    FSDataOutputStream finalOut = rfs.create(finalOutputFile, true, 4096);
+    try {
+      for (int part = 0; part < partitions; part++) {
+        long segmentStart = finalOut.getPos();
+        Writer writer = new Writer(conf, finalOut, keyClass, valClass, codec,
+            spilledRecordsCounter, null);
+        for (int i = 0; i < numSpills; i++) {
+          TezIndexRecord indexRecord = spillRecords.get(i).getIndex(part);
+          if (!indexRecord.hasData()) {
+            continue;
+          }
+          FSDataInputStream in = rfs.open(filename[i]);
+          in.seek(indexRecord.getStartOffset());
+          IFile.Reader reader = new IFile.Reader(in,
+              indexRecord.getPartLength(), codec, null,
+              additionalSpillBytesRead, ifileReadAhead, ifileReadAheadLength,
+              ifileBufferSize);
+          try {
+            while (reader.nextRawKey(key)) {
+              reader.nextRawValue(value);
+              writer.append(key, value);
+            }
+          } finally {
+            reader.close();
+          }
+        }
+        writer.close();
+        finalSpillRec.putIndex(new TezIndexRecord(segmentStart,
+            writer.getRawLength(), writer.getCompressedLength()), part);
+      }
+    } finally {
+      finalOut.close();
+    }
+    finalSpillRec.writeToFile(finalIndexFile, conf);
+    updateFinalOutputCounters(finalSpillRec, finalOutputFile);
+
+    for (int i = 0; i < numSpills; i++) {
+      rfs.delete(filename[i], true);
+    }
+  }
+
+  private void updateFinalOutputCounters(TezSpillRecord spillRec,
+      Path outputPath) throws IOException {
+    for (int i = 0; i < spillRec.size(); i++) {
+      outputBytesWithOverheadCounter.increment(spillRec.getIndex(i).getRawLength());
+    }
+    fileOutputByteCounter.increment(rfs.getFileStatus(outputPath).getLen());
+  }
+
+  @Override
+  public void close() throws IOException {
+  }
+
+  /**
+   * Stream used by the serializers to write into the buffer. Throws a
+   * {@link MapBufferTooSmallException} if the buffer does not have sufficient
+   * space for the write.
+   */
+  private class Buffer extends OutputStream {
+    private final byte[] scratch = new byte[1];
+
+    @Override
+    public void write(int v) throws IOException {
+      scratch[0] = (byte) v;
+      write(scratch, 0, 1);
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+      if (len > bufferLength - bufferPosition) {
+        throw new MapBufferTooSmallException(len + " bytes");
+      }
+      buffer.position(bufferPosition);
+      buffer.put(b, off, len);
+      bufferPosition += len;
+    }
+  }
+}
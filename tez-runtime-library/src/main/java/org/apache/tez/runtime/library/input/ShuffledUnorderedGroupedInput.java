@@ -0,0 +1,148 @@
+/**
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.tez.runtime.library.input;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezUtils;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.LogicalInput;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.api.KeyValuesReader;
+import org.apache.tez.runtime.library.common.Constants;
+import org.apache.tez.runtime.library.common.readers.HashGroupedKVReader;
+import org.apache.tez.runtime.library.common.readers.ShuffledUnorderedKVReader;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An unordered shuffled input which groups the records by key in a hash
+ * table, and provides a {@link KeyValuesReader} like
+ * {@link ShuffledMergedInput}, without the sources having to sort their
+ * output. The inputs are fetched like {@link ShuffledUnorderedKVInput}
+ * does, the memory for the table is asked for along with the memory for
+ * fetched inputs, see TEZ_RUNTIME_HASH_GROUPING_BUFFER_PERCENT in
+ * {@link TezJobConfig}.
+ *
+ * Keys are grouped when their serialized bytes are equal, and the keys are
+ * not returned in any particular order.
+ */
+public class ShuffledUnorderedGroupedInput implements LogicalInput {
+
+  private static final Log LOG = LogFactory.getLog(ShuffledUnorderedGroupedInput.class);
+
+  private final ShuffledUnorderedKVInput kvInput = new ShuffledUnorderedKVInput();
+  private Configuration conf;
+  private TezInputContext inputContext;
+  private int numInputs = -1;
+  @SuppressWarnings("rawtypes")
+  private HashGroupedKVReader groupedReader;
+
+  public ShuffledUnorderedGroupedInput() {
+  }
+
+  @Override
+  public synchronized List<Event> initialize(TezInputContext inputContext) throws Exception {
+    Preconditions.checkArgument(numInputs != -1, "Number of Inputs has not been set");
+    this.inputContext = inputContext;
+    this.conf = TezUtils.createConfFromUserPayload(inputContext.getUserPayload());
+    this.conf.setStrings(TezJobConfig.LOCAL_DIRS, inputContext.getWorkDirs());
+
+    if (numInputs > 0) {
+      float bufferPercent = conf.getFloat(
+          TezJobConfig.TEZ_RUNTIME_HASH_GROUPING_BUFFER_PERCENT,
+          TezJobConfig.DEFAULT_TEZ_RUNTIME_HASH_GROUPING_BUFFER_PERCENT);
+      if (bufferPercent > 1.0 || bufferPercent < 0.0) {
+        throw new IllegalArgumentException("Invalid value for "
+            + TezJobConfig.TEZ_RUNTIME_HASH_GROUPING_BUFFER_PERCENT + ": "
+            + bufferPercent);
+      }
+      long tableMemoryReq = (long) (conf.getLong(Constants.TEZ_RUNTIME_TASK_MEMORY,
+          Math.min(inputContext.getTotalMemoryAvailableToTask(), Integer.MAX_VALUE))
+          * bufferPercent);
+      kvInput.setAdditionalMemoryReq(tableMemoryReq);
+    }
+    return kvInput.initialize(inputContext);
+  }
+
+  @Override
+  public synchronized void start() throws IOException {
+    kvInput.start();
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public synchronized KeyValuesReader getReader() throws Exception {
+    if (numInputs == 0) {
+      return new KeyValuesReader() {
+        @Override
+        public boolean next() throws IOException {
+          return false;
+        }
+
+        @Override
+        public Object getCurrentKey() throws IOException {
+          throw new RuntimeException("No data available in Input");
+        }
+
+        @Override
+        public Iterable<Object> getCurrentValues() throws IOException {
+          throw new RuntimeException("No data available in Input");
+        }
+      };
+    }
+    if (groupedReader == null) {
+      // Checks that the input is started
+      ShuffledUnorderedKVReader kvReader =
+          (ShuffledUnorderedKVReader) kvInput.getReader();
+      long memoryLimit = kvInput.getAdditionalMemoryAssigned();
+      LOG.info("Grouping input from vertex: " + inputContext.getSourceVertexName()
+          + " in " + memoryLimit + " bytes");
+      groupedReader = new HashGroupedKVReader(kvReader, conf,
+          inputContext.getUniqueIdentifier(), memoryLimit,
+          inputContext.getCounters().findCounter(TaskCounter.SPILLED_RECORDS));
+    }
+    return groupedReader;
+  }
+
+  @Override
+  public void handleEvents(List<Event> inputEvents) throws IOException {
+    kvInput.handleEvents(inputEvents);
+  }
+
+  @Override
+  public synchronized List<Event> close() throws Exception {
+    if (groupedReader != null) {
+      groupedReader.close();
+    }
+    return kvInput.close();
+  }
+
+  @Override
+  public synchronized void setNumPhysicalInputs(int numInputs) {
+    this.numInputs = numInputs;
+    kvInput.setNumPhysicalInputs(numInputs);
+  }
+}
@@ -69,6 +69,12 @@ public class ShuffledUnorderedKVInput implements LogicalInput {
   private SimpleFetchedInputAllocator inputManager;
   private ShuffleEventHandler inputEventHandler;
 
+  // Memory asked for along with the fetched inputs by a wrapping input,
+  // since an input can only ask for memory once.
+  private long additionalMemoryReq;
+  private long additionalMemoryAssigned;
+  private long initialMemoryReq;
+
   public ShuffledUnorderedKVInput() {
   }
 
@@ -86,9 +92,9 @@ public class ShuffledUnorderedKVInput implements LogicalInput {
           + inputContext.getSourceVertexName());
       return Collections.emptyList();
     } else {
-      long initalMemReq = getInitialMemoryReq();
+      initialMemoryReq = getInitialMemoryReq() + additionalMemoryReq;
       memoryUpdateCallbackHandler = new MemoryUpdateCallbackHandler();
-      this.inputContext.requestInitialMemory(initalMemReq, memoryUpdateCallbackHandler);
+      this.inputContext.requestInitialMemory(initialMemoryReq, memoryUpdateCallbackHandler);
     }
 
     this.conf.setStrings(TezJobConfig.LOCAL_DIRS, inputContext.getWorkDirs());
@@ -123,9 +129,17 @@ public class ShuffledUnorderedKVInput implements LogicalInput {
       ifileBufferSize = conf.getInt("io.file.buffer.size",
           TezJobConfig.TEZ_RUNTIME_IFILE_BUFFER_SIZE_DEFAULT);
 
+      long memoryAssigned = memoryUpdateCallbackHandler.getMemoryAssigned();
+      if (additionalMemoryReq > 0) {
+        // Scaled like the request was
+        additionalMemoryAssigned = (long) ((double) memoryAssigned
+            * additionalMemoryReq / initialMemoryReq);
+        memoryAssigned -= additionalMemoryAssigned;
+      }
       this.inputManager = new SimpleFetchedInputAllocator(inputContext.getUniqueIdentifier(), conf,
           inputContext.getTotalMemoryAvailableToTask(),
-          memoryUpdateCallbackHandler.getMemoryAssigned());
+          memoryAssigned,
+          inputContext.getCounters());
 
       this.shuffleManager = new ShuffleManager(inputContext, conf, numInputs, ifileBufferSize,
           ifileReadAhead, ifileReadAheadLength, codec, inputManager);
@@ -206,6 +220,22 @@ public class ShuffledUnorderedKVInput implements LogicalInput {
     this.numInputs = numInputs;
   }
 
+  /**
+   * Asks for memory in addition to the memory for fetched inputs, for an
+   * input which reads this one. Must be called before initialize.
+   */
+  synchronized void setAdditionalMemoryReq(long additionalMemoryReq) {
+    this.additionalMemoryReq = additionalMemoryReq;
+  }
+
+  /**
+   * @return the part of the assigned memory for the additional request,
+   *         available once the input is started
+   */
+  synchronized long getAdditionalMemoryAssigned() {
+    return additionalMemoryAssigned;
+  }
+
   private long getInitialMemoryReq() {
     return SimpleFetchedInputAllocator.getInitialMemoryReq(conf,
         inputContext.getTotalMemoryAvailableToTask());
@@ -25,14 +25,22 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
 import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutput;
 
 public class LocalOnFileSorterOutput extends OnFileSortedOutput {
 
   private static final Log LOG = LogFactory.getLog(LocalOnFileSorterOutput.class);
 
-
+  @Override
+  protected ExternalSorter createSorter() throws Exception {
+    // The output is read from the final output file on close.
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED, false);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORTER_FINAL_MERGE_ENABLED, true);
+    return super.createSorter();
+  }
 
   @Override
   public List<Event> close() throws IOException {
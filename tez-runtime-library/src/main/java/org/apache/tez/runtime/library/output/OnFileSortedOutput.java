@@ -18,8 +18,6 @@
 package org.apache.tez.runtime.library.output;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -28,7 +26,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.yarn.api.ApplicationConstants;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezUtils;
 import org.apache.tez.common.counters.TaskCounter;
@@ -39,9 +36,10 @@ import org.apache.tez.runtime.api.events.CompositeDataMovementEvent;
 import org.apache.tez.runtime.api.events.VertexManagerEvent;
 import org.apache.tez.runtime.library.api.KeyValueWriter;
 import org.apache.tez.runtime.library.common.MemoryUpdateCallbackHandler;
+import org.apache.tez.runtime.library.common.combine.HashPreAggregator;
+import org.apache.tez.runtime.library.common.combine.PreAggregator;
 import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
 import org.apache.tez.runtime.library.common.sort.impl.PipelinedSorter;
-import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
 import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
 import org.apache.tez.runtime.library.common.sort.impl.dflt.DefaultSorter;
 import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
@@ -50,7 +48,6 @@ import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.VertexMan
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.protobuf.ByteString;
 
 /**
  * <code>OnFileSortedOutput</code> is an {@link LogicalOutput} which sorts key/value pairs 
@@ -61,13 +58,19 @@ public class OnFileSortedOutput implements LogicalOutput {
   private static final Log LOG = LogFactory.getLog(OnFileSortedOutput.class);
 
   protected ExternalSorter sorter;
+  protected HashPreAggregator preAggregator;
   protected Configuration conf;
   protected int numOutputs;
   protected TezOutputContext outputContext;
   protected MemoryUpdateCallbackHandler memoryUpdateCallbackHandler;
+  // parts of the memory request for the sorter and the pre-aggregator
+  private long sorterMemoryRequest;
+  private long preAggregatorMemoryRequest;
   private long startTime;
   private long endTime;
   private boolean sendEmptyPartitionDetails;
+  private boolean reportPartitionStats;
+  private boolean pipelinedShuffle;
   private final AtomicBoolean isStarted = new AtomicBoolean(false);
 
   @Override
@@ -81,13 +84,22 @@ public class OnFileSortedOutput implements LogicalOutput {
     // TezMerger, etc.
     this.conf.setStrings(TezJobConfig.LOCAL_DIRS, outputContext.getWorkDirs());
     this.memoryUpdateCallbackHandler = new MemoryUpdateCallbackHandler();
+    // An output may only make one request, so it covers the pre-aggregation
+    // table as well.
+    sorterMemoryRequest = ExternalSorter.getInitialMemoryRequirement(conf,
+        outputContext.getTotalMemoryAvailableToTask());
+    preAggregatorMemoryRequest =
+        HashPreAggregator.getInitialMemoryRequirement(conf);
     outputContext.requestInitialMemory(
-        ExternalSorter.getInitialMemoryRequirement(conf,
-            outputContext.getTotalMemoryAvailableToTask()), memoryUpdateCallbackHandler);
+        sorterMemoryRequest + preAggregatorMemoryRequest,
+        memoryUpdateCallbackHandler);
 
     sendEmptyPartitionDetails = this.conf.getBoolean(
         TezJobConfig.TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED,
         TezJobConfig.TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED_DEFAULT);
+    reportPartitionStats = this.conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_REPORT_PARTITION_STATS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_REPORT_PARTITION_STATS);
     return Collections.emptyList();
   }
 
@@ -95,21 +107,68 @@ public class OnFileSortedOutput implements LogicalOutput {
   public synchronized void start() throws Exception {
     if (!isStarted.get()) {
       memoryUpdateCallbackHandler.validateUpdateReceived();
-      if (this.conf.getInt(TezJobConfig.TEZ_RUNTIME_SORT_THREADS,
-          TezJobConfig.DEFAULT_TEZ_RUNTIME_SORT_THREADS) > 1) {
-        sorter = new PipelinedSorter(outputContext, conf, numOutputs,
-            memoryUpdateCallbackHandler.getMemoryAssigned());
-      } else {
-        sorter = new DefaultSorter(outputContext, conf, numOutputs,
-            memoryUpdateCallbackHandler.getMemoryAssigned());
+      sorter = createSorter();
+      PreAggregator aggregator = HashPreAggregator.createPreAggregator(conf);
+      if (aggregator != null) {
+        preAggregator = new HashPreAggregator(outputContext, conf, sorter,
+            aggregator, getPreAggregatorMemory());
       }
       isStarted.set(true);
     }
   }
 
+  /**
+   * @return the part of the memory assigned which is given to the sorter.
+   *         The request is scaled down as a whole, so the sorter and the
+   *         pre-aggregator keep the proportions they asked for.
+   */
+  protected long getSorterMemory() {
+    return memoryUpdateCallbackHandler.getMemoryAssigned()
+        - getPreAggregatorMemory();
+  }
+
+  private long getPreAggregatorMemory() {
+    long requested = sorterMemoryRequest + preAggregatorMemoryRequest;
+    if (requested == 0) {
+      return 0;
+    }
+    return (long) ((double) memoryUpdateCallbackHandler.getMemoryAssigned()
+        * preAggregatorMemoryRequest / requested);
+  }
+
+  protected ExternalSorter createSorter() throws Exception {
+    boolean pipelinedShuffleEnabled = conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED);
+    // Of the sorters, only the PipelinedSorter can work with an off-heap
+    // buffer.
+    if (ExternalSorter.isOffHeapBufferEnabled(conf)
+        || this.conf.getInt(TezJobConfig.TEZ_RUNTIME_SORT_THREADS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SORT_THREADS) > 1) {
+      if (pipelinedShuffleEnabled) {
+        LOG.warn(TezJobConfig.TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED
+            + " is not supported by the PipelinedSorter, ignoring it");
+      }
+      return new PipelinedSorter(outputContext, conf, numOutputs,
+          getSorterMemory());
+    } else {
+      pipelinedShuffle = pipelinedShuffleEnabled;
+      return new DefaultSorter(outputContext, conf, numOutputs,
+          getSorterMemory());
+    }
+  }
+
   @Override
   public synchronized KeyValueWriter getWriter() throws IOException {
     Preconditions.checkState(isStarted.get(), "Cannot get writer before starting the Output");
+    if (preAggregator != null) {
+      return new KeyValueWriter() {
+        @Override
+        public void write(Object key, Object value) throws IOException {
+          preAggregator.write(key, value);
+        }
+      };
+    }
     return new KeyValueWriter() {
       @Override
       public void write(Object key, Object value) throws IOException {
@@ -131,6 +190,10 @@ public class OnFileSortedOutput implements LogicalOutput {
   @Override
   public synchronized List<Event> close() throws IOException {
     if (sorter != null) {
+      if (preAggregator != null) {
+        preAggregator.flush();
+        preAggregator.close();
+      }
       sorter.flush();
       sorter.close();
       this.endTime = System.nanoTime();
@@ -143,53 +206,47 @@ public class OnFileSortedOutput implements LogicalOutput {
   }
   
   protected List<Event> generateEventsOnClose() throws IOException {
-    String host = System.getenv(ApplicationConstants.Environment.NM_HOST
-        .toString());
-    ByteBuffer shuffleMetadata = outputContext
-        .getServiceProviderMetaData(ShuffleUtils.SHUFFLE_HANDLER_SERVICE_ID);
-    int shufflePort = ShuffleUtils.deserializeShuffleProviderMetaData(shuffleMetadata);
-
-    DataMovementEventPayloadProto.Builder payloadBuilder = DataMovementEventPayloadProto
-        .newBuilder();
-
-    if (sendEmptyPartitionDetails) {
-      Path indexFile = sorter.getMapOutput().getOutputIndexFile();
-      TezSpillRecord spillRecord = new TezSpillRecord(indexFile, conf);
-      BitSet emptyPartitionDetails = new BitSet();
-      int emptyPartitions = 0;
-      for(int i=0;i<spillRecord.size();i++) {
-        TezIndexRecord indexRecord = spillRecord.getIndex(i);
-        if (!indexRecord.hasData()) {
-          emptyPartitionDetails.set(i);
-          emptyPartitions++;
-        }
-      }
-      if (emptyPartitions > 0) {
-        ByteString emptyPartitionsBytesString =
-            TezUtils.compressByteArrayToByteString(TezUtils.toByteArray(emptyPartitionDetails));
-        payloadBuilder.setEmptyPartitions(emptyPartitionsBytesString);
-        LOG.info("EmptyPartition bitsetSize=" + emptyPartitionDetails.cardinality() + ", numOutputs="
-                + numOutputs + ", emptyPartitions=" + emptyPartitions
-              + ", compressedSize=" + emptyPartitionsBytesString.size());
-      }
-    }
-    payloadBuilder.setHost(host);
-    payloadBuilder.setPort(shufflePort);
-    payloadBuilder.setPathComponent(outputContext.getUniqueIdentifier());
-    payloadBuilder.setRunDuration((int) ((endTime - startTime) / 1000));
-    DataMovementEventPayloadProto payloadProto = payloadBuilder.build();
-    byte[] payloadBytes = payloadProto.toByteArray();
-
     long outputSize = outputContext.getCounters()
         .findCounter(TaskCounter.OUTPUT_BYTES).getValue();
     VertexManagerEventPayloadProto.Builder vmBuilder = VertexManagerEventPayloadProto
         .newBuilder();
     vmBuilder.setOutputSize(outputSize);
+    if (reportPartitionStats) {
+      vmBuilder.setPartitionStats(
+          ShuffleUtils.encodePartitionStats(sorter.getPartitionStats()));
+    }
     VertexManagerEvent vmEvent = new VertexManagerEvent(
         outputContext.getDestinationVertexName(), vmBuilder.build().toByteArray());    
 
     List<Event> events = Lists.newArrayListWithCapacity(numOutputs+1);
     events.add(vmEvent);
+    if (pipelinedShuffle) {
+      // The sorter has already sent an event for each spill.
+      return events;
+    }
+
+    DataMovementEventPayloadProto.Builder payloadBuilder;
+    if (sorter instanceof DefaultSorter
+        && ((DefaultSorter) sorter).isFinalMergeSkipped()) {
+      // Consumers fetch each spill on its own.
+      DefaultSorter defaultSorter = (DefaultSorter) sorter;
+      payloadBuilder = ShuffleUtils.createDataMovementEventPayload(
+          outputContext, outputContext.getUniqueIdentifier(),
+          sendEmptyPartitionDetails ? defaultSorter.getEmptyPartitions() : null,
+          numOutputs, LOG);
+      payloadBuilder.setNumSpills(defaultSorter.getNumSpills());
+    } else {
+      TezSpillRecord spillRecord = null;
+      if (sendEmptyPartitionDetails) {
+        Path indexFile = sorter.getMapOutput().getOutputIndexFile();
+        spillRecord = new TezSpillRecord(indexFile, conf);
+      }
+      payloadBuilder = ShuffleUtils.createDataMovementEventPayload(outputContext,
+          outputContext.getUniqueIdentifier(), spillRecord, LOG);
+    }
+    payloadBuilder.setRunDuration((int) ((endTime - startTime) / 1000));
+    DataMovementEventPayloadProto payloadProto = payloadBuilder.build();
+    byte[] payloadBytes = payloadProto.toByteArray();
 
     CompositeDataMovementEvent csdme = new CompositeDataMovementEvent(0, numOutputs, payloadBytes);
     events.add(csdme);
@@ -27,7 +27,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.classification.InterfaceAudience.Private;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.yarn.api.ApplicationConstants;
 import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.common.TezUtils;
 import org.apache.tez.dag.api.TezUncheckedException;
@@ -159,7 +158,7 @@ public class OnFileUnorderedKVOutput implements LogicalOutput {
   @VisibleForTesting
   @Private
   String getHost() {
-    return System.getenv(ApplicationConstants.Environment.NM_HOST.toString());
+    return ShuffleUtils.getNodeHost();
   }
 
 }
@@ -19,17 +19,21 @@
 package org.apache.tez.runtime.library.output;
 
 import org.apache.tez.runtime.api.LogicalOutput;
+import org.apache.tez.runtime.library.common.writers.UnorderedPartitionedKVWriter;
 
 /**
  * <code>OnFileUnorderedPartitionedKVOutput</code> is a {@link LogicalOutput}
  * which can be used to write Key-Value pairs. The key-value pairs are written
  * to the correct partition based on the configured Partitioner.
  * 
- * This currently acts as a usable placeholder for writing unordered output (the data is sorted,
- * which should be functionally correct since there's no guarantees on order without a sort).
- * TEZ-661 to add a proper implementation.
- * 
+ * The data within a partition is not sorted. The output is written in the same
+ * format as {@link OnFileSortedOutput}, and can be consumed by the same inputs.
  */
 public class OnFileUnorderedPartitionedKVOutput extends OnFileSortedOutput {
 
-}
\ No newline at end of file
+  @Override
+  protected UnorderedPartitionedKVWriter createSorter() throws Exception {
+    return new UnorderedPartitionedKVWriter(outputContext, conf, numOutputs,
+        getSorterMemory());
+  }
+}
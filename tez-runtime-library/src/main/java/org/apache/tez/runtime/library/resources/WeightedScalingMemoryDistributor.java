@@ -35,6 +35,7 @@ import org.apache.tez.runtime.library.input.ShuffledMergedInput;
 import org.apache.tez.runtime.library.input.ShuffledMergedInputLegacy;
 import org.apache.tez.runtime.library.input.ShuffledUnorderedKVInput;
 import org.apache.tez.runtime.library.output.OnFileSortedOutput;
+import org.apache.tez.runtime.library.output.OnFileUnorderedPartitionedKVOutput;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -113,9 +114,9 @@ public class WeightedScalingMemoryDistributor implements InitialMemoryAllocator
     double reserveFraction = computeReservedFraction(numRequests);
 
     Preconditions.checkState(reserveFraction >= 0.0d && reserveFraction <= 1.0d);
+    long totalJvmMem = availableForAllocation;
     availableForAllocation = (long) (availableForAllocation - (reserveFraction * availableForAllocation));
 
-    long totalJvmMem = Runtime.getRuntime().maxMemory();
     double ratio = totalRequested / (double) totalJvmMem;
 
     LOG.info("Scaling Requests. NumRequests: " + numRequests + ", numScaledRequests: "
@@ -180,6 +181,8 @@ public class WeightedScalingMemoryDistributor implements InitialMemoryAllocator
     RequestType requestType;
     if (className.equals(OnFileSortedOutput.class.getName())) {
       requestType = RequestType.SORTED_OUTPUT;
+    } else if (className.equals(OnFileUnorderedPartitionedKVOutput.class.getName())) {
+      requestType = RequestType.PARTITIONED_UNSORTED_OUTPUT;
     } else if (className.equals(ShuffledMergedInput.class.getName())
         || className.equals(ShuffledMergedInputLegacy.class.getName())) {
       requestType = RequestType.SORTED_MERGED_INPUT;
@@ -0,0 +1,973 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * Fetches data from the ShuffleHandler over a small pool of non-blocking
+ * event-loop threads, instead of holding a thread for the duration of every
+ * fetch. Connections are kept open after a fetch and reused for the next fetch
+ * from the same host when the ShuffleHandler supports keep-alive, i.e. it
+ * replies with an HTTP/1.1 response whose length is known.
+ * <p/>
+ * A single client is shared by all the shuffle inputs in the JVM. Obtain it
+ * with {@link #acquire(Configuration)} and give it back with
+ * {@link #release()}. All fetches from a host are handled by the same event
+ * loop, which owns the idle connections to that host. The callbacks of a
+ * {@link FetchListener} are invoked from the event loop, and should not block
+ * for long.
+ */
+@Private
+public class AsyncShuffleClient {
+
+  private static final Log LOG = LogFactory.getLog(AsyncShuffleClient.class);
+
+  private static final long SELECT_TIMEOUT_MS = 1000;
+  private static final int MIN_READ_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_RESPONSE_HEAD_LENGTH = 64 * 1024;
+  private static final int MAX_LINE_LENGTH = 8 * 1024;
+  private static final int MAX_SHUFFLE_HEADER_LENGTH = 4 * 1024;
+
+  /** Asks the ShuffleHandler to keep the connection open after the response */
+  private static final String KEEP_ALIVE_PARAM = "keepAlive=true";
+
+  private static AsyncShuffleClient instance = null;
+  private static int refCount = 0;
+
+  /**
+   * The stage a fetch had reached when it failed.
+   */
+  public static enum FetchPhase {
+    /** Connecting to the host */
+    CONNECT,
+    /** Sending the request, or reading and validating the response headers */
+    RESPONSE,
+    /** Reading the shuffle data */
+    BODY
+  }
+
+  /**
+   * Receives the shuffle data of a single fetch. The response body consists
+   * of a {@link ShuffleHeader} followed by
+   * {@link ShuffleHeader#getCompressedLength()} bytes for every output
+   * served. Exactly one of {@link #onFinished()} and
+   * {@link #onFailure(IOException, FetchPhase)} is invoked for every fetch.
+   */
+  public interface FetchListener {
+
+    /**
+     * Invoked once the header of the next output has been read.
+     *
+     * @return false to stop reading the response, e.g. if the output was not
+     *         expected or there is no room for it yet. The connection is
+     *         closed, and {@link #onFinished()} follows.
+     */
+    boolean onHeader(ShuffleHeader header) throws IOException;
+
+    /**
+     * Invoked with the next bytes of the current output. The listener must
+     * consume all the remaining bytes of <code>data</code>, which is only
+     * valid during the call.
+     */
+    void onData(ByteBuffer data) throws IOException;
+
+    /**
+     * Invoked once all the bytes of the current output have been passed to
+     * {@link #onData(ByteBuffer)}.
+     *
+     * @return true if further outputs are expected in the response
+     */
+    boolean onOutputComplete() throws IOException;
+
+    /**
+     * Invoked when the fetch ended without an error.
+     */
+    void onFinished();
+
+    /**
+     * Invoked when the fetch failed, including any exception thrown by the
+     * other callbacks.
+     */
+    void onFailure(IOException cause, FetchPhase phase);
+  }
+
+  private final EventLoop[] eventLoops;
+  private final int maxIdleConnectionsPerHost;
+  private final long keepAliveTimeout;
+  private final int readBufferSize;
+
+  private final AtomicLong connectionsOpened = new AtomicLong(0);
+  private final AtomicLong connectionsReused = new AtomicLong(0);
+
+  private volatile boolean stopped = false;
+
+  /**
+   * Returns the client shared within the JVM, creating it if required. The
+   * configuration of the first caller is used until the client is released
+   * by all its users.
+   */
+  public static synchronized AsyncShuffleClient acquire(Configuration conf)
+      throws IOException {
+    if (instance == null) {
+      instance = new AsyncShuffleClient(conf);
+    }
+    refCount++;
+    return instance;
+  }
+
+  /**
+   * Gives back a client obtained from {@link #acquire(Configuration)}. The
+   * client is stopped once all users have released it, failing the fetches
+   * still in progress.
+   */
+  public void release() {
+    synchronized (AsyncShuffleClient.class) {
+      Preconditions.checkState(instance == this && refCount > 0,
+          "Client has already been released");
+      if (--refCount > 0) {
+        return;
+      }
+      instance = null;
+    }
+    stop();
+  }
+
+  @VisibleForTesting
+  AsyncShuffleClient(Configuration conf) throws IOException {
+    int numThreads = conf.getInt(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_THREADS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_THREADS);
+    Preconditions.checkArgument(numThreads > 0,
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_THREADS
+            + " must be positive");
+    this.maxIdleConnectionsPerHost = conf.getInt(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_MAX_CONNECTIONS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_MAX_CONNECTIONS);
+    this.keepAliveTimeout = conf.getInt(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_TIMEOUT_MS,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_KEEP_ALIVE_TIMEOUT_MS);
+    this.readBufferSize = Math.max(MIN_READ_BUFFER_SIZE, conf.getInt(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_BUFFER_SIZE,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_BUFFER_SIZE));
+
+    this.eventLoops = new EventLoop[numThreads];
+    try {
+      for (int i = 0; i < numThreads; i++) {
+        eventLoops[i] = new EventLoop(i);
+      }
+    } catch (IOException e) {
+      for (EventLoop eventLoop : eventLoops) {
+        if (eventLoop != null) {
+          IOUtils.cleanup(LOG, eventLoop.selector);
+        }
+      }
+      throw e;
+    }
+    for (EventLoop eventLoop : eventLoops) {
+      eventLoop.start();
+    }
+    LOG.info("Started " + numThreads + " shuffle event loops"
+        + ", maxIdleConnectionsPerHost=" + maxIdleConnectionsPerHost
+        + ", keepAliveTimeout=" + keepAliveTimeout);
+  }
+
+  /**
+   * Fetches <code>url</code>, which must be a ShuffleHandler URL for
+   * <code>host</code> and <code>port</code>, and hands the response to
+   * <code>listener</code>. Returns without waiting for the fetch.
+   *
+   * @param connectionTimeout connection timeout in milliseconds, 0 for none
+   * @param readTimeout maximum time in milliseconds to wait for data, 0 for
+   *          none
+   */
+  public void fetch(String host, int port, String url,
+      SecretKey shuffleSecret, int connectionTimeout, int readTimeout,
+      FetchListener listener) {
+    if (stopped) {
+      listener.onFailure(new IOException("Shuffle client has been stopped"),
+          FetchPhase.CONNECT);
+      return;
+    }
+    Request request;
+    try {
+      request = new Request(host, port, url, shuffleSecret,
+          connectionTimeout, readTimeout, listener);
+    } catch (IOException e) {
+      listener.onFailure(e, FetchPhase.CONNECT);
+      return;
+    }
+    int index = (request.hostKey.hashCode() & Integer.MAX_VALUE)
+        % eventLoops.length;
+    eventLoops[index].submit(request);
+  }
+
+  @VisibleForTesting
+  void stop() {
+    stopped = true;
+    for (EventLoop eventLoop : eventLoops) {
+      eventLoop.selector.wakeup();
+    }
+    for (EventLoop eventLoop : eventLoops) {
+      try {
+        eventLoop.join(SELECT_TIMEOUT_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    LOG.info("Stopped shuffle event loops, connectionsOpened="
+        + connectionsOpened.get() + ", connectionsReused="
+        + connectionsReused.get());
+  }
+
+  @VisibleForTesting
+  long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  @VisibleForTesting
+  long getConnectionsReused() {
+    return connectionsReused.get();
+  }
+
+  private void notifyFailure(FetchListener listener, IOException cause,
+      FetchPhase phase) {
+    try {
+      listener.onFailure(cause, phase);
+    } catch (Throwable t) {
+      LOG.error("Error while reporting fetch failure", t);
+    }
+  }
+
+  private class Request {
+    private final String hostKey;
+    private final InetSocketAddress address;
+    private final URL url;
+    private final String encHash;
+    private final SecretKey shuffleSecret;
+    private final byte[] requestBytes;
+    private final int connectionTimeout;
+    private final int readTimeout;
+    private final FetchListener listener;
+    private boolean retried = false;
+
+    Request(String host, int port, String url, SecretKey shuffleSecret,
+        int connectionTimeout, int readTimeout, FetchListener listener)
+        throws IOException {
+      this.hostKey = host + ":" + port;
+      this.url = new URL(maxIdleConnectionsPerHost > 0
+          ? url + "&" + KEEP_ALIVE_PARAM : url);
+      this.shuffleSecret = shuffleSecret;
+      this.connectionTimeout = connectionTimeout;
+      this.readTimeout = readTimeout;
+      this.listener = listener;
+
+      // generate hash of the url
+      String msgToEncode = SecureShuffleUtils.buildMsgFrom(this.url);
+      this.encHash = SecureShuffleUtils.hashFromString(msgToEncode,
+          shuffleSecret);
+
+      this.address = new InetSocketAddress(host, port);
+      if (address.isUnresolved()) {
+        throw new UnknownHostException(host);
+      }
+
+      StringBuilder sb = new StringBuilder();
+      sb.append("GET ").append(this.url.getFile()).append(" HTTP/1.1\r\n");
+      sb.append("Host: ").append(hostKey).append("\r\n");
+      sb.append(SecureShuffleUtils.HTTP_HEADER_URL_HASH).append(": ")
+          .append(encHash).append("\r\n");
+      sb.append(ShuffleHeader.HTTP_HEADER_NAME).append(": ")
+          .append(ShuffleHeader.DEFAULT_HTTP_HEADER_NAME).append("\r\n");
+      sb.append(ShuffleHeader.HTTP_HEADER_VERSION).append(": ")
+          .append(ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION).append("\r\n");
+      sb.append("Connection: ")
+          .append(maxIdleConnectionsPerHost > 0 ? "keep-alive" : "close")
+          .append("\r\n");
+      sb.append("\r\n");
+      this.requestBytes = sb.toString().getBytes(Charsets.ISO_8859_1);
+    }
+  }
+
+  private class EventLoop extends Thread {
+
+    private final Selector selector;
+    private final Queue<Request> newRequests =
+        new ConcurrentLinkedQueue<Request>();
+    // Only accessed from the event loop thread.
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private final Map<String, LinkedList<Connection>> idleConnections =
+        new HashMap<String, LinkedList<Connection>>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(readBufferSize);
+    private long lastTimeoutCheck = System.currentTimeMillis();
+    private volatile boolean terminated = false;
+
+    EventLoop(int index) throws IOException {
+      super("ShuffleEventLoop #" + index);
+      setDaemon(true);
+      this.selector = Selector.open();
+    }
+
+    void submit(Request request) {
+      newRequests.add(request);
+      if (terminated) {
+        failNewRequests();
+      } else {
+        selector.wakeup();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!stopped) {
+          selector.select(SELECT_TIMEOUT_MS);
+          Request request;
+          while ((request = newRequests.poll()) != null) {
+            startFetch(request);
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            ((Connection) key.attachment()).handleEvent(key);
+          }
+          long now = System.currentTimeMillis();
+          if (now - lastTimeoutCheck >= SELECT_TIMEOUT_MS) {
+            lastTimeoutCheck = now;
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+              connection.checkTimeout(now);
+            }
+          }
+        }
+      } catch (Throwable t) {
+        LOG.error(getName() + " failed", t);
+      } finally {
+        terminated = true;
+        IOException stoppedException =
+            new IOException("Shuffle client has been stopped");
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+          connection.fail(stoppedException);
+        }
+        failNewRequests();
+        IOUtils.cleanup(LOG, selector);
+      }
+    }
+
+    private void failNewRequests() {
+      Request request;
+      while ((request = newRequests.poll()) != null) {
+        notifyFailure(request.listener,
+            new IOException("Shuffle client has been stopped"),
+            FetchPhase.CONNECT);
+      }
+    }
+
+    private void startFetch(Request request) {
+      LinkedList<Connection> idle = idleConnections.get(request.hostKey);
+      while (idle != null && !idle.isEmpty()) {
+        Connection connection = idle.removeFirst();
+        if (connection.channel.isOpen()) {
+          connectionsReused.incrementAndGet();
+          connection.send(request, true);
+          return;
+        }
+      }
+      openConnection(request);
+    }
+
+    private void openConnection(Request request) {
+      SocketChannel channel = null;
+      Connection connection;
+      try {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        connection = new Connection(this, request.hostKey, channel);
+        connection.key = channel.register(selector, 0, connection);
+      } catch (IOException e) {
+        IOUtils.cleanup(LOG, channel);
+        notifyFailure(request.listener, e, FetchPhase.CONNECT);
+        return;
+      }
+      connections.add(connection);
+      connectionsOpened.incrementAndGet();
+      connection.connect(request);
+    }
+
+    private void addIdleConnection(Connection connection) {
+      LinkedList<Connection> idle = idleConnections.get(connection.hostKey);
+      if (idle == null) {
+        idle = new LinkedList<Connection>();
+        idleConnections.put(connection.hostKey, idle);
+      }
+      if (idle.size() >= maxIdleConnectionsPerHost) {
+        connection.close();
+      } else {
+        idle.addFirst(connection);
+      }
+    }
+
+    private void removeIdleConnection(Connection connection) {
+      LinkedList<Connection> idle = idleConnections.get(connection.hostKey);
+      if (idle != null) {
+        idle.remove(connection);
+        if (idle.isEmpty()) {
+          idleConnections.remove(connection.hostKey);
+        }
+      }
+    }
+  }
+
+  /**
+   * A connection to a host, serving one request at a time. Only accessed from
+   * the event loop owning it.
+   */
+  private class Connection {
+
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_DATA = 1;
+    private static final int CHUNK_DATA_END = 2;
+    private static final int CHUNK_TRAILER = 3;
+
+    private final EventLoop eventLoop;
+    private final String hostKey;
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    // null while the connection is idle
+    private Request request;
+    private boolean reused;
+    private FetchPhase phase;
+    private long phaseStartTime;
+    private long lastActivityTime;
+    private ByteBuffer out;
+    private boolean responseStarted;
+    private boolean listenerNotified;
+
+    // Response framing
+    private final DataOutputBuffer head = new DataOutputBuffer();
+    private final DataOutputBuffer line = new DataOutputBuffer();
+    private boolean keepAlive;
+    private boolean chunked;
+    private int chunkState;
+    private long chunkRemaining;
+    // -1 if the body is delimited by the end of the connection, or chunked
+    private long contentRemaining;
+    private boolean bodyComplete;
+
+    // Shuffle data
+    private final DataOutputBuffer shuffleHeaderBytes = new DataOutputBuffer();
+    private final DataInputBuffer shuffleHeaderIn = new DataInputBuffer();
+    private boolean inOutput;
+    private long outputRemaining;
+    private boolean shuffleDone;
+
+    Connection(EventLoop eventLoop, String hostKey, SocketChannel channel) {
+      this.eventLoop = eventLoop;
+      this.hostKey = hostKey;
+      this.channel = channel;
+    }
+
+    private void begin(Request request, boolean reused) {
+      this.request = request;
+      this.reused = reused;
+      this.phaseStartTime = System.currentTimeMillis();
+      this.lastActivityTime = phaseStartTime;
+      this.responseStarted = false;
+      this.listenerNotified = false;
+      head.reset();
+      line.reset();
+      keepAlive = false;
+      chunked = false;
+      chunkState = CHUNK_SIZE;
+      chunkRemaining = 0;
+      contentRemaining = -1;
+      bodyComplete = false;
+      shuffleHeaderBytes.reset();
+      inOutput = false;
+      outputRemaining = 0;
+      shuffleDone = false;
+    }
+
+    void connect(Request request) {
+      begin(request, false);
+      phase = FetchPhase.CONNECT;
+      try {
+        if (channel.connect(request.address)) {
+          send(request, false);
+        } else {
+          key.interestOps(SelectionKey.OP_CONNECT);
+        }
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    void send(Request request, boolean reused) {
+      if (reused) {
+        begin(request, true);
+      }
+      phase = FetchPhase.RESPONSE;
+      phaseStartTime = System.currentTimeMillis();
+      out = ByteBuffer.wrap(request.requestBytes);
+      try {
+        write();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    void handleEvent(SelectionKey key) {
+      try {
+        if (!key.isValid()) {
+          return;
+        }
+        if (key.isConnectable()) {
+          if (channel.finishConnect()) {
+            send(request, false);
+          }
+          return;
+        }
+        if (key.isWritable()) {
+          write();
+        }
+        if (key.isValid() && key.isReadable()) {
+          read();
+        }
+      } catch (IOException e) {
+        fail(e);
+      } catch (RuntimeException e) {
+        fail(new IOException(e));
+      }
+    }
+
+    private void write() throws IOException {
+      channel.write(out);
+      lastActivityTime = System.currentTimeMillis();
+      if (out.hasRemaining()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+      } else {
+        out = null;
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    private void read() throws IOException {
+      ByteBuffer data = eventLoop.readBuffer;
+      data.clear();
+      int n = channel.read(data);
+      if (n < 0) {
+        onEndOfStream();
+        return;
+      }
+      if (n == 0) {
+        return;
+      }
+      lastActivityTime = System.currentTimeMillis();
+      if (request == null) {
+        // Nothing is expected on an idle connection.
+        close();
+        return;
+      }
+      responseStarted = true;
+      data.flip();
+      process(data);
+    }
+
+    private void process(ByteBuffer data) throws IOException {
+      if (phase == FetchPhase.RESPONSE) {
+        if (!readResponseHead(data)) {
+          return;
+        }
+      }
+      while (data.hasRemaining() && !bodyComplete) {
+        ByteBuffer body = chunked ? nextChunk(data) : nextContent(data);
+        if (body != null) {
+          processBody(body);
+        }
+      }
+      if (shuffleDone && !listenerNotified) {
+        listenerNotified = true;
+        try {
+          request.listener.onFinished();
+        } catch (Throwable t) {
+          LOG.error("Error while completing fetch from " + hostKey, t);
+        }
+      }
+      if (listenerNotified) {
+        if (!keepAlive || data.hasRemaining()) {
+          close();
+        } else if (bodyComplete) {
+          request = null;
+          eventLoop.addIdleConnection(this);
+        }
+        // Otherwise wait for the end of the response body.
+      } else if (bodyComplete) {
+        throw new IOException("Server didn't return all expected outputs");
+      }
+    }
+
+    private boolean readResponseHead(ByteBuffer data) throws IOException {
+      while (data.hasRemaining()) {
+        head.write(data.get());
+        int length = head.getLength();
+        byte[] bytes = head.getData();
+        if (length >= 4 && bytes[length - 4] == '\r'
+            && bytes[length - 3] == '\n' && bytes[length - 2] == '\r'
+            && bytes[length - 1] == '\n') {
+          parseResponseHead(new String(bytes, 0, length - 4,
+              Charsets.ISO_8859_1));
+          phase = FetchPhase.BODY;
+          return true;
+        }
+        if (length > MAX_RESPONSE_HEAD_LENGTH) {
+          throw new IOException("Response headers too long from "
+              + request.url);
+        }
+      }
+      return false;
+    }
+
+    private void parseResponseHead(String responseHead) throws IOException {
+      String[] lines = responseHead.split("\r\n");
+      String[] status = lines[0].split(" ", 3);
+      int rc;
+      try {
+        if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+          throw new NumberFormatException();
+        }
+        rc = Integer.parseInt(status[1]);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid response from " + request.url + ": "
+            + lines[0]);
+      }
+      Map<String, String> headers =
+          new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+      for (int i = 1; i < lines.length; i++) {
+        int separator = lines[i].indexOf(':');
+        if (separator > 0) {
+          headers.put(lines[i].substring(0, separator).trim(),
+              lines[i].substring(separator + 1).trim());
+        }
+      }
+
+      if (rc != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Got invalid response code " + rc + " from "
+            + request.url + ": " + (status.length > 2 ? status[2] : ""));
+      }
+      // get the shuffle version
+      if (!ShuffleHeader.DEFAULT_HTTP_HEADER_NAME.equals(
+          headers.get(ShuffleHeader.HTTP_HEADER_NAME))
+          || !ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION.equals(
+              headers.get(ShuffleHeader.HTTP_HEADER_VERSION))) {
+        throw new IOException("Incompatible shuffle response version");
+      }
+      // get the replyHash which is HMac of the encHash we sent to the server
+      String replyHash =
+          headers.get(SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH);
+      if (replyHash == null) {
+        throw new IOException("security validation of TT Map output failed");
+      }
+      // verify that replyHash is HMac of encHash
+      SecureShuffleUtils.verifyReply(replyHash, request.encHash,
+          request.shuffleSecret);
+
+      String connectionHeader = headers.get("Connection");
+      if (status[0].equals("HTTP/1.0")) {
+        keepAlive = "keep-alive".equalsIgnoreCase(connectionHeader);
+      } else {
+        keepAlive = !"close".equalsIgnoreCase(connectionHeader);
+      }
+      keepAlive &= maxIdleConnectionsPerHost > 0;
+      chunked = "chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"));
+      String contentLength = headers.get("Content-Length");
+      if (!chunked && contentLength != null) {
+        try {
+          contentRemaining = Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid Content-Length from " + request.url
+              + ": " + contentLength);
+        }
+        bodyComplete = contentRemaining == 0;
+      } else if (!chunked) {
+        // The end of the body is only known once the server closes.
+        keepAlive = false;
+      }
+    }
+
+    private ByteBuffer nextContent(ByteBuffer data) {
+      int length = data.remaining();
+      if (contentRemaining >= 0) {
+        length = (int) Math.min(length, contentRemaining);
+        contentRemaining -= length;
+        bodyComplete = contentRemaining == 0;
+      }
+      return slice(data, length);
+    }
+
+    private ByteBuffer nextChunk(ByteBuffer data) throws IOException {
+      String chunkLine;
+      switch (chunkState) {
+      case CHUNK_SIZE:
+        chunkLine = readLine(data);
+        if (chunkLine != null) {
+          int extension = chunkLine.indexOf(';');
+          if (extension >= 0) {
+            chunkLine = chunkLine.substring(0, extension);
+          }
+          try {
+            chunkRemaining = Long.parseLong(chunkLine.trim(), 16);
+          } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size from " + request.url
+                + ": " + chunkLine);
+          }
+          chunkState = chunkRemaining == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+        }
+        return null;
+      case CHUNK_DATA:
+        int length = (int) Math.min(data.remaining(), chunkRemaining);
+        chunkRemaining -= length;
+        if (chunkRemaining == 0) {
+          chunkState = CHUNK_DATA_END;
+        }
+        return slice(data, length);
+      case CHUNK_DATA_END:
+        chunkLine = readLine(data);
+        if (chunkLine != null) {
+          if (!chunkLine.isEmpty()) {
+            throw new IOException("Invalid chunk from " + request.url);
+          }
+          chunkState = CHUNK_SIZE;
+        }
+        return null;
+      default:
+        chunkLine = readLine(data);
+        if (chunkLine != null && chunkLine.isEmpty()) {
+          bodyComplete = true;
+        }
+        return null;
+      }
+    }
+
+    /**
+     * @return the next line without its terminator, or null if the line is
+     *         not complete yet
+     */
+    private String readLine(ByteBuffer data) throws IOException {
+      while (data.hasRemaining()) {
+        byte b = data.get();
+        if (b == '\n') {
+          int length = line.getLength();
+          if (length > 0 && line.getData()[length - 1] == '\r') {
+            length--;
+          }
+          String result = new String(line.getData(), 0, length,
+              Charsets.ISO_8859_1);
+          line.reset();
+          return result;
+        }
+        line.write(b);
+        if (line.getLength() > MAX_LINE_LENGTH) {
+          throw new IOException("Line too long in response from "
+              + request.url);
+        }
+      }
+      return null;
+    }
+
+    private void processBody(ByteBuffer body) throws IOException {
+      if (shuffleDone) {
+        if (body.hasRemaining()) {
+          // More data than expected, the connection cannot be reused.
+          keepAlive = false;
+          body.position(body.limit());
+        }
+        return;
+      }
+      while (body.hasRemaining() && !shuffleDone) {
+        if (inOutput) {
+          int length = (int) Math.min(body.remaining(), outputRemaining);
+          outputRemaining -= length;
+          request.listener.onData(slice(body, length));
+          if (outputRemaining == 0) {
+            completeOutput();
+          }
+        } else {
+          readShuffleHeader(body);
+        }
+      }
+    }
+
+    private void readShuffleHeader(ByteBuffer body) throws IOException {
+      int available = Math.min(body.remaining(),
+          MAX_SHUFFLE_HEADER_LENGTH - shuffleHeaderBytes.getLength());
+      if (available == 0) {
+        throw new IOException("Invalid shuffle header from " + request.url);
+      }
+      shuffleHeaderBytes.write(body.array(),
+          body.arrayOffset() + body.position(), available);
+      body.position(body.position() + available);
+
+      ShuffleHeader header = new ShuffleHeader();
+      shuffleHeaderIn.reset(shuffleHeaderBytes.getData(),
+          shuffleHeaderBytes.getLength());
+      try {
+        header.readFields(shuffleHeaderIn);
+      } catch (EOFException e) {
+        // The rest of the header has not arrived yet.
+        return;
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Invalid shuffle header from " + request.url, e);
+      }
+      // Hand back whatever was read past the end of the header.
+      int unused = shuffleHeaderBytes.getLength()
+          - shuffleHeaderIn.getPosition();
+      body.position(body.position() - unused);
+      shuffleHeaderBytes.reset();
+
+      if (!request.listener.onHeader(header)) {
+        shuffleDone = true;
+        keepAlive = false;
+        return;
+      }
+      if (header.getCompressedLength() < 0) {
+        throw new IOException("Invalid length " + header.getCompressedLength()
+            + " in shuffle header from " + request.url);
+      }
+      inOutput = true;
+      outputRemaining = header.getCompressedLength();
+      if (outputRemaining == 0) {
+        completeOutput();
+      }
+    }
+
+    private void completeOutput() throws IOException {
+      inOutput = false;
+      if (!request.listener.onOutputComplete()) {
+        shuffleDone = true;
+      }
+    }
+
+    private void onEndOfStream() throws IOException {
+      if (request == null || listenerNotified) {
+        close();
+        return;
+      }
+      throw new EOFException("Connection to " + hostKey + " closed "
+          + (phase == FetchPhase.BODY ? "before all expected outputs were read"
+              : "before a response was received"));
+    }
+
+    void checkTimeout(long now) {
+      if (request == null) {
+        if (now - lastActivityTime >= keepAliveTimeout) {
+          close();
+        }
+      } else if (phase == FetchPhase.CONNECT) {
+        if (request.connectionTimeout > 0
+            && now - phaseStartTime >= request.connectionTimeout) {
+          fail(new SocketTimeoutException("Timed out connecting to "
+              + hostKey));
+        }
+      } else if (request.readTimeout > 0
+          && now - lastActivityTime >= request.readTimeout) {
+        fail(new SocketTimeoutException("Read timed out from " + hostKey));
+      }
+    }
+
+    void fail(IOException cause) {
+      Request failed = request;
+      FetchPhase failedPhase = phase;
+      boolean notify = failed != null && !listenerNotified;
+      // A reused connection may have been closed by the server while idle.
+      boolean retry = notify && reused && !responseStarted
+          && failedPhase == FetchPhase.RESPONSE && !failed.retried;
+      close();
+      if (retry) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Reused connection to " + hostKey
+              + " failed, retrying on a new connection", cause);
+        }
+        failed.retried = true;
+        eventLoop.openConnection(failed);
+      } else if (notify) {
+        notifyFailure(failed.listener, cause, failedPhase);
+      }
+    }
+
+    void close() {
+      if (request == null) {
+        eventLoop.removeIdleConnection(this);
+      }
+      request = null;
+      if (key != null) {
+        key.cancel();
+      }
+      IOUtils.cleanup(LOG, channel);
+      eventLoop.connections.remove(this);
+    }
+  }
+
+  private static ByteBuffer slice(ByteBuffer data, int length) {
+    ByteBuffer slice = data.slice();
+    slice.limit(length);
+    data.position(data.position() + length);
+    return slice;
+  }
+}
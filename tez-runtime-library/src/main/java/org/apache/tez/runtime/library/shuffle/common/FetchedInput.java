@@ -33,6 +33,7 @@ public abstract class FetchedInput {
     WAIT, // TODO NEWTEZ Implement this, only if required.
     MEMORY,
     DISK,
+    DISK_DIRECT // Read in place from the output of a task on the same node
   }
   
   protected static enum State {
@@ -26,6 +26,25 @@ public interface FetchedInputAllocator {
 
   public FetchedInput allocate(long actualSize, long compresedSize,
       InputAttemptIdentifier inputAttemptIdentifier) throws IOException;
-  
-  
+
+  /**
+   * Allocates an input on disk, whatever the memory available.
+   */
+  public FetchedInput allocateOnDisk(long actualSize, long compresedSize,
+      InputAttemptIdentifier inputAttemptIdentifier) throws IOException;
+
+  /**
+   * Reserves memory for the compressed bytes of an input which are fetched in
+   * full before they are decompressed into a {@link MemoryFetchedInput}.
+   * 
+   * @return a buffer of at least <code>size</code> bytes, or null if there
+   *         is not enough memory available
+   */
+  public byte[] reserveFetchBuffer(int size);
+
+  /**
+   * Gives back a buffer obtained from {@link #reserveFetchBuffer(int)}.
+   */
+  public void releaseFetchBuffer(byte[] buffer);
+
 }
@@ -18,20 +18,29 @@
 
 package org.apache.tez.runtime.library.shuffle.common;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.SecretKey;
@@ -48,9 +57,15 @@ import org.apache.tez.common.TezJobConfig;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
 import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.apache.tez.runtime.library.shuffle.common.AsyncShuffleClient.FetchPhase;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput.Type;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * Responsible for fetching inputs served by the ShuffleHandler for a single
@@ -61,6 +76,9 @@ public class Fetcher implements Callable<FetchResult> {
   private static final Log LOG = LogFactory.getLog(Fetcher.class);
 
   private static final int UNIT_CONNECT_TIMEOUT = 60 * 1000;
+  // Chunks of a fetch received by the AsyncShuffleClient which may wait to be
+  // written to disk
+  private static final int MAX_PENDING_DISK_WRITES = 16;
   private static final AtomicInteger fetcherIdGen = new AtomicInteger(0);
 
   // Configurable fields.
@@ -76,6 +94,10 @@ public class Fetcher implements Callable<FetchResult> {
   private final FetcherCallback fetcherCallback;
   private final FetchedInputAllocator inputManager;
   private final ApplicationId appId;
+  private final Configuration conf;
+
+  // Whether the inputs were produced on this node, and can be read in place
+  private boolean localDiskFetch = false;
 
   private static boolean sslShuffle = false;
   private static SSLFactory sslFactory;
@@ -104,6 +126,7 @@ public class Fetcher implements Callable<FetchResult> {
     this.inputManager = inputManager;
     this.shuffleSecret = shuffleSecret;
     this.appId = appId;
+    this.conf = conf;
     this.pathToAttemptMap = new HashMap<String, InputAttemptIdentifier>();
 
     this.fetcherIdentifier = fetcherIdGen.getAndIncrement();
@@ -141,6 +164,13 @@ public class Fetcher implements Callable<FetchResult> {
 
     remaining = new LinkedHashSet<InputAttemptIdentifier>(srcAttempts);
 
+    if (localDiskFetch) {
+      fetchLocalInputs();
+      if (remaining.isEmpty()) {
+        return new FetchResult(host, port, partition, remaining);
+      }
+    }
+
     HttpURLConnection connection;
     try {
       connection = connectToShuffleHandler(host, port, partition, srcAttempts);
@@ -203,6 +233,457 @@ public class Fetcher implements Callable<FetchResult> {
 
   }
 
+  /**
+   * Fetches the assigned inputs through <code>client</code> instead of the
+   * calling thread. The fetched data is decompressed, or written to disk, by
+   * <code>executor</code>, so that the event loops of the client only copy
+   * bytes. The returned future completes once the fetch has ended, with the
+   * same result {@link #call()} would return.
+   */
+  public ListenableFuture<FetchResult> callAsync(AsyncShuffleClient client,
+      Executor executor) {
+    SettableFuture<FetchResult> future = SettableFuture.create();
+    if (srcAttempts.size() == 0) {
+      future.set(new FetchResult(host, port, partition, srcAttempts));
+      return future;
+    }
+
+    for (InputAttemptIdentifier in : srcAttempts) {
+      pathToAttemptMap.put(in.getPathComponent(), in);
+    }
+
+    remaining = new LinkedHashSet<InputAttemptIdentifier>(srcAttempts);
+
+    if (localDiskFetch) {
+      fetchLocalInputs();
+      if (remaining.isEmpty()) {
+        future.set(new FetchResult(host, port, partition, remaining));
+        return future;
+      }
+    }
+
+    AsyncFetchListener listener = new AsyncFetchListener(future, executor,
+        remaining.size());
+    try {
+      this.url = constructInputURL(host, port, partition, srcAttempts);
+    } catch (MalformedURLException e) {
+      listener.onFailure(e, FetchPhase.CONNECT);
+      return future;
+    }
+    client.fetch(host, port, url.toString(), shuffleSecret, connectionTimeout,
+        readTimeout, listener);
+    return future;
+  }
+
+  /**
+   * An input being fetched by {@link #callAsync(AsyncShuffleClient, Executor)}.
+   */
+  private static class AsyncOutput {
+    final InputAttemptIdentifier srcAttemptId;
+    final FetchedInput fetchedInput;
+    final long compressedLength;
+    final long decompressedLength;
+    final long startTime;
+    // Holds the compressed bytes of a MEMORY input until they are
+    // decompressed. Reserved through the FetchedInputAllocator.
+    byte[] compressedData;
+    int compressedDataLength;
+    // Only accessed from the fetcher threads
+    OutputStream diskOutput;
+    IOException failure;
+
+    AsyncOutput(InputAttemptIdentifier srcAttemptId, FetchedInput fetchedInput,
+        long compressedLength, long decompressedLength, long startTime) {
+      this.srcAttemptId = srcAttemptId;
+      this.fetchedInput = fetchedInput;
+      this.compressedLength = compressedLength;
+      this.decompressedLength = decompressedLength;
+      this.startTime = startTime;
+    }
+  }
+
+  /**
+   * Runs tasks one at a time, in the order in which they were submitted, on
+   * the threads of an {@link Executor}.
+   */
+  private static class SerialExecutor implements Executor {
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+    private boolean running = false;
+
+    private final Runnable drainer = new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          Runnable task;
+          synchronized (tasks) {
+            task = tasks.poll();
+            if (task == null) {
+              running = false;
+              return;
+            }
+          }
+          try {
+            task.run();
+          } catch (Throwable t) {
+            LOG.error("Error while handling fetched data", t);
+          }
+        }
+      }
+    };
+
+    SerialExecutor(Executor executor) {
+      this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      synchronized (tasks) {
+        tasks.add(task);
+        if (running) {
+          return;
+        }
+        running = true;
+      }
+      try {
+        executor.execute(drainer);
+      } catch (RejectedExecutionException e) {
+        // The fetcher threads are shutting down. Finish the work here, which
+        // mostly releases what was allocated.
+        drainer.run();
+      }
+    }
+  }
+
+  /**
+   * Receives the inputs fetched by
+   * {@link #callAsync(AsyncShuffleClient, Executor)}, and reports them in the
+   * same way as {@link #call()}. The callbacks are invoked from an event loop
+   * of the {@link AsyncShuffleClient}, which only allocates the inputs and
+   * copies the received bytes. Everything else, including reporting the
+   * inputs, is handed to the fetcher threads in order.
+   */
+  private class AsyncFetchListener implements AsyncShuffleClient.FetchListener {
+
+    private final SettableFuture<FetchResult> future;
+    private final SerialExecutor worker;
+    // Bounds the received bytes waiting to be written to disk, since the
+    // event loop cannot stop reading otherwise.
+    private final Semaphore pendingWrites =
+        new Semaphore(MAX_PENDING_DISK_WRITES);
+    private final int numOutputs;
+
+    // Set by the fetcher threads when an input could not be stored, and
+    // thrown from the next callback to end the fetch.
+    private volatile IOException workerFailure;
+
+    // Only accessed from the event loop
+    private int numOutputsRead = 0;
+    private InputAttemptIdentifier srcAttemptId;
+    private AsyncOutput current;
+
+    // Only accessed from the fetcher threads
+    private boolean ended = false;
+
+    AsyncFetchListener(SettableFuture<FetchResult> future, Executor executor,
+        int numOutputs) {
+      this.future = future;
+      this.worker = new SerialExecutor(executor);
+      this.numOutputs = numOutputs;
+    }
+
+    @Override
+    public boolean onHeader(ShuffleHeader header) throws IOException {
+      checkWorkerFailure();
+      long startTime = System.currentTimeMillis();
+      String pathComponent = header.getMapId();
+      srcAttemptId = pathToAttemptMap.get(pathComponent);
+      long compressedLength = header.getCompressedLength();
+      long decompressedLength = header.getUncompressedLength();
+
+      // Do some basic sanity verification
+      if (!verifySanity(compressedLength, decompressedLength,
+          header.getPartition(), srcAttemptId, pathComponent)) {
+        if (srcAttemptId == null) {
+          LOG.warn("Was expecting " + getNextRemainingAttempt() + " but got null");
+          srcAttemptId = getNextRemainingAttempt();
+        }
+        assert(srcAttemptId != null);
+        LOG.warn("copyInputs failed for tasks " + srcAttemptId);
+        final InputAttemptIdentifier failedAttemptId = srcAttemptId;
+        srcAttemptId = null;
+        // reported after the inputs which were already received
+        worker.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (!ended) {
+              fetcherCallback.fetchFailed(host, failedAttemptId, false);
+            }
+          }
+        });
+        return false;
+      }
+
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("header: " + srcAttemptId + ", len: " + compressedLength
+            + ", decomp len: " + decompressedLength);
+      }
+
+      FetchedInput fetchedInput = inputManager.allocate(decompressedLength,
+          compressedLength, srcAttemptId);
+      byte[] compressedData = null;
+      if (fetchedInput.getType() == Type.MEMORY) {
+        compressedData = inputManager.reserveFetchBuffer(
+            (int) compressedLength);
+        if (compressedData == null) {
+          LOG.info("No memory to hold " + compressedLength
+              + " fetched bytes of " + srcAttemptId + ", fetching to disk");
+          fetchedInput.abort();
+          fetchedInput = inputManager.allocateOnDisk(decompressedLength,
+              compressedLength, srcAttemptId);
+        }
+      }
+      LOG.info("fetcher" + " about to shuffle output of srcAttempt "
+          + fetchedInput.getInputAttemptIdentifier() + " decomp: "
+          + decompressedLength + " len: " + compressedLength + " to "
+          + fetchedInput.getType());
+
+      current = new AsyncOutput(srcAttemptId, fetchedInput, compressedLength,
+          decompressedLength, startTime);
+      current.compressedData = compressedData;
+      return true;
+    }
+
+    @Override
+    public void onData(ByteBuffer data) throws IOException {
+      checkWorkerFailure();
+      int length = data.remaining();
+      if (current.compressedData != null) {
+        // the pooled buffer may be longer than the input
+        if (current.compressedDataLength + length > current.compressedLength) {
+          throw new IOException("Received more than "
+              + current.compressedLength + " bytes for "
+              + current.srcAttemptId);
+        }
+        data.get(current.compressedData, current.compressedDataLength, length);
+        current.compressedDataLength += length;
+        return;
+      }
+      // data is only valid during the call
+      final byte[] bytes = new byte[length];
+      data.get(bytes);
+      final AsyncOutput output = current;
+      pendingWrites.acquireUninterruptibly();
+      worker.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            writeToDisk(output, bytes);
+          } finally {
+            pendingWrites.release();
+          }
+        }
+      });
+    }
+
+    @Override
+    public boolean onOutputComplete() throws IOException {
+      checkWorkerFailure();
+      final AsyncOutput output = current;
+      current = null;
+      srcAttemptId = null;
+      worker.execute(new Runnable() {
+        @Override
+        public void run() {
+          completeOutput(output);
+        }
+      });
+      return ++numOutputsRead < numOutputs;
+    }
+
+    @Override
+    public void onFinished() {
+      worker.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (!ended) {
+            ended = true;
+            future.set(new FetchResult(host, port, partition, remaining));
+          }
+        }
+      });
+    }
+
+    @Override
+    public void onFailure(final IOException cause, final FetchPhase phase) {
+      final InputAttemptIdentifier headerAttemptId = srcAttemptId;
+      final AsyncOutput output = current;
+      current = null;
+      srcAttemptId = null;
+      worker.execute(new Runnable() {
+        @Override
+        public void run() {
+          handleFailure(cause, phase, headerAttemptId, output);
+        }
+      });
+    }
+
+    private void checkWorkerFailure() throws IOException {
+      if (workerFailure != null) {
+        throw workerFailure;
+      }
+    }
+
+    private void writeToDisk(AsyncOutput output, byte[] bytes) {
+      if (ended || output.failure != null) {
+        return;
+      }
+      try {
+        if (output.diskOutput == null) {
+          output.diskOutput = output.fetchedInput.getOutputStream();
+        }
+        output.diskOutput.write(bytes);
+      } catch (IOException e) {
+        output.failure = e;
+        workerFailure = e;
+      }
+    }
+
+    private void completeOutput(AsyncOutput output) {
+      if (ended) {
+        discard(output);
+        return;
+      }
+      try {
+        if (output.failure != null) {
+          throw output.failure;
+        }
+        if (output.fetchedInput.getType() == Type.MEMORY) {
+          shuffleToMemory(output);
+        } else {
+          if (output.diskOutput == null) {
+            // an empty input
+            output.diskOutput = output.fetchedInput.getOutputStream();
+          }
+          output.diskOutput.close();
+          output.diskOutput = null;
+          LOG.info("Read " + output.compressedLength
+              + " bytes from input for " + output.srcAttemptId);
+        }
+
+        // Inform the shuffle scheduler
+        long endTime = System.currentTimeMillis();
+        fetcherCallback.fetchSucceeded(host, output.srcAttemptId,
+            output.fetchedInput, output.compressedLength,
+            output.decompressedLength, (endTime - output.startTime));
+      } catch (IOException e) {
+        LOG.warn("Failed to shuffle output of " + output.srcAttemptId
+            + " from " + host, e);
+        discard(output);
+        fetcherCallback.fetchFailed(host, output.srcAttemptId, false);
+        // The inputs still being received are discarded, and put back.
+        ended = true;
+        future.set(new FetchResult(host, port, partition, remaining));
+        workerFailure = e;
+        return;
+      }
+
+      // Note successful shuffle. The event loop reads remaining while
+      // checking the headers.
+      synchronized (remaining) {
+        remaining.remove(output.srcAttemptId);
+      }
+    }
+
+    private void shuffleToMemory(AsyncOutput output) throws IOException {
+      try {
+        // The data is already in memory, so there is nothing to read ahead.
+        ShuffleUtils.shuffleToMemory(
+            (MemoryFetchedInput) output.fetchedInput,
+            new ByteArrayInputStream(output.compressedData, 0,
+                output.compressedDataLength),
+            (int) output.decompressedLength, (int) output.compressedLength,
+            codec, false, 0, LOG);
+      } finally {
+        releaseCompressedData(output);
+      }
+    }
+
+    private void handleFailure(IOException cause, FetchPhase phase,
+        InputAttemptIdentifier headerAttemptId, AsyncOutput output) {
+      if (ended) {
+        // The input which could not be stored has been reported already.
+        discard(output);
+        return;
+      }
+      ended = true;
+      switch (phase) {
+      case CONNECT:
+        LOG.warn("Failed to connect to " + host + " with " + srcAttempts.size()
+            + " inputs", cause);
+        // If connect did not succeed, just mark all the maps as failed,
+        // indirectly penalizing the host
+        for (InputAttemptIdentifier left : remaining) {
+          fetcherCallback.fetchFailed(host, left, true);
+        }
+        break;
+      case RESPONSE:
+        // Typically a lost map. So, penalize only the first map and add the
+        // rest
+        InputAttemptIdentifier firstAttempt = srcAttempts.get(0);
+        LOG.warn("Fetch Failure from host while connecting: " + host
+            + ", attempt: " + firstAttempt + " Informing ShuffleManager: ",
+            cause);
+        fetcherCallback.fetchFailed(host, firstAttempt, false);
+        break;
+      default:
+        if (output == null) {
+          LOG.info("fetcher" + " failed to read map header" + headerAttemptId,
+              cause);
+          if (headerAttemptId == null) {
+            for (InputAttemptIdentifier left : remaining) {
+              fetcherCallback.fetchFailed(host, left, false);
+            }
+          } else {
+            fetcherCallback.fetchFailed(host, headerAttemptId, false);
+          }
+        } else {
+          LOG.warn("Failed to shuffle output of " + output.srcAttemptId
+              + " from " + host, cause);
+          discard(output);
+          fetcherCallback.fetchFailed(host, output.srcAttemptId, false);
+        }
+        break;
+      }
+      future.set(new FetchResult(host, port, partition, remaining));
+    }
+
+    /**
+     * Frees whatever was allocated for an input which is not reported.
+     */
+    private void discard(AsyncOutput output) {
+      if (output == null) {
+        return;
+      }
+      IOUtils.cleanup(LOG, output.diskOutput);
+      output.diskOutput = null;
+      releaseCompressedData(output);
+      try {
+        output.fetchedInput.abort();
+      } catch (IOException e) {
+        LOG.info("Failure to cleanup fetchedInput: " + output.fetchedInput);
+      }
+    }
+
+    private void releaseCompressedData(AsyncOutput output) {
+      if (output.compressedData != null) {
+        inputManager.releaseFetchBuffer(output.compressedData);
+        output.compressedData = null;
+      }
+    }
+  }
+
   private InputAttemptIdentifier[] fetchInputs(DataInputStream input) {
     FetchedInput fetchedInput = null;
     InputAttemptIdentifier srcAttemptId = null;
@@ -310,6 +791,45 @@ public class Fetcher implements Callable<FetchResult> {
     }
   }
 
+  /**
+   * Reads the inputs produced on this node in place from the output files of
+   * their source tasks, which are found under the same local directories as
+   * the ones of this task. Inputs which cannot be read this way are left in
+   * <code>remaining</code>, and are fetched from the ShuffleHandler instead.
+   */
+  private void fetchLocalInputs() {
+    for (Iterator<InputAttemptIdentifier> iter = remaining.iterator(); iter
+        .hasNext();) {
+      InputAttemptIdentifier srcAttemptId = iter.next();
+      long startTime = System.currentTimeMillis();
+      try {
+        TezTaskOutputFiles outputFiles = new TezTaskOutputFiles(conf,
+            srcAttemptId.getPathComponent());
+        TezIndexRecord indexRecord = new TezSpillRecord(
+            outputFiles.getOutputIndexFile(), conf).getIndex(partition);
+        FetchedInput fetchedInput = new LocalDiskFetchedInput(
+            indexRecord.getStartOffset(), indexRecord.getRawLength(),
+            indexRecord.getPartLength(), srcAttemptId,
+            outputFiles.getOutputFile(), conf,
+            (FetchedInputCallback) inputManager);
+        LOG.info("fetcher" + " read output of srcAttempt " + srcAttemptId
+            + " decomp: " + indexRecord.getRawLength() + " len: "
+            + indexRecord.getPartLength() + " from local disk");
+        long endTime = System.currentTimeMillis();
+        fetcherCallback.fetchSucceeded(host, srcAttemptId, fetchedInput,
+            indexRecord.getPartLength(), indexRecord.getRawLength(),
+            (endTime - startTime));
+        iter.remove();
+      } catch (IOException e) {
+        LOG.warn("Failed to read local output of " + srcAttemptId
+            + ", will fetch it from the ShuffleHandler instead", e);
+      }
+    }
+    if (!remaining.isEmpty()) {
+      srcAttempts = new ArrayList<InputAttemptIdentifier>(remaining);
+    }
+  }
+
   /**
    * Do some basic verification on the input received -- Being defensive
    * 
@@ -342,7 +862,11 @@ public class Fetcher implements Callable<FetchResult> {
     }
 
     // Sanity check
-    if (!remaining.contains(srcAttemptId)) {
+    boolean expected;
+    synchronized (remaining) {
+      expected = remaining.contains(srcAttemptId);
+    }
+    if (!expected) {
       // wrongMapErrs.increment(1);
       LOG.warn("Invalid input. Received output for headerPathComponent: "
           + pathComponent + "nextRemainingSrcAttemptId: "
@@ -353,10 +877,12 @@ public class Fetcher implements Callable<FetchResult> {
   }
   
   private InputAttemptIdentifier getNextRemainingAttempt() {
-    if (remaining.size() > 0) {
-      return remaining.iterator().next();
-    } else {
-      return null;
+    synchronized (remaining) {
+      if (remaining.size() > 0) {
+        return remaining.iterator().next();
+      } else {
+        return null;
+      }
     }
   }
 
@@ -526,6 +1052,11 @@ public class Fetcher implements Callable<FetchResult> {
       return this;
     }
 
+    public FetcherBuilder setLocalDiskFetch(boolean localDiskFetch) {
+      fetcher.localDiskFetch = localDiskFetch;
+      return this;
+    }
+
     public FetcherBuilder assignWork(String host, int port, int partition,
         List<InputAttemptIdentifier> inputs) {
       fetcher.host = host;
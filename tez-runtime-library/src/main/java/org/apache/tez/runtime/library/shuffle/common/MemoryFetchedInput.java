@@ -30,12 +30,26 @@ import com.google.common.base.Preconditions;
 public class MemoryFetchedInput extends FetchedInput {
 
   private BoundedByteArrayOutputStream byteStream;
+  private byte[] buffer;
 
   public MemoryFetchedInput(long actualSize, long compressedSize,
       InputAttemptIdentifier inputAttemptIdentifier,
       FetchedInputCallback callbackHandler) {
+    this(new byte[(int) actualSize], actualSize, compressedSize,
+        inputAttemptIdentifier, callbackHandler);
+  }
+
+  /**
+   * @param buffer holds the input in its first <code>actualSize</code> bytes.
+   *          It may be larger.
+   */
+  public MemoryFetchedInput(byte[] buffer, long actualSize,
+      long compressedSize, InputAttemptIdentifier inputAttemptIdentifier,
+      FetchedInputCallback callbackHandler) {
     super(Type.MEMORY, actualSize, compressedSize, inputAttemptIdentifier, callbackHandler);
-    this.byteStream = new BoundedByteArrayOutputStream((int) actualSize);
+    this.buffer = buffer;
+    this.byteStream = ShuffleBufferPool.createOutputStream(buffer,
+        (int) actualSize);
   }
 
   @Override
@@ -45,11 +59,15 @@ public class MemoryFetchedInput extends FetchedInput {
 
   @Override
   public InputStream getInputStream() {
-    return new ByteArrayInputStream(byteStream.getBuffer());
+    return new ByteArrayInputStream(buffer, 0, (int) actualSize);
   }
 
+  /**
+   * @return the buffer holding the input in its first
+   *         {@link #getActualSize()} bytes
+   */
   public byte[] getBytes() {
-    return byteStream.getBuffer();
+    return buffer;
   }
   
   @Override
@@ -75,8 +93,10 @@ public class MemoryFetchedInput extends FetchedInput {
         "FetchedInput can only be freed after it is committed or aborted");
     if (state == State.COMMITTED) { // ABORTED would have already called cleanup
       state = State.FREED;
-      this.byteStream = null;
+      // The buffer is released by the callback.
       notifyFreedResource();
+      this.byteStream = null;
+      this.buffer = null;
     }
   }
 
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience.Private;
+import org.apache.hadoop.io.BoundedByteArrayOutputStream;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+
+/**
+ * Hands out the byte arrays which hold shuffled data and the output of
+ * in-memory merges, and keeps released arrays for reuse instead of leaving
+ * them to the garbage collector.
+ * 
+ * Requested sizes are rounded up to a size class, eight classes for each
+ * power of two, so that a released array can serve later requests of a
+ * similar size. Callers must account for {@link #getBufferSize(int)} bytes
+ * per allocation. The arrays kept for reuse together with the arrays in use
+ * never take more than the capacity of the pool - usually the memory
+ * assigned to the input - so idle arrays are dropped to make room for new
+ * ones.
+ * 
+ * When disabled, arrays of exactly the requested size are allocated and
+ * nothing is kept. {@link TaskCounter#SHUFFLE_BUFFERS_ALLOCATED} counts every
+ * new array either way, so that runs with and without the pool can be
+ * compared.
+ */
+@Private
+public class ShuffleBufferPool {
+
+  private static final Log LOG = LogFactory.getLog(ShuffleBufferPool.class);
+
+  static final int MIN_BUFFER_SIZE = 4 * 1024;
+  private static final int SIZE_CLASSES_SHIFT = 3;
+
+  private final boolean enabled;
+  private final long capacity;
+
+  private final Map<Integer, LinkedList<byte[]>> freeBuffers =
+      new HashMap<Integer, LinkedList<byte[]>>();
+  private long freeBytes = 0;
+  private long usedBytes = 0;
+  private boolean closed = false;
+
+  private final TezCounter buffersAllocated;
+  private final TezCounter buffersReused;
+  private final TezCounter bytesWasted;
+
+  public ShuffleBufferPool(boolean enabled, long capacity, TezCounters counters) {
+    this.enabled = enabled;
+    this.capacity = capacity;
+    this.buffersAllocated = counters.findCounter(
+        TaskCounter.SHUFFLE_BUFFERS_ALLOCATED);
+    this.buffersReused = counters.findCounter(
+        TaskCounter.SHUFFLE_BUFFERS_REUSED);
+    this.bytesWasted = counters.findCounter(
+        TaskCounter.SHUFFLE_BUFFER_BYTES_WASTED);
+    LOG.info("ShuffleBufferPool: enabled=" + enabled + ", capacity=" + capacity);
+  }
+
+  /**
+   * @return the length of the array which is handed out for a request of
+   *         <code>size</code> bytes
+   */
+  public int getBufferSize(int size) {
+    if (!enabled) {
+      return size;
+    }
+    if (size <= MIN_BUFFER_SIZE) {
+      return MIN_BUFFER_SIZE;
+    }
+    long step = Integer.highestOneBit(size - 1) >> SIZE_CLASSES_SHIFT;
+    long bufferSize = ((size - 1) / step + 1) * step;
+    return bufferSize > Integer.MAX_VALUE - 8 ? size : (int) bufferSize;
+  }
+
+  /**
+   * @return an array of {@link #getBufferSize(int)} bytes. Its contents are
+   *         undefined.
+   */
+  public synchronized byte[] allocate(int size) {
+    int bufferSize = getBufferSize(size);
+    bytesWasted.increment(bufferSize - size);
+    byte[] buffer = null;
+    LinkedList<byte[]> buffers = freeBuffers.get(bufferSize);
+    if (buffers != null && !buffers.isEmpty()) {
+      buffer = buffers.removeFirst();
+      freeBytes -= bufferSize;
+      buffersReused.increment(1);
+    } else {
+      evict(usedBytes + freeBytes + bufferSize - capacity);
+      buffer = new byte[bufferSize];
+      buffersAllocated.increment(1);
+    }
+    if (enabled) {
+      usedBytes += bufferSize;
+    }
+    return buffer;
+  }
+
+  /**
+   * Returns an array handed out by {@link #allocate(int)}. The caller must
+   * not use it anymore.
+   */
+  public synchronized void release(byte[] buffer) {
+    if (!enabled || buffer == null) {
+      return;
+    }
+    usedBytes -= buffer.length;
+    if (!closed && usedBytes + freeBytes + buffer.length <= capacity) {
+      LinkedList<byte[]> buffers = freeBuffers.get(buffer.length);
+      if (buffers == null) {
+        buffers = new LinkedList<byte[]>();
+        freeBuffers.put(buffer.length, buffers);
+      }
+      buffers.addFirst(buffer);
+      freeBytes += buffer.length;
+    }
+  }
+
+  /**
+   * Drops all arrays kept for reuse, and stops keeping released arrays. To be
+   * called once no more data is shuffled, so that the memory is available to
+   * the consumer of the input.
+   */
+  public synchronized void close() {
+    closed = true;
+    freeBuffers.clear();
+    freeBytes = 0;
+  }
+
+  private void evict(long bytes) {
+    Iterator<LinkedList<byte[]>> it = freeBuffers.values().iterator();
+    while (bytes > 0 && it.hasNext()) {
+      LinkedList<byte[]> buffers = it.next();
+      while (bytes > 0 && !buffers.isEmpty()) {
+        int length = buffers.removeFirst().length;
+        freeBytes -= length;
+        bytes -= length;
+      }
+      if (buffers.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  synchronized long getFreeBytes() {
+    return freeBytes;
+  }
+
+  /**
+   * Creates a stream which writes at most <code>limit</code> bytes into the
+   * given array.
+   */
+  public static BoundedByteArrayOutputStream createOutputStream(byte[] buffer,
+      int limit) {
+    return new PooledByteArrayOutputStream(buffer, limit);
+  }
+
+  private static class PooledByteArrayOutputStream extends
+      BoundedByteArrayOutputStream {
+    PooledByteArrayOutputStream(byte[] buffer, int limit) {
+      super(buffer, 0, limit);
+    }
+  }
+}
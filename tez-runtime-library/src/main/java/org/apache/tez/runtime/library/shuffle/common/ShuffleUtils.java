@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 
 import javax.crypto.SecretKey;
 
@@ -33,15 +34,25 @@ import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.TezUtils;
 import org.apache.tez.common.security.JobTokenIdentifier;
 import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.api.TezOutputContext;
 import org.apache.tez.runtime.library.common.sort.impl.IFileInputStream;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
+
+import com.google.protobuf.ByteString;
 
 public class ShuffleUtils {
 
   public static String SHUFFLE_HANDLER_SERVICE_ID = "mapreduce_shuffle";
 
+  private static final String LOCAL_HOST = "localhost";
+
   public static SecretKey getJobTokenSecretFromTokenBytes(ByteBuffer meta)
       throws IOException {
     DataInputByteBuffer in = new DataInputByteBuffer();
@@ -60,6 +71,24 @@ public class ShuffleUtils {
     return bb;
   }
 
+  public static ByteBuffer serializeShuffleProviderMetaData(int port)
+      throws IOException {
+    DataOutputBuffer dob = new DataOutputBuffer();
+    dob.writeInt(port);
+    return ByteBuffer.wrap(dob.getData(), 0, dob.getLength());
+  }
+
+  /**
+   * @return the host of the NodeManager running the task, or localhost when
+   *         tasks run inside the AM of a local DAG, outside of any
+   *         NodeManager
+   */
+  public static String getNodeHost() {
+    String host = System.getenv(ApplicationConstants.Environment.NM_HOST
+        .toString());
+    return host == null ? LOCAL_HOST : host;
+  }
+
   public static int deserializeShuffleProviderMetaData(ByteBuffer meta)
       throws IOException {
     DataInputByteBuffer in = new DataInputByteBuffer();
@@ -92,9 +121,10 @@ public class ShuffleUtils {
     byte[] shuffleData = fetchedInput.getBytes();
 
     try {
-      IOUtils.readFully(input, shuffleData, 0, shuffleData.length);
-      // metrics.inputBytes(shuffleData.length);
-      LOG.info("Read " + shuffleData.length + " bytes from input for "
+      // The buffer may be larger than the input
+      IOUtils.readFully(input, shuffleData, 0, decompressedLength);
+      // metrics.inputBytes(decompressedLength);
+      LOG.info("Read " + decompressedLength + " bytes from input for "
           + fetchedInput.getInputAttemptIdentifier());
     } catch (IOException ioe) {
       // Close the streams
@@ -158,4 +188,106 @@ public class ShuffleUtils {
     sb.append("&map=");
     return sb;
   }
+
+  /**
+   * Creates the payload of the DataMovementEvents for a sorted output, which
+   * the ShuffleHandler serves under the given path component.
+   *
+   * @param spillRecord the index of the output, used to mark the empty
+   *          partitions. May be null, in which case consumers fetch all
+   *          partitions.
+   */
+  public static DataMovementEventPayloadProto.Builder createDataMovementEventPayload(
+      TezOutputContext outputContext, String pathComponent,
+      TezSpillRecord spillRecord, Log LOG) throws IOException {
+    BitSet emptyPartitionDetails = null;
+    int numPartitions = 0;
+    if (spillRecord != null) {
+      emptyPartitionDetails = new BitSet();
+      numPartitions = spillRecord.size();
+      for (int i = 0; i < spillRecord.size(); i++) {
+        TezIndexRecord indexRecord = spillRecord.getIndex(i);
+        if (!indexRecord.hasData()) {
+          emptyPartitionDetails.set(i);
+        }
+      }
+    }
+    return createDataMovementEventPayload(outputContext, pathComponent,
+        emptyPartitionDetails, numPartitions, LOG);
+  }
+
+  public static DataMovementEventPayloadProto.Builder createDataMovementEventPayload(
+      TezOutputContext outputContext, String pathComponent,
+      BitSet emptyPartitionDetails, int numPartitions, Log LOG) throws IOException {
+    String host = getNodeHost();
+    ByteBuffer shuffleMetadata = outputContext
+        .getServiceProviderMetaData(SHUFFLE_HANDLER_SERVICE_ID);
+    int shufflePort = deserializeShuffleProviderMetaData(shuffleMetadata);
+
+    DataMovementEventPayloadProto.Builder payloadBuilder = DataMovementEventPayloadProto
+        .newBuilder();
+    if (emptyPartitionDetails != null) {
+      int emptyPartitions = emptyPartitionDetails.cardinality();
+      if (emptyPartitions > 0) {
+        ByteString emptyPartitionsBytesString =
+            TezUtils.compressByteArrayToByteString(TezUtils.toByteArray(emptyPartitionDetails));
+        payloadBuilder.setEmptyPartitions(emptyPartitionsBytesString);
+        LOG.info("EmptyPartition bitsetSize=" + emptyPartitionDetails.cardinality()
+            + ", numOutputs=" + numPartitions + ", emptyPartitions="
+            + emptyPartitions + ", compressedSize=" + emptyPartitionsBytesString.size());
+      }
+    }
+    payloadBuilder.setHost(host);
+    payloadBuilder.setPort(shufflePort);
+    payloadBuilder.setPathComponent(pathComponent);
+    return payloadBuilder;
+  }
+
+  /**
+   * @return the path component under which a spill of an output is served,
+   *         when the spills are not merged into a single file
+   */
+  public static String getSpillPathComponent(String pathComponent, int spillId) {
+    return pathComponent + "_spill_" + spillId;
+  }
+
+  /**
+   * Encodes partition sizes in one byte each, on a logarithmic scale with
+   * four steps for each power of two, so that a size decoded by
+   * {@link #decodePartitionStats(ByteString)} is within 10% of the original.
+   */
+  public static ByteString encodePartitionStats(long[] partitionSizes)
+      throws IOException {
+    byte[] encoded = new byte[partitionSizes.length];
+    for (int i = 0; i < partitionSizes.length; i++) {
+      encoded[i] = (byte) encodePartitionSize(partitionSizes[i]);
+    }
+    return TezUtils.compressByteArrayToByteString(encoded);
+  }
+
+  public static long[] decodePartitionStats(ByteString partitionStats)
+      throws IOException {
+    byte[] encoded = TezUtils.decompressByteStringToByteArray(partitionStats);
+    long[] partitionSizes = new long[encoded.length];
+    for (int i = 0; i < encoded.length; i++) {
+      partitionSizes[i] = decodePartitionSize(encoded[i] & 0xff);
+    }
+    return partitionSizes;
+  }
+
+  static int encodePartitionSize(long size) {
+    if (size <= 0) {
+      return 0;
+    }
+    int code = 1 + (int) Math.floor(4 * Math.log(size) / Math.log(2));
+    return Math.min(code, 255);
+  }
+
+  static long decodePartitionSize(int code) {
+    if (code == 0) {
+      return 0;
+    }
+    // The geometric mean of the sizes with this code
+    return Math.round(Math.pow(2, (code - 0.5) / 4));
+  }
 }
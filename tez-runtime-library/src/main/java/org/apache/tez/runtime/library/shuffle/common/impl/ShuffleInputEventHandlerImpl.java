@@ -20,6 +20,7 @@
 package org.apache.tez.runtime.library.shuffle.common.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
 
@@ -33,6 +34,7 @@ import org.apache.tez.runtime.api.TezInputContext;
 import org.apache.tez.runtime.api.events.DataMovementEvent;
 import org.apache.tez.runtime.api.events.InputFailedEvent;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.InputIdentifier;
 import org.apache.tez.runtime.library.shuffle.common.DiskFetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInputAllocator;
@@ -99,28 +101,52 @@ public class ShuffleInputEventHandlerImpl implements ShuffleEventHandler {
         + ", attemptNum: " + dme.getVersion() + ", payload: "
         + stringify(shufflePayload));
 
+    List<InputAttemptIdentifier> srcAttemptIdentifiers =
+        new ArrayList<InputAttemptIdentifier>(1);
+    if (shufflePayload.hasNumSpills()) {
+      // The output was not merged, so each of its spills is fetched as a
+      // separate input.
+      int numSpills = shufflePayload.getNumSpills();
+      for (int i = 0; i < numSpills; i++) {
+        srcAttemptIdentifiers.add(new InputAttemptIdentifier(
+            new InputIdentifier(dme.getTargetIndex()), dme.getVersion(),
+            ShuffleUtils.getSpillPathComponent(shufflePayload.getPathComponent(), i),
+            i, i == numSpills - 1));
+      }
+    } else if (shufflePayload.hasSpillId()) {
+      // The source publishes its output one spill at a time.
+      srcAttemptIdentifiers.add(new InputAttemptIdentifier(
+          new InputIdentifier(dme.getTargetIndex()), dme.getVersion(),
+          shufflePayload.getPathComponent(), shufflePayload.getSpillId(),
+          shufflePayload.getLastEvent()));
+    } else {
+      srcAttemptIdentifiers.add(new InputAttemptIdentifier(dme.getTargetIndex(),
+          dme.getVersion(), shufflePayload.getPathComponent()));
+    }
+
     if (shufflePayload.hasEmptyPartitions()) {
       byte[] emptyPartitions = TezUtils.decompressByteStringToByteArray(shufflePayload
           .getEmptyPartitions());
       BitSet emptyPartionsBitSet = TezUtils.fromByteArray(emptyPartitions);
       if (emptyPartionsBitSet.get(srcIndex)) {
-        InputAttemptIdentifier srcAttemptIdentifier = new InputAttemptIdentifier(dme.getTargetIndex(),
-            dme.getVersion());
         LOG.info("Source partition: " + srcIndex + " did not generate any data. SrcAttempt: ["
-            + srcAttemptIdentifier + "]. Not fetching.");
-        shuffleManager.addCompletedInputWithNoData(srcAttemptIdentifier);
+            + srcAttemptIdentifiers + "]. Not fetching.");
+        for (InputAttemptIdentifier srcAttemptIdentifier : srcAttemptIdentifiers) {
+          shuffleManager.addCompletedInputWithNoData(srcAttemptIdentifier);
+        }
         return;
       }
+    }
+    if (shufflePayload.hasData()) {
+      // Data is only sent in the event by outputs which were not spilled.
+      InputAttemptIdentifier srcAttemptIdentifier = srcAttemptIdentifiers.get(0);
+      DataProto dataProto = shufflePayload.getData();
+      FetchedInput fetchedInput = inputAllocator.allocate(dataProto.getRawLength(),
+          dataProto.getCompressedLength(), srcAttemptIdentifier);
+      moveDataToFetchedInput(dataProto, fetchedInput);
+      shuffleManager.addCompletedInputWithData(srcAttemptIdentifier, fetchedInput);
     } else {
-      InputAttemptIdentifier srcAttemptIdentifier = new InputAttemptIdentifier(dme.getTargetIndex(),
-          dme.getVersion(), shufflePayload.getPathComponent());
-      if (shufflePayload.hasData()) {
-        DataProto dataProto = shufflePayload.getData();
-        FetchedInput fetchedInput = inputAllocator.allocate(dataProto.getRawLength(),
-            dataProto.getCompressedLength(), srcAttemptIdentifier);
-        moveDataToFetchedInput(dataProto, fetchedInput);
-        shuffleManager.addCompletedInputWithData(srcAttemptIdentifier, fetchedInput);
-      } else {
+      for (InputAttemptIdentifier srcAttemptIdentifier : srcAttemptIdentifiers) {
         shuffleManager.addKnownInput(shufflePayload.getHost(), shufflePayload.getPort(),
             srcAttemptIdentifier, srcIndex);
       }
@@ -158,6 +184,13 @@ public class ShuffleInputEventHandlerImpl implements ShuffleEventHandler {
     sb.append("host: " + dmProto.getHost()).append(", ");
     sb.append("port: " + dmProto.getPort()).append(", ");
     sb.append("pathComponent: " + dmProto.getPathComponent()).append(", ");
+    if (dmProto.hasNumSpills()) {
+      sb.append("numSpills: " + dmProto.getNumSpills()).append(", ");
+    }
+    if (dmProto.hasSpillId()) {
+      sb.append("spillId: " + dmProto.getSpillId()).append(", ");
+      sb.append("lastEvent: " + dmProto.getLastEvent()).append(", ");
+    }
     sb.append("runDuration: " + dmProto.getRunDuration()).append(", ");
     sb.append("hasDataInEvent: " + dmProto.hasData());
     return sb.toString();
@@ -22,8 +22,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
@@ -54,7 +56,9 @@ import org.apache.tez.runtime.api.TezInputContext;
 import org.apache.tez.runtime.api.events.InputReadErrorEvent;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
 import org.apache.tez.runtime.library.common.InputIdentifier;
+import org.apache.tez.runtime.library.common.PipelinedSpills;
 import org.apache.tez.runtime.library.common.TezRuntimeUtils;
+import org.apache.tez.runtime.library.shuffle.common.AsyncShuffleClient;
 import org.apache.tez.runtime.library.shuffle.common.FetchResult;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInputAllocator;
@@ -87,7 +91,10 @@ public class ShuffleManager implements FetcherCallback {
 
   private final FetchedInputAllocator inputManager;
 
+  // Runs the fetchers, or stores the data fetched by the asyncShuffleClient
   private final ListeningExecutorService fetcherExecutor;
+  // null unless fetching asynchronously
+  private final AsyncShuffleClient asyncShuffleClient;
 
   private final ExecutorService schedulerRawExecutor;
   private final ListeningExecutorService schedulerExecutor;
@@ -96,6 +103,10 @@ public class ShuffleManager implements FetcherCallback {
   private final BlockingQueue<FetchedInput> completedInputs;
   private final AtomicBoolean inputReadyNotificationSent = new AtomicBoolean(false);
   private final Set<InputIdentifier> completedInputSet;
+  // Spills received so far of the inputs which publish one spill at a time.
+  // Guarded by completedInputSet.
+  private final Map<InputIdentifier, PipelinedSpills> pipelinedInputs =
+      new HashMap<InputIdentifier, PipelinedSpills>();
   private final ConcurrentMap<String, InputHost> knownSrcHosts;
   private final BlockingQueue<InputHost> pendingHosts;
   private final Set<InputAttemptIdentifier> obsoletedInputs;
@@ -121,6 +132,11 @@ public class ShuffleManager implements FetcherCallback {
   private final int ifileBufferSize;
   private final boolean ifileReadAhead;
   private final int ifileReadAheadLength;
+
+  // Inputs served by the ShuffleHandler of this node are read in place
+  private final boolean localDiskFetchEnabled;
+  private final String localhostName;
+  private final int localShufflePort;
   
   private final FetchFutureCallback fetchFutureCallback = new FetchFutureCallback();
 
@@ -132,6 +148,7 @@ public class ShuffleManager implements FetcherCallback {
   private final TezCounter decompressedDataSizeCounter;
   private final TezCounter bytesShuffledToDiskCounter;
   private final TezCounter bytesShuffledToMemCounter;
+  private final TezCounter bytesShuffledDirectDiskCounter;
   
   private volatile Throwable shuffleError;
   
@@ -150,15 +167,31 @@ public class ShuffleManager implements FetcherCallback {
     this.decompressedDataSizeCounter = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_DECOMPRESSED);
     this.bytesShuffledToDiskCounter = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_TO_DISK);
     this.bytesShuffledToMemCounter = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_TO_MEM);
+    this.bytesShuffledDirectDiskCounter = inputContext.getCounters().findCounter(TaskCounter.SHUFFLE_BYTES_DISK_DIRECT);
   
     this.ifileBufferSize = bufferSize;
     this.ifileReadAhead = ifileReadAheadEnabled;
     this.ifileReadAheadLength = ifileReadAheadLength;
     this.codec = codec;
     this.inputManager = inputAllocator;
+
+    this.localDiskFetchEnabled = conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_OPTIMIZE_LOCAL_FETCH);
+    if (localDiskFetchEnabled) {
+      this.localhostName = ShuffleUtils.getNodeHost();
+      this.localShufflePort = ShuffleUtils.deserializeShuffleProviderMetaData(
+          inputContext.getServiceProviderMetaData(
+              ShuffleUtils.SHUFFLE_HANDLER_SERVICE_ID));
+    } else {
+      this.localhostName = null;
+      this.localShufflePort = -1;
+    }
   
     completedInputSet = Collections.newSetFromMap(new ConcurrentHashMap<InputIdentifier, Boolean>(numInputs));
-    completedInputs = new LinkedBlockingQueue<FetchedInput>(numInputs);
+    // Each spill of an input is consumed separately, so there may be more
+    // completed inputs than numInputs.
+    completedInputs = new LinkedBlockingQueue<FetchedInput>();
     knownSrcHosts = new ConcurrentHashMap<String, InputHost>();
     pendingHosts = new LinkedBlockingQueue<InputHost>();
     obsoletedInputs = Collections.newSetFromMap(new ConcurrentHashMap<InputAttemptIdentifier, Boolean>());
@@ -170,6 +203,12 @@ public class ShuffleManager implements FetcherCallback {
     
     this.numFetchers = Math.min(maxConfiguredFetchers, numInputs);
     
+    if (conf.getBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_ENABLED)) {
+      this.asyncShuffleClient = AsyncShuffleClient.acquire(conf);
+    } else {
+      this.asyncShuffleClient = null;
+    }
     ExecutorService fetcherRawExecutor = Executors.newFixedThreadPool(
         numFetchers,
         new ThreadFactoryBuilder()
@@ -204,8 +243,10 @@ public class ShuffleManager implements FetcherCallback {
     
     LOG.info(this.getClass().getSimpleName() + " : numInputs=" + numInputs + ", compressionCodec="
         + (codec == null ? "NoCompressionCodec" : codec.getClass().getName()) + ", numFetchers="
-        + numFetchers + ", ifileBufferSize=" + ifileBufferSize + ", ifileReadAheadEnabled="
-        + ifileReadAhead + ", ifileReadAheadLength=" + ifileReadAheadLength);
+        + numFetchers + ", asyncFetch=" + (asyncShuffleClient != null) + ", ifileBufferSize="
+        + ifileBufferSize + ", ifileReadAheadEnabled=" + ifileReadAhead
+        + ", ifileReadAheadLength=" + ifileReadAheadLength
+        + ", localDiskFetchEnabled=" + localDiskFetchEnabled);
   }
 
   public void run() throws IOException {
@@ -269,8 +310,12 @@ public class ShuffleManager implements FetcherCallback {
                 if (isShutdown.get()) {
                   LOG.info("hasBeenShutdown, Breaking out of ShuffleScheduler Loop");
                 }
-                ListenableFuture<FetchResult> future = fetcherExecutor
-                    .submit(fetcher);
+                ListenableFuture<FetchResult> future;
+                if (asyncShuffleClient != null) {
+                  future = fetcher.callAsync(asyncShuffleClient, fetcherExecutor);
+                } else {
+                  future = fetcherExecutor.submit(fetcher);
+                }
                 Futures.addCallback(future, fetchFutureCallback);
                 if (++count >= maxFetchersToRun) {
                   break;
@@ -289,9 +334,7 @@ public class ShuffleManager implements FetcherCallback {
       }
       LOG.info("Shutting down FetchScheduler, Was Interrupted: " + Thread.currentThread().isInterrupted());
       // TODO NEWTEZ Maybe clean up inputs.
-      if (!fetcherExecutor.isShutdown()) {
-        fetcherExecutor.shutdownNow();
-      }
+      shutdownFetcherExecutor();
       return null;
     }
   }
@@ -305,6 +348,9 @@ public class ShuffleManager implements FetcherCallback {
       fetcherBuilder.setCompressionParameters(codec);
     }
     fetcherBuilder.setIFileParams(ifileReadAhead, ifileReadAheadLength);
+    fetcherBuilder.setLocalDiskFetch(localDiskFetchEnabled
+        && inputHost.getHost().equals(localhostName)
+        && inputHost.getPort() == localShufflePort);
 
     // Remove obsolete inputs from the list being given to the fetcher. Also
     // remove from the obsolete list.
@@ -316,9 +362,14 @@ public class ShuffleManager implements FetcherCallback {
       // Avoid adding attempts which have already completed.
       if (completedInputSet.contains(input.getInputIdentifier())) {
         inputIter.remove();
-      }
-      // Avoid adding attempts which have been marked as OBSOLETE 
-      if (obsoletedInputs.contains(input)) {
+      } else if (input.isPipelined()) {
+        // Spills are obsoleted by their attempt, which has several of them
+        if (obsoletedInputs.contains(new InputAttemptIdentifier(
+            input.getInputIdentifier().getInputIndex(), input.getAttemptNumber()))) {
+          inputIter.remove();
+        }
+      } else if (obsoletedInputs.contains(input)) {
+        // Avoid adding attempts which have been marked as OBSOLETE
         inputIter.remove();
         obsoletedInputs.remove(input);
       }
@@ -366,14 +417,11 @@ public class ShuffleManager implements FetcherCallback {
 
   public void addCompletedInputWithNoData(
       InputAttemptIdentifier srcAttemptIdentifier) {
-    InputIdentifier inputIdentifier = srcAttemptIdentifier.getInputIdentifier();
-    LOG.info("No input data exists for SrcTask: " + inputIdentifier + ". Marking as complete.");
+    LOG.info("No input data exists for SrcTask: " + srcAttemptIdentifier + ". Marking as complete.");
     
-    if (!completedInputSet.contains(inputIdentifier)) {
-      synchronized (completedInputSet) {
-        if (!completedInputSet.contains(inputIdentifier)) {
-          registerCompletedInput(new NullFetchedInput(srcAttemptIdentifier));
-        }
+    synchronized (completedInputSet) {
+      if (isNewInput(srcAttemptIdentifier)) {
+        registerCompletedInput(new NullFetchedInput(srcAttemptIdentifier));
       }
     }
 
@@ -389,8 +437,6 @@ public class ShuffleManager implements FetcherCallback {
   public void addCompletedInputWithData(
       InputAttemptIdentifier srcAttemptIdentifier, FetchedInput fetchedInput)
       throws IOException {
-    InputIdentifier inputIdentifier = srcAttemptIdentifier.getInputIdentifier();
-
     LOG.info("Received Data via Event: " + srcAttemptIdentifier + " to "
         + fetchedInput.getType());
     // Count irrespective of whether this is a copy of an already fetched input
@@ -402,13 +448,11 @@ public class ShuffleManager implements FetcherCallback {
     }
 
     boolean committed = false;
-    if (!completedInputSet.contains(inputIdentifier)) {
-      synchronized (completedInputSet) {
-        if (!completedInputSet.contains(inputIdentifier)) {
-          fetchedInput.commit();
-          committed = true;
-          registerCompletedInput(fetchedInput);
-        }
+    synchronized (completedInputSet) {
+      if (isNewInput(srcAttemptIdentifier)) {
+        fetchedInput.commit();
+        committed = true;
+        registerCompletedInput(fetchedInput);
       }
     }
     if (!committed) {
@@ -437,8 +481,6 @@ public class ShuffleManager implements FetcherCallback {
   public void fetchSucceeded(String host, InputAttemptIdentifier srcAttemptIdentifier,
       FetchedInput fetchedInput, long fetchedBytes, long decompressedLength, long copyDuration)
       throws IOException {
-    InputIdentifier inputIdentifier = srcAttemptIdentifier.getInputIdentifier();    
-
     LOG.info("Completed fetch for attempt: " + srcAttemptIdentifier + " to " + fetchedInput.getType());
 
     // Count irrespective of whether this is a copy of an already fetched input
@@ -450,26 +492,26 @@ public class ShuffleManager implements FetcherCallback {
     }
     
     boolean committed = false;
-    if (!completedInputSet.contains(inputIdentifier)) {
-      synchronized (completedInputSet) {
-        if (!completedInputSet.contains(inputIdentifier)) {
-          fetchedInput.commit();
-          committed = true;
-          
-          // Processing counters for completed and commit fetches only. Need
-          // additional counters for excessive fetches - which primarily comes
-          // in after speculation or retries.
-          shuffledInputsCounter.increment(1);
-          bytesShuffledCounter.increment(fetchedBytes);
-          if (fetchedInput.getType() == Type.MEMORY) {
-            bytesShuffledToMemCounter.increment(fetchedBytes);
-          } else {
-            bytesShuffledToDiskCounter.increment(fetchedBytes);
-          }
-          decompressedDataSizeCounter.increment(decompressedLength);
-
-          registerCompletedInput(fetchedInput);
+    synchronized (completedInputSet) {
+      if (isNewInput(srcAttemptIdentifier)) {
+        fetchedInput.commit();
+        committed = true;
+
+        // Processing counters for completed and commit fetches only. Need
+        // additional counters for excessive fetches - which primarily comes
+        // in after speculation or retries.
+        shuffledInputsCounter.increment(1);
+        bytesShuffledCounter.increment(fetchedBytes);
+        if (fetchedInput.getType() == Type.MEMORY) {
+          bytesShuffledToMemCounter.increment(fetchedBytes);
+        } else if (fetchedInput.getType() == Type.DISK_DIRECT) {
+          bytesShuffledDirectDiskCounter.increment(fetchedBytes);
+        } else {
+          bytesShuffledToDiskCounter.increment(fetchedBytes);
         }
+        decompressedDataSizeCounter.increment(decompressedLength);
+
+        registerCompletedInput(fetchedInput);
       }
     }
     if (!committed) {
@@ -517,27 +559,93 @@ public class ShuffleManager implements FetcherCallback {
   /////////////////// End of Methods from FetcherCallbackHandler
 
   public void shutdown() throws InterruptedException {
-    isShutdown.set(true);
+    boolean wasShutdown = isShutdown.getAndSet(true);
     if (this.schedulerExecutor != null && !this.schedulerExecutor.isShutdown()) {
       this.schedulerExecutor.shutdownNow(); // Interrupt all running fetchers
     }
-    if (this.fetcherExecutor != null && !this.fetcherExecutor.isShutdown()) {
-      this.fetcherExecutor.shutdownNow(); // Interrupt all running fetchers
+    shutdownFetcherExecutor();
+    if (this.asyncShuffleClient != null && !wasShutdown) {
+      this.asyncShuffleClient.release();
+    }
+  }
+
+  private void shutdownFetcherExecutor() {
+    if (!fetcherExecutor.isShutdown()) {
+      if (asyncShuffleClient != null) {
+        // Let the queued data of async fetches be released
+        fetcherExecutor.shutdown();
+      } else {
+        fetcherExecutor.shutdownNow(); // Interrupt all running fetchers
+      }
     }
   }
   
+  /**
+   * @return whether the given input, or spill of an input, has not been
+   *         received yet. Must be called with completedInputSet locked.
+   */
+  private boolean isNewInput(InputAttemptIdentifier srcAttemptIdentifier) {
+    InputIdentifier inputIdentifier = srcAttemptIdentifier.getInputIdentifier();
+    if (completedInputSet.contains(inputIdentifier)) {
+      return false;
+    }
+    if (!srcAttemptIdentifier.isPipelined()) {
+      return true;
+    }
+    PipelinedSpills spills = pipelinedInputs.get(inputIdentifier);
+    if (spills == null) {
+      return true;
+    }
+    if (spills.getAttemptNumber() != srcAttemptIdentifier.getAttemptNumber()) {
+      // Spills which have already been handed out cannot be taken back.
+      String message = "Cannot combine the spills of "
+          + TezRuntimeUtils.getTaskAttemptIdentifier(
+              inputContext.getSourceVertexName(),
+              inputIdentifier.getInputIndex(), spills.getAttemptNumber())
+          + " with those of attempt " + srcAttemptIdentifier.getAttemptNumber();
+      LOG.error(message);
+      shuffleError = new IOException(message);
+      inputContext.fatalError(shuffleError, message);
+      return false;
+    }
+    return !spills.isFetched(srcAttemptIdentifier.getSpillId());
+  }
+
+  /**
+   * Must be called with completedInputSet locked. An input which publishes
+   * one spill at a time is complete once all of its spills are registered.
+   */
   private void registerCompletedInput(FetchedInput fetchedInput) {
+    InputAttemptIdentifier srcAttemptIdentifier =
+        fetchedInput.getInputAttemptIdentifier();
+    InputIdentifier inputIdentifier = srcAttemptIdentifier.getInputIdentifier();
+    boolean inputComplete = true;
+    if (srcAttemptIdentifier.isPipelined()) {
+      PipelinedSpills spills = pipelinedInputs.get(inputIdentifier);
+      if (spills == null) {
+        spills = new PipelinedSpills(srcAttemptIdentifier.getAttemptNumber());
+        pipelinedInputs.put(inputIdentifier, spills);
+      }
+      inputComplete = spills.spillFetched(srcAttemptIdentifier);
+      if (inputComplete) {
+        pipelinedInputs.remove(inputIdentifier);
+      }
+    }
     lock.lock();
     try {
-      completedInputSet.add(fetchedInput.getInputAttemptIdentifier().getInputIdentifier());
+      if (inputComplete) {
+        completedInputSet.add(inputIdentifier);
+      }
       completedInputs.add(fetchedInput);
       if (!inputReadyNotificationSent.getAndSet(true)) {
         // TODO Should eventually be controlled by Inputs which are processing the data.
         inputContext.inputIsReady();
       }
-      int numComplete = numCompletedInputs.incrementAndGet();
-      if (numComplete == numInputs) {
-        LOG.info("All inputs fetched for input vertex : " + inputContext.getSourceVertexName());
+      if (inputComplete) {
+        int numComplete = numCompletedInputs.incrementAndGet();
+        if (numComplete == numInputs) {
+          LOG.info("All inputs fetched for input vertex : " + inputContext.getSourceVertexName());
+        }
       }
     } finally {
       lock.unlock();
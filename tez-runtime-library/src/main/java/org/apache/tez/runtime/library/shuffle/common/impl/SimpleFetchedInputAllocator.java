@@ -26,6 +26,7 @@ import org.apache.hadoop.classification.InterfaceAudience.Private;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TezCounters;
 import org.apache.tez.dag.api.TezUncheckedException;
 import org.apache.tez.runtime.library.common.Constants;
 import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
@@ -35,6 +36,7 @@ import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInputAllocator;
 import org.apache.tez.runtime.library.shuffle.common.FetchedInputCallback;
 import org.apache.tez.runtime.library.shuffle.common.MemoryFetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleBufferPool;
 
 
 /**
@@ -59,10 +61,18 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   private final long maxAvailableTaskMemory;
   private final long initialMemoryAvailable;
   
+  private final ShuffleBufferPool bufferPool;
+
   private volatile long usedMemory = 0;
 
   public SimpleFetchedInputAllocator(String uniqueIdentifier, Configuration conf,
       long maxTaskAvailableMemory, long memoryAvailable) {
+    this(uniqueIdentifier, conf, maxTaskAvailableMemory, memoryAvailable,
+        new TezCounters());
+  }
+
+  public SimpleFetchedInputAllocator(String uniqueIdentifier, Configuration conf,
+      long maxTaskAvailableMemory, long memoryAvailable, TezCounters counters) {
     this.conf = conf;    
     this.maxAvailableTaskMemory = maxTaskAvailableMemory;
     this.initialMemoryAvailable = memoryAvailable;
@@ -103,6 +113,11 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     }
 
     this.maxSingleShuffleLimit = (long) (memoryLimit * singleShuffleMemoryLimitPercent);
+
+    this.bufferPool = new ShuffleBufferPool(conf.getBoolean(
+        TezJobConfig.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED,
+        TezJobConfig.DEFAULT_TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED),
+        memoryLimit, counters);
     
     LOG.info("SimpleInputManager -> " + "MemoryLimit: " + 
         this.memoryLimit + ", maxSingleMemLimit: " + this.maxSingleShuffleLimit);
@@ -127,15 +142,42 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   public synchronized FetchedInput allocate(long actualSize, long compressedSize,
       InputAttemptIdentifier inputAttemptIdentifier) throws IOException {
     if (actualSize > maxSingleShuffleLimit
-        || this.usedMemory + actualSize > this.memoryLimit) {
-      return new DiskFetchedInput(actualSize, compressedSize,
-          inputAttemptIdentifier, this, conf, localDirAllocator,
-          fileNameAllocator);
+        || this.usedMemory + bufferPool.getBufferSize((int) actualSize) > this.memoryLimit) {
+      return allocateOnDisk(actualSize, compressedSize, inputAttemptIdentifier);
     } else {
-      this.usedMemory += actualSize;
-      LOG.info("Used memory after allocating " + actualSize  + " : " + usedMemory);
-      return new MemoryFetchedInput(actualSize, compressedSize, inputAttemptIdentifier, this);
+      // The memory used is the length of the buffer, which may be larger
+      // than the input.
+      byte[] buffer = bufferPool.allocate((int) actualSize);
+      this.usedMemory += buffer.length;
+      LOG.info("Used memory after allocating " + buffer.length  + " : " + usedMemory);
+      return new MemoryFetchedInput(buffer, actualSize, compressedSize,
+          inputAttemptIdentifier, this);
+    }
+  }
+
+  @Override
+  public FetchedInput allocateOnDisk(long actualSize, long compressedSize,
+      InputAttemptIdentifier inputAttemptIdentifier) throws IOException {
+    return new DiskFetchedInput(actualSize, compressedSize,
+        inputAttemptIdentifier, this, conf, localDirAllocator,
+        fileNameAllocator);
+  }
+
+  @Override
+  public synchronized byte[] reserveFetchBuffer(int size) {
+    if (size > maxSingleShuffleLimit
+        || this.usedMemory + bufferPool.getBufferSize(size) > this.memoryLimit) {
+      return null;
     }
+    byte[] buffer = bufferPool.allocate(size);
+    this.usedMemory += buffer.length;
+    return buffer;
+  }
+
+  @Override
+  public synchronized void releaseFetchBuffer(byte[] buffer) {
+    unreserve(buffer.length);
+    bufferPool.release(buffer);
   }
 
   @Override
@@ -143,6 +185,7 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
     switch (fetchedInput.getType()) {
     // Not tracking anything here.
     case DISK:
+    case DISK_DIRECT:
     case MEMORY:
       break;
     default:
@@ -164,9 +207,12 @@ public class SimpleFetchedInputAllocator implements FetchedInputAllocator,
   private void cleanup(FetchedInput fetchedInput) {
     switch (fetchedInput.getType()) {
     case DISK:
+    case DISK_DIRECT:
       break;
     case MEMORY:
-      unreserve(fetchedInput.getActualSize());
+      byte[] buffer = ((MemoryFetchedInput) fetchedInput).getBytes();
+      unreserve(buffer.length);
+      bufferPool.release(buffer);
       break;
     default:
       throw new TezUncheckedException("InputType: " + fetchedInput.getType()
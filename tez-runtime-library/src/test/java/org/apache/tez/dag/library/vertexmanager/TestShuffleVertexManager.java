@@ -19,6 +19,7 @@
 package org.apache.tez.dag.library.vertexmanager;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -39,7 +40,9 @@ import org.apache.tez.dag.api.VertexLocationHint;
 import org.apache.tez.dag.api.EdgeProperty.SchedulingType;
 import org.apache.tez.dag.api.VertexManagerPluginContext;
 import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.api.events.InputReadErrorEvent;
 import org.apache.tez.runtime.api.events.VertexManagerEvent;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
 import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.VertexManagerEventPayloadProto;
 import org.junit.Assert;
 import org.junit.Test;
@@ -462,6 +465,294 @@ public class TestShuffleVertexManager {
 
   }
   
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @Test(timeout = 5000)
+  public void testShuffleVertexManagerPartitionStats() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setBoolean(
+        ShuffleVertexManager.TEZ_AM_SHUFFLE_VERTEX_MANAGER_ENABLE_AUTO_PARALLEL,
+        true);
+    conf.setLong(ShuffleVertexManager.TEZ_AM_SHUFFLE_VERTEX_MANAGER_DESIRED_TASK_INPUT_SIZE, 1000L);
+
+    HashMap<String, EdgeProperty> mockInputVertices =
+        new HashMap<String, EdgeProperty>();
+    String mockSrcVertexId1 = "Vertex1";
+    EdgeProperty eProp1 = new EdgeProperty(
+        EdgeProperty.DataMovementType.SCATTER_GATHER,
+        EdgeProperty.DataSourceType.PERSISTED,
+        SchedulingType.SEQUENTIAL,
+        new OutputDescriptor("out"),
+        new InputDescriptor("in"));
+    final String mockManagedVertexId = "Vertex2";
+    mockInputVertices.put(mockSrcVertexId1, eProp1);
+
+    final VertexManagerPluginContext mockContext = mock(VertexManagerPluginContext.class);
+    when(mockContext.getInputVertexEdgeProperties()).thenReturn(mockInputVertices);
+    when(mockContext.getVertexName()).thenReturn(mockManagedVertexId);
+    when(mockContext.getVertexNumTasks(mockManagedVertexId)).thenReturn(4);
+    when(mockContext.getVertexNumTasks(mockSrcVertexId1)).thenReturn(2);
+
+    final Map<String, EdgeManager> newEdgeManagers =
+        new HashMap<String, EdgeManager>();
+    doAnswer(new Answer() {
+      public Object answer(InvocationOnMock invocation) {
+          when(mockContext.getVertexNumTasks(mockManagedVertexId)).thenReturn(2);
+          newEdgeManagers.clear();
+          for (Entry<String, EdgeManagerDescriptor> entry :
+              ((Map<String, EdgeManagerDescriptor>)invocation.getArguments()[2]).entrySet()) {
+            EdgeManager edgeManager = RuntimeUtils.createClazzInstance(
+                entry.getValue().getClassName());
+            final byte[] userPayload = entry.getValue().getUserPayload();
+            edgeManager.initialize(new EdgeManagerContext() {
+              @Override
+              public byte[] getUserPayload() {
+                return userPayload;
+              }
+
+              @Override
+              public String getSrcVertexName() {
+                return null;
+              }
+
+              @Override
+              public String getDestVertexName() {
+                return null;
+              }
+            });
+            newEdgeManagers.put(entry.getKey(), edgeManager);
+          }
+          return null;
+      }}).when(mockContext).setVertexParallelism(eq(2), any(VertexLocationHint.class), anyMap());
+
+    // partition 1 holds most of the data
+    long[] partitionSizes = new long[] { 50, 500, 25, 25 };
+    long[] decodedSizes = ShuffleUtils.decodePartitionStats(
+        ShuffleUtils.encodePartitionStats(partitionSizes));
+    Assert.assertEquals(partitionSizes.length, decodedSizes.length);
+    for (int i = 0; i < partitionSizes.length; ++i) {
+      Assert.assertTrue(Math.abs(decodedSizes[i] - partitionSizes[i])
+          <= partitionSizes[i] / 10);
+    }
+    byte[] payload = VertexManagerEventPayloadProto.newBuilder()
+        .setOutputSize(600L)
+        .setPartitionStats(ShuffleUtils.encodePartitionStats(partitionSizes))
+        .build().toByteArray();
+    VertexManagerEvent vmEvent = new VertexManagerEvent("Vertex", payload);
+
+    ShuffleVertexManager manager = createManager(conf, mockContext, 1.0f, 1.0f);
+    manager.onVertexStarted(null);
+    manager.onVertexManagerEventReceived(vmEvent);
+    manager.onSourceTaskCompleted(mockSrcVertexId1, new Integer(0));
+    manager.onVertexManagerEventReceived(vmEvent);
+    manager.onSourceTaskCompleted(mockSrcVertexId1, new Integer(1));
+    verify(mockContext).setVertexParallelism(eq(2), any(VertexLocationHint.class), anyMap());
+    Assert.assertEquals(1, newEdgeManagers.size());
+    Assert.assertTrue(manager.partitionStatsComplete);
+
+    // task 0 gets partition 1, task 1 gets partitions 0, 2 and 3
+    EdgeManager edgeManager = newEdgeManagers.values().iterator().next();
+    Assert.assertEquals(2, edgeManager.getNumDestinationTaskPhysicalInputs(2, 0));
+    Assert.assertEquals(6, edgeManager.getNumDestinationTaskPhysicalInputs(2, 1));
+    Assert.assertEquals(4, edgeManager.getNumSourceTaskPhysicalOutputs(2, 0));
+    Map<Integer, List<Integer>> targets = Maps.newHashMap();
+    edgeManager.routeDataMovementEventToDestination(
+        new DataMovementEvent(1, new byte[0]), 1, 2, targets);
+    Assert.assertEquals(1, targets.size());
+    Map.Entry<Integer, List<Integer>> e = targets.entrySet().iterator().next();
+    Assert.assertEquals(1, e.getKey().intValue());
+    Assert.assertEquals(1, e.getValue().size());
+    Assert.assertEquals(0, e.getValue().get(0).intValue());
+    targets.clear();
+    edgeManager.routeDataMovementEventToDestination(
+        new DataMovementEvent(2, new byte[0]), 1, 2, targets);
+    Assert.assertEquals(1, targets.size());
+    e = targets.entrySet().iterator().next();
+    Assert.assertEquals(4, e.getKey().intValue());
+    Assert.assertEquals(1, e.getValue().size());
+    Assert.assertEquals(1, e.getValue().get(0).intValue());
+    targets.clear();
+    edgeManager.routeInputSourceTaskFailedEventToDestination(1, 2, targets);
+    Assert.assertEquals(4, targets.size());
+    Assert.assertEquals(Collections.singletonList(0), targets.get(1));
+    Assert.assertEquals(Collections.singletonList(1), targets.get(3));
+    Assert.assertEquals(Collections.singletonList(1), targets.get(4));
+    Assert.assertEquals(Collections.singletonList(1), targets.get(5));
+    Assert.assertEquals(1, edgeManager.routeInputErrorEventToSource(
+        new InputReadErrorEvent("", 4, 0), 1));
+    Assert.assertEquals(1, edgeManager.routeInputErrorEventToSource(
+        new InputReadErrorEvent("", 1, 0), 0));
+  }
+
+  @Test(timeout = 5000)
+  public void testAssignPartitions() {
+    int[] tasks = ShuffleVertexManager.assignPartitions(
+        new long[] { 10, 100, 10, 10, 60, 10 }, 3);
+    // the largest partitions get a task each, the others go to the task
+    // with the least data
+    Assert.assertArrayEquals(new int[] { 2, 0, 2, 2, 1, 2 }, tasks);
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @Test(timeout = 5000)
+  public void testShuffleVertexManagerEmptyPartitions() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setBoolean(
+        ShuffleVertexManager.TEZ_AM_SHUFFLE_VERTEX_MANAGER_ENABLE_AUTO_PARALLEL,
+        true);
+    conf.setLong(ShuffleVertexManager.TEZ_AM_SHUFFLE_VERTEX_MANAGER_DESIRED_TASK_INPUT_SIZE, 500L);
+
+    HashMap<String, EdgeProperty> mockInputVertices =
+        new HashMap<String, EdgeProperty>();
+    String mockSrcVertexId1 = "Vertex1";
+    EdgeProperty eProp1 = new EdgeProperty(
+        EdgeProperty.DataMovementType.SCATTER_GATHER,
+        EdgeProperty.DataSourceType.PERSISTED,
+        SchedulingType.SEQUENTIAL,
+        new OutputDescriptor("out"),
+        new InputDescriptor("in"));
+    final String mockManagedVertexId = "Vertex2";
+    mockInputVertices.put(mockSrcVertexId1, eProp1);
+
+    final VertexManagerPluginContext mockContext = mock(VertexManagerPluginContext.class);
+    when(mockContext.getInputVertexEdgeProperties()).thenReturn(mockInputVertices);
+    when(mockContext.getVertexName()).thenReturn(mockManagedVertexId);
+    when(mockContext.getVertexNumTasks(mockManagedVertexId)).thenReturn(8);
+    when(mockContext.getVertexNumTasks(mockSrcVertexId1)).thenReturn(2);
+
+    final Map<String, EdgeManager> newEdgeManagers =
+        new HashMap<String, EdgeManager>();
+    doAnswer(new Answer() {
+      public Object answer(InvocationOnMock invocation) {
+          when(mockContext.getVertexNumTasks(mockManagedVertexId)).thenReturn(2);
+          newEdgeManagers.clear();
+          for (Entry<String, EdgeManagerDescriptor> entry :
+              ((Map<String, EdgeManagerDescriptor>)invocation.getArguments()[2]).entrySet()) {
+            EdgeManager edgeManager = RuntimeUtils.createClazzInstance(
+                entry.getValue().getClassName());
+            final byte[] userPayload = entry.getValue().getUserPayload();
+            edgeManager.initialize(new EdgeManagerContext() {
+              @Override
+              public byte[] getUserPayload() {
+                return userPayload;
+              }
+
+              @Override
+              public String getSrcVertexName() {
+                return null;
+              }
+
+              @Override
+              public String getDestVertexName() {
+                return null;
+              }
+            });
+            newEdgeManagers.put(entry.getKey(), edgeManager);
+          }
+          return null;
+      }}).when(mockContext).setVertexParallelism(eq(2), any(VertexLocationHint.class), anyMap());
+
+    // the output size asks for 4 tasks, but only 2 partitions have data
+    long[] partitionSizes = new long[] { 500, 400, 0, 0, 0, 0, 0, 0 };
+    byte[] payload = VertexManagerEventPayloadProto.newBuilder()
+        .setOutputSize(900L)
+        .setPartitionStats(ShuffleUtils.encodePartitionStats(partitionSizes))
+        .build().toByteArray();
+    VertexManagerEvent vmEvent = new VertexManagerEvent("Vertex", payload);
+
+    ShuffleVertexManager manager = createManager(conf, mockContext, 1.0f, 1.0f);
+    manager.onVertexStarted(null);
+    manager.onVertexManagerEventReceived(vmEvent);
+    manager.onSourceTaskCompleted(mockSrcVertexId1, new Integer(0));
+    manager.onVertexManagerEventReceived(vmEvent);
+    manager.onSourceTaskCompleted(mockSrcVertexId1, new Integer(1));
+    verify(mockContext).setVertexParallelism(eq(2), any(VertexLocationHint.class), anyMap());
+    Assert.assertEquals(1, newEdgeManagers.size());
+
+    // task 0 gets partitions 0, 2, 4 and 6, task 1 gets 1, 3, 5 and 7
+    EdgeManager edgeManager = newEdgeManagers.values().iterator().next();
+    Assert.assertEquals(8, edgeManager.getNumDestinationTaskPhysicalInputs(2, 0));
+    Assert.assertEquals(8, edgeManager.getNumDestinationTaskPhysicalInputs(2, 1));
+    Map<Integer, List<Integer>> targets = Maps.newHashMap();
+    for (int partition = 0; partition < partitionSizes.length; ++partition) {
+      targets.clear();
+      edgeManager.routeDataMovementEventToDestination(
+          new DataMovementEvent(partition, new byte[0]), 1, 2, targets);
+      Assert.assertEquals(1, targets.size());
+      Map.Entry<Integer, List<Integer>> e = targets.entrySet().iterator().next();
+      Assert.assertEquals(4 + partition / 2, e.getKey().intValue());
+      Assert.assertEquals(Collections.singletonList(partition % 2), e.getValue());
+    }
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @Test(timeout = 5000)
+  public void testShuffleVertexManagerZeroPartitionStats() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setBoolean(
+        ShuffleVertexManager.TEZ_AM_SHUFFLE_VERTEX_MANAGER_ENABLE_AUTO_PARALLEL,
+        true);
+    conf.setLong(ShuffleVertexManager.TEZ_AM_SHUFFLE_VERTEX_MANAGER_DESIRED_TASK_INPUT_SIZE, 500L);
+
+    HashMap<String, EdgeProperty> mockInputVertices =
+        new HashMap<String, EdgeProperty>();
+    String mockSrcVertexId1 = "Vertex1";
+    EdgeProperty eProp1 = new EdgeProperty(
+        EdgeProperty.DataMovementType.SCATTER_GATHER,
+        EdgeProperty.DataSourceType.PERSISTED,
+        SchedulingType.SEQUENTIAL,
+        new OutputDescriptor("out"),
+        new InputDescriptor("in"));
+    final String mockManagedVertexId = "Vertex2";
+    mockInputVertices.put(mockSrcVertexId1, eProp1);
+
+    final VertexManagerPluginContext mockContext = mock(VertexManagerPluginContext.class);
+    when(mockContext.getInputVertexEdgeProperties()).thenReturn(mockInputVertices);
+    when(mockContext.getVertexName()).thenReturn(mockManagedVertexId);
+    when(mockContext.getVertexNumTasks(mockManagedVertexId)).thenReturn(8);
+    when(mockContext.getVertexNumTasks(mockSrcVertexId1)).thenReturn(2);
+
+    final Map<String, EdgeManagerDescriptor> newEdgeManagers =
+        new HashMap<String, EdgeManagerDescriptor>();
+    doAnswer(new Answer() {
+      public Object answer(InvocationOnMock invocation) {
+          when(mockContext.getVertexNumTasks(mockManagedVertexId)).thenReturn(4);
+          newEdgeManagers.clear();
+          newEdgeManagers.putAll(
+              (Map<String, EdgeManagerDescriptor>)invocation.getArguments()[2]);
+          return null;
+      }}).when(mockContext).setVertexParallelism(eq(4), any(VertexLocationHint.class), anyMap());
+
+    // a source which does not track partition sizes reports them all as 0
+    long[] partitionSizes = new long[8];
+    byte[] payload = VertexManagerEventPayloadProto.newBuilder()
+        .setOutputSize(900L)
+        .setPartitionStats(ShuffleUtils.encodePartitionStats(partitionSizes))
+        .build().toByteArray();
+    VertexManagerEvent vmEvent = new VertexManagerEvent("Vertex", payload);
+
+    ShuffleVertexManager manager = createManager(conf, mockContext, 1.0f, 1.0f);
+    manager.onVertexStarted(null);
+    manager.onVertexManagerEventReceived(vmEvent);
+    manager.onSourceTaskCompleted(mockSrcVertexId1, new Integer(0));
+    manager.onVertexManagerEventReceived(vmEvent);
+    manager.onSourceTaskCompleted(mockSrcVertexId1, new Integer(1));
+
+    // the partitions are assigned by range, 2 to each task
+    verify(mockContext).setVertexParallelism(eq(4), any(VertexLocationHint.class), anyMap());
+    Assert.assertEquals(1, newEdgeManagers.size());
+    Assert.assertEquals(
+        ShuffleVertexManager.CustomShuffleEdgeManager.class.getName(),
+        newEdgeManagers.values().iterator().next().getClassName());
+  }
+
+  @Test(timeout = 5000)
+  public void testAssignPartitionsWithEmptyPartitions() {
+    int[] tasks = ShuffleVertexManager.assignPartitions(
+        new long[] { 1000, 800, 0, 0, 0, 0, 0, 0 }, 4);
+    // empty partitions are spread over all the tasks
+    Assert.assertArrayEquals(new int[] { 0, 1, 0, 1, 2, 3, 0, 1 }, tasks);
+  }
+
   private ShuffleVertexManager createManager(Configuration conf, 
       VertexManagerPluginContext context, float min, float max) {
     conf.setFloat(ShuffleVertexManager.TEZ_AM_SHUFFLE_VERTEX_MANAGER_MIN_SRC_FRACTION, min);
@@ -41,4 +41,20 @@ public class TestInputIdentifiers {
     Assert.assertTrue(set.add(i4));
   }
 
+  @Test
+  public void testPipelinedInputAttemptIdentifier() {
+    Set<InputAttemptIdentifier> set = new HashSet<InputAttemptIdentifier>();
+    InputIdentifier input = new InputIdentifier(1);
+    InputAttemptIdentifier i1 = new InputAttemptIdentifier(input, 1, null, 0, false);
+    InputAttemptIdentifier i2 = new InputAttemptIdentifier(input, 1, null, 1, true);
+    InputAttemptIdentifier i3 = new InputAttemptIdentifier(1, 1, null);
+
+    Assert.assertTrue(i1.isPipelined());
+    Assert.assertFalse(i3.isPipelined());
+    Assert.assertTrue(set.add(i1));
+    Assert.assertTrue(set.add(i2));
+    Assert.assertTrue(set.add(i3));
+    Assert.assertFalse(set.add(new InputAttemptIdentifier(input, 1, null, 1, true)));
+  }
+
 }
@@ -0,0 +1,213 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.combine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.common.sort.impl.ExternalSorter;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestHashPreAggregator {
+
+  public static class SumPreAggregator implements PreAggregator {
+    @Override
+    public Object aggregate(Object key, Object aggregate, Object value) {
+      LongWritable sum = (LongWritable) aggregate;
+      sum.set(sum.get() + ((LongWritable) value).get());
+      return sum;
+    }
+  }
+
+  private Configuration conf;
+  private TezOutputContext outputContext;
+  private TezCounters counters;
+  private ExternalSorter sorter;
+  // Sums and record counts of what reached the sorter
+  private Map<String, Long> sorterSums;
+  private int sorterRecords;
+
+  @Before
+  public void setup() throws IOException {
+    conf = new Configuration();
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS,
+        Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS,
+        LongWritable.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATOR_CLASS,
+        SumPreAggregator.class.getName());
+    counters = new TezCounters();
+    outputContext = mock(TezOutputContext.class);
+    when(outputContext.getCounters()).thenReturn(counters);
+
+    sorterSums = new HashMap<String, Long>();
+    sorterRecords = 0;
+    sorter = mock(ExternalSorter.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        String key = invocation.getArguments()[0].toString();
+        long value = ((LongWritable) invocation.getArguments()[1]).get();
+        Long sum = sorterSums.get(key);
+        sorterSums.put(key, (sum == null ? 0 : sum) + value);
+        sorterRecords++;
+        return null;
+      }
+    }).when(sorter).write(any(), any());
+  }
+
+  private HashPreAggregator createPreAggregator() throws IOException {
+    return createPreAggregator(
+        HashPreAggregator.getInitialMemoryRequirement(conf));
+  }
+
+  private HashPreAggregator createPreAggregator(long memoryAvailable)
+      throws IOException {
+    return new HashPreAggregator(outputContext, conf, sorter,
+        HashPreAggregator.createPreAggregator(conf), memoryAvailable);
+  }
+
+  @Test
+  public void testAggregation() throws IOException {
+    HashPreAggregator preAggregator = createPreAggregator();
+    // The writer reuses its objects.
+    Text key = new Text();
+    LongWritable value = new LongWritable();
+    for (int i = 0; i < 1000; i++) {
+      key.set("key" + (i % 10));
+      value.set(i);
+      preAggregator.write(key, value);
+    }
+    assertEquals(0, sorterRecords);
+    preAggregator.flush();
+    preAggregator.close();
+
+    assertEquals(10, sorterRecords);
+    for (int k = 0; k < 10; k++) {
+      long expected = 0;
+      for (int i = k; i < 1000; i += 10) {
+        expected += i;
+      }
+      assertEquals(expected, sorterSums.get("key" + k).longValue());
+    }
+    assertEquals(1000, counters.findCounter(
+        TaskCounter.PRE_AGGREGATION_INPUT_RECORDS).getValue());
+    assertEquals(10, counters.findCounter(
+        TaskCounter.PRE_AGGREGATION_OUTPUT_RECORDS).getValue());
+    // kept apart from the counters of the combiner
+    assertEquals(0, counters.findCounter(
+        TaskCounter.COMBINE_INPUT_RECORDS).getValue());
+    assertEquals(0, counters.findCounter(
+        TaskCounter.COMBINE_OUTPUT_RECORDS).getValue());
+  }
+
+  @Test
+  public void testEvictionByMemory() throws IOException {
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MIN_REDUCTION, 0);
+    // 2 entries with single character keys fit, far below the max keys
+    long entrySize = 2 * 2 + 8 + HashPreAggregator.ENTRY_OVERHEAD;
+    HashPreAggregator preAggregator = createPreAggregator(2 * entrySize);
+    String[] keys = { "a", "b", "a", "c", "a", "b" };
+    for (String key : keys) {
+      preAggregator.write(new Text(key), new LongWritable(1));
+    }
+    // b is evicted by c, then c by b.
+    assertEquals(2, sorterRecords);
+    preAggregator.flush();
+    assertEquals(4, sorterRecords);
+    assertEquals(3, sorterSums.get("a").longValue());
+    assertEquals(2, sorterSums.get("b").longValue());
+    assertEquals(1, sorterSums.get("c").longValue());
+
+    // a record larger than the table goes to the sorter as it is
+    StringBuilder largeKey = new StringBuilder();
+    for (int i = 0; i < 2 * entrySize; i++) {
+      largeKey.append('x');
+    }
+    preAggregator.write(new Text(largeKey.toString()), new LongWritable(5));
+    assertEquals(5, sorterRecords);
+    assertEquals(5, sorterSums.get(largeKey.toString()).longValue());
+    assertEquals(7, counters.findCounter(
+        TaskCounter.PRE_AGGREGATION_INPUT_RECORDS).getValue());
+    assertEquals(5, counters.findCounter(
+        TaskCounter.PRE_AGGREGATION_OUTPUT_RECORDS).getValue());
+  }
+
+  @Test
+  public void testMemoryRequirement() {
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MB, 3);
+    assertEquals(3 << 20, HashPreAggregator.getInitialMemoryRequirement(conf));
+    conf.unset(TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATOR_CLASS);
+    assertEquals(0, HashPreAggregator.getInitialMemoryRequirement(conf));
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MAX_KEYS, 2);
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MIN_REDUCTION, 0);
+    HashPreAggregator preAggregator = createPreAggregator();
+    String[] keys = { "a", "b", "a", "c", "a", "b" };
+    for (String key : keys) {
+      preAggregator.write(new Text(key), new LongWritable(1));
+    }
+    // b is evicted by c, then c by b.
+    assertEquals(2, sorterRecords);
+    preAggregator.flush();
+    assertEquals(4, sorterRecords);
+    assertEquals(3, sorterSums.get("a").longValue());
+    assertEquals(2, sorterSums.get("b").longValue());
+    assertEquals(1, sorterSums.get("c").longValue());
+    assertTrue(preAggregator.isEnabled());
+  }
+
+  @Test
+  public void testDisabledWithoutReduction() throws IOException {
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_PRE_AGGREGATION_MAX_KEYS, 10);
+    HashPreAggregator preAggregator = createPreAggregator();
+    // All keys are distinct.
+    for (int i = 0; i < 100; i++) {
+      preAggregator.write(new Text("key" + i), new LongWritable(i));
+    }
+    assertFalse(preAggregator.isEnabled());
+    preAggregator.flush();
+    assertEquals(100, sorterRecords);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, sorterSums.get("key" + i).longValue());
+    }
+  }
+}
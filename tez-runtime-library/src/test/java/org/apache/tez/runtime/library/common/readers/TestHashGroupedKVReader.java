@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.readers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestHashGroupedKVReader {
+
+  private static final File TEST_DIR = new File(System.getProperty(
+      "test.build.data", "target"), TestHashGroupedKVReader.class.getName());
+
+  private Configuration conf;
+  private TezCounter spilledRecordsCounter;
+
+  @Before
+  public void setup() {
+    FileUtil.fullyDelete(TEST_DIR);
+    TEST_DIR.mkdirs();
+    conf = new Configuration();
+    conf.set(TezJobConfig.LOCAL_DIRS, TEST_DIR.getAbsolutePath());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_KEY_CLASS,
+        Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_VALUE_CLASS,
+        IntWritable.class.getName());
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_HASH_GROUPING_SPILL_PARTITIONS, 4);
+    spilledRecordsCounter = new TezCounters().findCounter(
+        TaskCounter.SPILLED_RECORDS);
+  }
+
+  @After
+  public void cleanup() {
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  /**
+   * Creates a reader which returns the serialized records, like the reader
+   * of the fetched inputs.
+   */
+  @SuppressWarnings("rawtypes")
+  private ShuffledUnorderedKVReader createKVReader(String[] keys,
+      int[] values) throws IOException {
+    final List<byte[]> rawKeys = new ArrayList<byte[]>();
+    final List<byte[]> rawValues = new ArrayList<byte[]>();
+    DataOutputBuffer out = new DataOutputBuffer();
+    for (int i = 0; i < keys.length; i++) {
+      out.reset();
+      new Text(keys[i]).write(out);
+      rawKeys.add(Arrays.copyOf(out.getData(), out.getLength()));
+      out.reset();
+      new IntWritable(values[i]).write(out);
+      rawValues.add(Arrays.copyOf(out.getData(), out.getLength()));
+    }
+
+    final DataInputBuffer keyIn = new DataInputBuffer();
+    final DataInputBuffer valIn = new DataInputBuffer();
+    final int[] index = { -1 };
+    ShuffledUnorderedKVReader kvReader = mock(ShuffledUnorderedKVReader.class);
+    when(kvReader.nextRaw()).thenAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) {
+        index[0]++;
+        if (index[0] >= rawKeys.size()) {
+          return false;
+        }
+        keyIn.reset(rawKeys.get(index[0]), rawKeys.get(index[0]).length);
+        valIn.reset(rawValues.get(index[0]), rawValues.get(index[0]).length);
+        return true;
+      }
+    });
+    when(kvReader.getCurrentRawKey()).thenReturn(keyIn);
+    when(kvReader.getCurrentRawValue()).thenReturn(valIn);
+    return kvReader;
+  }
+
+  /**
+   * Reads all the groups, checking that each key is returned once.
+   */
+  private Map<String, List<Integer>> readGroups(HashGroupedKVReader<?, ?> reader)
+      throws IOException {
+    Map<String, List<Integer>> groups = new HashMap<String, List<Integer>>();
+    while (reader.next()) {
+      String key = reader.getCurrentKey().toString();
+      assertFalse("Key returned twice: " + key, groups.containsKey(key));
+      List<Integer> values = new ArrayList<Integer>();
+      for (Object value : reader.getCurrentValues()) {
+        values.add(((IntWritable) value).get());
+      }
+      groups.put(key, values);
+    }
+    assertFalse(reader.next());
+    return groups;
+  }
+
+  private int countFiles(File dir) {
+    int count = 0;
+    for (File file : dir.listFiles()) {
+      count += file.isDirectory() ? countFiles(file) : 1;
+    }
+    return count;
+  }
+
+  private void testGrouping(int numKeys, int valuesPerKey, long memoryLimit,
+      boolean expectSpills) throws IOException {
+    String[] keys = new String[numKeys * valuesPerKey];
+    int[] values = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "key" + (i % numKeys);
+      values[i] = i;
+    }
+    HashGroupedKVReader<?, ?> reader = new HashGroupedKVReader<Text, IntWritable>(
+        createKVReader(keys, values), conf, "test", memoryLimit,
+        spilledRecordsCounter);
+    Map<String, List<Integer>> groups = readGroups(reader);
+
+    assertEquals(numKeys, groups.size());
+    for (int k = 0; k < numKeys; k++) {
+      List<Integer> groupValues = groups.get("key" + k);
+      assertEquals(valuesPerKey, groupValues.size());
+      for (int v = 0; v < valuesPerKey; v++) {
+        assertTrue(groupValues.contains(k + v * numKeys));
+      }
+    }
+    assertEquals(expectSpills, spilledRecordsCounter.getValue() > 0);
+    reader.close();
+    assertEquals(0, countFiles(TEST_DIR));
+  }
+
+  @Test
+  public void testInMemoryGrouping() throws IOException {
+    testGrouping(10, 100, 1024 * 1024, false);
+  }
+
+  @Test
+  public void testGroupingWithSpills() throws IOException {
+    // Each partition is split again at least once.
+    testGrouping(1000, 3, 4 * 1024, true);
+  }
+
+  @Test
+  public void testGroupingSingleKeyBeyondLimit() throws IOException {
+    // The partition of the key never fits, and is grouped in memory after
+    // the last level.
+    testGrouping(1, 2000, 1024, true);
+  }
+
+  @Test
+  public void testEmptyInput() throws IOException {
+    HashGroupedKVReader<?, ?> reader = new HashGroupedKVReader<Text, IntWritable>(
+        createKVReader(new String[0], new int[0]), conf, "test", 1024,
+        spilledRecordsCounter);
+    assertFalse(reader.next());
+    reader.close();
+  }
+}
@@ -0,0 +1,366 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.InputIdentifier;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezRawKeyValueIterator;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputCallback;
+import org.apache.tez.runtime.library.shuffle.common.LocalDiskFetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class TestLocalDiskFetcher {
+
+  private static final File TEST_DIR = new File(System.getProperty(
+      "test.build.data", "target"), TestLocalDiskFetcher.class.getName())
+      .getAbsoluteFile();
+
+  private static final int NUM_PARTITIONS = 3;
+  private static final int RECORDS_PER_PARTITION = 10;
+  private static final int SHUFFLE_PORT = 13562;
+
+  private Configuration conf;
+  private FileSystem localFs;
+  private TezCounters counters;
+  private TezInputContext inputContext;
+
+  @Before
+  public void setup() throws IOException {
+    FileUtil.fullyDelete(TEST_DIR);
+    conf = new Configuration();
+    conf.set(TezJobConfig.LOCAL_DIRS, TEST_DIR.getAbsolutePath());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_KEY_CLASS,
+        Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_INPUT_VALUE_CLASS,
+        Text.class.getName());
+    localFs = FileSystem.getLocal(conf);
+    counters = new TezCounters();
+    inputContext = mock(TezInputContext.class);
+    doReturn(counters).when(inputContext).getCounters();
+    doReturn("producer").when(inputContext).getSourceVertexName();
+    doReturn("consumer").when(inputContext).getUniqueIdentifier();
+    doReturn(100L * 1024 * 1024).when(inputContext)
+        .getTotalMemoryAvailableToTask();
+    doReturn(ShuffleUtils.serializeShuffleProviderMetaData(SHUFFLE_PORT))
+        .when(inputContext).getServiceProviderMetaData(
+            ShuffleUtils.SHUFFLE_HANDLER_SERVICE_ID);
+  }
+
+  @After
+  public void cleanup() {
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  private static String key(int producer, int partition, int record) {
+    return String.format("key_%d_%02d_%d", partition, record, producer);
+  }
+
+  private static InputAttemptIdentifier createIdentifier(int producer) {
+    return new InputAttemptIdentifier(new InputIdentifier(producer), 0,
+        InputAttemptIdentifier.PATH_PREFIX + "_producer_" + producer);
+  }
+
+  /**
+   * Writes the file.out and index of a producer with several partitions, the
+   * way the sorted output does.
+   */
+  private TezSpillRecord writeProducerOutput(int producer) throws IOException {
+    TezTaskOutputFiles outputFiles = new TezTaskOutputFiles(conf,
+        createIdentifier(producer).getPathComponent());
+    Path outputFile = outputFiles.getOutputFileForWrite();
+    TezSpillRecord spillRecord = new TezSpillRecord(NUM_PARTITIONS);
+    FSDataOutputStream out = localFs.create(outputFile);
+    try {
+      for (int p = 0; p < NUM_PARTITIONS; p++) {
+        long segmentStart = out.getPos();
+        IFile.Writer writer = new IFile.Writer(conf, out, Text.class,
+            Text.class, null, null, null);
+        for (int r = 0; r < RECORDS_PER_PARTITION; r++) {
+          writer.append(new Text(key(producer, p, r)), new Text("v" + r));
+        }
+        writer.close();
+        spillRecord.putIndex(new TezIndexRecord(segmentStart,
+            writer.getRawLength(), writer.getCompressedLength()), p);
+      }
+    } finally {
+      out.close();
+    }
+    spillRecord.writeToFile(outputFiles.getOutputIndexFileForWrite(
+        spillRecord.size() * 24), conf);
+    return spillRecord;
+  }
+
+  private List<String> readKeys(InputStream in, long length)
+      throws IOException {
+    List<String> keys = new ArrayList<String>();
+    IFile.Reader reader = new IFile.Reader(in, length, null, null, null,
+        false, 0, -1);
+    DataInputBuffer keyIn = new DataInputBuffer();
+    DataInputBuffer valueIn = new DataInputBuffer();
+    Text key = new Text();
+    while (reader.nextRawKey(keyIn)) {
+      reader.nextRawValue(valueIn);
+      key.readFields(keyIn);
+      keys.add(key.toString());
+    }
+    reader.close();
+    return keys;
+  }
+
+  private List<String> expectedKeys(int producer, int partition) {
+    List<String> keys = new ArrayList<String>();
+    for (int r = 0; r < RECORDS_PER_PARTITION; r++) {
+      keys.add(key(producer, partition, r));
+    }
+    return keys;
+  }
+
+  private LocalDiskFetcher createFetcher(ShuffleScheduler scheduler,
+      MergeManager merger) throws IOException {
+    return new LocalDiskFetcher(conf, scheduler, merger,
+        mock(ShuffleClientMetrics.class), inputContext);
+  }
+
+  private MapHost createLocalHost(int partition) {
+    return new MapHost(partition, ShuffleUtils.getNodeHost() + ":"
+        + SHUFFLE_PORT, "http://" + ShuffleUtils.getNodeHost() + ":"
+        + SHUFFLE_PORT + "/");
+  }
+
+  @Test(timeout = 10000)
+  public void testFetchPartitionThroughIndex() throws IOException {
+    TezSpillRecord spillRecord = writeProducerOutput(0);
+    InputAttemptIdentifier srcAttempt = createIdentifier(0);
+    ShuffleScheduler scheduler = mock(ShuffleScheduler.class);
+    MergeManager merger = mock(MergeManager.class);
+    LocalDiskFetcher fetcher = createFetcher(scheduler, merger);
+    MapHost host = createLocalHost(1);
+
+    List<InputAttemptIdentifier> notFound = fetcher.fetch(host,
+        Collections.singletonList(srcAttempt));
+    Assert.assertTrue(notFound.isEmpty());
+
+    TezIndexRecord indexRecord = spillRecord.getIndex(1);
+    ArgumentCaptor<MapOutput> mapOutput =
+        ArgumentCaptor.forClass(MapOutput.class);
+    verify(scheduler).copySucceeded(eq(srcAttempt), eq(host),
+        eq(indexRecord.getPartLength()), eq(indexRecord.getRawLength()),
+        anyLong(), mapOutput.capture());
+    Assert.assertEquals(MapOutput.Type.DISK_DIRECT,
+        mapOutput.getValue().getType());
+
+    // The map output is the partition of the producer's file, read in place.
+    mapOutput.getValue().commit();
+    ArgumentCaptor<FileChunk> fileChunk =
+        ArgumentCaptor.forClass(FileChunk.class);
+    verify(merger).closeOnDiskFile(fileChunk.capture());
+    FileChunk chunk = fileChunk.getValue();
+    Path outputFile = new TezTaskOutputFiles(conf,
+        srcAttempt.getPathComponent()).getOutputFile();
+    Assert.assertEquals(outputFile, chunk.getPath());
+    Assert.assertEquals(indexRecord.getStartOffset(), chunk.getOffset());
+    Assert.assertEquals(indexRecord.getPartLength(), chunk.getLength());
+    Assert.assertTrue(chunk.isLocalFile());
+    Assert.assertEquals(srcAttempt, chunk.getInputAttemptIdentifier());
+
+    FSDataInputStream in = localFs.open(chunk.getPath());
+    in.seek(chunk.getOffset());
+    Assert.assertEquals(expectedKeys(0, 1), readKeys(in, chunk.getLength()));
+
+    // Aborting it leaves the producer's file alone.
+    mapOutput.getValue().abort();
+    Assert.assertTrue(localFs.exists(outputFile));
+  }
+
+  @Test(timeout = 10000)
+  public void testFallBackToShuffleHandler() throws IOException {
+    writeProducerOutput(0);
+    ShuffleScheduler scheduler = mock(ShuffleScheduler.class);
+    LocalDiskFetcher fetcher = createFetcher(scheduler,
+        mock(MergeManager.class));
+
+    // Outputs of other nodes, and of other NodeManagers on this host, are
+    // fetched over HTTP.
+    Assert.assertTrue(fetcher.isLocalHost(createLocalHost(0)));
+    Assert.assertFalse(fetcher.isLocalHost(new MapHost(0,
+        "otherhost:" + SHUFFLE_PORT, "http://otherhost:" + SHUFFLE_PORT + "/")));
+    Assert.assertFalse(fetcher.isLocalHost(new MapHost(0,
+        ShuffleUtils.getNodeHost() + ":" + (SHUFFLE_PORT + 1),
+        "http://" + ShuffleUtils.getNodeHost() + ":" + (SHUFFLE_PORT + 1)
+            + "/")));
+
+    // An output which is not on local disk is left for the ShuffleHandler.
+    InputAttemptIdentifier missing = createIdentifier(1);
+    List<InputAttemptIdentifier> srcAttempts =
+        new ArrayList<InputAttemptIdentifier>();
+    srcAttempts.add(createIdentifier(0));
+    srcAttempts.add(missing);
+    List<InputAttemptIdentifier> notFound = fetcher.fetch(createLocalHost(0),
+        srcAttempts);
+    Assert.assertEquals(Collections.singletonList(missing), notFound);
+    verify(scheduler).copySucceeded(eq(createIdentifier(0)),
+        any(MapHost.class), anyLong(), anyLong(), anyLong(),
+        any(MapOutput.class));
+    verify(scheduler, never()).copySucceeded(eq(missing), any(MapHost.class),
+        anyLong(), anyLong(), anyLong(), any(MapOutput.class));
+  }
+
+  @Test
+  public void testFileChunkOrdering() {
+    Path file = new Path("/local/file.out");
+    FileChunk first = new FileChunk(file, 0, 10, true, createIdentifier(0));
+    FileChunk second = new FileChunk(file, 10, 10, true, createIdentifier(1));
+    FileChunk whole = new FileChunk(new Path("/local/merged.out"), 100);
+    Assert.assertTrue(first.compareTo(second) < 0);
+    Assert.assertTrue(second.compareTo(first) > 0);
+    // Chunks of the same file at the same offset are the same chunk.
+    Assert.assertEquals(first, new FileChunk(file, 0, 5, false, null));
+    Assert.assertEquals(first.hashCode(),
+        new FileChunk(file, 0, 5, false, null).hashCode());
+    Assert.assertFalse(first.equals(second));
+    Assert.assertEquals(0, whole.getOffset());
+    Assert.assertEquals(100, whole.getLength());
+    Assert.assertFalse(whole.isLocalFile());
+  }
+
+  @Test(timeout = 10000)
+  public void testLocalDiskFetchedInput() throws IOException {
+    TezSpillRecord spillRecord = writeProducerOutput(0);
+    InputAttemptIdentifier srcAttempt = createIdentifier(0);
+    Path outputFile = new TezTaskOutputFiles(conf,
+        srcAttempt.getPathComponent()).getOutputFile();
+    FetchedInputCallback callback = mock(FetchedInputCallback.class);
+
+    for (int p = 0; p < NUM_PARTITIONS; p++) {
+      TezIndexRecord indexRecord = spillRecord.getIndex(p);
+      LocalDiskFetchedInput fetchedInput = new LocalDiskFetchedInput(
+          indexRecord.getStartOffset(), indexRecord.getRawLength(),
+          indexRecord.getPartLength(), srcAttempt, outputFile, conf, callback);
+      InputStream in = fetchedInput.getInputStream();
+      Assert.assertEquals(expectedKeys(0, p),
+          readKeys(in, indexRecord.getPartLength()));
+      fetchedInput.commit();
+      fetchedInput.free();
+      verify(callback).fetchComplete(fetchedInput);
+      verify(callback).freeResources(fetchedInput);
+    }
+    // The producer's output is still there for other consumers.
+    Assert.assertTrue(localFs.exists(outputFile));
+  }
+
+  @Test(timeout = 20000)
+  public void testMergeDiskDirectOutputs() throws Throwable {
+    // Three outputs on disk start a merge of two of them.
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_FACTOR, 2);
+    int numProducers = 3;
+    int partition = 1;
+    for (int i = 0; i < numProducers; i++) {
+      writeProducerOutput(i);
+    }
+    MergeManager merger = new MergeManager(conf, localFs,
+        new LocalDirAllocator(TezJobConfig.LOCAL_DIRS), inputContext, null,
+        counters.findCounter(TaskCounter.SPILLED_RECORDS),
+        counters.findCounter(TaskCounter.REDUCE_INPUT_RECORDS),
+        counters.findCounter(TaskCounter.MERGED_MAP_OUTPUTS),
+        mock(ExceptionReporter.class), 10 * 1024 * 1024, null, false, 0);
+    merger.configureAndStart();
+    ShuffleScheduler scheduler = mock(ShuffleScheduler.class);
+    LocalDiskFetcher fetcher = createFetcher(scheduler, merger);
+    List<InputAttemptIdentifier> srcAttempts =
+        new ArrayList<InputAttemptIdentifier>();
+    for (int i = 0; i < numProducers; i++) {
+      srcAttempts.add(createIdentifier(i));
+    }
+    Assert.assertTrue(fetcher.fetch(createLocalHost(partition), srcAttempts)
+        .isEmpty());
+    ArgumentCaptor<MapOutput> mapOutputs =
+        ArgumentCaptor.forClass(MapOutput.class);
+    verify(scheduler, times(numProducers)).copySucceeded(
+        any(InputAttemptIdentifier.class), any(MapHost.class), anyLong(),
+        anyLong(), anyLong(), mapOutputs.capture());
+    for (MapOutput mapOutput : mapOutputs.getAllValues()) {
+      mapOutput.commit();
+    }
+
+    TezRawKeyValueIterator iter = merger.close();
+    Assert.assertEquals(1,
+        counters.findCounter(TaskCounter.NUM_DISK_TO_DISK_MERGES).getValue());
+    List<String> keys = new ArrayList<String>();
+    Text key = new Text();
+    while (iter.next()) {
+      DataInputBuffer keyIn = iter.getKey();
+      key.readFields(keyIn);
+      keys.add(key.toString());
+    }
+    iter.close();
+
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < numProducers; i++) {
+      expected.addAll(expectedKeys(i, partition));
+    }
+    Collections.sort(expected);
+    Assert.assertEquals(expected, keys);
+
+    // The merges read the producers' files in place and keep them.
+    for (int i = 0; i < numProducers; i++) {
+      TezTaskOutputFiles outputFiles = new TezTaskOutputFiles(conf,
+          createIdentifier(i).getPathComponent());
+      Assert.assertTrue(localFs.exists(outputFiles.getOutputFile()));
+      Assert.assertTrue(localFs.exists(outputFiles.getOutputIndexFile()));
+    }
+  }
+}
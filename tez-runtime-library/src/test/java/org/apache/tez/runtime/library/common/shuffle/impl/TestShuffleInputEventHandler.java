@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.TezUtils;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class TestShuffleInputEventHandler {
+
+  private ShuffleScheduler scheduler;
+  private ShuffleInputEventHandler handler;
+
+  @Before
+  public void setup() {
+    TezInputContext inputContext = mock(TezInputContext.class);
+    doReturn(ApplicationId.newInstance(1, 1)).when(inputContext)
+        .getApplicationId();
+    scheduler = mock(ShuffleScheduler.class);
+    handler = new ShuffleInputEventHandler(inputContext, scheduler);
+  }
+
+  private static List<Event> createEvent(
+      DataMovementEventPayloadProto.Builder payload, int partition) {
+    payload.setHost("host").setPort(80).setPathComponent("attempt_1");
+    Event event = new DataMovementEvent(partition, 3, 0,
+        payload.build().toByteArray());
+    return Collections.singletonList(event);
+  }
+
+  @Test
+  public void testUnmergedSpills() {
+    handler.handleEvents(createEvent(
+        DataMovementEventPayloadProto.newBuilder().setNumSpills(3), 1));
+
+    ArgumentCaptor<InputAttemptIdentifier> captor =
+        ArgumentCaptor.forClass(InputAttemptIdentifier.class);
+    verify(scheduler, times(3)).addKnownMapOutput(eq("host"), eq(80), eq(1),
+        anyString(), captor.capture());
+    List<InputAttemptIdentifier> spills = captor.getAllValues();
+    for (int i = 0; i < 3; i++) {
+      InputAttemptIdentifier spill = spills.get(i);
+      Assert.assertEquals(3, spill.getInputIdentifier().getInputIndex());
+      Assert.assertEquals("attempt_1_spill_" + i, spill.getPathComponent());
+      Assert.assertTrue(spill.isPipelined());
+      Assert.assertEquals(i, spill.getSpillId());
+      Assert.assertEquals(i == 2, spill.isLastSpill());
+    }
+  }
+
+  @Test
+  public void testUnmergedSpillsOfEmptyPartition() throws Exception {
+    BitSet emptyPartitions = new BitSet();
+    emptyPartitions.set(1);
+    handler.handleEvents(createEvent(DataMovementEventPayloadProto.newBuilder()
+        .setNumSpills(2).setEmptyPartitions(TezUtils
+            .compressByteArrayToByteString(TezUtils.toByteArray(emptyPartitions))),
+        1));
+
+    verify(scheduler, times(2)).copySucceeded(any(InputAttemptIdentifier.class),
+        any(MapHost.class), anyLong(), anyLong(), anyLong(),
+        any(MapOutput.class));
+    verify(scheduler, never()).addKnownMapOutput(anyString(), anyInt(),
+        anyInt(), anyString(), any(InputAttemptIdentifier.class));
+  }
+}
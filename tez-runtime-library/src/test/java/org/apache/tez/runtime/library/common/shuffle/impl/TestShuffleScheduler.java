@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.shuffle.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.InputIdentifier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShuffleScheduler {
+
+  private Shuffle shuffle;
+  private ShuffleScheduler scheduler;
+
+  @Before
+  public void setup() {
+    TezCounters counters = new TezCounters();
+    TezInputContext inputContext = mock(TezInputContext.class);
+    doReturn(counters).when(inputContext).getCounters();
+    doReturn("source").when(inputContext).getSourceVertexName();
+    shuffle = mock(Shuffle.class);
+    scheduler = new ShuffleScheduler(inputContext, new Configuration(), 2,
+        shuffle, counters.findCounter("test", "shuffled"),
+        counters.findCounter("test", "bytes"),
+        counters.findCounter("test", "bytesDecompressed"),
+        counters.findCounter("test", "failed"),
+        counters.findCounter("test", "disk"),
+        counters.findCounter("test", "mem"));
+  }
+
+  @After
+  public void teardown() throws InterruptedException {
+    scheduler.close();
+  }
+
+  private static InputAttemptIdentifier spill(int input, int attempt,
+      int spillId, boolean lastSpill) {
+    return new InputAttemptIdentifier(new InputIdentifier(input), attempt,
+        InputAttemptIdentifier.PATH_PREFIX + "_" + input + "_" + attempt
+            + "_spill_" + spillId, spillId, lastSpill);
+  }
+
+  @Test(timeout = 5000)
+  public void testPipelinedInputCompletion() throws Exception {
+    scheduler.copySucceeded(spill(0, 0, 0, false), null, 0, 0, 0, null);
+    Assert.assertFalse(scheduler.isInputFinished(0));
+    // The last spill may be fetched before the earlier ones.
+    scheduler.copySucceeded(spill(0, 0, 2, true), null, 0, 0, 0, null);
+    Assert.assertFalse(scheduler.isInputFinished(0));
+    // Duplicate fetches are ignored.
+    scheduler.copySucceeded(spill(0, 0, 0, false), null, 0, 0, 0, null);
+    Assert.assertFalse(scheduler.isInputFinished(0));
+    scheduler.copySucceeded(spill(0, 0, 1, false), null, 0, 0, 0, null);
+    Assert.assertTrue(scheduler.isInputFinished(0));
+    Assert.assertFalse(scheduler.isDone());
+
+    scheduler.copySucceeded(new InputAttemptIdentifier(1, 0), null, 0, 0, 0,
+        null);
+    Assert.assertTrue(scheduler.isDone());
+    verify(shuffle, never()).reportException(any(Throwable.class));
+  }
+
+  @Test(timeout = 5000)
+  public void testSpillsOfDifferentAttempts() throws Exception {
+    scheduler.copySucceeded(spill(0, 0, 0, false), null, 0, 0, 0, null);
+    scheduler.copySucceeded(spill(0, 1, 1, true), null, 0, 0, 0, null);
+    verify(shuffle).reportException(any(Throwable.class));
+    Assert.assertFalse(scheduler.isInputFinished(0));
+  }
+
+  @Test(timeout = 5000)
+  public void testAllSpillsAssignedToFetcher() throws Exception {
+    scheduler.addKnownMapOutput("host", 80, 0, "http://host:80/",
+        spill(0, 0, 0, false));
+    scheduler.addKnownMapOutput("host", 80, 0, "http://host:80/",
+        spill(0, 0, 1, true));
+    MapHost host = scheduler.getHost();
+    List<InputAttemptIdentifier> inputs = scheduler.getMapsForHost(host);
+    Assert.assertEquals(2, inputs.size());
+    Assert.assertEquals(0, inputs.get(0).getSpillId());
+    Assert.assertEquals(1, inputs.get(1).getSpillId());
+  }
+}
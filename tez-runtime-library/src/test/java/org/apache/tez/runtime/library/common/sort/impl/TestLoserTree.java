@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestLoserTree {
+
+  /** Merges sorted int arrays, each array being one segment. */
+  private static class IntMerger extends LoserTree {
+    private final int[][] segments;
+    private final int[] positions;
+
+    IntMerger(int[][] segments) {
+      this.segments = segments;
+      this.positions = new int[segments.length];
+      initialize(segments.length);
+    }
+
+    @Override
+    protected boolean lessThan(int a, int b) {
+      return segments[a][positions[a]] < segments[b][positions[b]];
+    }
+
+    List<Integer> merge() {
+      List<Integer> merged = new ArrayList<Integer>();
+      while (size() > 0) {
+        int top = top();
+        int runnerUp = runnerUp();
+        if (runnerUp != -1) {
+          // the runner-up never holds a smaller record than the top
+          assertTrue(segments[runnerUp][positions[runnerUp]]
+              >= segments[top][positions[top]]);
+        }
+        merged.add(segments[top][positions[top]]);
+        if (++positions[top] < segments[top].length) {
+          adjustTop();
+        } else {
+          assertEquals(top, pop());
+        }
+      }
+      assertEquals(-1, top());
+      assertEquals(-1, pop());
+      return merged;
+    }
+  }
+
+  private static void verifyMerge(int[][] segments) {
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int[] segment : segments) {
+      for (int value : segment) {
+        expected.add(value);
+      }
+    }
+    Collections.sort(expected);
+    assertEquals(expected, new IntMerger(segments).merge());
+  }
+
+  @Test(timeout = 5000)
+  public void testMergeSingleSegment() {
+    verifyMerge(new int[][] { { 1, 2, 2, 5 } });
+  }
+
+  @Test(timeout = 5000)
+  public void testMergeNoSegments() {
+    verifyMerge(new int[0][]);
+  }
+
+  @Test(timeout = 5000)
+  public void testRandomMerges() {
+    Random random = new Random(42);
+    for (int numSegments = 2; numSegments <= 130; numSegments++) {
+      int[][] segments = new int[numSegments][];
+      for (int i = 0; i < numSegments; i++) {
+        segments[i] = new int[1 + random.nextInt(20)];
+        for (int j = 0; j < segments[i].length; j++) {
+          segments[i][j] = random.nextInt(100);
+        }
+        Arrays.sort(segments[i]);
+      }
+      verifyMerge(segments);
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testRunnerUp() {
+    IntMerger merger = new IntMerger(new int[][] { { 7 }, { 3 }, { 5 }, { 9 } });
+    assertEquals(1, merger.top());
+    assertEquals(2, merger.runnerUp());
+    merger.pop();
+    assertEquals(2, merger.top());
+    assertEquals(0, merger.runnerUp());
+  }
+}
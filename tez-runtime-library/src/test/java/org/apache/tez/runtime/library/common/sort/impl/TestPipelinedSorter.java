@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezUtils;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.MemoryUpdateCallback;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.api.KeyValueWriter;
+import org.apache.tez.runtime.library.api.Partitioner;
+import org.apache.tez.runtime.library.output.OnFileSortedOutput;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestPipelinedSorter {
+
+  private static final int NUM_PARTITIONS = 3;
+  // Spreads the keys over the partitions in a different order than sorted
+  private static final int KEY_STRIDE = 7919;
+
+  private static Configuration defaultConf = new Configuration();
+  private static FileSystem localFs = null;
+  private static Path workDir = null;
+
+  static {
+    defaultConf.set("fs.defaultFS", "file:///");
+    try {
+      localFs = FileSystem.getLocal(defaultConf);
+      workDir = new Path(
+          new Path(System.getProperty("test.build.data", "/tmp")),
+          TestPipelinedSorter.class.getName())
+          .makeQualified(localFs.getUri(), localFs.getWorkingDirectory());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Sends keys to the partition given by their last digit.
+   */
+  public static class LastDigitPartitioner implements Partitioner {
+    @Override
+    public int getPartition(Object key, Object value, int numPartitions) {
+      String keyString = key.toString();
+      return (keyString.charAt(keyString.length() - 1) - '0') % numPartitions;
+    }
+  }
+
+  private Configuration conf;
+  private TezCounters counters;
+  private TezOutputContext outputContext;
+
+  @Before
+  public void setup() throws IOException {
+    localFs.delete(workDir, true);
+    conf = new Configuration(defaultConf);
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS,
+        Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS,
+        Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_PARTITIONER_CLASS,
+        LastDigitPartitioner.class.getName());
+    conf.setStrings(TezJobConfig.LOCAL_DIRS, workDir.toString());
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORT_BUFFER_OFFHEAP, true);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB, 1);
+
+    counters = new TezCounters();
+    outputContext = mock(TezOutputContext.class);
+    doReturn(counters).when(outputContext).getCounters();
+    doReturn("attempt_0_0").when(outputContext).getUniqueIdentifier();
+    doReturn("destVertex").when(outputContext).getDestinationVertexName();
+    doReturn(new String[] { workDir.toString() }).when(outputContext)
+        .getWorkDirs();
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    localFs.delete(workDir, true);
+  }
+
+  @Test(timeout = 60000)
+  public void testOffHeapOutputUsesPipelinedSorter() throws Exception {
+    doReturn(TezUtils.createUserPayloadFromConf(conf)).when(outputContext)
+        .getUserPayload();
+    doReturn(Runtime.getRuntime().maxMemory()).when(outputContext)
+        .getTotalMemoryAvailableToTask();
+    doReturn(ShuffleUtils.serializeShuffleProviderMetaData(13562))
+        .when(outputContext).getServiceProviderMetaData(
+            ShuffleUtils.SHUFFLE_HANDLER_SERVICE_ID);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        ((MemoryUpdateCallback) invocation.getArguments()[1]).memoryAssigned(
+            (Long) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(outputContext).requestInitialMemory(anyLong(),
+        any(MemoryUpdateCallback.class));
+
+    SorterExposingOutput output = new SorterExposingOutput();
+    output.initialize(outputContext);
+    output.setNumPhysicalOutputs(NUM_PARTITIONS);
+    output.start();
+    // the off-heap buffer is not taken from the heap memory of the task
+    verify(outputContext).requestInitialMemory(eq(0L),
+        any(MemoryUpdateCallback.class));
+    // the DefaultSorter rejects off-heap buffers
+    assertTrue(output.getSorter() instanceof PipelinedSorter);
+
+    int numRecords = 1000;
+    KeyValueWriter writer = output.getWriter();
+    for (int i = 0; i < numRecords; i++) {
+      int id = (i * KEY_STRIDE) % numRecords;
+      writer.write(createKey(id), createValue(id));
+    }
+    List<Event> events = output.close();
+
+    assertFalse(events.isEmpty());
+    verifyOutput(output.getSorter(), numRecords);
+  }
+
+  @Test(timeout = 60000)
+  public void testOffHeapChunks() throws IOException {
+    // a 1 MB buffer split into chunks of 128 KB
+    PipelinedSorter sorter = new PipelinedSorter(outputContext, conf,
+        NUM_PARTITIONS, 0, 128 << 10);
+    // several times the size of the buffer, so every chunk is filled
+    // before the buffer is spilled and collection starts over
+    int numRecords = 100000;
+    for (int i = 0; i < numRecords; i++) {
+      int id = (i * KEY_STRIDE) % numRecords;
+      sorter.write(createKey(id), createValue(id));
+    }
+    sorter.flush();
+    sorter.close();
+
+    assertTrue(sorter.numSpills > 1);
+    assertEquals(numRecords,
+        counters.findCounter(TaskCounter.OUTPUT_RECORDS).getValue());
+    verifyOutput(sorter, numRecords);
+  }
+
+  private static Text createKey(int id) {
+    return new Text(String.format("key%06d", id));
+  }
+
+  private static Text createValue(int id) {
+    return new Text("value" + id);
+  }
+
+  /**
+   * Checks that the final output holds every record once, in the right
+   * partition, and sorted within each partition.
+   */
+  private void verifyOutput(ExternalSorter sorter, int numRecords)
+      throws IOException {
+    Path outputFile = sorter.getMapOutput().getOutputFile();
+    Path indexFile = sorter.getMapOutput().getOutputIndexFile();
+    TezSpillRecord spillRecord = new TezSpillRecord(indexFile, conf);
+    assertEquals(NUM_PARTITIONS, spillRecord.size());
+
+    Partitioner partitioner = new LastDigitPartitioner();
+    int recordsRead = 0;
+    DataInputBuffer keyBuf = new DataInputBuffer();
+    DataInputBuffer valBuf = new DataInputBuffer();
+    Text key = new Text();
+    Text value = new Text();
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      TezIndexRecord indexRecord = spillRecord.getIndex(i);
+      FSDataInputStream in = localFs.open(outputFile);
+      in.seek(indexRecord.getStartOffset());
+      IFile.Reader reader = new IFile.Reader(in, indexRecord.getPartLength(),
+          null, null, null, false, 0, -1);
+      String previousKey = null;
+      while (reader.nextRawKey(keyBuf)) {
+        reader.nextRawValue(valBuf);
+        key.readFields(keyBuf);
+        value.readFields(valBuf);
+        assertEquals(i, partitioner.getPartition(key, value, NUM_PARTITIONS));
+        if (previousKey != null) {
+          assertTrue(previousKey.compareTo(key.toString()) < 0);
+        }
+        previousKey = key.toString();
+        int id = Integer.parseInt(previousKey.substring("key".length()));
+        assertEquals(createValue(id), value);
+        recordsRead++;
+      }
+      reader.close();
+    }
+    assertEquals(numRecords, recordsRead);
+  }
+
+  private static class SorterExposingOutput extends OnFileSortedOutput {
+    ExternalSorter getSorter() {
+      return sorter;
+    }
+  }
+}
@@ -0,0 +1,343 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.sort.impl.dflt;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.TezUtils;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.MemoryUpdateCallback;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.api.events.CompositeDataMovementEvent;
+import org.apache.tez.runtime.api.events.VertexManagerEvent;
+import org.apache.tez.runtime.library.api.KeyValueWriter;
+import org.apache.tez.runtime.library.api.Partitioner;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.apache.tez.runtime.library.common.task.local.output.TezTaskOutputFiles;
+import org.apache.tez.runtime.library.output.OnFileSortedOutput;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestDefaultSorter {
+
+  private static final File TEST_DIR = new File(System.getProperty(
+      "test.build.data", "target"), TestDefaultSorter.class.getName())
+      .getAbsoluteFile();
+
+  private static final String UNIQUE_ID = "attempt_output";
+  private static final int NUM_PARTITIONS = 3;
+  private static final int SHUFFLE_PORT = 13562;
+  // Records bigger than the 1 MB sort buffer are spilled on their own, as
+  // soon as they are written, after the records buffered before them.
+  private static final int LARGE_VALUE_LENGTH = 3 << 19;
+
+  /**
+   * Sends keys of the form "p[partition]..." to the given partition.
+   */
+  public static class KeyPrefixPartitioner implements Partitioner {
+    @Override
+    public int getPartition(Object key, Object value, int numPartitions) {
+      return key.toString().charAt(1) - '0';
+    }
+  }
+
+  private Configuration conf;
+  private TezOutputContext outputContext;
+  private final List<Event> sentEvents = new ArrayList<Event>();
+
+  @Before
+  public void setup() throws IOException {
+    FileUtil.fullyDelete(TEST_DIR);
+    conf = new Configuration();
+    conf.set(TezJobConfig.LOCAL_DIRS, TEST_DIR.getAbsolutePath());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS,
+        Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS,
+        Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_PARTITIONER_CLASS,
+        KeyPrefixPartitioner.class.getName());
+    conf.setBoolean(
+        TezJobConfig.TEZ_RUNTIME_EMPTY_PARTITION_INFO_VIA_EVENTS_ENABLED, true);
+
+    outputContext = mock(TezOutputContext.class);
+    doReturn(new TezCounters()).when(outputContext).getCounters();
+    doReturn(UNIQUE_ID).when(outputContext).getUniqueIdentifier();
+    doReturn("consumer").when(outputContext).getDestinationVertexName();
+    doReturn(ShuffleUtils.serializeShuffleProviderMetaData(SHUFFLE_PORT))
+        .when(outputContext).getServiceProviderMetaData(
+            ShuffleUtils.SHUFFLE_HANDLER_SERVICE_ID);
+    doAnswer(new Answer<Void>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        synchronized (sentEvents) {
+          sentEvents.addAll((List<Event>) invocation.getArguments()[0]);
+        }
+        return null;
+      }
+    }).when(outputContext).sendEvents(anyListOf(Event.class));
+  }
+
+  @After
+  public void cleanup() {
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  private DefaultSorter createSorter() throws IOException {
+    return new DefaultSorter(outputContext, conf, NUM_PARTITIONS, 1 << 20);
+  }
+
+  private static void write(DefaultSorter sorter, int partition, String key)
+      throws IOException {
+    sorter.write(new Text("p" + partition + key), new Text("value"));
+  }
+
+  private static Text createLargeValue() {
+    char[] value = new char[LARGE_VALUE_LENGTH];
+    Arrays.fill(value, 'v');
+    return new Text(new String(value));
+  }
+
+  private static void writeLarge(DefaultSorter sorter, int partition)
+      throws IOException {
+    sorter.write(new Text("p" + partition + "large"), createLargeValue());
+  }
+
+  private static BitSet bits(int... indices) {
+    BitSet bits = new BitSet();
+    for (int index : indices) {
+      bits.set(index);
+    }
+    return bits;
+  }
+
+  private static DataMovementEventPayloadProto getPayload(Event event)
+      throws IOException {
+    Assert.assertTrue(event instanceof CompositeDataMovementEvent);
+    CompositeDataMovementEvent dmEvent = (CompositeDataMovementEvent) event;
+    Assert.assertEquals(0, dmEvent.getSourceIndexStart());
+    Assert.assertEquals(NUM_PARTITIONS, dmEvent.getSourceIndexEnd());
+    return DataMovementEventPayloadProto.parseFrom(dmEvent.getUserPayload());
+  }
+
+  private static BitSet getEmptyPartitions(
+      DataMovementEventPayloadProto payload) throws IOException {
+    if (!payload.hasEmptyPartitions()) {
+      return new BitSet();
+    }
+    return TezUtils.fromByteArray(TezUtils.decompressByteStringToByteArray(
+        payload.getEmptyPartitions()));
+  }
+
+  /**
+   * @return the partitions without data in the index of the given spill
+   */
+  private BitSet readSpillIndex(int spillNumber) throws IOException {
+    TezSpillRecord spillRecord = new TezSpillRecord(new TezTaskOutputFiles(
+        conf, ShuffleUtils.getSpillPathComponent(UNIQUE_ID, spillNumber))
+        .getOutputIndexFile(), conf);
+    Assert.assertEquals(NUM_PARTITIONS, spillRecord.size());
+    BitSet emptyPartitions = new BitSet();
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      if (!spillRecord.getIndex(i).hasData()) {
+        emptyPartitions.set(i);
+      }
+    }
+    return emptyPartitions;
+  }
+
+  /**
+   * Checks that the files of each spill have been kept, and that their
+   * indices match the given empty partitions.
+   */
+  private void assertKeptSpills(DefaultSorter sorter,
+      BitSet... expectedEmptyPartitions) throws IOException {
+    Assert.assertTrue(sorter.isFinalMergeSkipped());
+    Assert.assertEquals(expectedEmptyPartitions.length, sorter.getNumSpills());
+    for (int i = 0; i < expectedEmptyPartitions.length; i++) {
+      Assert.assertTrue(new File(new TezTaskOutputFiles(conf,
+          ShuffleUtils.getSpillPathComponent(UNIQUE_ID, i)).getOutputFile()
+          .toUri().getPath()).exists());
+      Assert.assertEquals(expectedEmptyPartitions[i], readSpillIndex(i));
+    }
+    // the spills are only announced by the event sent when the output closes
+    Assert.assertTrue(sentEvents.isEmpty());
+    assertNotMerged();
+  }
+
+  private void assertNotMerged() {
+    Assert.assertFalse(new File(new File(new File(TEST_DIR, "output"),
+        UNIQUE_ID), "file.out").exists());
+  }
+
+  /**
+   * Checks the event sent for each spill against the index of the spill.
+   */
+  private void assertPublishedSpills(BitSet... expectedEmptyPartitions)
+      throws IOException {
+    Assert.assertEquals(expectedEmptyPartitions.length, sentEvents.size());
+    for (int i = 0; i < sentEvents.size(); i++) {
+      DataMovementEventPayloadProto payload = getPayload(sentEvents.get(i));
+      Assert.assertEquals(i, payload.getSpillId());
+      Assert.assertEquals(i == sentEvents.size() - 1, payload.getLastEvent());
+      Assert.assertEquals(ShuffleUtils.getSpillPathComponent(UNIQUE_ID, i),
+          payload.getPathComponent());
+      Assert.assertEquals(SHUFFLE_PORT, payload.getPort());
+      Assert.assertEquals(expectedEmptyPartitions[i],
+          getEmptyPartitions(payload));
+      Assert.assertEquals(expectedEmptyPartitions[i], readSpillIndex(i));
+    }
+    assertNotMerged();
+  }
+
+  @Test(timeout = 20000)
+  public void testPipelinedShufflePublishesEachSpill() throws IOException {
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED, true);
+    DefaultSorter sorter = createSorter();
+    write(sorter, 0, "a");
+    write(sorter, 0, "b");
+    // spills the buffered records, then this one
+    writeLarge(sorter, 1);
+    Assert.assertEquals(2, sentEvents.size());
+    write(sorter, 0, "c");
+    write(sorter, 2, "d");
+    sorter.flush();
+    sorter.close();
+
+    Assert.assertEquals(3, sorter.getNumSpills());
+    assertPublishedSpills(bits(1, 2), bits(0, 2), bits(1));
+  }
+
+  @Test(timeout = 20000)
+  public void testPipelinedShuffleEmptyFinalSpill() throws IOException {
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED, true);
+    DefaultSorter sorter = createSorter();
+    writeLarge(sorter, 2);
+    Assert.assertEquals(1, sentEvents.size());
+    // everything was published already, so an empty spill marks the end
+    sorter.flush();
+    sorter.close();
+
+    Assert.assertEquals(2, sorter.getNumSpills());
+    assertPublishedSpills(bits(0, 1), bits(0, 1, 2));
+  }
+
+  @Test(timeout = 20000)
+  public void testPipelinedShuffleNoRecords() throws IOException {
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_PIPELINED_SHUFFLE_ENABLED, true);
+    DefaultSorter sorter = createSorter();
+    sorter.flush();
+    sorter.close();
+
+    Assert.assertEquals(1, sorter.getNumSpills());
+    assertPublishedSpills(bits(0, 1, 2));
+  }
+
+  @Test(timeout = 20000)
+  public void testNoFinalMergeKeepsSpills() throws IOException {
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORTER_FINAL_MERGE_ENABLED, false);
+    DefaultSorter sorter = createSorter();
+    write(sorter, 0, "a");
+    writeLarge(sorter, 1);
+    write(sorter, 0, "b");
+    write(sorter, 1, "c");
+    sorter.flush();
+    sorter.close();
+
+    assertKeptSpills(sorter, bits(1, 2), bits(0, 2), bits(2));
+    // only partitions empty in every spill are empty in the output
+    Assert.assertEquals(bits(2), sorter.getEmptyPartitions());
+  }
+
+  @Test(timeout = 20000)
+  public void testNoFinalMergeNoRecords() throws IOException {
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORTER_FINAL_MERGE_ENABLED, false);
+    DefaultSorter sorter = createSorter();
+    sorter.flush();
+    sorter.close();
+
+    // a single empty spill is the output
+    assertKeptSpills(sorter, bits(0, 1, 2));
+    Assert.assertEquals(bits(0, 1, 2), sorter.getEmptyPartitions());
+  }
+
+  @Test(timeout = 20000)
+  public void testNoFinalMergeOutputEvent() throws Exception {
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORTER_FINAL_MERGE_ENABLED, false);
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB, 1);
+    doReturn(TezUtils.createUserPayloadFromConf(conf)).when(outputContext)
+        .getUserPayload();
+    doReturn(new String[] { TEST_DIR.getAbsolutePath() }).when(outputContext)
+        .getWorkDirs();
+    doReturn(Runtime.getRuntime().maxMemory()).when(outputContext)
+        .getTotalMemoryAvailableToTask();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        ((MemoryUpdateCallback) invocation.getArguments()[1]).memoryAssigned(
+            (Long) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(outputContext).requestInitialMemory(anyLong(),
+        any(MemoryUpdateCallback.class));
+
+    OnFileSortedOutput output = new OnFileSortedOutput();
+    output.initialize(outputContext);
+    output.setNumPhysicalOutputs(NUM_PARTITIONS);
+    output.start();
+    KeyValueWriter writer = output.getWriter();
+    writer.write(new Text("p0a"), new Text("value"));
+    writer.write(new Text("p2large"), createLargeValue());
+    List<Event> events = output.close();
+
+    Assert.assertEquals(2, events.size());
+    Assert.assertTrue(events.get(0) instanceof VertexManagerEvent);
+    DataMovementEventPayloadProto payload = getPayload(events.get(1));
+    Assert.assertEquals(2, payload.getNumSpills());
+    Assert.assertEquals(UNIQUE_ID, payload.getPathComponent());
+    Assert.assertEquals(SHUFFLE_PORT, payload.getPort());
+    Assert.assertEquals(bits(1), getEmptyPartitions(payload));
+    Assert.assertEquals(bits(1, 2), readSpillIndex(0));
+    Assert.assertEquals(bits(0, 1), readSpillIndex(1));
+    assertNotMerged();
+  }
+}
@@ -0,0 +1,209 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.common.writers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.runtime.api.TezOutputContext;
+import org.apache.tez.runtime.library.api.Partitioner;
+import org.apache.tez.runtime.library.common.sort.impl.IFile;
+import org.apache.tez.runtime.library.common.sort.impl.TezIndexRecord;
+import org.apache.tez.runtime.library.common.sort.impl.TezSpillRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestUnorderedPartitionedKVWriter {
+
+  private static final Log LOG = LogFactory.getLog(TestUnorderedPartitionedKVWriter.class);
+
+  private static final int NUM_PARTITIONS = 10;
+
+  private static Configuration defaultConf = new Configuration();
+  private static FileSystem localFs = null;
+  private static Path workDir = null;
+
+  static {
+    defaultConf.set("fs.defaultFS", "file:///");
+    try {
+      localFs = FileSystem.getLocal(defaultConf);
+      workDir = new Path(
+          new Path(System.getProperty("test.build.data", "/tmp")),
+          TestUnorderedPartitionedKVWriter.class.getName())
+          .makeQualified(localFs.getUri(), localFs.getWorkingDirectory());
+      LOG.info("Using workDir: " + workDir);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Before
+  @After
+  public void cleanup() throws Exception {
+    localFs.delete(workDir, true);
+  }
+
+  @Test
+  public void testNoSpill() throws IOException {
+    runTest(100);
+  }
+
+  @Test
+  public void testMultipleSpills() throws IOException {
+    // ~30 bytes per record with a 1MB buffer
+    runTest(200000);
+  }
+
+  @Test
+  public void testMultipleSpillsOffHeap() throws IOException {
+    Configuration conf = createConf();
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SORT_BUFFER_OFFHEAP, true);
+    // the off-heap buffer is sized from io.sort.mb
+    conf.setInt(TezJobConfig.TEZ_RUNTIME_IO_SORT_MB, 1);
+    runTest(conf, 200000);
+  }
+
+  @Test
+  public void testNoRecords() throws IOException {
+    runTest(0);
+  }
+
+  @Test
+  public void testLargeRecordPartitionStats() throws IOException {
+    Configuration conf = createConf();
+    TezCounters counters = new TezCounters();
+    UnorderedPartitionedKVWriter kvWriter = createWriter(conf, counters);
+    kvWriter.write(new Text("key"), new IntWritable(1));
+    // larger than the buffer, so it is written straight to a spill
+    char[] largeKey = new char[2 << 20];
+    Arrays.fill(largeKey, 'k');
+    kvWriter.write(new Text(new String(largeKey)), new IntWritable(3));
+    kvWriter.flush();
+    kvWriter.close();
+
+    long[] partitionStats = kvWriter.getPartitionStats();
+    assertTrue(partitionStats[1] > 0);
+    assertTrue(partitionStats[3] > largeKey.length);
+    assertEquals(counters.findCounter(TaskCounter.OUTPUT_BYTES).getValue(),
+        partitionStats[1] + partitionStats[3]);
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      if (i != 1 && i != 3) {
+        assertEquals(0, partitionStats[i]);
+      }
+    }
+  }
+
+  private static Configuration createConf() {
+    Configuration conf = new Configuration(defaultConf);
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_KEY_CLASS, Text.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_INTERMEDIATE_OUTPUT_VALUE_CLASS, IntWritable.class.getName());
+    conf.set(TezJobConfig.TEZ_RUNTIME_PARTITIONER_CLASS, ModPartitioner.class.getName());
+    conf.setStrings(TezJobConfig.LOCAL_DIRS, workDir.toString());
+    return conf;
+  }
+
+  private static UnorderedPartitionedKVWriter createWriter(Configuration conf,
+      TezCounters counters) throws IOException {
+    TezOutputContext outputContext = mock(TezOutputContext.class);
+    doReturn(counters).when(outputContext).getCounters();
+    doReturn("attempt_0_0").when(outputContext).getUniqueIdentifier();
+    doReturn("destVertex").when(outputContext).getDestinationVertexName();
+    doReturn(new String[] { workDir.toString() }).when(outputContext).getWorkDirs();
+    return new UnorderedPartitionedKVWriter(outputContext, conf,
+        NUM_PARTITIONS, 1 << 20);
+  }
+
+  private void runTest(int numRecords) throws IOException {
+    runTest(createConf(), numRecords);
+  }
+
+  private void runTest(Configuration conf, int numRecords) throws IOException {
+    TezCounters counters = new TezCounters();
+    UnorderedPartitionedKVWriter kvWriter = createWriter(conf, counters);
+    for (int i = 0; i < numRecords; i++) {
+      kvWriter.write(new Text("key" + i), new IntWritable(i));
+    }
+    kvWriter.flush();
+    kvWriter.close();
+
+    assertEquals(numRecords,
+        counters.findCounter(TaskCounter.OUTPUT_RECORDS).getValue());
+    if (numRecords > 100) {
+      assertTrue(counters.findCounter(TaskCounter.ADDITIONAL_SPILL_COUNT).getValue() > 0);
+    }
+    long statsTotal = 0;
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      long partitionSize = kvWriter.getPartitionStats()[i];
+      assertEquals(numRecords > i, partitionSize > 0);
+      statsTotal += partitionSize;
+    }
+    assertEquals(counters.findCounter(TaskCounter.OUTPUT_BYTES).getValue(),
+        statsTotal);
+
+    Path outputFile = kvWriter.getMapOutput().getOutputFile();
+    Path indexFile = kvWriter.getMapOutput().getOutputIndexFile();
+    TezSpillRecord spillRecord = new TezSpillRecord(indexFile, conf);
+    assertEquals(NUM_PARTITIONS, spillRecord.size());
+
+    int recordsRead = 0;
+    DataInputBuffer keyBuf = new DataInputBuffer();
+    DataInputBuffer valBuf = new DataInputBuffer();
+    IntWritable value = new IntWritable();
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      TezIndexRecord indexRecord = spillRecord.getIndex(i);
+      FSDataInputStream in = localFs.open(outputFile);
+      in.seek(indexRecord.getStartOffset());
+      IFile.Reader reader = new IFile.Reader(in, indexRecord.getPartLength(),
+          null, null, null, false, 0, -1);
+      while (reader.nextRawKey(keyBuf)) {
+        reader.nextRawValue(valBuf);
+        value.readFields(valBuf);
+        assertEquals(i, value.get() % NUM_PARTITIONS);
+        recordsRead++;
+      }
+      reader.close();
+    }
+    assertEquals(numRecords, recordsRead);
+  }
+
+  public static class ModPartitioner implements Partitioner {
+    @Override
+    public int getPartition(Object key, Object value, int numPartitions) {
+      return ((IntWritable) value).get() % numPartitions;
+    }
+  }
+}
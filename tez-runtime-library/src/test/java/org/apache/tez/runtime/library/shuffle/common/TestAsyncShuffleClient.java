@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.tez.common.security.JobTokenSecretManager;
+import org.apache.tez.runtime.library.common.security.SecureShuffleUtils;
+import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
+import org.apache.tez.runtime.library.shuffle.common.AsyncShuffleClient.FetchPhase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class TestAsyncShuffleClient {
+
+  private final SecretKey secret =
+      JobTokenSecretManager.createSecretKey("secret".getBytes());
+  private final byte[] payload = "some shuffle data".getBytes();
+
+  private ServerSocket serverSocket;
+  private Thread serverThread;
+  private final AtomicInteger connectionsAccepted = new AtomicInteger(0);
+  private AsyncShuffleClient client;
+
+  @Before
+  public void setup() throws IOException {
+    serverSocket = new ServerSocket(0);
+    serverThread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            Socket socket = serverSocket.accept();
+            connectionsAccepted.incrementAndGet();
+            serve(socket);
+          }
+        } catch (IOException e) {
+          // server socket closed
+        }
+      }
+    };
+    serverThread.setDaemon(true);
+    serverThread.start();
+    client = new AsyncShuffleClient(new Configuration());
+  }
+
+  @After
+  public void cleanup() throws IOException, InterruptedException {
+    client.stop();
+    serverSocket.close();
+    serverThread.join(1000);
+  }
+
+  /**
+   * Serves requests on a keep-alive connection until the client closes it.
+   */
+  private void serve(Socket socket) {
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+          socket.getInputStream(), Charsets.ISO_8859_1));
+      OutputStream out = socket.getOutputStream();
+      while (true) {
+        String line = in.readLine();
+        if (line == null) {
+          return;
+        }
+        String urlHash = null;
+        while (!(line = in.readLine()).isEmpty()) {
+          if (line.startsWith(SecureShuffleUtils.HTTP_HEADER_URL_HASH + ":")) {
+            urlHash = line.substring(line.indexOf(':') + 1).trim();
+          }
+        }
+        DataOutputBuffer body = new DataOutputBuffer();
+        new ShuffleHeader("attempt_0", payload.length, payload.length, 0)
+            .write(body);
+        body.write(payload);
+        String head = "HTTP/1.1 200 OK\r\n"
+            + ShuffleHeader.HTTP_HEADER_NAME + ": "
+            + ShuffleHeader.DEFAULT_HTTP_HEADER_NAME + "\r\n"
+            + ShuffleHeader.HTTP_HEADER_VERSION + ": "
+            + ShuffleHeader.DEFAULT_HTTP_HEADER_VERSION + "\r\n"
+            + SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH + ": "
+            + SecureShuffleUtils.generateHash(urlHash.getBytes(), secret)
+            + "\r\n"
+            + "Content-Length: " + body.getLength() + "\r\n"
+            + "Connection: keep-alive\r\n\r\n";
+        out.write(head.getBytes(Charsets.ISO_8859_1));
+        // Send the body in two parts to exercise partial reads.
+        out.write(body.getData(), 0, 3);
+        out.flush();
+        out.write(body.getData(), 3, body.getLength() - 3);
+        out.flush();
+      }
+    } catch (IOException e) {
+      // connection closed
+    } finally {
+      IOUtils.closeSocket(socket);
+    }
+  }
+
+  private static class CollectingListener
+      implements AsyncShuffleClient.FetchListener {
+    final CountDownLatch done = new CountDownLatch(1);
+    final List<String> mapIds = new ArrayList<String>();
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    volatile IOException failure;
+    volatile FetchPhase failurePhase;
+
+    @Override
+    public boolean onHeader(ShuffleHeader header) {
+      mapIds.add(header.getMapId());
+      return true;
+    }
+
+    @Override
+    public void onData(ByteBuffer buffer) {
+      while (buffer.hasRemaining()) {
+        data.write(buffer.get());
+      }
+    }
+
+    @Override
+    public boolean onOutputComplete() {
+      return false;
+    }
+
+    @Override
+    public void onFinished() {
+      done.countDown();
+    }
+
+    @Override
+    public void onFailure(IOException cause, FetchPhase phase) {
+      failure = cause;
+      failurePhase = phase;
+      done.countDown();
+    }
+  }
+
+  private CollectingListener fetch(int port) throws InterruptedException {
+    CollectingListener listener = new CollectingListener();
+    client.fetch("localhost", port, "http://localhost:" + port
+        + "/mapOutput?job=job_0&reduce=0&map=attempt_0", secret, 1000, 5000,
+        listener);
+    assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+    return listener;
+  }
+
+  @Test(timeout = 20000)
+  public void testFetchReusesConnection() throws InterruptedException {
+    int port = serverSocket.getLocalPort();
+    for (int i = 0; i < 3; i++) {
+      CollectingListener listener = fetch(port);
+      assertNull(listener.failure);
+      assertEquals(1, listener.mapIds.size());
+      assertEquals("attempt_0", listener.mapIds.get(0));
+      assertArrayEquals(payload, listener.data.toByteArray());
+    }
+    assertEquals(1, client.getConnectionsOpened());
+    assertEquals(2, client.getConnectionsReused());
+    assertEquals(1, connectionsAccepted.get());
+  }
+
+  @Test(timeout = 20000)
+  public void testConnectFailure() throws IOException, InterruptedException {
+    ServerSocket closed = new ServerSocket(0);
+    int port = closed.getLocalPort();
+    closed.close();
+    CollectingListener listener = fetch(port);
+    assertTrue(listener.failure != null);
+    assertEquals(FetchPhase.CONNECT, listener.failurePhase);
+  }
+}
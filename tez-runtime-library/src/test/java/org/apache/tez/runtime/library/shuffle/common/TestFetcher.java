@@ -0,0 +1,235 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.shuffle.impl.ShuffleHeader;
+import org.apache.tez.runtime.library.common.sort.impl.IFileOutputStream;
+import org.apache.tez.runtime.library.shuffle.common.AsyncShuffleClient.FetchListener;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput.Type;
+import org.apache.tez.runtime.library.shuffle.common.Fetcher.FetcherBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class TestFetcher {
+
+  private static final String HOST = "localhost";
+  private static final int PORT = 13562;
+  private static final int PARTITION = 0;
+
+  private final byte[] payload = "some shuffle data".getBytes();
+  private final InputAttemptIdentifier srcAttemptId =
+      new InputAttemptIdentifier(0, 0, "attempt_0");
+
+  private ExecutorService executor;
+  private FetcherCallback fetcherCallback;
+  private FetchedInputAllocator inputManager;
+  private AsyncShuffleClient client;
+
+  @Before
+  public void setup() {
+    executor = Executors.newSingleThreadExecutor();
+    fetcherCallback = mock(FetcherCallback.class);
+    inputManager = mock(FetchedInputAllocator.class);
+    client = mock(AsyncShuffleClient.class);
+  }
+
+  @After
+  public void cleanup() {
+    executor.shutdownNow();
+  }
+
+  @Test(timeout = 10000)
+  public void testAsyncFetchToMemory() throws Exception {
+    byte[] data = createShuffleData();
+    MemoryFetchedInput fetchedInput = new MemoryFetchedInput(payload.length,
+        data.length, srcAttemptId, mock(FetchedInputCallback.class));
+    when(inputManager.allocate(payload.length, data.length, srcAttemptId))
+        .thenReturn(fetchedInput);
+    byte[] fetchBuffer = new byte[data.length];
+    when(inputManager.reserveFetchBuffer(data.length)).thenReturn(fetchBuffer);
+
+    final AtomicReference<Thread> reportingThread = new AtomicReference<Thread>();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        reportingThread.set(Thread.currentThread());
+        return null;
+      }
+    }).when(fetcherCallback).fetchSucceeded(anyString(),
+        any(InputAttemptIdentifier.class), any(FetchedInput.class), anyLong(),
+        anyLong(), anyLong());
+
+    ListenableFuture<FetchResult> future = createFetcher().callAsync(client,
+        executor);
+    FetchListener listener = captureListener();
+    fetch(listener, data);
+
+    FetchResult result = future.get();
+    assertFalse(result.getPendingInputs().iterator().hasNext());
+    verify(fetcherCallback).fetchSucceeded(eq(HOST), eq(srcAttemptId),
+        eq(fetchedInput), eq((long) data.length), eq((long) payload.length),
+        anyLong());
+    // Decompressed on the fetcher thread, not the event loop
+    assertTrue(reportingThread.get() != Thread.currentThread());
+    assertArrayEquals(payload, fetchedInput.getBytes());
+    verify(inputManager).releaseFetchBuffer(fetchBuffer);
+    verify(inputManager, never()).allocateOnDisk(anyLong(), anyLong(),
+        any(InputAttemptIdentifier.class));
+  }
+
+  @Test(timeout = 10000)
+  public void testAsyncFetchToDiskWithoutFetchBuffer() throws Exception {
+    byte[] data = createShuffleData();
+    FetchedInputCallback inputCallback = mock(FetchedInputCallback.class);
+    MemoryFetchedInput memoryInput = new MemoryFetchedInput(payload.length,
+        data.length, srcAttemptId, inputCallback);
+    when(inputManager.allocate(payload.length, data.length, srcAttemptId))
+        .thenReturn(memoryInput);
+    // No memory left to hold the fetched bytes
+    when(inputManager.reserveFetchBuffer(anyInt())).thenReturn(null);
+    ByteArrayOutputStream diskOutput = new ByteArrayOutputStream();
+    FetchedInput diskInput = mock(FetchedInput.class);
+    when(diskInput.getType()).thenReturn(Type.DISK);
+    when(diskInput.getOutputStream()).thenReturn(diskOutput);
+    when(inputManager.allocateOnDisk(payload.length, data.length,
+        srcAttemptId)).thenReturn(diskInput);
+
+    ListenableFuture<FetchResult> future = createFetcher().callAsync(client,
+        executor);
+    FetchListener listener = captureListener();
+    fetch(listener, data);
+
+    FetchResult result = future.get();
+    assertFalse(result.getPendingInputs().iterator().hasNext());
+    // The memory reserved for the input is given back
+    verify(inputCallback).fetchFailed(memoryInput);
+    verify(fetcherCallback).fetchSucceeded(eq(HOST), eq(srcAttemptId),
+        eq(diskInput), eq((long) data.length), eq((long) payload.length),
+        anyLong());
+    assertArrayEquals(data, diskOutput.toByteArray());
+    verify(inputManager, never()).releaseFetchBuffer(any(byte[].class));
+  }
+
+  @Test(timeout = 10000)
+  public void testAsyncFetchFailureReleasesFetchBuffer() throws Exception {
+    byte[] data = createShuffleData();
+    FetchedInputCallback inputCallback = mock(FetchedInputCallback.class);
+    MemoryFetchedInput fetchedInput = new MemoryFetchedInput(payload.length,
+        data.length, srcAttemptId, inputCallback);
+    when(inputManager.allocate(payload.length, data.length, srcAttemptId))
+        .thenReturn(fetchedInput);
+    byte[] fetchBuffer = new byte[data.length];
+    when(inputManager.reserveFetchBuffer(data.length)).thenReturn(fetchBuffer);
+
+    ListenableFuture<FetchResult> future = createFetcher().callAsync(client,
+        executor);
+    FetchListener listener = captureListener();
+    assertTrue(listener.onHeader(createHeader(data.length)));
+    listener.onData(ByteBuffer.wrap(data, 0, data.length / 2));
+    listener.onFailure(new IOException("connection reset"),
+        AsyncShuffleClient.FetchPhase.BODY);
+
+    FetchResult result = future.get();
+    assertEquals(srcAttemptId, result.getPendingInputs().iterator().next());
+    verify(fetcherCallback).fetchFailed(HOST, srcAttemptId, false);
+    verify(fetcherCallback, never()).fetchSucceeded(anyString(),
+        any(InputAttemptIdentifier.class), any(FetchedInput.class), anyLong(),
+        anyLong(), anyLong());
+    verify(inputManager).releaseFetchBuffer(fetchBuffer);
+    verify(inputCallback).fetchFailed(fetchedInput);
+  }
+
+  private Fetcher createFetcher() {
+    FetcherBuilder builder = new FetcherBuilder(fetcherCallback, inputManager,
+        ApplicationId.newInstance(0, 1), null, new Configuration());
+    builder.assignWork(HOST, PORT, PARTITION, Arrays.asList(srcAttemptId));
+    return builder.build();
+  }
+
+  private FetchListener captureListener() {
+    ArgumentCaptor<FetchListener> listener =
+        ArgumentCaptor.forClass(FetchListener.class);
+    verify(client).fetch(eq(HOST), eq(PORT), anyString(),
+        any(SecretKey.class), anyInt(), anyInt(), listener.capture());
+    return listener.getValue();
+  }
+
+  private ShuffleHeader createHeader(int compressedLength) {
+    return new ShuffleHeader(srcAttemptId.getPathComponent(), compressedLength,
+        payload.length, PARTITION);
+  }
+
+  /**
+   * Passes the data to the listener in two chunks, as an event loop of the
+   * client would.
+   */
+  private void fetch(FetchListener listener, byte[] data) throws IOException {
+    assertTrue(listener.onHeader(createHeader(data.length)));
+    int half = data.length / 2;
+    listener.onData(ByteBuffer.wrap(data, 0, half));
+    listener.onData(ByteBuffer.wrap(data, half, data.length - half));
+    assertFalse(listener.onOutputComplete());
+    listener.onFinished();
+  }
+
+  /**
+   * @return the payload as served by the ShuffleHandler, uncompressed
+   */
+  private byte[] createShuffleData() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    IFileOutputStream out = new IFileOutputStream(bytes);
+    out.write(payload);
+    out.close();
+    return bytes.toByteArray();
+  }
+}
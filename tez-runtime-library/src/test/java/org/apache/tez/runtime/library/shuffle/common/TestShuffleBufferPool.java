@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.tez.common.counters.TaskCounter;
+import org.apache.tez.common.counters.TezCounters;
+import org.junit.Test;
+
+public class TestShuffleBufferPool {
+
+  private static long getCounter(TezCounters counters, TaskCounter counter) {
+    return counters.findCounter(counter).getValue();
+  }
+
+  @Test
+  public void testDisabled() {
+    TezCounters counters = new TezCounters();
+    ShuffleBufferPool pool = new ShuffleBufferPool(false, 1 << 20, counters);
+    byte[] buffer = pool.allocate(5000);
+    assertEquals(5000, buffer.length);
+    pool.release(buffer);
+    assertNotSame(buffer, pool.allocate(5000));
+    assertEquals(0, pool.getFreeBytes());
+    // all allocations are counted, not only those missing the pool
+    assertEquals(2, getCounter(counters, TaskCounter.SHUFFLE_BUFFERS_ALLOCATED));
+    assertEquals(0, getCounter(counters, TaskCounter.SHUFFLE_BUFFERS_REUSED));
+  }
+
+  @Test
+  public void testBufferSizes() {
+    ShuffleBufferPool pool = new ShuffleBufferPool(true, 1 << 20,
+        new TezCounters());
+    assertEquals(ShuffleBufferPool.MIN_BUFFER_SIZE, pool.getBufferSize(0));
+    assertEquals(ShuffleBufferPool.MIN_BUFFER_SIZE, pool.getBufferSize(1));
+    assertEquals(ShuffleBufferPool.MIN_BUFFER_SIZE, pool.getBufferSize(4096));
+    assertEquals(4608, pool.getBufferSize(4097));
+    assertEquals(5120, pool.getBufferSize(5000));
+    assertEquals(8192, pool.getBufferSize(8192));
+    assertEquals(9216, pool.getBufferSize(8193));
+    // Sizes which cannot be rounded up are not
+    assertEquals(Integer.MAX_VALUE - 8, pool.getBufferSize(Integer.MAX_VALUE - 8));
+    for (int size = 1; size < 1 << 20; size += 997) {
+      int bufferSize = pool.getBufferSize(size);
+      assertTrue(bufferSize >= size);
+      assertTrue(bufferSize <= Math.max(ShuffleBufferPool.MIN_BUFFER_SIZE,
+          size + size / 8));
+    }
+  }
+
+  @Test
+  public void testReuse() {
+    TezCounters counters = new TezCounters();
+    ShuffleBufferPool pool = new ShuffleBufferPool(true, 1 << 20, counters);
+    byte[] buffer = pool.allocate(5000);
+    assertEquals(5120, buffer.length);
+    pool.release(buffer);
+    assertEquals(5120, pool.getFreeBytes());
+
+    // A request of the same size class gets the released buffer
+    assertSame(buffer, pool.allocate(4900));
+    assertEquals(0, pool.getFreeBytes());
+    // Other size classes do not
+    assertEquals(4096, pool.allocate(100).length);
+
+    assertEquals(2, getCounter(counters, TaskCounter.SHUFFLE_BUFFERS_ALLOCATED));
+    assertEquals(1, getCounter(counters, TaskCounter.SHUFFLE_BUFFERS_REUSED));
+    assertEquals(120 + 220 + 3996,
+        getCounter(counters, TaskCounter.SHUFFLE_BUFFER_BYTES_WASTED));
+  }
+
+  @Test
+  public void testCapacity() {
+    ShuffleBufferPool pool = new ShuffleBufferPool(true, 16384,
+        new TezCounters());
+    byte[] buffer1 = pool.allocate(8192);
+    byte[] buffer2 = pool.allocate(8192);
+    pool.release(buffer1);
+    pool.release(buffer2);
+    assertEquals(16384, pool.getFreeBytes());
+
+    // Kept buffers are dropped to stay within the capacity
+    pool.allocate(4096);
+    assertEquals(8192, pool.getFreeBytes());
+
+    // Buffers beyond the capacity are not kept
+    byte[] buffer3 = pool.allocate(8192);
+    byte[] buffer4 = pool.allocate(8192);
+    pool.release(buffer3);
+    pool.release(buffer4);
+    assertEquals(8192, pool.getFreeBytes());
+  }
+
+  @Test
+  public void testClose() {
+    ShuffleBufferPool pool = new ShuffleBufferPool(true, 1 << 20,
+        new TezCounters());
+    byte[] buffer1 = pool.allocate(8192);
+    byte[] buffer2 = pool.allocate(8192);
+    pool.release(buffer1);
+    pool.close();
+    assertEquals(0, pool.getFreeBytes());
+    pool.release(buffer2);
+    assertEquals(0, pool.getFreeBytes());
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.tez.common.TezUtils;
+import org.apache.tez.runtime.api.Event;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.api.events.DataMovementEvent;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputAllocator;
+import org.apache.tez.runtime.library.shuffle.impl.ShuffleUserPayloads.DataMovementEventPayloadProto;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class TestShuffleInputEventHandlerImpl {
+
+  private ShuffleManager shuffleManager;
+  private ShuffleInputEventHandlerImpl handler;
+
+  @Before
+  public void setup() {
+    shuffleManager = mock(ShuffleManager.class);
+    handler = new ShuffleInputEventHandlerImpl(mock(TezInputContext.class),
+        shuffleManager, mock(FetchedInputAllocator.class), null, false, 0);
+  }
+
+  private static List<Event> createEvent(
+      DataMovementEventPayloadProto.Builder payload, int partition) {
+    payload.setHost("host").setPort(80).setPathComponent("attempt_1");
+    Event event = new DataMovementEvent(partition, 3, 0,
+        payload.build().toByteArray());
+    return Collections.singletonList(event);
+  }
+
+  private List<InputAttemptIdentifier> captureKnownInputs(int count) {
+    ArgumentCaptor<InputAttemptIdentifier> captor =
+        ArgumentCaptor.forClass(InputAttemptIdentifier.class);
+    verify(shuffleManager, times(count)).addKnownInput(
+        eq("host"), eq(80), captor.capture(), eq(1));
+    return captor.getAllValues();
+  }
+
+  @Test
+  public void testPipelinedSpill() throws Exception {
+    handler.handleEvents(createEvent(DataMovementEventPayloadProto.newBuilder()
+        .setSpillId(2).setLastEvent(true), 1));
+
+    InputAttemptIdentifier spill = captureKnownInputs(1).get(0);
+    Assert.assertEquals(3, spill.getInputIdentifier().getInputIndex());
+    Assert.assertEquals("attempt_1", spill.getPathComponent());
+    Assert.assertTrue(spill.isPipelined());
+    Assert.assertEquals(2, spill.getSpillId());
+    Assert.assertTrue(spill.isLastSpill());
+  }
+
+  @Test
+  public void testSingleOutput() throws Exception {
+    handler.handleEvents(createEvent(DataMovementEventPayloadProto.newBuilder(),
+        1));
+
+    InputAttemptIdentifier input = captureKnownInputs(1).get(0);
+    Assert.assertEquals(3, input.getInputIdentifier().getInputIndex());
+    Assert.assertFalse(input.isPipelined());
+    verify(shuffleManager, never()).addCompletedInputWithNoData(
+        any(InputAttemptIdentifier.class));
+  }
+
+  @Test
+  public void testEmptyPartitions() throws Exception {
+    BitSet emptyPartitions = new BitSet();
+    emptyPartitions.set(0);
+    DataMovementEventPayloadProto.Builder payload =
+        DataMovementEventPayloadProto.newBuilder().setEmptyPartitions(
+            TezUtils.compressByteArrayToByteString(
+                TezUtils.toByteArray(emptyPartitions)));
+    handler.handleEvents(createEvent(payload, 0));
+    ArgumentCaptor<InputAttemptIdentifier> captor =
+        ArgumentCaptor.forClass(InputAttemptIdentifier.class);
+    verify(shuffleManager).addCompletedInputWithNoData(captor.capture());
+    Assert.assertEquals(3, captor.getValue().getInputIdentifier().getInputIndex());
+
+    // partitions with data are still fetched
+    handler.handleEvents(createEvent(payload, 1));
+    Assert.assertEquals(3, captureKnownInputs(1).get(0).getInputIdentifier()
+        .getInputIndex());
+  }
+
+  @Test
+  public void testUnmergedSpills() throws Exception {
+    handler.handleEvents(createEvent(
+        DataMovementEventPayloadProto.newBuilder().setNumSpills(3), 1));
+
+    // each spill is fetched from its own path
+    List<InputAttemptIdentifier> spills = captureKnownInputs(3);
+    for (int i = 0; i < 3; i++) {
+      InputAttemptIdentifier spill = spills.get(i);
+      Assert.assertEquals(3, spill.getInputIdentifier().getInputIndex());
+      Assert.assertEquals("attempt_1_spill_" + i, spill.getPathComponent());
+      Assert.assertTrue(spill.isPipelined());
+      Assert.assertEquals(i, spill.getSpillId());
+      Assert.assertEquals(i == 2, spill.isLastSpill());
+    }
+  }
+
+  @Test
+  public void testUnmergedSpillsOfEmptyPartition() throws Exception {
+    BitSet emptyPartitions = new BitSet();
+    emptyPartitions.set(1);
+    handler.handleEvents(createEvent(DataMovementEventPayloadProto.newBuilder()
+        .setNumSpills(2).setEmptyPartitions(TezUtils
+            .compressByteArrayToByteString(TezUtils.toByteArray(emptyPartitions))),
+        1));
+
+    ArgumentCaptor<InputAttemptIdentifier> captor =
+        ArgumentCaptor.forClass(InputAttemptIdentifier.class);
+    verify(shuffleManager, times(2)).addCompletedInputWithNoData(
+        captor.capture());
+    Assert.assertFalse(captor.getAllValues().get(0).isLastSpill());
+    Assert.assertTrue(captor.getAllValues().get(1).isLastSpill());
+    captureKnownInputs(0);
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tez.runtime.library.shuffle.common.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.tez.common.TezJobConfig;
+import org.apache.tez.common.counters.TezCounters;
+import org.apache.tez.common.security.JobTokenIdentifier;
+import org.apache.tez.dag.api.TezConfiguration;
+import org.apache.tez.runtime.api.TezInputContext;
+import org.apache.tez.runtime.library.common.InputAttemptIdentifier;
+import org.apache.tez.runtime.library.common.InputIdentifier;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputAllocator;
+import org.apache.tez.runtime.library.shuffle.common.FetchedInputCallback;
+import org.apache.tez.runtime.library.shuffle.common.MemoryFetchedInput;
+import org.apache.tez.runtime.library.shuffle.common.ShuffleUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShuffleManager {
+
+  private TezInputContext inputContext;
+  private FetchedInputCallback fetchedInputCallback;
+  private ShuffleManager shuffleManager;
+
+  @Before
+  public void setup() throws IOException {
+    inputContext = mock(TezInputContext.class);
+    doReturn(new TezCounters()).when(inputContext).getCounters();
+    doReturn("source").when(inputContext).getSourceVertexName();
+    doReturn(ApplicationId.newInstance(1, 1)).when(inputContext)
+        .getApplicationId();
+    Token<JobTokenIdentifier> jobToken = new Token<JobTokenIdentifier>(
+        new byte[0], "secret".getBytes(), new Text("kind"), new Text("service"));
+    doReturn(ShuffleUtils.convertJobTokenToBytes(jobToken)).when(inputContext)
+        .getServiceConsumerMetaData(TezConfiguration.TEZ_SHUFFLE_HANDLER_SERVICE_ID);
+    fetchedInputCallback = mock(FetchedInputCallback.class);
+
+    Configuration conf = new Configuration();
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_ASYNC_FETCH_ENABLED, false);
+    // inputs 0 and 1, of which input 0 is published one spill at a time
+    shuffleManager = new ShuffleManager(inputContext, conf, 2, 4096, false, 0,
+        null, mock(FetchedInputAllocator.class));
+  }
+
+  @After
+  public void cleanup() throws InterruptedException {
+    shuffleManager.shutdown();
+  }
+
+  private static InputAttemptIdentifier createSpill(int attemptNumber,
+      int spillId, boolean lastSpill) {
+    return new InputAttemptIdentifier(new InputIdentifier(0), attemptNumber,
+        ShuffleUtils.getSpillPathComponent("attempt_0", spillId), spillId,
+        lastSpill);
+  }
+
+  private FetchedInput createFetchedInput(InputAttemptIdentifier id) {
+    return new MemoryFetchedInput(1, 1, id, fetchedInputCallback);
+  }
+
+  @Test(timeout = 10000)
+  public void testPipelinedInputCompletesWithLastSpill() throws Exception {
+    InputAttemptIdentifier spill0 = createSpill(0, 0, false);
+    FetchedInput fetchedSpill0 = createFetchedInput(spill0);
+    shuffleManager.addCompletedInputWithData(spill0, fetchedSpill0);
+    Assert.assertFalse(shuffleManager.allInputsFetched());
+    // the spill is handed out before the input is complete
+    Assert.assertSame(fetchedSpill0, shuffleManager.getNextInput());
+
+    // a spill received again is dropped
+    FetchedInput duplicate = createFetchedInput(spill0);
+    shuffleManager.addCompletedInputWithData(spill0, duplicate);
+    verify(fetchedInputCallback).fetchFailed(duplicate);
+
+    shuffleManager.addCompletedInputWithNoData(createSpill(0, 1, true));
+    Assert.assertFalse(shuffleManager.allInputsFetched());
+    InputAttemptIdentifier input1 = new InputAttemptIdentifier(1, 0,
+        "attempt_1");
+    FetchedInput fetchedInput1 = createFetchedInput(input1);
+    shuffleManager.addCompletedInputWithData(input1, fetchedInput1);
+    Assert.assertTrue(shuffleManager.allInputsFetched());
+
+    // the empty spill is skipped
+    Assert.assertSame(fetchedInput1, shuffleManager.getNextInput());
+    Assert.assertNull(shuffleManager.getNextInput());
+    verify(inputContext, never()).fatalError(any(Throwable.class), anyString());
+  }
+
+  @Test(timeout = 10000)
+  public void testLastSpillFirst() throws Exception {
+    shuffleManager.addCompletedInputWithNoData(createSpill(0, 1, true));
+    shuffleManager.addCompletedInputWithNoData(new InputAttemptIdentifier(1, 0));
+    Assert.assertFalse(shuffleManager.allInputsFetched());
+    shuffleManager.addCompletedInputWithNoData(createSpill(0, 0, false));
+    Assert.assertTrue(shuffleManager.allInputsFetched());
+  }
+
+  @Test(timeout = 10000)
+  public void testSpillsOfAnotherAttempt() throws Exception {
+    shuffleManager.addCompletedInputWithData(createSpill(0, 0, false),
+        createFetchedInput(createSpill(0, 0, false)));
+    // the spills received already cannot be combined with a later attempt
+    FetchedInput otherAttempt = createFetchedInput(createSpill(1, 0, true));
+    shuffleManager.addCompletedInputWithData(createSpill(1, 0, true),
+        otherAttempt);
+    verify(inputContext).fatalError(any(Throwable.class), anyString());
+    verify(fetchedInputCallback).fetchFailed(otherAttempt);
+    Assert.assertFalse(shuffleManager.allInputsFetched());
+  }
+}
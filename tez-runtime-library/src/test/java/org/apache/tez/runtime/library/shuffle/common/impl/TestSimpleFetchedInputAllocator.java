@@ -19,6 +19,9 @@
 package org.apache.tez.runtime.library.shuffle.common.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.util.UUID;
@@ -85,4 +88,44 @@ public class TestSimpleFetchedInputAllocator {
     assertEquals(FetchedInput.Type.DISK, fi5.getType());
   }
 
+  @Test
+  public void testFetchBufferReservation() throws IOException {
+    String localDirs = "/tmp/" + this.getClass().getName();
+    Configuration conf = new Configuration();
+    conf.setFloat(TezJobConfig.TEZ_RUNTIME_SHUFFLE_MEMORY_LIMIT_PERCENT, 1.0f);
+    conf.setBoolean(TezJobConfig.TEZ_RUNTIME_SHUFFLE_BUFFER_POOL_ENABLED, false);
+    conf.setStrings(TezJobConfig.LOCAL_DIRS, localDirs);
+
+    long memoryAvailable = 64 * 1024;
+    SimpleFetchedInputAllocator inputManager = new SimpleFetchedInputAllocator(
+        UUID.randomUUID().toString(), conf, Runtime.getRuntime().maxMemory(),
+        memoryAvailable);
+
+    int requestSize = 40 * 1024;
+    byte[] buffer = inputManager.reserveFetchBuffer(requestSize);
+    assertNotNull(buffer);
+    assertTrue(buffer.length >= requestSize);
+
+    // The reserved buffer counts against the memory of the inputs
+    assertNull(inputManager.reserveFetchBuffer(requestSize));
+    FetchedInput fi1 = inputManager.allocate(requestSize, 1,
+        new InputAttemptIdentifier(1, 1));
+    assertEquals(FetchedInput.Type.DISK, fi1.getType());
+    fi1.abort();
+
+    inputManager.releaseFetchBuffer(buffer);
+    FetchedInput fi2 = inputManager.allocate(requestSize, 1,
+        new InputAttemptIdentifier(2, 1));
+    assertEquals(FetchedInput.Type.MEMORY, fi2.getType());
+    assertNull(inputManager.reserveFetchBuffer(requestSize));
+    fi2.abort();
+    assertNotNull(inputManager.reserveFetchBuffer(requestSize));
+
+    // Never in memory, whatever is available
+    FetchedInput fi3 = inputManager.allocateOnDisk(1, 1,
+        new InputAttemptIdentifier(3, 1));
+    assertEquals(FetchedInput.Type.DISK, fi3.getType());
+    fi3.abort();
+  }
+
 }